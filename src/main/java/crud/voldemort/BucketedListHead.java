@@ -0,0 +1,272 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import voldemort.VoldemortException;
+
+
+/**
+ * Describes how the entries of a {@link BucketedListResource} are stored.
+ * Entries are numbered from zero in the order they were appended, and are
+ * grouped into buckets of a fixed number of entries, each stored under its
+ * own key: bucket {@code b} holds entries {@code b * bucketSize} through
+ * {@code (b + 1) * bucketSize - 1}. The head, stored under the resource's
+ * own key, records:
+ * <ul>
+ *  <li>the bucket size, so that it can't change for an existing list;</li>
+ *  <li>the index of the first entry not yet trimmed;</li>
+ *  <li>a hint to the tail bucket: the last bucket is at or after it, and
+ *      is the first bucket found after it that isn't full;</li>
+ *  <li>the first bucket not yet deleted by compaction;</li>
+ *  <li>the generation of the list, which is part of each bucket's key;
+ *      and</li>
+ *  <li>whether the list has been deleted.</li>
+ * </ul>
+ * Each field only ever increases, until the list is deleted. A deleted
+ * list's head remains as a tombstone, so that a list created again under
+ * the same key has the next generation, and so never shares buckets with
+ * its predecessor, whose buckets may still be being deleted.
+ *
+ * Heads of the first format version, which had no generation, are read
+ * as generation zero, whose bucket keys are unchanged.
+ */
+/*package*/ final class BucketedListHead {
+
+    /**
+     * The format version of buckets, and of heads without a generation.
+     */
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte GENERATION_FORMAT_VERSION = 2;
+    private static final int HEAD_SIZE = 1 + 4 + 8 + 8 + 8;
+    private static final int GENERATION_HEAD_SIZE = HEAD_SIZE + 8 + 1;
+
+    private final int bucketSize;
+    private final long firstIndex;
+    private final long tailBucket;
+    private final long compactedBucket;
+    private final long generation;
+    private final boolean deleted;
+
+
+    public static BucketedListHead empty(final int bucketSize) {
+        return new BucketedListHead(bucketSize, 0L, 0L, 0L, 0L, false);
+    }
+
+    /**
+     * @throws VoldemortException   if the bytes are not a list head.
+     */
+    public static BucketedListHead decode(final byte[] bytes) {
+        final boolean hasGeneration;
+        if (bytes.length == HEAD_SIZE && bytes[0] == FORMAT_VERSION) {
+            hasGeneration = false;
+        } else if (bytes.length == GENERATION_HEAD_SIZE && bytes[0] == GENERATION_FORMAT_VERSION) {
+            hasGeneration = true;
+        } else {
+            throw new VoldemortException("Not a bucketed list head");
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        final int bucketSize = buf.getInt();
+        final long firstIndex = buf.getLong();
+        final long tailBucket = buf.getLong();
+        final long compactedBucket = buf.getLong();
+        final long generation = hasGeneration ? buf.getLong() : 0L;
+        final byte deleted = hasGeneration ? buf.get() : 0;
+        if (bucketSize <= 0 || firstIndex < 0L || tailBucket < 0L || compactedBucket < 0L
+                || generation < 0L || (deleted != 0 && deleted != 1)) {
+            throw new VoldemortException("Corrupt bucketed list head");
+        }
+        return new BucketedListHead(bucketSize, firstIndex, tailBucket, compactedBucket, generation, deleted == 1);
+    }
+
+    public byte[] encode() {
+        return ByteBuffer.allocate(GENERATION_HEAD_SIZE)
+                .put(GENERATION_FORMAT_VERSION)
+                .putInt(this.bucketSize)
+                .putLong(this.firstIndex)
+                .putLong(this.tailBucket)
+                .putLong(this.compactedBucket)
+                .putLong(this.generation)
+                .put((byte) (this.deleted ? 1 : 0))
+                .array();
+    }
+
+    /**
+     * @return  the key of the given bucket of this generation of the list
+     *          with the given key.
+     */
+    public String bucketKey(final String key, final long bucket) {
+        return (this.generation == 0L)
+                ? key + "#bucket-" + bucket
+                : key + "#gen-" + this.generation + "#bucket-" + bucket;
+    }
+
+    public static byte[] encodeBucket(final List<byte[]> entries) {
+        int length = 1 + 4;
+        for (final byte[] entry : entries) {
+            length += 4 + entry.length;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(length)
+                .put(FORMAT_VERSION)
+                .putInt(entries.size());
+        for (final byte[] entry : entries) {
+            buf.putInt(entry.length).put(entry);
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return  a mutable list of the entries in the given bucket.
+     *
+     * @throws VoldemortException   if the bytes are not a bucket.
+     */
+    public static List<byte[]> decodeBucket(final byte[] bytes) {
+        try {
+            final ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (buf.get() != FORMAT_VERSION) {
+                throw new VoldemortException("Not a bucketed list bucket");
+            }
+            final int count = buf.getInt();
+            if (count < 0) {
+                throw new VoldemortException("Corrupt bucketed list bucket");
+            }
+            final List<byte[]> entries = new ArrayList<>(count + 1);
+            for (int i = 0; i < count; ++i) {
+                final byte[] entry = new byte[buf.getInt()];
+                buf.get(entry);
+                entries.add(entry);
+            }
+            if (buf.hasRemaining()) {
+                throw new VoldemortException("Corrupt bucketed list bucket");
+            }
+            return entries;
+        } catch (final BufferUnderflowException | NegativeArraySizeException ex) {
+            throw new VoldemortException("Corrupt bucketed list bucket", ex);
+        }
+    }
+
+    public int getBucketSize() {
+        return this.bucketSize;
+    }
+
+    public long getFirstIndex() {
+        return this.firstIndex;
+    }
+
+    public long getTailBucket() {
+        return this.tailBucket;
+    }
+
+    public long getCompactedBucket() {
+        return this.compactedBucket;
+    }
+
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return  true if this head is the tombstone of a deleted list.
+     */
+    public boolean isDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * @return  the bucket that holds the entry with the given index.
+     */
+    public long bucketOf(final long index) {
+        return index / this.bucketSize;
+    }
+
+    /**
+     * @return  the first bucket that holds any untrimmed entries, or that
+     *          will once they're appended.
+     */
+    public long getFirstBucket() {
+        return bucketOf(this.firstIndex);
+    }
+
+    public BucketedListHead withFirstIndex(final long newFirstIndex) {
+        return new BucketedListHead(
+                this.bucketSize,
+                Math.max(this.firstIndex, newFirstIndex),
+                this.tailBucket,
+                this.compactedBucket,
+                this.generation,
+                this.deleted);
+    }
+
+    public BucketedListHead withTailBucket(final long newTailBucket) {
+        return new BucketedListHead(
+                this.bucketSize,
+                this.firstIndex,
+                Math.max(this.tailBucket, newTailBucket),
+                this.compactedBucket,
+                this.generation,
+                this.deleted);
+    }
+
+    public BucketedListHead withCompactedBucket(final long newCompactedBucket) {
+        return new BucketedListHead(
+                this.bucketSize,
+                this.firstIndex,
+                this.tailBucket,
+                Math.max(this.compactedBucket, newCompactedBucket),
+                this.generation,
+                this.deleted);
+    }
+
+    /**
+     * @return  the tombstone of this list, which records its generation.
+     */
+    public BucketedListHead deleted() {
+        return new BucketedListHead(
+                this.bucketSize,
+                this.firstIndex,
+                this.tailBucket,
+                this.compactedBucket,
+                this.generation,
+                true);
+    }
+
+    /**
+     * @return  the head of an empty list of the next generation, to
+     *          replace this tombstone.
+     */
+    public BucketedListHead nextGeneration(final int newBucketSize) {
+        return new BucketedListHead(newBucketSize, 0L, 0L, 0L, this.generation + 1, false);
+    }
+
+    private BucketedListHead(
+            final int bucketSize,
+            final long firstIndex,
+            final long tailBucket,
+            final long compactedBucket,
+            final long generation,
+            final boolean deleted) {
+        this.bucketSize = bucketSize;
+        this.firstIndex = firstIndex;
+        this.tailBucket = tailBucket;
+        this.compactedBucket = compactedBucket;
+        this.generation = generation;
+        this.deleted = deleted;
+    }
+
+}
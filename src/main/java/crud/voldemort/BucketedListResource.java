@@ -0,0 +1,577 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A list of entries that grows by appending, stored in fixed-size buckets
+ * rather than as a single value, so that the cost of an append doesn't
+ * grow with the length of the list. An append rewrites only the tail
+ * bucket; a read fetches only the buckets that hold the requested
+ * entries. Entries are numbered from zero, in the order they were
+ * appended, and keep their numbers when earlier entries are trimmed.
+ * See {@link BucketedListHead} for the layout.
+ *
+ * Each append is a versioned put of the tail bucket, so concurrent
+ * appends to the same list are serialized by the store: the loser of a
+ * race starts over, up to a limit, after which it fails with an
+ * {@link ObsoleteVersionException}. The head is written only when the
+ * list is created, when an append starts a new bucket, and by
+ * {@link #trim(long)} and {@link #compact()}.
+ *
+ * Trimming a list hides its earlier entries, but doesn't delete them;
+ * {@link #compact()} deletes the buckets whose entries are all trimmed.
+ * A read that finds such a bucket gone re-reads the head, and continues
+ * from the first entry it hasn't emitted that is still untrimmed.
+ * Deleting a list replaces its head with a tombstone before deleting its
+ * buckets, and a list created again under the same key stores its
+ * buckets under new keys, so that a deletion in progress can't delete
+ * the buckets of its successor.
+ *
+ * Operations run on the subscribing thread; reads and deletes of multiple
+ * buckets run on the provider's {@link Executor}.
+ *
+ * @see BucketedListResourceProvider
+ */
+public class BucketedListResource
+implements ReadableResource<byte[]>,
+           DeletableResource<Boolean> {
+
+    /**
+     * The number of times an append will start over because another
+     * append to the same list won the race.
+     */
+    private static final int MAX_APPEND_ATTEMPTS = 10;
+    /**
+     * The number of times a head update will start over because another
+     * update won the race.
+     */
+    private static final int MAX_HEAD_ATTEMPTS = 10;
+    /**
+     * The number of times a read will start over because a bucket that
+     * the head said existed was deleted while the list was being read.
+     */
+    private static final int MAX_READ_ATTEMPTS = 10;
+    /**
+     * The maximum number of bucket reads in flight for a single range
+     * read.
+     */
+    private static final int READ_AHEAD_BUCKETS = 16;
+
+    private final StoreClient<String, byte[]> store;
+    private final String key;
+    private final int bucketSize;
+    private final Executor executor;
+
+
+    /**
+     * Upon each subscription, emit all untrimmed entries, in order.
+     */
+    @Override
+    public Observable<byte[]> get() {
+        return get(0L, Long.MAX_VALUE);
+    }
+
+    /**
+     * Upon each subscription, emit, in order, the untrimmed entries whose
+     * indices are at least {@code fromIndex}, up to {@code maxCount} of
+     * them. The buckets that hold them are read in parallel, if the
+     * provider's {@link Executor} allows.
+     */
+    public Observable<byte[]> get(final long fromIndex, final long maxCount) {
+        if (fromIndex < 0L || maxCount < 0L) {
+            throw new IllegalArgumentException("from index " + fromIndex + ", max count " + maxCount);
+        }
+        return Observable.create(new Observable.OnSubscribe<byte[]>() {
+            @Override
+            public void call(final Subscriber<? super byte[]> subscriber) {
+                try {
+                    read(subscriber, fromIndex, maxCount);
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, append the given entry, and emit its index.
+     */
+    public Observable<Long> append(final byte[] entry) {
+        return Observable.create(new Observable.OnSubscribe<Long>() {
+            @Override
+            public void call(final Subscriber<? super Long> subscriber) {
+                try {
+                    final long index = doAppend(entry);
+                    subscriber.onNext(index);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, emit the index that the next appended entry
+     * will have, which is the number of entries ever appended.
+     */
+    public Observable<Long> length() {
+        return Observable.create(new Observable.OnSubscribe<Long>() {
+            @Override
+            public void call(final Subscriber<? super Long> subscriber) {
+                try {
+                    final BucketedListHead head = liveHead(store.get(key));
+                    final long length = (head == null) ? 0L : findLength(head);
+                    subscriber.onNext(length);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, hide all entries with indices less than the
+     * given one, or all entries, if the list is shorter than that. Emit the
+     * index of the first remaining entry, which may be greater than the
+     * one given, if the list had already been trimmed further.
+     */
+    public Observable<Long> trim(final long newFirstIndex) {
+        if (newFirstIndex < 0L) {
+            throw new IllegalArgumentException("first index " + newFirstIndex + " < 0");
+        }
+        return Observable.create(new Observable.OnSubscribe<Long>() {
+            @Override
+            public void call(final Subscriber<? super Long> subscriber) {
+                try {
+                    final long firstIndex = doTrim(newFirstIndex);
+                    subscriber.onNext(firstIndex);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, delete the buckets whose entries have all
+     * been trimmed, and emit the number deleted.
+     */
+    public Observable<Long> compact() {
+        return Observable.create(new Observable.OnSubscribe<Long>() {
+            @Override
+            public void call(final Subscriber<? super Long> subscriber) {
+                try {
+                    final long deleted = doCompact();
+                    subscriber.onNext(deleted);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, replace the head with a tombstone, and then
+     * delete the buckets. An append that races with the deletion may leave
+     * a bucket behind; it is unreachable, and so merely wastes space.
+     */
+    @Override
+    public Observable<Boolean> delete() {
+        return Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final Subscriber<? super Boolean> subscriber) {
+                try {
+                    final boolean deleted = doDelete();
+                    subscriber.onNext(deleted);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /*package*/ BucketedListResource(
+            final StoreClient<String, byte[]> store,
+            final String key,
+            final int bucketSize,
+            final Executor executor) {
+        this.store = store;
+        this.key = key;
+        this.bucketSize = bucketSize;
+        this.executor = executor;
+        assert this.store != null;
+        assert this.key != null;
+        assert this.bucketSize > 0;
+        assert this.executor != null;
+    }
+
+    private void read(final Subscriber<? super byte[]> subscriber, final long fromIndex, final long maxCount)
+    throws InterruptedException {
+        final long end = (maxCount > Long.MAX_VALUE - fromIndex) ? Long.MAX_VALUE : fromIndex + maxCount;
+        long next = fromIndex;
+        long generation = -1L;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+            final BucketedListHead head = liveHead(this.store.get(this.key));
+            if (head == null || (attempt > 0 && head.getGeneration() != generation)) {
+                // Absent, or deleted since the read began:
+                subscriber.onCompleted();
+                return;
+            }
+            generation = head.getGeneration();
+            next = readBuckets(subscriber, head, next, end);
+            if (next < 0L) {
+                if (!subscriber.isUnsubscribed()) {
+                    subscriber.onCompleted();
+                }
+                return;
+            }
+        }
+        throw new ObsoleteVersionException("Head of " + this.key + " repeatedly changed while being read");
+    }
+
+    /**
+     * Emit, in order, the entries from the given index, inclusive, to the
+     * given end index, exclusive, that the given head says are untrimmed.
+     *
+     * @return  -1 if the read is done, or if the subscriber unsubscribed;
+     *          or the index from which to continue, with a fresh head, if a
+     *          bucket before the head's tail hint is missing: it was deleted
+     *          by a compaction or deletion of the list since the head was
+     *          read.
+     */
+    private long readBuckets(
+            final Subscriber<? super byte[]> subscriber,
+            final BucketedListHead head,
+            final long fromIndex,
+            final long end)
+    throws InterruptedException {
+        final long start = Math.max(fromIndex, head.getFirstIndex());
+        if (start >= end) {
+            return -1L;
+        }
+        final long firstBucket = head.bucketOf(start);
+        final long lastBucket = head.bucketOf(end - 1);
+        // Buckets up to the tail hint certainly exist, so they can be read
+        // ahead; after it, each must be found full before reading the next.
+        final long lastKnownBucket = Math.min(lastBucket, head.getTailBucket());
+
+        final Deque<Future<byte[]>> readAhead = new ArrayDeque<>(READ_AHEAD_BUCKETS);
+        long nextToFetch = firstBucket;
+        try {
+            for (long bucket = firstBucket; bucket <= lastBucket; ++bucket) {
+                while (nextToFetch <= lastKnownBucket && readAhead.size() < READ_AHEAD_BUCKETS) {
+                    readAhead.addLast(fetchBucket(head, nextToFetch++));
+                }
+                if (subscriber.isUnsubscribed()) {
+                    return -1L;
+                }
+                final byte[] raw = readAhead.isEmpty()
+                        ? this.store.getValue(head.bucketKey(this.key, bucket))
+                        : await(readAhead.removeFirst());
+                final long bucketStart = bucket * head.getBucketSize();
+                if (raw == null) {
+                    /* The tail hint may name an empty tail, not yet written,
+                     * but never a compacted bucket: only a bucket before it
+                     * shows that the head changed while being read.
+                     */
+                    return (bucket >= head.getTailBucket()) ? -1L : Math.max(start, bucketStart);
+                }
+                final List<byte[]> entries = BucketedListHead.decodeBucket(raw);
+                for (int i = 0; i < entries.size(); ++i) {
+                    final long index = bucketStart + i;
+                    if (index >= start && index < end) {
+                        subscriber.onNext(entries.get(i));
+                    }
+                }
+                if (entries.size() < head.getBucketSize()) {
+                    // This is the tail.
+                    return -1L;
+                }
+            }
+        } finally {
+            cancelAll(readAhead);
+        }
+        return -1L;
+    }
+
+    private long doAppend(final byte[] entry) {
+        for (int attempt = 0; attempt < MAX_APPEND_ATTEMPTS; ++attempt) {
+            final Versioned<byte[]> headValue = this.store.get(this.key);
+            final BucketedListHead head = (headValue == null)
+                    ? null
+                    : BucketedListHead.decode(headValue.getValue());
+            if (head == null || head.isDeleted()) {
+                // Record the bucket size before writing any buckets:
+                final BucketedListHead newHead = (head == null)
+                        ? BucketedListHead.empty(this.bucketSize)
+                        : head.nextGeneration(this.bucketSize);
+                try {
+                    this.store.put(this.key, (headValue == null)
+                            ? new Versioned<>(newHead.encode())
+                            : new Versioned<>(newHead.encode(), headValue.getVersion()));
+                } catch (final ObsoleteVersionException ex) {
+                    // Another append created the list first.
+                }
+                continue;
+            }
+
+            long bucket = head.getTailBucket();
+            Versioned<byte[]> bucketValue;
+            List<byte[]> entries;
+            while (true) {
+                bucketValue = this.store.get(head.bucketKey(this.key, bucket));
+                entries = (bucketValue == null)
+                        ? new ArrayList<byte[]>(1)
+                        : BucketedListHead.decodeBucket(bucketValue.getValue());
+                if (entries.size() < head.getBucketSize()) {
+                    break;
+                }
+                ++bucket;
+            }
+
+            entries.add(entry);
+            final byte[] newBucket = BucketedListHead.encodeBucket(entries);
+            try {
+                this.store.put(
+                        head.bucketKey(this.key, bucket),
+                        (bucketValue == null)
+                            ? new Versioned<>(newBucket)
+                            : new Versioned<>(newBucket, bucketValue.getVersion()));
+            } catch (final ObsoleteVersionException ex) {
+                // Another append to the same bucket won the race.
+                continue;
+            }
+            if (bucket > head.getTailBucket()) {
+                advanceTail(headValue, head, bucket);
+            }
+            return bucket * head.getBucketSize() + entries.size() - 1;
+        }
+        throw new ObsoleteVersionException("Append to " + this.key + " repeatedly lost races with other appends");
+    }
+
+    /**
+     * Move the head's tail hint forward, if no one else has updated the
+     * head in the meantime. If someone has, readers and appenders will
+     * merely search a little further for the tail, until the next append
+     * that starts a bucket succeeds in moving the hint.
+     */
+    private void advanceTail(
+            final Versioned<byte[]> headValue,
+            final BucketedListHead head,
+            final long newTailBucket) {
+        try {
+            this.store.put(this.key, new Versioned<>(
+                    head.withTailBucket(newTailBucket).encode(),
+                    headValue.getVersion()));
+        } catch (final ObsoleteVersionException ex) {
+            // See above.
+        }
+    }
+
+    private long doTrim(final long newFirstIndex) {
+        for (int attempt = 0; attempt < MAX_HEAD_ATTEMPTS; ++attempt) {
+            final Versioned<byte[]> headValue = this.store.get(this.key);
+            final BucketedListHead head = liveHead(headValue);
+            if (head == null) {
+                return 0L;
+            }
+            final long length = findLength(head);
+            final BucketedListHead newHead = head
+                    .withFirstIndex(Math.min(newFirstIndex, length))
+                    .withTailBucket(head.bucketOf(length));
+            if (newHead.getFirstIndex() == head.getFirstIndex()) {
+                return head.getFirstIndex();
+            }
+            try {
+                this.store.put(this.key, new Versioned<>(newHead.encode(), headValue.getVersion()));
+                return newHead.getFirstIndex();
+            } catch (final ObsoleteVersionException ex) {
+                // Another update of the head won the race.
+            }
+        }
+        throw new ObsoleteVersionException("Trim of " + this.key + " repeatedly lost races with other updates");
+    }
+
+    private long doCompact() throws InterruptedException {
+        for (int attempt = 0; attempt < MAX_HEAD_ATTEMPTS; ++attempt) {
+            final Versioned<byte[]> headValue = this.store.get(this.key);
+            final BucketedListHead head = liveHead(headValue);
+            if (head == null) {
+                return 0L;
+            }
+            final long fromBucket = head.getCompactedBucket();
+            final long toBucket = head.getFirstBucket();
+            if (fromBucket >= toBucket) {
+                return 0L;
+            }
+            deleteBucketsQuietly(head, fromBucket, toBucket);
+            try {
+                this.store.put(this.key, new Versioned<>(
+                        head.withCompactedBucket(toBucket).encode(),
+                        headValue.getVersion()));
+                return toBucket - fromBucket;
+            } catch (final ObsoleteVersionException ex) {
+                // Another update of the head won the race; the buckets are
+                // gone, so the next attempt will delete only what it must.
+            }
+        }
+        throw new ObsoleteVersionException("Compaction of " + this.key + " repeatedly lost races with other updates");
+    }
+
+    private boolean doDelete() throws InterruptedException {
+        for (int attempt = 0; attempt < MAX_HEAD_ATTEMPTS; ++attempt) {
+            final Versioned<byte[]> headValue = this.store.get(this.key);
+            final BucketedListHead head = liveHead(headValue);
+            if (head == null) {
+                return false;
+            }
+            final long tailBucket = head.bucketOf(findLength(head));
+            try {
+                this.store.put(this.key, new Versioned<>(head.deleted().encode(), headValue.getVersion()));
+            } catch (final ObsoleteVersionException ex) {
+                // Another update of the head won the race.
+                continue;
+            }
+            deleteBucketsQuietly(head, head.getCompactedBucket(), tailBucket + 1);
+            return true;
+        }
+        throw new ObsoleteVersionException("Deletion of " + this.key + " repeatedly lost races with other updates");
+    }
+
+    /**
+     * @return  the decoded head, or null if the list doesn't exist, or has
+     *          been deleted.
+     */
+    private static BucketedListHead liveHead(final Versioned<byte[]> headValue) {
+        if (headValue == null) {
+            return null;
+        }
+        final BucketedListHead head = BucketedListHead.decode(headValue.getValue());
+        return head.isDeleted() ? null : head;
+    }
+
+    /**
+     * Find the tail bucket, starting from the head's hint.
+     *
+     * @return  the number of entries ever appended.
+     */
+    private long findLength(final BucketedListHead head) {
+        long bucket = head.getTailBucket();
+        while (true) {
+            final byte[] raw = this.store.getValue(head.bucketKey(this.key, bucket));
+            final int count = (raw == null) ? 0 : BucketedListHead.decodeBucket(raw).size();
+            if (count < head.getBucketSize()) {
+                return bucket * head.getBucketSize() + count;
+            }
+            ++bucket;
+        }
+    }
+
+    private Future<byte[]> fetchBucket(final BucketedListHead head, final long bucket) {
+        final String bucketKey = head.bucketKey(this.key, bucket);
+        return submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return store.getValue(bucketKey);
+            }
+        });
+    }
+
+    /**
+     * Delete the buckets of the given head's generation in the given range,
+     * ignoring failures: any buckets that remain are unreachable, and so
+     * merely waste space.
+     */
+    private void deleteBucketsQuietly(
+            final BucketedListHead head,
+            final long fromBucket,
+            final long toBucket)
+    throws InterruptedException {
+        for (long batchStart = fromBucket; batchStart < toBucket; batchStart += READ_AHEAD_BUCKETS) {
+            final long batchEnd = Math.min(toBucket, batchStart + READ_AHEAD_BUCKETS);
+            final List<Future<Boolean>> deletes = new ArrayList<>((int) (batchEnd - batchStart));
+            for (long bucket = batchStart; bucket < batchEnd; ++bucket) {
+                final String bucketKey = head.bucketKey(this.key, bucket);
+                deletes.add(submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return store.delete(bucketKey);
+                    }
+                }));
+            }
+            for (final Future<Boolean> delete : deletes) {
+                try {
+                    delete.get();
+                } catch (final ExecutionException ex) {
+                    // Ignore; see above.
+                }
+            }
+        }
+    }
+
+    private <R> Future<R> submit(final Callable<R> task) {
+        final FutureTask<R> future = new FutureTask<>(task);
+        this.executor.execute(future);
+        return future;
+    }
+
+    private static <R> R await(final Future<R> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new VoldemortException(cause);
+            }
+        }
+    }
+
+    private static void cancelAll(final Iterable<? extends Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+}
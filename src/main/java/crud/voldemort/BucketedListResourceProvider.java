@@ -0,0 +1,100 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+
+import voldemort.client.StoreClient;
+
+
+/**
+ * Provides {@link BucketedListResource}s for lists that grow by appending.
+ * The store must have {@code string} keys and {@code identity} values, and
+ * should not be shared with other kinds of resources: bucket keys are
+ * derived from resource keys by appending a suffix.
+ */
+public class BucketedListResourceProvider
+implements ReadableResourceProvider<String, byte[]>,
+           DeletableResourceProvider<String, Boolean> {
+
+    private final StoreClient<String, byte[]> store;
+    private final int bucketSize;
+    private final Executor executor;
+
+
+    public static Builder newBuilder(final StoreClient<String, byte[]> store) {
+        return new Builder(store);
+    }
+
+    @Override
+    public BucketedListResource get(final String key) {
+        return new BucketedListResource(this.store, Objects.requireNonNull(key), this.bucketSize, this.executor);
+    }
+
+    private BucketedListResourceProvider(final Builder builder) {
+        this.store = builder.store;
+        this.bucketSize = builder.bucketSize;
+        this.executor = builder.executor;
+    }
+
+
+    public static final class Builder {
+        public static final int DEFAULT_BUCKET_SIZE = 64;
+
+        private final StoreClient<String, byte[]> store;
+        private int bucketSize = DEFAULT_BUCKET_SIZE;
+        private Executor executor = StoreExecutors.sameThread();
+
+        private Builder(final StoreClient<String, byte[]> store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        /**
+         * Set the number of entries per bucket of new lists. Existing lists
+         * keep the bucket size with which they were created. Since each
+         * append rewrites its bucket, the bucket size times the typical
+         * entry size should be small.
+         */
+        public Builder setBucketSize(final int bucketSize) {
+            if (bucketSize <= 0) {
+                throw new IllegalArgumentException("bucket size " + bucketSize + " <= 0");
+            }
+            this.bucketSize = bucketSize;
+            return this;
+        }
+
+        /**
+         * Set the {@link Executor} on which buckets are read and deleted.
+         * The default, {@link StoreExecutors#sameThread()}, processes
+         * buckets one at a time; a multi-threaded executor processes them
+         * in parallel. It should not be the executor on which the
+         * resources' subscriptions run, lest they wait for buckets queued
+         * behind themselves.
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        public BucketedListResourceProvider build() {
+            return new BucketedListResourceProvider(this);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import voldemort.VoldemortException;
+
+
+/**
+ * Describes how a value written by a {@link ChunkedValueResource} is stored.
+ * A small value is stored inline, in the manifest itself. A large value is
+ * split into chunks, each stored under its own key. Chunk keys include an
+ * identifier unique to the write, so that the chunks of different writes
+ * can never be confused: a reader that has read a manifest either finds
+ * exactly the chunks it describes, or finds them missing.
+ */
+/*package*/ final class ChunkManifest {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte KIND_INLINE = 0;
+    private static final byte KIND_CHUNKED = 1;
+
+    private static final int INLINE_HEADER_SIZE = 2;
+    private static final int CHUNKED_SIZE = 2 + 8 + 8 + 4 + 4;
+    /**
+     * Each chunk begins with the ID of the write that created it.
+     */
+    public static final int CHUNK_HEADER_SIZE = 8;
+
+    private final byte[] inlineValue;
+    private final long writeId;
+    private final long totalLength;
+    private final int chunkSize;
+    private final int chunkCount;
+
+
+    public static ChunkManifest inline(final byte[] value) {
+        return new ChunkManifest(value, 0L, value.length, 0, 0);
+    }
+
+    public static ChunkManifest chunked(final long writeId, final long totalLength, final int chunkSize) {
+        final long chunkCount = (totalLength + chunkSize - 1) / chunkSize;
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many chunks: " + chunkCount);
+        }
+        return new ChunkManifest(null, writeId, totalLength, chunkSize, (int) chunkCount);
+    }
+
+    /**
+     * @throws VoldemortException   if the bytes are not a manifest.
+     */
+    public static ChunkManifest decode(final byte[] bytes) {
+        if (bytes.length < INLINE_HEADER_SIZE || bytes[0] != FORMAT_VERSION) {
+            throw new VoldemortException("Not a chunk manifest");
+        }
+        if (bytes[1] == KIND_INLINE) {
+            return inline(Arrays.copyOfRange(bytes, INLINE_HEADER_SIZE, bytes.length));
+        } else if (bytes[1] == KIND_CHUNKED && bytes.length == CHUNKED_SIZE) {
+            final ByteBuffer buf = ByteBuffer.wrap(bytes, 2, bytes.length - 2);
+            final long writeId = buf.getLong();
+            final long totalLength = buf.getLong();
+            final int chunkSize = buf.getInt();
+            final int chunkCount = buf.getInt();
+            if (totalLength < 0L || chunkSize <= 0
+                    || totalLength > (long) chunkCount * chunkSize) {
+                throw new VoldemortException("Corrupt chunk manifest");
+            }
+            final ChunkManifest manifest = chunked(writeId, totalLength, chunkSize);
+            if (manifest.chunkCount != chunkCount) {
+                throw new VoldemortException("Corrupt chunk manifest");
+            }
+            return manifest;
+        } else {
+            throw new VoldemortException("Corrupt chunk manifest");
+        }
+    }
+
+    public byte[] encode() {
+        if (isInline()) {
+            final byte[] bytes = new byte[INLINE_HEADER_SIZE + this.inlineValue.length];
+            bytes[0] = FORMAT_VERSION;
+            bytes[1] = KIND_INLINE;
+            System.arraycopy(this.inlineValue, 0, bytes, INLINE_HEADER_SIZE, this.inlineValue.length);
+            return bytes;
+        }
+        return ByteBuffer.allocate(CHUNKED_SIZE)
+                .put(FORMAT_VERSION)
+                .put(KIND_CHUNKED)
+                .putLong(this.writeId)
+                .putLong(this.totalLength)
+                .putInt(this.chunkSize)
+                .putInt(this.chunkCount)
+                .array();
+    }
+
+    public boolean isInline() {
+        return this.inlineValue != null;
+    }
+
+    /**
+     * @return  the value, if stored inline; otherwise, {@code null}.
+     */
+    public byte[] getInlineValue() {
+        return this.inlineValue;
+    }
+
+    public long getWriteId() {
+        return this.writeId;
+    }
+
+    public long getTotalLength() {
+        return this.totalLength;
+    }
+
+    public int getChunkCount() {
+        return this.chunkCount;
+    }
+
+    /**
+     * @return  the number of value bytes in the given chunk.
+     */
+    public int getChunkLength(final int index) {
+        final long start = (long) index * this.chunkSize;
+        return (int) Math.min(this.chunkSize, this.totalLength - start);
+    }
+
+    public String chunkKey(final String key, final int index) {
+        return key + "#chunk-" + Long.toHexString(this.writeId) + '-' + index;
+    }
+
+    public byte[] encodeChunk(final byte[] value, final int index) {
+        final int length = getChunkLength(index);
+        return ByteBuffer.allocate(CHUNK_HEADER_SIZE + length)
+                .putLong(this.writeId)
+                .put(value, index * this.chunkSize, length)
+                .array();
+    }
+
+    /**
+     * @return  the value bytes of the given chunk, or {@code null} if it
+     *          doesn't belong to the write described by this manifest.
+     */
+    public byte[] decodeChunk(final byte[] chunk, final int index) {
+        if (chunk.length != CHUNK_HEADER_SIZE + getChunkLength(index)
+                || ByteBuffer.wrap(chunk).getLong() != this.writeId) {
+            return null;
+        }
+        return Arrays.copyOfRange(chunk, CHUNK_HEADER_SIZE, chunk.length);
+    }
+
+    private ChunkManifest(
+            final byte[] inlineValue,
+            final long writeId,
+            final long totalLength,
+            final int chunkSize,
+            final int chunkCount) {
+        this.inlineValue = inlineValue;
+        this.writeId = writeId;
+        this.totalLength = totalLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+    }
+
+}
@@ -0,0 +1,342 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import crud.WritableResource;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A resource whose value may be too large to read or write comfortably as
+ * a single Voldemort value. Values larger than the chunk size are split
+ * into chunks, which are written and read in parallel; the resource's own
+ * key holds a small manifest that describes them.
+ *
+ * {@link #get()} emits the value as a sequence of byte arrays, in order,
+ * each as soon as it and its predecessors have arrived, so that the
+ * subscriber can process a large value without holding all of it at once.
+ * An absent value results in no emissions at all.
+ *
+ * Each write creates new chunk keys, unique to that write, and commits
+ * them by replacing the manifest with a versioned put; concurrent writes
+ * therefore fail with an {@link ObsoleteVersionException} rather than
+ * interleaving. A successful write then deletes the previous write's
+ * chunks. A reader never sees a mixture of chunks from different writes:
+ * if the value is replaced before the reader has emitted anything, it
+ * starts over with the new manifest; if afterward, it fails with an
+ * {@link ObsoleteVersionException}.
+ *
+ * Operations run on the subscribing thread; the individual chunk reads,
+ * writes, and deletes run on the provider's {@link Executor}, a bounded
+ * number at a time.
+ *
+ * @see ChunkedValueResourceProvider
+ */
+public class ChunkedValueResource
+implements ReadableResource<byte[]>,
+           WritableResource<byte[], Version>,
+           DeletableResource<Boolean> {
+
+    /**
+     * The number of times a read will start over because the value was
+     * replaced before any of it had been emitted.
+     */
+    private static final int MAX_READ_ATTEMPTS = 3;
+    /**
+     * The maximum number of chunk reads in flight for a single read, and of
+     * chunk writes or deletes for a single write or delete.
+     */
+    private static final int READ_AHEAD_CHUNKS = 16;
+
+    private final StoreClient<String, byte[]> store;
+    private final String key;
+    private final int chunkSize;
+    private final Executor executor;
+
+
+    @Override
+    public Observable<byte[]> get() {
+        return Observable.create(new Observable.OnSubscribe<byte[]>() {
+            @Override
+            public void call(final Subscriber<? super byte[]> subscriber) {
+                try {
+                    read(subscriber);
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Observable<Version> write(final byte[] newValue) {
+        return Observable.create(new Observable.OnSubscribe<Version>() {
+            @Override
+            public void call(final Subscriber<? super Version> subscriber) {
+                try {
+                    final Version version = doWrite(newValue);
+                    subscriber.onNext(version);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Observable<Boolean> delete() {
+        return Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final Subscriber<? super Boolean> subscriber) {
+                try {
+                    final boolean deleted = doDelete();
+                    subscriber.onNext(deleted);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /*package*/ ChunkedValueResource(
+            final StoreClient<String, byte[]> store,
+            final String key,
+            final int chunkSize,
+            final Executor executor) {
+        this.store = store;
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        assert this.store != null;
+        assert this.key != null;
+        assert this.chunkSize > 0;
+        assert this.executor != null;
+    }
+
+    private void read(final Subscriber<? super byte[]> subscriber)
+    throws InterruptedException {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+            final Versioned<byte[]> versioned = this.store.get(this.key);
+            if (versioned == null) {
+                subscriber.onCompleted();
+                return;
+            }
+            final ChunkManifest manifest = ChunkManifest.decode(versioned.getValue());
+            if (manifest.isInline()) {
+                subscriber.onNext(manifest.getInlineValue());
+                subscriber.onCompleted();
+                return;
+            }
+
+            final Deque<Future<byte[]>> readAhead = new ArrayDeque<>(READ_AHEAD_CHUNKS);
+            int nextToFetch = 0;
+            boolean emitted = false;
+            boolean replaced = false;
+            try {
+                for (int i = 0; i < manifest.getChunkCount(); ++i) {
+                    while (nextToFetch < manifest.getChunkCount() && readAhead.size() < READ_AHEAD_CHUNKS) {
+                        readAhead.addLast(fetchChunk(manifest, nextToFetch++));
+                    }
+                    if (subscriber.isUnsubscribed()) {
+                        return;
+                    }
+                    final byte[] raw = await(readAhead.removeFirst());
+                    final byte[] chunk = (raw == null) ? null : manifest.decodeChunk(raw, i);
+                    if (chunk == null) {
+                        // The value was replaced, and our chunks deleted:
+                        replaced = true;
+                        break;
+                    }
+                    subscriber.onNext(chunk);
+                    emitted = true;
+                }
+            } finally {
+                cancelAll(readAhead);
+            }
+            if (!replaced) {
+                subscriber.onCompleted();
+                return;
+            }
+            if (emitted) {
+                throw new ObsoleteVersionException("Value of " + this.key + " was replaced while being read");
+            }
+        }
+        throw new ObsoleteVersionException("Value of " + this.key + " was repeatedly replaced while being read");
+    }
+
+    private Version doWrite(final byte[] newValue) throws InterruptedException {
+        final Versioned<byte[]> current = this.store.get(this.key);
+        final ChunkManifest oldManifest = (current == null) ? null : ChunkManifest.decode(current.getValue());
+
+        final ChunkManifest newManifest;
+        if (newValue.length <= this.chunkSize) {
+            newManifest = ChunkManifest.inline(newValue);
+        } else {
+            newManifest = ChunkManifest.chunked(ThreadLocalRandom.current().nextLong(), newValue.length, this.chunkSize);
+            writeChunks(newManifest, newValue);
+        }
+
+        final Versioned<byte[]> manifestValue = (current == null)
+                ? new Versioned<>(newManifest.encode())
+                : new Versioned<>(newManifest.encode(), current.getVersion());
+        final Version version;
+        try {
+            version = this.store.put(this.key, manifestValue);
+        } catch (final ObsoleteVersionException ex) {
+            // Lost a race with another writer: our chunks are garbage.
+            deleteChunksQuietly(newManifest);
+            throw ex;
+        }
+        /* Any other failure may have happened after some replicas accepted
+         * the new manifest, so its chunks must stay: at worst, they are
+         * unreachable garbage.
+         */
+        deleteChunksQuietly(oldManifest);
+        return version;
+    }
+
+    private boolean doDelete() throws InterruptedException {
+        final Versioned<byte[]> current = this.store.get(this.key);
+        if (current == null) {
+            return false;
+        }
+        final boolean deleted = this.store.delete(this.key, current.getVersion());
+        if (deleted) {
+            deleteChunksQuietly(ChunkManifest.decode(current.getValue()));
+        }
+        return deleted;
+    }
+
+    private Future<byte[]> fetchChunk(final ChunkManifest manifest, final int index) {
+        final String chunkKey = manifest.chunkKey(this.key, index);
+        return submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return store.getValue(chunkKey);
+            }
+        });
+    }
+
+    private void writeChunks(final ChunkManifest manifest, final byte[] value) throws InterruptedException {
+        final Deque<Future<Version>> writes = new ArrayDeque<>(READ_AHEAD_CHUNKS);
+        try {
+            for (int i = 0; i < manifest.getChunkCount(); ++i) {
+                if (writes.size() >= READ_AHEAD_CHUNKS) {
+                    await(writes.removeFirst());
+                }
+                final String chunkKey = manifest.chunkKey(this.key, i);
+                final byte[] chunk = manifest.encodeChunk(value, i);
+                writes.addLast(submit(new Callable<Version>() {
+                    @Override
+                    public Version call() {
+                        return store.put(chunkKey, chunk);
+                    }
+                }));
+            }
+            while (!writes.isEmpty()) {
+                await(writes.removeFirst());
+            }
+        } catch (final RuntimeException ex) {
+            /* Unlike a failed manifest write, this is safe for any failure:
+             * no manifest refers to these chunks yet.
+             */
+            cancelAll(writes);
+            deleteChunksQuietly(manifest);
+            throw ex;
+        }
+    }
+
+    /**
+     * Delete the chunks described by the given manifest, ignoring failures:
+     * any chunks that remain are unreachable, and so merely waste space.
+     */
+    private void deleteChunksQuietly(final ChunkManifest manifest) throws InterruptedException {
+        if (manifest == null || manifest.isInline()) {
+            return;
+        }
+        final Deque<Future<Boolean>> deletes = new ArrayDeque<>(READ_AHEAD_CHUNKS);
+        for (int i = 0; i < manifest.getChunkCount(); ++i) {
+            if (deletes.size() >= READ_AHEAD_CHUNKS) {
+                awaitQuietly(deletes.removeFirst());
+            }
+            final String chunkKey = manifest.chunkKey(this.key, i);
+            deletes.addLast(submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return store.delete(chunkKey);
+                }
+            }));
+        }
+        while (!deletes.isEmpty()) {
+            awaitQuietly(deletes.removeFirst());
+        }
+    }
+
+    private static void awaitQuietly(final Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (final ExecutionException ex) {
+            // Ignore; see deleteChunksQuietly().
+        }
+    }
+
+    private <R> Future<R> submit(final Callable<R> task) {
+        final FutureTask<R> future = new FutureTask<>(task);
+        this.executor.execute(future);
+        return future;
+    }
+
+    private static <R> R await(final Future<R> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new VoldemortException(cause);
+            }
+        }
+    }
+
+    private static void cancelAll(final Iterable<? extends Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+import crud.WritableResourceProvider;
+
+import voldemort.client.StoreClient;
+import voldemort.versioning.Version;
+
+
+/**
+ * Provides {@link ChunkedValueResource}s for storing very large values.
+ * The store must have {@code string} keys and {@code identity} values, and
+ * should not be shared with other kinds of resources: chunk keys are
+ * derived from resource keys by appending a suffix.
+ */
+public class ChunkedValueResourceProvider
+implements ReadableResourceProvider<String, byte[]>,
+           WritableResourceProvider<String, byte[], Version>,
+           DeletableResourceProvider<String, Boolean> {
+
+    private final StoreClient<String, byte[]> store;
+    private final int chunkSize;
+    private final Executor executor;
+
+
+    public static Builder newBuilder(final StoreClient<String, byte[]> store) {
+        return new Builder(store);
+    }
+
+    @Override
+    public ChunkedValueResource get(final String key) {
+        return new ChunkedValueResource(this.store, Objects.requireNonNull(key), this.chunkSize, this.executor);
+    }
+
+    private ChunkedValueResourceProvider(final Builder builder) {
+        this.store = builder.store;
+        this.chunkSize = builder.chunkSize;
+        this.executor = builder.executor;
+    }
+
+
+    public static final class Builder {
+        public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+        private final StoreClient<String, byte[]> store;
+        private int chunkSize = DEFAULT_CHUNK_SIZE;
+        private Executor executor = StoreExecutors.sameThread();
+
+        private Builder(final StoreClient<String, byte[]> store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        /**
+         * Values no larger than this are stored inline, in their manifests;
+         * larger values are split into chunks of this size.
+         */
+        public Builder setChunkSize(final int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunk size " + chunkSize + " <= 0");
+            }
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Set the {@link Executor} on which chunks are read, written, and
+         * deleted. The default, {@link StoreExecutors#sameThread()},
+         * processes chunks one at a time; a multi-threaded executor
+         * processes them in parallel. It should not be the executor on
+         * which the resources' subscriptions run, lest they wait for
+         * chunks queued behind themselves.
+         */
+        public Builder setExecutor(final Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        public ChunkedValueResourceProvider build() {
+            return new ChunkedValueResourceProvider(this);
+        }
+    }
+
+}
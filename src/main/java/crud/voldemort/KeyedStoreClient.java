@@ -27,16 +27,33 @@ import voldemort.versioning.Versioned;
 /*package*/ class KeyedStoreClient<K, V> {
 
     private final StoreClient<K, V> store;
+    private final String storeName;
     private final K key;
 
 
-    public KeyedStoreClient(final StoreClient<K, V> store, final K key) {
+    /**
+     * @param storeName The name of the store, for diagnostic purposes only.
+     *                  It may be {@code null}.
+     */
+    public KeyedStoreClient(final StoreClient<K, V> store, final String storeName, final K key) {
         this.store = store;
+        this.storeName = storeName;
         this.key = key;
         assert this.store != null;
         assert this.key != null;
     }
 
+    /**
+     * @return  the name of the store, or {@code null} if unknown.
+     */
+    public String getStoreName() {
+        return this.storeName;
+    }
+
+    public K getKey() {
+        return this.key;
+    }
+
     /**
      * @see StoreClient#getValue(Object)
      */
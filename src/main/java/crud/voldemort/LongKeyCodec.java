@@ -0,0 +1,81 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+
+/**
+ * Encodes {@code long} keys as eight big-endian bytes, for stores whose
+ * key serializer is {@code identity}. Keys are written directly into
+ * arrays, without boxing them or going through a
+ * {@link voldemort.serialization.Serializer}.
+ */
+public final class LongKeyCodec {
+
+    public static final int SIZE = 8;
+
+
+    /**
+     * @return  a new array holding the encoded key. Each key passed to a
+     *          {@link voldemort.client.StoreClient} must have its own
+     *          array, since the client may retain it.
+     */
+    public static byte[] toBytes(final long key) {
+        final byte[] bytes = new byte[SIZE];
+        write(key, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Encode the given key into the given buffer, which may be reused for
+     * purposes, such as hashing or logging, that don't retain it.
+     */
+    public static void write(final long key, final byte[] buffer, final int offset) {
+        buffer[offset] = (byte) (key >>> 56);
+        buffer[offset + 1] = (byte) (key >>> 48);
+        buffer[offset + 2] = (byte) (key >>> 40);
+        buffer[offset + 3] = (byte) (key >>> 32);
+        buffer[offset + 4] = (byte) (key >>> 24);
+        buffer[offset + 5] = (byte) (key >>> 16);
+        buffer[offset + 6] = (byte) (key >>> 8);
+        buffer[offset + 7] = (byte) key;
+    }
+
+    public static long read(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xFFL) << 56)
+                | ((buffer[offset + 1] & 0xFFL) << 48)
+                | ((buffer[offset + 2] & 0xFFL) << 40)
+                | ((buffer[offset + 3] & 0xFFL) << 32)
+                | ((buffer[offset + 4] & 0xFFL) << 24)
+                | ((buffer[offset + 5] & 0xFFL) << 16)
+                | ((buffer[offset + 6] & 0xFFL) << 8)
+                | (buffer[offset + 7] & 0xFFL);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the given key isn't exactly
+     *          {@link #SIZE} bytes long.
+     */
+    public static long fromBytes(final byte[] key) {
+        if (key.length != SIZE) {
+            throw new IllegalArgumentException("Key of " + key.length + " bytes is not a long");
+        }
+        return read(key, 0);
+    }
+
+    private LongKeyCodec() {
+        // prevent instantiation
+    }
+
+}
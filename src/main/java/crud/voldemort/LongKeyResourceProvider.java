@@ -0,0 +1,121 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import crud.ReadableResourceProvider;
+import crud.WritableResourceProvider;
+
+import voldemort.client.StoreClient;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link VoldemortResourceProvider} specialized for numeric keys. The
+ * store's key serializer must be {@code identity}; keys are encoded by
+ * {@link LongKeyCodec}. Calling {@link #get(long)} allocates only the
+ * encoded key and the resource itself: there's no boxed {@link Long}, and
+ * no key {@link voldemort.serialization.Serializer} in the request path.
+ */
+public class LongKeyResourceProvider<V>
+implements ReadableResourceProvider<Long, Versioned<V>>,
+           WritableResourceProvider<Long, Versioned<V>, Version> {
+
+    private final StoreClient<byte[], V> store;
+    private final String storeName;
+    private final Executor executor;
+
+
+    public static <V> Builder<V> newBuilder(final StoreClient<byte[], V> store) {
+        return new Builder<>(store);
+    }
+
+    public VoldemortResource<V> get(final long key) {
+        return VoldemortResource.create(this.store, this.storeName, LongKeyCodec.toBytes(key), this.executor);
+    }
+
+    /**
+     * @see VoldemortResourceProvider#getValueResource(Object)
+     */
+    public VoldemortValueResource<V> getValueResource(final long key) {
+        return VoldemortValueResource.create(
+                this.store,
+                this.storeName,
+                LongKeyCodec.toBytes(key),
+                null,
+                this.executor);
+    }
+
+    /**
+     * @see VoldemortResourceProvider#getValueResource(Object, Object)
+     */
+    public VoldemortValueResource<V> getValueResource(final long key, final V defaultValue) {
+        return VoldemortValueResource.create(
+                this.store,
+                this.storeName,
+                LongKeyCodec.toBytes(key),
+                defaultValue,
+                this.executor);
+    }
+
+    /**
+     * Prefer {@link #get(long)}, which doesn't require a boxed key.
+     */
+    @Override
+    public VoldemortResource<V> get(final Long key) {
+        return get(key.longValue());
+    }
+
+    private LongKeyResourceProvider(final Builder<V> builder) {
+        this.store = builder.store;
+        this.storeName = builder.storeName;
+        this.executor = builder.executor;
+    }
+
+
+    public static final class Builder<V> {
+        private final StoreClient<byte[], V> store;
+        private String storeName = null;
+        private Executor executor = StoreExecutors.sameThread();
+
+        private Builder(final StoreClient<byte[], V> store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        /**
+         * @see VoldemortResourceProvider.Builder#setExecutor(Executor)
+         */
+        public Builder<V> setExecutor(final Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * @see VoldemortResourceProvider.Builder#setStoreName(String)
+         */
+        public Builder<V> setStoreName(final String storeName) {
+            this.storeName = Objects.requireNonNull(storeName);
+            return this;
+        }
+
+        public LongKeyResourceProvider<V> build() {
+            return new LongKeyResourceProvider<>(this);
+        }
+    }
+
+}
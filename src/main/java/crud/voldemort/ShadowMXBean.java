@@ -0,0 +1,72 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Map;
+
+
+/**
+ * The JMX view of a {@link ShadowResourceProvider}. Each latency map is
+ * keyed by percentile, such as {@code "p99"}, or by {@code "max"}, and
+ * includes only mirrored operations, so that the two clusters' latencies
+ * are measured over the same keys.
+ */
+public interface ShadowMXBean {
+
+    long getMirroredReads();
+
+    /**
+     * @return  the number of writes and deletes mirrored.
+     */
+    long getMirroredWrites();
+
+    /**
+     * @return  the number of operations sampled for mirroring, but not
+     *          mirrored, because the mirroring executor was saturated.
+     */
+    long getDroppedMirrors();
+
+    /**
+     * @return  the number of mirrored reads for which both clusters
+     *          succeeded but returned different values, or for which only
+     *          one found the key.
+     */
+    long getDivergentReads();
+
+    /**
+     * @return  the number of mirrored reads that failed only on the shadow
+     *          cluster.
+     */
+    long getShadowReadFailures();
+
+    /**
+     * @return  the number of mirrored reads that failed only on the primary
+     *          cluster.
+     */
+    long getPrimaryReadFailures();
+
+    long getShadowWriteFailures();
+
+    Map<String, Long> getPrimaryReadLatenciesUs();
+
+    Map<String, Long> getShadowReadLatenciesUs();
+
+    Map<String, Long> getPrimaryWriteLatenciesUs();
+
+    Map<String, Long> getShadowWriteLatenciesUs();
+
+    void resetStatistics();
+
+}
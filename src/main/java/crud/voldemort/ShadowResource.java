@@ -0,0 +1,146 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import crud.WritableResource;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A resource served by the primary cluster of a
+ * {@link ShadowResourceProvider}, some of whose operations are mirrored
+ * to the shadow cluster. Results always come from the primary; mirroring
+ * happens in the background, and never delays or fails the primary
+ * operation.
+ */
+public class ShadowResource<K, V>
+implements ReadableResource<Versioned<V>>,
+           WritableResource<Versioned<V>, Version>,
+           DeletableResource<Boolean> {
+
+    private final ShadowResourceProvider<K, V> owner;
+    private final K key;
+
+
+    @Override
+    public Observable<Versioned<V>> get() {
+        return Observable.create(new Observable.OnSubscribe<Versioned<V>>() {
+            @Override
+            public void call(final Subscriber<? super Versioned<V>> subscriber) {
+                final ShadowResourceProvider<K, V>.ReadComparison comparison = owner.mirrorRead(key);
+                final long startNanos = System.nanoTime();
+                owner.primary().getAsync(key).addCallback(new StoreFuture.Callback<Versioned<V>>() {
+                    @Override
+                    public void onSuccess(final Versioned<V> value) {
+                        final long elapsedNanos = System.nanoTime() - startNanos;
+                        emit(subscriber, value);
+                        if (comparison != null) {
+                            comparison.primarySucceeded(value, elapsedNanos);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable cause) {
+                        subscriber.onError(cause);
+                        if (comparison != null) {
+                            comparison.primaryFailed();
+                        }
+                    }
+                }, StoreExecutors.sameThread());
+            }
+        });
+    }
+
+    /**
+     * Write the given value to the primary cluster. If the write succeeds,
+     * and is sampled, write the same value to the shadow cluster, replacing
+     * whatever version is there, since the two clusters' versions are
+     * unrelated.
+     */
+    @Override
+    public Observable<Version> write(final Versioned<V> newValue) {
+        return Observable.create(new Observable.OnSubscribe<Version>() {
+            @Override
+            public void call(final Subscriber<? super Version> subscriber) {
+                final boolean sampled = owner.sampleWrite();
+                final long startNanos = System.nanoTime();
+                owner.primary().putAsync(key, newValue).addCallback(new StoreFuture.Callback<Version>() {
+                    @Override
+                    public void onSuccess(final Version version) {
+                        final long elapsedNanos = System.nanoTime() - startNanos;
+                        emit(subscriber, version);
+                        if (sampled) {
+                            owner.mirrorWrite(key, newValue.getValue(), elapsedNanos);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable cause) {
+                        subscriber.onError(cause);
+                    }
+                }, StoreExecutors.sameThread());
+            }
+        });
+    }
+
+    @Override
+    public Observable<Boolean> delete() {
+        return Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final Subscriber<? super Boolean> subscriber) {
+                final boolean sampled = owner.sampleWrite();
+                final long startNanos = System.nanoTime();
+                owner.primary().deleteAsync(key).addCallback(new StoreFuture.Callback<Boolean>() {
+                    @Override
+                    public void onSuccess(final Boolean deleted) {
+                        final long elapsedNanos = System.nanoTime() - startNanos;
+                        emit(subscriber, deleted);
+                        if (sampled) {
+                            owner.mirrorDelete(key, elapsedNanos);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable cause) {
+                        subscriber.onError(cause);
+                    }
+                }, StoreExecutors.sameThread());
+            }
+        });
+    }
+
+    /*package*/ ShadowResource(final ShadowResourceProvider<K, V> owner, final K key) {
+        this.owner = owner;
+        this.key = key;
+        assert this.owner != null;
+        assert this.key != null;
+    }
+
+    private static <T> void emit(final Subscriber<? super T> subscriber, final T value) {
+        try {
+            subscriber.onNext(value);
+            subscriber.onCompleted();
+        } catch (final Throwable error) {
+            subscriber.onError(error);
+        }
+    }
+
+}
@@ -0,0 +1,666 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+import crud.WritableResourceProvider;
+import crud.voldemort.metrics.Histogram;
+import crud.voldemort.metrics.MBeans;
+
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Serves resources from a primary cluster, while mirroring a sample of
+ * their operations to a shadow cluster, such as a new cluster to which a
+ * store is being migrated, in order to compare the two under real load.
+ * Each cluster is accessed through its own
+ * {@link VoldemortResourceProvider}, typically built from its own
+ * {@link crud.voldemort.config.ImmutableClientConfig}.
+ *
+ * Subscribers always receive the primary cluster's results, as soon as
+ * they arrive; the shadow cluster's results are compared with them
+ * afterward. Mirrored operations run on a separate executor, which by
+ * default has a few threads. They are queued in a few bounded lanes, by
+ * key, and each lane runs one operation at a time, so that the mirrored
+ * operations of each key reach the shadow in the order in which they
+ * succeeded on the primary. When the shadow falls behind, further samples
+ * are dropped and counted, rather than queued without limit or allowed to
+ * slow the primary path.
+ *
+ * A sampled read is sent to both clusters at once. Their values, not their
+ * versions, are compared, since each cluster keeps its own vector clocks.
+ * A sampled write or delete is mirrored only after it succeeds on the
+ * primary; a mirrored write replaces whatever version the shadow holds.
+ * Unless all writes are mirrored, the shadow's contents will drift from the
+ * primary's, and reads will diverge for that reason alone.
+ *
+ * Statistics are available through {@link ShadowMXBean}, and divergent
+ * reads are logged at debug level.
+ */
+public class ShadowResourceProvider<K, V>
+implements ReadableResourceProvider<K, Versioned<V>>,
+           WritableResourceProvider<K, Versioned<V>, Version>,
+           DeletableResourceProvider<K, Boolean>,
+           ShadowMXBean,
+           Closeable {
+
+    public static final String MBEAN_TYPE = "Shadow";
+
+    private static final Logger log = Logger.getLogger(ShadowResourceProvider.class);
+
+    private static final double[] REPORTED_PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private final VoldemortResourceProvider<K, V> primary;
+    private final VoldemortResourceProvider<K, V> shadow;
+    private final double readSamplePercent;
+    private final double writeSamplePercent;
+    /**
+     * The queues of mirrored operations, one per stripe of keys.
+     */
+    private final MirrorLane[] lanes;
+    /**
+     * The executor created by this provider, to be shut down when it's
+     * closed; null if the executor was supplied by the caller.
+     */
+    private final ExecutorService ownedExecutor;
+    private final ObjectName mbeanName;
+
+    private final Histogram primaryReadNanos = new Histogram();
+    private final Histogram shadowReadNanos = new Histogram();
+    private final Histogram primaryWriteNanos = new Histogram();
+    private final Histogram shadowWriteNanos = new Histogram();
+    private final AtomicLong mirroredReads = new AtomicLong();
+    private final AtomicLong mirroredWrites = new AtomicLong();
+    private final AtomicLong droppedMirrors = new AtomicLong();
+    private final AtomicLong divergentReads = new AtomicLong();
+    private final AtomicLong shadowReadFailures = new AtomicLong();
+    private final AtomicLong primaryReadFailures = new AtomicLong();
+    private final AtomicLong shadowWriteFailures = new AtomicLong();
+
+
+    public static <K, V> Builder<K, V> newBuilder(
+            final VoldemortResourceProvider<K, V> primary,
+            final VoldemortResourceProvider<K, V> shadow) {
+        return new Builder<>(primary, shadow);
+    }
+
+    @Override
+    public ShadowResource<K, V> get(final K key) {
+        return new ShadowResource<>(this, Objects.requireNonNull(key));
+    }
+
+    @Override
+    public long getMirroredReads() {
+        return this.mirroredReads.get();
+    }
+
+    @Override
+    public long getMirroredWrites() {
+        return this.mirroredWrites.get();
+    }
+
+    @Override
+    public long getDroppedMirrors() {
+        return this.droppedMirrors.get();
+    }
+
+    @Override
+    public long getDivergentReads() {
+        return this.divergentReads.get();
+    }
+
+    @Override
+    public long getShadowReadFailures() {
+        return this.shadowReadFailures.get();
+    }
+
+    @Override
+    public long getPrimaryReadFailures() {
+        return this.primaryReadFailures.get();
+    }
+
+    @Override
+    public long getShadowWriteFailures() {
+        return this.shadowWriteFailures.get();
+    }
+
+    @Override
+    public Map<String, Long> getPrimaryReadLatenciesUs() {
+        return percentilesUs(this.primaryReadNanos);
+    }
+
+    @Override
+    public Map<String, Long> getShadowReadLatenciesUs() {
+        return percentilesUs(this.shadowReadNanos);
+    }
+
+    @Override
+    public Map<String, Long> getPrimaryWriteLatenciesUs() {
+        return percentilesUs(this.primaryWriteNanos);
+    }
+
+    @Override
+    public Map<String, Long> getShadowWriteLatenciesUs() {
+        return percentilesUs(this.shadowWriteNanos);
+    }
+
+    @Override
+    public void resetStatistics() {
+        this.primaryReadNanos.reset();
+        this.shadowReadNanos.reset();
+        this.primaryWriteNanos.reset();
+        this.shadowWriteNanos.reset();
+        this.mirroredReads.set(0L);
+        this.mirroredWrites.set(0L);
+        this.droppedMirrors.set(0L);
+        this.divergentReads.set(0L);
+        this.shadowReadFailures.set(0L);
+        this.primaryReadFailures.set(0L);
+        this.shadowWriteFailures.set(0L);
+    }
+
+    /**
+     * Unregister from JMX, if registered, and shut down the mirroring
+     * executor, if this provider created it. Mirrored operations in
+     * progress are abandoned. The two underlying providers are the
+     * caller's to close.
+     */
+    @Override
+    public void close() {
+        if (this.mbeanName != null) {
+            MBeans.unregister(this.mbeanName);
+        }
+        if (this.ownedExecutor != null) {
+            this.ownedExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + "{mirroredReads=" + getMirroredReads()
+                + ", mirroredWrites=" + getMirroredWrites()
+                + ", droppedMirrors=" + getDroppedMirrors()
+                + ", divergentReads=" + getDivergentReads()
+                + ", shadowReadFailures=" + getShadowReadFailures()
+                + ", primaryReadFailures=" + getPrimaryReadFailures()
+                + ", shadowWriteFailures=" + getShadowWriteFailures()
+                + ", primaryReadLatenciesUs=" + getPrimaryReadLatenciesUs()
+                + ", shadowReadLatenciesUs=" + getShadowReadLatenciesUs()
+                + ", primaryWriteLatenciesUs=" + getPrimaryWriteLatenciesUs()
+                + ", shadowWriteLatenciesUs=" + getShadowWriteLatenciesUs()
+                + '}';
+    }
+
+    /*package*/ VoldemortResourceProvider<K, V> primary() {
+        return this.primary;
+    }
+
+    /**
+     * If this read is sampled, start reading the given key from the shadow
+     * cluster.
+     *
+     * @return  the comparison to which to report the primary's result, or
+     *          null if the read isn't mirrored.
+     */
+    /*package*/ ReadComparison mirrorRead(final K key) {
+        if (!sample(this.readSamplePercent)) {
+            return null;
+        }
+        final ReadComparison comparison = new ReadComparison(key);
+        if (!submit(key, new Runnable() {
+            @Override
+            public void run() {
+                final long startNanos = System.nanoTime();
+                try {
+                    final Versioned<V> value = shadow.getAsync(key).get();
+                    comparison.shadowSucceeded(value, System.nanoTime() - startNanos);
+                } catch (final ExecutionException ex) {
+                    comparison.shadowFailed(ex.getCause());
+                } catch (final InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        })) {
+            return null;
+        }
+        this.mirroredReads.incrementAndGet();
+        return comparison;
+    }
+
+    /*package*/ boolean sampleWrite() {
+        return sample(this.writeSamplePercent);
+    }
+
+    /**
+     * Write the given value to the shadow cluster, after it was written to
+     * the primary in the given time.
+     */
+    /*package*/ void mirrorWrite(final K key, final V value, final long primaryNanos) {
+        mirrorUpdate(key, primaryNanos, new ShadowUpdate() {
+            @Override
+            public void run() throws ExecutionException, InterruptedException {
+                final Versioned<V> current = shadow.getAsync(key).get();
+                final long startNanos = System.nanoTime();
+                shadow.putAsync(key, (current == null)
+                        ? new Versioned<>(value)
+                        : new Versioned<>(value, current.getVersion())).get();
+                shadowWriteNanos.record(System.nanoTime() - startNanos);
+            }
+        });
+    }
+
+    /**
+     * Delete the given key from the shadow cluster, after it was deleted
+     * from the primary in the given time.
+     */
+    /*package*/ void mirrorDelete(final K key, final long primaryNanos) {
+        mirrorUpdate(key, primaryNanos, new ShadowUpdate() {
+            @Override
+            public void run() throws ExecutionException, InterruptedException {
+                final long startNanos = System.nanoTime();
+                shadow.deleteAsync(key).get();
+                shadowWriteNanos.record(System.nanoTime() - startNanos);
+            }
+        });
+    }
+
+    private ShadowResourceProvider(final Builder<K, V> builder) {
+        this.primary = builder.primary;
+        this.shadow = builder.shadow;
+        this.readSamplePercent = builder.readSamplePercent;
+        this.writeSamplePercent = builder.writeSamplePercent;
+        final Executor mirrorExecutor;
+        if (builder.mirrorExecutor != null) {
+            mirrorExecutor = builder.mirrorExecutor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = newMirrorExecutor(builder.mirrorThreads);
+            mirrorExecutor = this.ownedExecutor;
+        }
+        final int laneCapacity = Math.max(1, builder.mirrorQueueSize / builder.mirrorThreads);
+        this.lanes = new MirrorLane[builder.mirrorThreads];
+        for (int i = 0; i < this.lanes.length; ++i) {
+            this.lanes[i] = new MirrorLane(mirrorExecutor, laneCapacity);
+        }
+        this.mbeanName = (builder.jmxName != null)
+                ? MBeans.register(this, MBEAN_TYPE, builder.jmxName)
+                : null;
+    }
+
+    /**
+     * Each lane submits at most one task at a time, so the pool's queue
+     * is bounded by the number of lanes.
+     */
+    private static ExecutorService newMirrorExecutor(final int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(
+                                runnable,
+                                "ShadowResourceProvider mirror " + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static boolean sample(final double percent) {
+        return percent >= 100.0 || ThreadLocalRandom.current().nextDouble() * 100.0 < percent;
+    }
+
+    private void mirrorUpdate(final K key, final long primaryNanos, final ShadowUpdate update) {
+        final boolean submitted = submit(key, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    update.run();
+                } catch (final ExecutionException ex) {
+                    shadowWriteFailures.incrementAndGet();
+                    log.debug("Shadow write of " + key + " failed", ex.getCause());
+                } catch (final InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        if (submitted) {
+            this.primaryWriteNanos.record(primaryNanos);
+            this.mirroredWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queue the given task in the lane of the given key.
+     *
+     * @return  true if the task was accepted, or false if it was dropped.
+     */
+    private boolean submit(final K key, final Runnable task) {
+        try {
+            this.lanes[laneOf(key)].execute(task);
+            return true;
+        } catch (final RejectedExecutionException rex) {
+            this.droppedMirrors.incrementAndGet();
+            return false;
+        }
+    }
+
+    private int laneOf(final K key) {
+        final int hash = (key instanceof byte[]) ? Arrays.hashCode((byte[]) key) : key.hashCode();
+        return (hash & Integer.MAX_VALUE) % this.lanes.length;
+    }
+
+    private static Map<String, Long> percentilesUs(final Histogram nanos) {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (final double percentile : REPORTED_PERCENTILES) {
+            final String label = (percentile == Math.rint(percentile))
+                    ? "p" + (long) percentile
+                    : "p" + percentile;
+            result.put(label, TimeUnit.NANOSECONDS.toMicros(nanos.getValueAtPercentile(percentile)));
+        }
+        result.put("max", TimeUnit.NANOSECONDS.toMicros(nanos.getMax()));
+        return result;
+    }
+
+
+    private static interface ShadowUpdate {
+        void run() throws ExecutionException, InterruptedException;
+    }
+
+
+    /**
+     * A bounded queue of tasks that runs them one at a time, in order, on
+     * an underlying {@link Executor}, which may have many threads.
+     */
+    private static final class MirrorLane implements Executor, Runnable {
+        private final Executor executor;
+        private final int capacity;
+        /**
+         * Guarded by this.
+         */
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        /**
+         * Whether this lane has been submitted to the executor, and not yet
+         * found its queue empty. Guarded by this.
+         */
+        private boolean draining = false;
+
+        public MirrorLane(final Executor executor, final int capacity) {
+            this.executor = executor;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @throws RejectedExecutionException   if the lane is full, or the
+         *          executor rejects it.
+         */
+        @Override
+        public void execute(final Runnable task) {
+            synchronized (this) {
+                if (this.tasks.size() >= this.capacity) {
+                    throw new RejectedExecutionException("Mirror lane full");
+                }
+                this.tasks.addLast(task);
+                if (this.draining) {
+                    return;
+                }
+                this.draining = true;
+            }
+            try {
+                this.executor.execute(this);
+            } catch (final RejectedExecutionException rex) {
+                synchronized (this) {
+                    this.tasks.removeLastOccurrence(task);
+                    this.draining = false;
+                }
+                throw rex;
+            }
+        }
+
+        /**
+         * Run the queued tasks until there are none left.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    task = this.tasks.pollFirst();
+                    if (task == null) {
+                        this.draining = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (final RuntimeException ex) {
+                    // Don't strand the rest of the lane.
+                    log.warn("Mirrored operation failed", ex);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Collects the outcomes of one read from both clusters, which may
+     * arrive in either order, and compares them once both have.
+     */
+    /*package*/ final class ReadComparison {
+        private final K key;
+        private boolean primaryDone = false;
+        private boolean shadowDone = false;
+        private boolean primaryFailed = false;
+        private Throwable shadowFailure = null;
+        private Versioned<V> primaryValue = null;
+        private Versioned<V> shadowValue = null;
+
+        public ReadComparison(final K key) {
+            this.key = key;
+        }
+
+        public void primarySucceeded(final Versioned<V> value, final long elapsedNanos) {
+            primaryReadNanos.record(elapsedNanos);
+            synchronized (this) {
+                this.primaryValue = value;
+                this.primaryDone = true;
+            }
+            compareIfDone();
+        }
+
+        public void primaryFailed() {
+            synchronized (this) {
+                this.primaryFailed = true;
+                this.primaryDone = true;
+            }
+            compareIfDone();
+        }
+
+        public void shadowSucceeded(final Versioned<V> value, final long elapsedNanos) {
+            shadowReadNanos.record(elapsedNanos);
+            synchronized (this) {
+                this.shadowValue = value;
+                this.shadowDone = true;
+            }
+            compareIfDone();
+        }
+
+        public void shadowFailed(final Throwable cause) {
+            synchronized (this) {
+                this.shadowFailure = cause;
+                this.shadowDone = true;
+            }
+            compareIfDone();
+        }
+
+        private void compareIfDone() {
+            final Versioned<V> primaryResult;
+            final Versioned<V> shadowResult;
+            final boolean primaryOk;
+            final Throwable shadowError;
+            synchronized (this) {
+                if (!this.primaryDone || !this.shadowDone) {
+                    return;
+                }
+                primaryResult = this.primaryValue;
+                shadowResult = this.shadowValue;
+                primaryOk = !this.primaryFailed;
+                shadowError = this.shadowFailure;
+            }
+            final boolean shadowOk = shadowError == null;
+            if (primaryOk && !shadowOk) {
+                shadowReadFailures.incrementAndGet();
+                log.debug("Shadow read of " + this.key + " failed", shadowError);
+            } else if (!primaryOk && shadowOk) {
+                primaryReadFailures.incrementAndGet();
+            } else if (primaryOk && !Objects.deepEquals(valueOf(primaryResult), valueOf(shadowResult))) {
+                divergentReads.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Read of " + this.key + " diverged: primary "
+                            + (primaryResult == null ? "absent" : "present")
+                            + ", shadow " + (shadowResult == null ? "absent" : "present"));
+                }
+            }
+        }
+
+        private Object valueOf(final Versioned<V> versioned) {
+            return (versioned == null) ? null : versioned.getValue();
+        }
+    }
+
+
+    public static final class Builder<K, V> {
+        public static final double DEFAULT_READ_SAMPLE_PERCENT = 10.0;
+        public static final double DEFAULT_WRITE_SAMPLE_PERCENT = 100.0;
+        public static final int DEFAULT_MIRROR_THREADS = 4;
+        public static final int DEFAULT_MIRROR_QUEUE_SIZE = 1000;
+
+        private final VoldemortResourceProvider<K, V> primary;
+        private final VoldemortResourceProvider<K, V> shadow;
+        private double readSamplePercent = DEFAULT_READ_SAMPLE_PERCENT;
+        private double writeSamplePercent = DEFAULT_WRITE_SAMPLE_PERCENT;
+        private Executor mirrorExecutor = null;
+        private int mirrorThreads = DEFAULT_MIRROR_THREADS;
+        private int mirrorQueueSize = DEFAULT_MIRROR_QUEUE_SIZE;
+        private String jmxName = null;
+
+        private Builder(
+                final VoldemortResourceProvider<K, V> primary,
+                final VoldemortResourceProvider<K, V> shadow) {
+            this.primary = Objects.requireNonNull(primary);
+            this.shadow = Objects.requireNonNull(shadow);
+        }
+
+        /**
+         * Mirror the given percentage, in [0, 100], of reads.
+         */
+        public Builder<K, V> setReadSamplePercent(final double percent) {
+            this.readSamplePercent = requirePercent(percent);
+            return this;
+        }
+
+        /**
+         * Mirror the given percentage, in [0, 100], of writes and deletes.
+         * By default, all are mirrored, so that the shadow's contents keep
+         * up with the primary's.
+         */
+        public Builder<K, V> setWriteSamplePercent(final double percent) {
+            this.writeSamplePercent = requirePercent(percent);
+            return this;
+        }
+
+        /**
+         * Run mirrored operations on the given {@link Executor}, instead of
+         * on a pool created by the provider. They are still queued in the
+         * lanes set by {@link #setMirrorPool(int, int)}, each of which
+         * submits one task at a time. To keep the shadow from slowing the
+         * primary path, the executor should reject tasks when saturated,
+         * rather than block or run them on the calling thread; rejected
+         * tasks are counted as dropped.
+         */
+        public Builder<K, V> setMirrorExecutor(final Executor executor) {
+            this.mirrorExecutor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Set the number of lanes in which mirrored operations are queued,
+         * which is also the number of threads of the pool that the provider
+         * creates to run them, if no executor is given; and the number of
+         * operations that may be queued, divided evenly among the lanes.
+         */
+        public Builder<K, V> setMirrorPool(final int threads, final int queueSize) {
+            if (threads <= 0 || queueSize <= 0) {
+                throw new IllegalArgumentException("threads " + threads + ", queue size " + queueSize);
+            }
+            this.mirrorThreads = threads;
+            this.mirrorQueueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Register the provider with JMX under the given name.
+         */
+        public Builder<K, V> setJmxName(final String name) {
+            this.jmxName = Objects.requireNonNull(name);
+            return this;
+        }
+
+        public ShadowResourceProvider<K, V> build() {
+            return new ShadowResourceProvider<>(this);
+        }
+
+        private static double requirePercent(final double percent) {
+            if (percent < 0.0 || percent > 100.0) {
+                throw new IllegalArgumentException("percent " + percent + " not in [0, 100]");
+            }
+            return percent;
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A counter whose value is spread across several shard keys, so that
+ * concurrent increments seldom conflict. Each increment is applied to a
+ * single shard, chosen by the provider's
+ * {@link ShardedCounterResourceProvider.ShardSelection}; reading the
+ * counter sums all shards with a single {@code getAll()}.
+ *
+ * All calls to the store are made through the provider's
+ * {@link VoldemortResourceProvider}, without blocking the subscribing
+ * thread.
+ */
+public class ShardedCounterResource
+implements ReadableResource<Long>,
+           DeletableResource<Boolean> {
+
+    private final ShardedCounterResourceProvider owner;
+    private final String key;
+
+
+    /**
+     * Upon each subscription, emits the sum of all shards, plus any
+     * increments buffered locally and not yet flushed. Increments being
+     * flushed are not included until the store's value includes them, so
+     * the sum may fall short while a flush is in progress, but never
+     * counts an increment twice.
+     */
+    @Override
+    public Observable<Long> get() {
+        return Observable.create(new Observable.OnSubscribe<Long>() {
+            @Override
+            public void call(final Subscriber<? super Long> subscriber) {
+                owner.store().getAllAsync(owner.shardKeys(key)).addCallback(
+                        new StoreFuture.Callback<Map<String, Versioned<byte[]>>>() {
+                            @Override
+                            public void onSuccess(final Map<String, Versioned<byte[]>> shards) {
+                                // Only after the read: see bufferedDelta().
+                                long sum = owner.bufferedDelta(key);
+                                for (final Versioned<byte[]> shard : shards.values()) {
+                                    sum += ShardedCounterResourceProvider.decode(shard.getValue());
+                                }
+                                emit(subscriber, sum);
+                            }
+
+                            @Override
+                            public void onFailure(final Throwable cause) {
+                                subscriber.onError(cause);
+                            }
+                        },
+                        StoreExecutors.sameThread());
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, add the given amount, which may be negative,
+     * to the counter, and then complete. If the provider buffers
+     * increments, the subscription completes immediately, and the amount
+     * is written at the next flush.
+     */
+    public Observable<Void> increment(final long delta) {
+        return Observable.create(new Observable.OnSubscribe<Void>() {
+            @Override
+            public void call(final Subscriber<? super Void> subscriber) {
+                if (delta == 0L) {
+                    subscriber.onCompleted();
+                } else if (owner.buffer(key, delta)) {
+                    subscriber.onCompleted();
+                } else {
+                    owner.apply(key, delta, new ShardedCounterResourceProvider.IncrementCallback() {
+                        @Override
+                        public void onSuccess(final Version version) {
+                            subscriber.onCompleted();
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable cause) {
+                            subscriber.onError(cause);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, delete all shards, and discard any buffered
+     * increments. Emits true if any shard existed.
+     */
+    @Override
+    public Observable<Boolean> delete() {
+        return Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final Subscriber<? super Boolean> subscriber) {
+                owner.discardBuffered(key);
+                final AtomicInteger remaining = new AtomicInteger(owner.getShardCount());
+                final boolean[] anyDeleted = { false };
+                final Throwable[] failure = { null };
+                for (final String shardKey : owner.shardKeys(key)) {
+                    owner.store().deleteAsync(shardKey).addCallback(
+                            new StoreFuture.Callback<Boolean>() {
+                                @Override
+                                public void onSuccess(final Boolean deleted) {
+                                    synchronized (anyDeleted) {
+                                        anyDeleted[0] |= deleted;
+                                    }
+                                    shardDone();
+                                }
+
+                                @Override
+                                public void onFailure(final Throwable cause) {
+                                    synchronized (anyDeleted) {
+                                        if (failure[0] == null) {
+                                            failure[0] = cause;
+                                        }
+                                    }
+                                    shardDone();
+                                }
+
+                                private void shardDone() {
+                                    if (remaining.decrementAndGet() > 0) {
+                                        return;
+                                    }
+                                    synchronized (anyDeleted) {
+                                        if (failure[0] != null) {
+                                            subscriber.onError(failure[0]);
+                                        } else {
+                                            emit(subscriber, anyDeleted[0]);
+                                        }
+                                    }
+                                }
+                            },
+                            StoreExecutors.sameThread());
+                }
+            }
+        });
+    }
+
+    /*package*/ ShardedCounterResource(final ShardedCounterResourceProvider owner, final String key) {
+        this.owner = owner;
+        this.key = key;
+        assert this.owner != null;
+        assert this.key != null;
+    }
+
+    private static <T> void emit(final Subscriber<? super T> subscriber, final T value) {
+        try {
+            subscriber.onNext(value);
+            subscriber.onCompleted();
+        } catch (final Throwable error) {
+            subscriber.onError(error);
+        }
+    }
+
+}
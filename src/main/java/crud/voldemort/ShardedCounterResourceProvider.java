@@ -0,0 +1,476 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Provides {@link ShardedCounterResource}s. Counters are stored through a
+ * {@link VoldemortResourceProvider} whose store has {@code string} keys
+ * and {@code identity} values; each shard's value is a big-endian
+ * {@code long}. Shard keys are derived from counter keys by appending a
+ * suffix, so the store should not be shared with other kinds of
+ * resources.
+ *
+ * An increment reads its shard and writes it back with the version read.
+ * If another increment to the same shard wins the race, the write fails
+ * with an {@link ObsoleteVersionException}, and the increment is retried
+ * on another shard, up to {@link Builder#setMaxRetries(int) a limit}.
+ *
+ * Optionally, increments can be buffered locally, and flushed
+ * periodically, so that many increments of a hot counter cost a single
+ * write. Buffered increments are lost if the process exits without
+ * {@link #close() closing} the provider. Reads of a counter include its
+ * buffered increments, but not those being flushed: a read can't tell
+ * whether the store's value already includes them, so it may undercount
+ * while a flush is in progress, but never counts an increment twice.
+ */
+public class ShardedCounterResourceProvider
+implements ReadableResourceProvider<String, Long>,
+           DeletableResourceProvider<String, Boolean>,
+           Closeable {
+
+    private static final String SHARD_SEPARATOR = "#shard-";
+
+    private final VoldemortResourceProvider<String, byte[]> store;
+    private final int shardCount;
+    private final ShardSelection shardSelection;
+    private final int maxRetries;
+    /**
+     * Increments not yet being flushed, by counter key; null if increments
+     * aren't buffered.
+     */
+    private final ConcurrentMap<String, BufferedIncrements> buffered;
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+
+
+    public static Builder newBuilder(final VoldemortResourceProvider<String, byte[]> store) {
+        return new Builder(store);
+    }
+
+    @Override
+    public ShardedCounterResource get(final String key) {
+        return new ShardedCounterResource(this, Objects.requireNonNull(key));
+    }
+
+    public int getShardCount() {
+        return this.shardCount;
+    }
+
+    /**
+     * @return  the number of increments retried after losing a race with
+     *          another increment of the same shard.
+     */
+    public long getRetryCount() {
+        return this.retries.get();
+    }
+
+    /**
+     * @return  the number of flushes of buffered increments that failed.
+     *          Those that failed before anything was written, because the
+     *          shard couldn't be read or the write lost conflicts with other
+     *          writes, were returned to the buffer. Any others might have
+     *          been written nonetheless, so they were dropped rather than
+     *          risk counting them twice.
+     */
+    public long getFlushFailureCount() {
+        return this.flushFailures.get();
+    }
+
+    /**
+     * Write all buffered increments, and wait until they're written. Any
+     * that certainly weren't written are returned to the buffer, to be
+     * retried at the next flush.
+     */
+    public void flush() throws InterruptedException {
+        if (this.buffered == null) {
+            return;
+        }
+        final List<String> keys = new ArrayList<>(this.buffered.keySet());
+        final CountDownLatch done = new CountDownLatch(keys.size());
+        for (final String key : keys) {
+            final BufferedIncrements increments = this.buffered.get(key);
+            final long delta = (increments == null) ? 0L : increments.startFlush();
+            if (delta == 0L) {
+                done.countDown();
+                continue;
+            }
+            apply(key, delta, new IncrementCallback() {
+                @Override
+                public void onSuccess(final Version version) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onNotWritten(final Throwable cause) {
+                    // Try again next time.
+                    flushFailures.incrementAndGet();
+                    increments.returnToBuffer(delta);
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(final Throwable cause) {
+                    // Maybe written: drop it.
+                    flushFailures.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+
+    /**
+     * Stop the periodic flush, if any, wait for any flush in progress, and
+     * flush once more.
+     */
+    @Override
+    public void close() {
+        try {
+            if (this.flusher != null) {
+                this.flusher.shutdown();
+                this.flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            flush();
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*package*/ VoldemortResourceProvider<String, byte[]> store() {
+        return this.store;
+    }
+
+    /*package*/ List<String> shardKeys(final String key) {
+        final List<String> keys = new ArrayList<>(this.shardCount);
+        for (int i = 0; i < this.shardCount; ++i) {
+            keys.add(shardKey(key, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Buffer the given increment, if increments are buffered.
+     *
+     * @return  true if the increment was buffered, or false if it must be
+     *          applied now.
+     */
+    /*package*/ boolean buffer(final String key, final long delta) {
+        if (this.buffered == null) {
+            return false;
+        }
+        BufferedIncrements increments = this.buffered.get(key);
+        if (increments == null) {
+            final BufferedIncrements newIncrements = new BufferedIncrements();
+            increments = this.buffered.putIfAbsent(key, newIncrements);
+            if (increments == null) {
+                increments = newIncrements;
+            }
+        }
+        increments.add(delta);
+        return true;
+    }
+
+    /**
+     * @return  the sum of the given counter's buffered increments, not
+     *          including those being flushed. Any increment included here
+     *          had not started flushing when this was called, so it is not
+     *          included in any value read from the store before the call.
+     */
+    /*package*/ long bufferedDelta(final String key) {
+        final BufferedIncrements increments = (this.buffered == null) ? null : this.buffered.get(key);
+        return (increments == null) ? 0L : increments.pending();
+    }
+
+    /*package*/ void discardBuffered(final String key) {
+        if (this.buffered != null) {
+            this.buffered.remove(key);
+        }
+    }
+
+    /**
+     * Add the given amount to one shard of the given counter, retrying on
+     * other shards if the write conflicts, and report the outcome to the
+     * given callback.
+     */
+    /*package*/ void apply(final String key, final long delta, final IncrementCallback callback) {
+        apply(key, delta, this.shardSelection.firstShard(this.shardCount), 0, callback);
+    }
+
+    /*package*/ static long decode(final byte[] value) {
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    private static byte[] encode(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static String shardKey(final String key, final int shard) {
+        return key + SHARD_SEPARATOR + shard;
+    }
+
+    private ShardedCounterResourceProvider(final Builder builder) {
+        this.store = builder.store;
+        this.shardCount = builder.shardCount;
+        this.shardSelection = builder.shardSelection;
+        this.maxRetries = builder.maxRetries;
+        if (builder.flushIntervalNanos > 0L) {
+            this.buffered = new ConcurrentHashMap<>();
+            this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ShardedCounterResourceProvider flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.flusher.scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                flush();
+                            } catch (final InterruptedException ix) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    },
+                    builder.flushIntervalNanos,
+                    builder.flushIntervalNanos,
+                    TimeUnit.NANOSECONDS);
+        } else {
+            this.buffered = null;
+            this.flusher = null;
+        }
+    }
+
+    private void apply(
+            final String key,
+            final long delta,
+            final int shard,
+            final int attempt,
+            final IncrementCallback callback) {
+        final String shardKey = shardKey(key, shard);
+        this.store.getAsync(shardKey).addCallback(new StoreFuture.Callback<Versioned<byte[]>>() {
+            @Override
+            public void onSuccess(final Versioned<byte[]> current) {
+                final Versioned<byte[]> next = (current == null)
+                        ? new Versioned<>(encode(delta))
+                        : new Versioned<>(encode(decode(current.getValue()) + delta), current.getVersion());
+                store.putAsync(shardKey, next).addCallback(new StoreFuture.Callback<Version>() {
+                    @Override
+                    public void onSuccess(final Version version) {
+                        callback.onSuccess(version);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable cause) {
+                        if (cause instanceof ObsoleteVersionException && attempt < maxRetries) {
+                            retries.incrementAndGet();
+                            final int nextShard = shardSelection.retryShard(shard, attempt + 1, shardCount);
+                            apply(key, delta, nextShard, attempt + 1, callback);
+                        } else if (cause instanceof ObsoleteVersionException) {
+                            callback.onNotWritten(cause);
+                        } else {
+                            callback.onFailure(cause);
+                        }
+                    }
+                }, StoreExecutors.sameThread());
+            }
+
+            @Override
+            public void onFailure(final Throwable cause) {
+                callback.onNotWritten(cause);
+            }
+        }, StoreExecutors.sameThread());
+    }
+
+
+    /**
+     * Receives the outcome of an increment, distinguishing failures that
+     * certainly left the counter unchanged from those that may not have.
+     */
+    /*package*/ abstract static class IncrementCallback implements StoreFuture.Callback<Version> {
+        /**
+         * The increment failed before anything was written: its shard
+         * couldn't be read, or every write lost a conflict. By default,
+         * calls {@link #onFailure(Throwable)}.
+         */
+        public void onNotWritten(final Throwable cause) {
+            onFailure(cause);
+        }
+    }
+
+
+    /**
+     * The increments of one counter that aren't being flushed.
+     */
+    private static final class BufferedIncrements {
+        private final AtomicLong pending = new AtomicLong();
+
+        public void add(final long delta) {
+            this.pending.addAndGet(delta);
+        }
+
+        /**
+         * @return  the pending increments, which are now in flight.
+         */
+        public long startFlush() {
+            return this.pending.getAndSet(0L);
+        }
+
+        /**
+         * The given increments in flight weren't written, and should be
+         * flushed again.
+         */
+        public void returnToBuffer(final long delta) {
+            this.pending.addAndGet(delta);
+        }
+
+        public long pending() {
+            return this.pending.get();
+        }
+    }
+
+
+    /**
+     * How the shard for each increment is chosen.
+     */
+    public static enum ShardSelection {
+        /**
+         * Each thread increments its own shard, as long as there are at
+         * least as many shards as threads, so that increments from
+         * different threads never conflict. After a conflict, the next
+         * shard is tried.
+         */
+        THREAD {
+            @Override
+            /*package*/ int firstShard(final int shardCount) {
+                return (int) (Thread.currentThread().getId() % shardCount);
+            }
+
+            @Override
+            /*package*/ int retryShard(final int previousShard, final int attempt, final int shardCount) {
+                return (previousShard + 1) % shardCount;
+            }
+        },
+        /**
+         * Each increment, and each retry, chooses a shard at random.
+         */
+        RANDOM {
+            @Override
+            /*package*/ int firstShard(final int shardCount) {
+                return ThreadLocalRandom.current().nextInt(shardCount);
+            }
+
+            @Override
+            /*package*/ int retryShard(final int previousShard, final int attempt, final int shardCount) {
+                return firstShard(shardCount);
+            }
+        },
+        ;
+
+        /*package*/ abstract int firstShard(int shardCount);
+
+        /*package*/ abstract int retryShard(int previousShard, int attempt, int shardCount);
+    }
+
+
+    public static final class Builder {
+        public static final int DEFAULT_SHARD_COUNT = 16;
+        public static final int DEFAULT_MAX_RETRIES = 10;
+
+        private final VoldemortResourceProvider<String, byte[]> store;
+        private int shardCount = DEFAULT_SHARD_COUNT;
+        private ShardSelection shardSelection = ShardSelection.THREAD;
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private long flushIntervalNanos = 0L;
+
+        private Builder(final VoldemortResourceProvider<String, byte[]> store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        /**
+         * Set the number of shards per counter. Changing it for existing
+         * counters loses the values in any shards beyond the new count.
+         */
+        public Builder setShardCount(final int shardCount) {
+            if (shardCount <= 0) {
+                throw new IllegalArgumentException("shard count " + shardCount + " <= 0");
+            }
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        public Builder setShardSelection(final ShardSelection shardSelection) {
+            this.shardSelection = Objects.requireNonNull(shardSelection);
+            return this;
+        }
+
+        /**
+         * Set the number of times an increment is retried after a conflict
+         * before it fails with an {@link ObsoleteVersionException}.
+         */
+        public Builder setMaxRetries(final int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("max retries " + maxRetries + " < 0");
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Buffer increments locally, and write them at the given interval.
+         * By default, increments are written immediately.
+         */
+        public Builder setFlushInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0L) {
+                throw new IllegalArgumentException("flush interval " + interval + " <= 0");
+            }
+            this.flushIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public ShardedCounterResourceProvider build() {
+            return new ShardedCounterResourceProvider(this);
+        }
+    }
+
+}
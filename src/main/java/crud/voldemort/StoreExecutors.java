@@ -0,0 +1,165 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Factories for the {@link Executor}s on which
+ * {@link VoldemortResourceProvider}s can run their blocking
+ * {@link voldemort.client.StoreClient} calls.
+ */
+public final class StoreExecutors {
+
+    /**
+     * The number of threads in the {@link #sharedBatchPool()}.
+     */
+    public static final int BATCH_POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final long BATCH_POOL_KEEP_ALIVE_SECONDS = 60L;
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()}, which exists only
+     * on Java 21 and later; {@code null} on earlier versions. It's looked up
+     * reflectively so that this project can continue to target Java 7.
+     */
+    private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadFactoryMethod();
+
+
+    /**
+     * @return  an {@link Executor} that runs each task on the calling
+     *          thread. This is the default, and results in synchronous
+     *          subscriptions.
+     */
+    public static Executor sameThread() {
+        return SameThreadExecutor.INSTANCE;
+    }
+
+    /**
+     * @return  a pool of {@link #BATCH_POOL_SIZE} daemon threads, shared by
+     *          every {@link VoldemortResourceProvider} whose executor is
+     *          {@link #sameThread()}, on which they dispatch the per-node
+     *          batches of {@code getAll()} and {@code putAll()}. Running
+     *          those on the subscribing thread would send the batches one
+     *          at a time. Idle threads exit, so the pool needn't be shut
+     *          down.
+     */
+    public static Executor sharedBatchPool() {
+        return BatchPoolHolder.POOL;
+    }
+
+    /**
+     * @return  true if the current JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * @return  an {@link ExecutorService} that starts a new virtual thread
+     *          for each task. Since blocking a virtual thread does not block
+     *          a platform thread, many thousands of store calls can be in
+     *          flight without a correspondingly large thread pool.
+     *
+     * @throws UnsupportedOperationException    if the current JVM does not
+     *          support virtual threads.
+     *
+     * @see #isVirtualThreadSupported()
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (newVirtualThreadPerTaskExecutor == null) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        try {
+            return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (final IllegalAccessException iax) {
+            throw new UnsupportedOperationException(iax);
+        } catch (final InvocationTargetException itx) {
+            throw new UnsupportedOperationException(itx.getCause());
+        }
+    }
+
+    /**
+     * @return  a virtual-thread-per-task {@link ExecutorService} if the
+     *          current JVM supports it, or else a fixed pool of platform
+     *          threads of the given size.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutorOrFixedPool(final int poolSize) {
+        return isVirtualThreadSupported()
+                ? newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(poolSize);
+    }
+
+    private static Method findVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException nsmx) {
+            return null;
+        }
+    }
+
+    private StoreExecutors() {
+        // prevent instantiation
+    }
+
+
+    /**
+     * Creates the {@link #sharedBatchPool()} only when it's first used.
+     */
+    private static final class BatchPoolHolder {
+        public static final ThreadPoolExecutor POOL = newBatchPool();
+
+        private static ThreadPoolExecutor newBatchPool() {
+            final AtomicInteger threadCount = new AtomicInteger();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    BATCH_POOL_SIZE,
+                    BATCH_POOL_SIZE,
+                    BATCH_POOL_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(
+                                    runnable, "StoreExecutors batch " + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+
+    private static enum SameThreadExecutor implements Executor {
+        INSTANCE;
+
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    }
+
+}
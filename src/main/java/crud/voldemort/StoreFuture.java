@@ -0,0 +1,246 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The pending result of an asynchronous call to a store, as returned by
+ * {@link VoldemortResourceProvider#getAsync(Object)} and its siblings. It
+ * serves the same purpose as {@code CompletableFuture}, which isn't
+ * available on Java 7, for callers that want a single result without the
+ * machinery of an {@link rx.Observable}.
+ *
+ * Completion allocates nothing beyond what's needed to run any callbacks.
+ * Each callback runs on the {@link Executor} given with it; pass
+ * {@link StoreExecutors#sameThread()} to run it on the thread that
+ * completes the future, or, if the future is already complete, on the
+ * thread that adds it. A callback that throws is logged, and doesn't
+ * prevent the others from running. If a callback's executor rejects it,
+ * typically with a {@link RejectedExecutionException}, the callback's
+ * {@link Callback#onFailure(Throwable)} is called with that exception, on
+ * the thread that would have submitted it.
+ *
+ * Cancelling a future completes it with a {@link CancellationException},
+ * but doesn't stop the call to the store, whose result is discarded.
+ */
+public final class StoreFuture<T> implements Future<T> {
+
+    private static final Logger log = Logger.getLogger(StoreFuture.class);
+
+    private static final Object PENDING = new Object();
+
+    /**
+     * {@link #PENDING}, the result, or a {@link Failure}. Guarded by this.
+     */
+    private Object outcome = PENDING;
+    /**
+     * Callbacks waiting for completion, most recent first. Guarded by this.
+     */
+    private Listener<T> listeners = null;
+
+
+    /**
+     * Run the given callback once this future completes. Callbacks added
+     * before completion run in no particular order.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        final Listener<T> listener = new Listener<>(
+                Objects.requireNonNull(callback),
+                Objects.requireNonNull(executor));
+        final Object current;
+        synchronized (this) {
+            current = this.outcome;
+            if (current == PENDING) {
+                listener.next = this.listeners;
+                this.listeners = listener;
+                return;
+            }
+        }
+        listener.fire(current);
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return finish(new Failure(new CancellationException()));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return (this.outcome instanceof Failure)
+                && ((Failure) this.outcome).cause instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return this.outcome != PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        final Object current;
+        synchronized (this) {
+            while (this.outcome == PENDING) {
+                wait();
+            }
+            current = this.outcome;
+        }
+        return resultOf(current);
+    }
+
+    @Override
+    public T get(final long timeout, final TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final Object current;
+        synchronized (this) {
+            while (this.outcome == PENDING) {
+                final long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0L) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            }
+            current = this.outcome;
+        }
+        return resultOf(current);
+    }
+
+    /*package*/ StoreFuture() {
+        // created only by this package
+    }
+
+    /**
+     * @return  true if this call completed the future, or false if it
+     *          was already complete.
+     */
+    /*package*/ boolean complete(final T result) {
+        return finish(result);
+    }
+
+    /*package*/ boolean fail(final Throwable cause) {
+        return finish(new Failure(Objects.requireNonNull(cause)));
+    }
+
+    private boolean finish(final Object newOutcome) {
+        Listener<T> toNotify;
+        synchronized (this) {
+            if (this.outcome != PENDING) {
+                return false;
+            }
+            this.outcome = newOutcome;
+            toNotify = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+        while (toNotify != null) {
+            toNotify.fire(newOutcome);
+            toNotify = toNotify.next;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T resultOf(final Object current) throws ExecutionException {
+        if (current instanceof Failure) {
+            final Throwable cause = ((Failure) current).cause;
+            if (cause instanceof CancellationException) {
+                throw (CancellationException) cause;
+            }
+            throw new ExecutionException(cause);
+        }
+        return (T) current;
+    }
+
+
+    /**
+     * Receives the outcome of a {@link StoreFuture}.
+     */
+    public static interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable cause);
+    }
+
+
+    private static final class Failure {
+        public final Throwable cause;
+
+        public Failure(final Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+
+    private static final class Listener<T> implements Runnable {
+        private final Callback<? super T> callback;
+        private final Executor executor;
+        public Listener<T> next = null;
+        private Object outcome = null;
+
+        public Listener(final Callback<? super T> callback, final Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        public void fire(final Object completedOutcome) {
+            this.outcome = completedOutcome;
+            try {
+                this.executor.execute(this);
+            } catch (final RejectedExecutionException rex) {
+                log.warn("Executor " + this.executor + " rejected callback " + this.callback, rex);
+                failInline(rex);
+            } catch (final RuntimeException ex) {
+                log.error("Executor " + this.executor + " failed to run callback " + this.callback, ex);
+                failInline(ex);
+            }
+        }
+
+        /**
+         * The callback can't run on its executor, but it mustn't wait
+         * forever: tell it so on this thread instead.
+         */
+        private void failInline(final RuntimeException cause) {
+            this.outcome = new Failure(cause);
+            run();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            try {
+                if (this.outcome instanceof Failure) {
+                    this.callback.onFailure(((Failure) this.outcome).cause);
+                } else {
+                    this.callback.onSuccess((T) this.outcome);
+                }
+            } catch (final RuntimeException ex) {
+                // Don't let one callback keep the rest from running.
+                log.error("Callback " + this.callback + " failed", ex);
+            }
+        }
+    }
+
+}
@@ -14,14 +14,21 @@
  */
 package crud.voldemort;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 import crud.DeletableResource;
 import crud.ReadableResource;
 import crud.WritableResource;
 import crud.pattern.ResourceMerger;
+import crud.voldemort.config.SmartOpCode;
+import crud.voldemort.metrics.OperationEvents;
 import rx.Observable;
 import rx.Subscriber;
 
 import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Version;
 import voldemort.versioning.Versioned;
 
@@ -32,6 +39,10 @@ implements ReadableResource<Versioned<T>>,
            DeletableResource<Boolean> {
 
     private final KeyedStoreClient<?, T> store;
+    /**
+     * Runs the blocking calls to {@link #store} for each subscription.
+     */
+    private final Executor executor;
     private transient ResourceMerger<Version> merger = null;
 
 
@@ -44,69 +55,189 @@ implements ReadableResource<Versioned<T>>,
 
     @Override
     public Observable<Versioned<T>> get() {
-        final Observable<Versioned<T>> result = Observable.create(new Observable.OnSubscribe<Versioned<T>>() {
+        return observe(this.store, this.executor, SmartOpCode.GET_OP_CODE, -1, new Callable<Versioned<T>>() {
             @Override
-            public void call(final Subscriber<? super Versioned<T>> subscriber) {
-                try {
-                    final Versioned<T> value = store.get();
-                    subscriber.onNext(value);
-                    subscriber.onCompleted();
-                } catch (final Throwable error) {
-                    subscriber.onError(error);
-                }
+            public Versioned<T> call() {
+                return store.get();
             }
         });
-        // TODO: Subscribe asynchronously?
-        return result;
     }
 
     @Override
     public Observable<Version> write(final Versioned<T> newValue) {
-        final Observable<Version> result = Observable.create(new Observable.OnSubscribe<Version>() {
+        final int valueSize = (newValue == null) ? -1 : sizeOf(newValue.getValue());
+        return observe(this.store, this.executor, SmartOpCode.PUT_OP_CODE, valueSize, new Callable<Version>() {
             @Override
-            public void call(final Subscriber<? super Version> subscriber) {
-                try {
-                    /* TODO: Provide variant that forces in-order writes by
-                     * reading current value and writing another.
-                     */
-                    final Version version = store.put(newValue);
-                    subscriber.onNext(version);
-                    subscriber.onCompleted();
-                } catch (final Throwable error) {
-                    subscriber.onError(error);
-                }
+            public Version call() {
+                /* TODO: Provide variant that forces in-order writes by
+                 * reading current value and writing another.
+                 */
+                return store.put(newValue);
             }
         });
-        // TODO: Subscribe asynchronously?
-        return result;
     }
 
     @Override
     public Observable<Boolean> delete() {
-        final Observable<Boolean> result = Observable.create(new Observable.OnSubscribe<Boolean>() {
+        return observe(this.store, this.executor, SmartOpCode.DELETE_OP_CODE, -1, new Callable<Boolean>() {
             @Override
-            public void call(final Subscriber<? super Boolean> subscriber) {
-                try {
-                    // XXX: Would be nice to be able to delete a particular version.
-                    final Boolean deleted = store.delete();
-                    subscriber.onNext(deleted);
-                    subscriber.onCompleted();
-                } catch (final Throwable error) {
-                    subscriber.onError(error);
-                }
+            public Boolean call() {
+                // XXX: Would be nice to be able to delete a particular version.
+                return store.delete();
             }
         });
-        // TODO: Subscribe asynchronously?
-        return result;
     }
 
-    /*package*/ static <K, V> VoldemortResource<V> create(final StoreClient<K, V> store, final K key) {
-        return new VoldemortResource<>(new KeyedStoreClient<K, V>(store, key));
+    /*package*/ static <K, V> VoldemortResource<V> create(
+            final StoreClient<K, V> store,
+            final String storeName,
+            final K key,
+            final Executor executor) {
+        return new VoldemortResource<>(new KeyedStoreClient<K, V>(store, storeName, key), executor);
     }
 
-    private VoldemortResource(final KeyedStoreClient<?, T> store) {
+    private VoldemortResource(final KeyedStoreClient<?, T> store, final Executor executor) {
         this.store = store;
+        this.executor = executor;
         assert this.store != null;
+        assert this.executor != null;
+    }
+
+    /**
+     * Create an {@link Observable} that, upon each subscription, calls the
+     * given operation on the given {@link Executor} and emits its result.
+     * Each call is recorded with {@link OperationEvents}.
+     *
+     * @param valueSize The size of the value being written, if known;
+     *                  otherwise, -1. The size of a value read is
+     *                  determined from the result.
+     */
+    /*package*/ static <R> Observable<R> observe(
+            final KeyedStoreClient<?, ?> store,
+            final Executor executor,
+            final SmartOpCode opCode,
+            final int valueSize,
+            final Callable<R> operation) {
+        return Observable.create(new Observable.OnSubscribe<R>() {
+            @Override
+            public void call(final Subscriber<? super R> subscriber) {
+                final Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        final R result;
+                        try {
+                            result = callAndRecord(store.getStoreName(), store.getKey(), opCode, valueSize, operation);
+                        } catch (final Throwable error) {
+                            subscriber.onError(error);
+                            return;
+                        }
+                        try {
+                            subscriber.onNext(result);
+                            subscriber.onCompleted();
+                        } catch (final Throwable error) {
+                            subscriber.onError(error);
+                        }
+                    }
+                };
+                try {
+                    executor.execute(task);
+                } catch (final RejectedExecutionException rex) {
+                    subscriber.onError(rex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Call the given operation once, on the given {@link Executor}, and
+     * complete the returned future with its result. The call is recorded
+     * as by {@link #observe}.
+     *
+     * @param key   The key to record, or {@code null} for a multi-key
+     *              operation.
+     */
+    /*package*/ static <R> StoreFuture<R> submit(
+            final String storeName,
+            final Object key,
+            final Executor executor,
+            final SmartOpCode opCode,
+            final int valueSize,
+            final Callable<R> operation) {
+        final StoreFuture<R> future = new StoreFuture<>();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                final R result;
+                try {
+                    result = callAndRecord(storeName, key, opCode, valueSize, operation);
+                } catch (final Throwable error) {
+                    future.fail(error);
+                    return;
+                }
+                future.complete(result);
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException rex) {
+            future.fail(rex);
+        }
+        return future;
+    }
+
+    /**
+     * Call the given operation, recording it with {@link OperationEvents}.
+     */
+    private static <R> R callAndRecord(
+            final String storeName,
+            final Object key,
+            final SmartOpCode opCode,
+            final int valueSize,
+            final Callable<R> operation)
+    throws Exception {
+        final Object event = OperationEvents.begin();
+        final R result;
+        try {
+            result = operation.call();
+        } catch (final Throwable error) {
+            if (event != null) {
+                final OperationEvents.Outcome outcome = (error instanceof ObsoleteVersionException)
+                        ? OperationEvents.Outcome.OBSOLETE_VERSION
+                        : OperationEvents.Outcome.ERROR;
+                OperationEvents.end(event, opCode, storeName, key, valueSize, outcome);
+            }
+            throw error;
+        }
+        if (event != null) {
+            final OperationEvents.Outcome outcome = (result == null || Boolean.FALSE.equals(result))
+                    ? OperationEvents.Outcome.NOT_FOUND
+                    : OperationEvents.Outcome.SUCCESS;
+            final int size;
+            if (result instanceof Versioned) {
+                size = sizeOf(((Versioned<?>) result).getValue());
+            } else if (valueSize < 0) {
+                // Perhaps a bare value, read without its version:
+                size = sizeOf(result);
+            } else {
+                size = valueSize;
+            }
+            OperationEvents.end(event, opCode, storeName, key, size, outcome);
+        }
+        return result;
+    }
+
+    /**
+     * @return  the size of the given value, if it's of a type whose size
+     *          is evident, such as a byte array or string; otherwise, -1.
+     */
+    /*package*/ static int sizeOf(final Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof CharSequence) {
+            return ((CharSequence) value).length();
+        } else {
+            return -1;
+        }
     }
 
 }
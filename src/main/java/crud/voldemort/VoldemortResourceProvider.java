@@ -14,10 +14,22 @@
  */
 package crud.voldemort;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import crud.ReadableResourceProvider;
 import crud.WritableResourceProvider;
+import crud.voldemort.client.HotKeyTrackingStoreClient;
+import crud.voldemort.client.NodeBatchDispatcher;
+import crud.voldemort.client.NodeBatchMXBean;
+import crud.voldemort.client.ValueSizeTrackingStoreClient;
+import crud.voldemort.config.SmartOpCode;
+import crud.voldemort.metrics.HotKeyTracker;
+import crud.voldemort.metrics.ValueSizeTracker;
+import rx.Observable;
 
 import voldemort.client.StoreClient;
 import voldemort.versioning.Version;
@@ -29,15 +41,301 @@ implements ReadableResourceProvider<K, Versioned<V>>,
            WritableResourceProvider<K, Versioned<V>, Version> {
 
     private final StoreClient<K, V> store;
+    private final String storeName;
+    private final Executor executor;
+    private final NodeBatchDispatcher<K, V> batchDispatcher;
 
 
+    public static <K, V> Builder<K, V> newBuilder(final StoreClient<K, V> store) {
+        return new Builder<>(store);
+    }
+
+    /**
+     * Create a provider whose resources call the store synchronously, on
+     * the thread that subscribes to them.
+     */
     public VoldemortResourceProvider(final StoreClient<K, V> store) {
-        this.store = Objects.requireNonNull(store);
+        this(store, StoreExecutors.sameThread());
+    }
+
+    /**
+     * Create a provider whose resources call the store on the given
+     * {@link Executor} whenever they are subscribed to. On Java 21 and
+     * later, {@link StoreExecutors#newVirtualThreadPerTaskExecutor()} allows
+     * very many concurrent calls without a large thread pool.
+     */
+    public VoldemortResourceProvider(final StoreClient<K, V> store, final Executor executor) {
+        this(newBuilder(store).setExecutor(executor));
     }
 
     @Override
     public VoldemortResource<V> get(final K key) {
-        return VoldemortResource.create(this.store, key);
+        return VoldemortResource.create(this.store, this.storeName, key, this.executor);
+    }
+
+    /**
+     * @return  a resource that reads only the value of the given key, not
+     *          its version, and emits {@code null} if there is none.
+     */
+    public VoldemortValueResource<V> getValueResource(final K key) {
+        return VoldemortValueResource.create(this.store, this.storeName, key, null, this.executor);
+    }
+
+    /**
+     * @return  a resource that reads only the value of the given key, not
+     *          its version, and emits the given default value if there is
+     *          none.
+     */
+    public VoldemortValueResource<V> getValueResource(final K key, final V defaultValue) {
+        return VoldemortValueResource.create(this.store, this.storeName, key, defaultValue, this.executor);
+    }
+
+    /**
+     * Create a new {@link VoldemortSession} that reads and writes through
+     * this provider's store, remembering up to
+     * {@link VoldemortSession#DEFAULT_MAX_TRACKED_KEYS} written keys and
+     * {@link VoldemortSession.ReadPolicy#VERIFY verifying} reads of them
+     * against the store.
+     */
+    public VoldemortSession<K, V> newSession() {
+        return newSession(VoldemortSession.ReadPolicy.VERIFY, VoldemortSession.DEFAULT_MAX_TRACKED_KEYS);
+    }
+
+    public VoldemortSession<K, V> newSession(
+            final VoldemortSession.ReadPolicy policy,
+            final int maxTrackedKeys) {
+        return new VoldemortSession<>(this.store, this.storeName, this.executor, policy, maxTrackedKeys);
+    }
+
+    /**
+     * Read the given key on this provider's {@link Executor}. This is
+     * equivalent to subscribing to {@code get(key).get()}, but without the
+     * overhead of an {@link Observable}.
+     */
+    public StoreFuture<Versioned<V>> getAsync(final K key) {
+        Objects.requireNonNull(key);
+        return VoldemortResource.submit(this.storeName, key, this.executor, SmartOpCode.GET_OP_CODE, -1,
+                new Callable<Versioned<V>>() {
+                    @Override
+                    public Versioned<V> call() {
+                        return store.get(key);
+                    }
+                });
+    }
+
+    /**
+     * Write the given key on this provider's {@link Executor}.
+     *
+     * @see VoldemortResource#write(Versioned)
+     */
+    public StoreFuture<Version> putAsync(final K key, final Versioned<V> newValue) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(newValue);
+        final int valueSize = VoldemortResource.sizeOf(newValue.getValue());
+        return VoldemortResource.submit(this.storeName, key, this.executor, SmartOpCode.PUT_OP_CODE, valueSize,
+                new Callable<Version>() {
+                    @Override
+                    public Version call() {
+                        return store.put(key, newValue);
+                    }
+                });
+    }
+
+    /**
+     * Delete the given key on this provider's {@link Executor}.
+     *
+     * @see VoldemortResource#delete()
+     */
+    public StoreFuture<Boolean> deleteAsync(final K key) {
+        Objects.requireNonNull(key);
+        return VoldemortResource.submit(this.storeName, key, this.executor, SmartOpCode.DELETE_OP_CODE, -1,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return store.delete(key);
+                    }
+                });
+    }
+
+    /**
+     * Delete the given key on this provider's {@link Executor}, only if its
+     * version is no later than the given one. The result is false if the
+     * key was absent, or its version was later.
+     */
+    public StoreFuture<Boolean> deleteAsync(final K key, final Version version) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(version);
+        return VoldemortResource.submit(this.storeName, key, this.executor, SmartOpCode.DELETE_OP_CODE, -1,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return store.delete(key, version);
+                    }
+                });
+    }
+
+    /**
+     * Read the given keys with a single {@code getAll()} on this
+     * provider's {@link Executor}. The resulting map omits the keys not
+     * found. To receive results node by node instead, use
+     * {@link #getAll(Collection)}.
+     */
+    public StoreFuture<Map<K, Versioned<V>>> getAllAsync(final Collection<K> keys) {
+        Objects.requireNonNull(keys);
+        return VoldemortResource.submit(this.storeName, null, this.executor, SmartOpCode.GET_ALL_OP_CODE, -1,
+                new Callable<Map<K, Versioned<V>>>() {
+                    @Override
+                    public Map<K, Versioned<V>> call() {
+                        return store.getAll(keys);
+                    }
+                });
+    }
+
+    /**
+     * Read the given keys in concurrent batches, one or more per master
+     * node, on this provider's batch {@link Executor}. Each key found is
+     * emitted as soon as its batch completes.
+     *
+     * @see Builder#setBatchExecutor(Executor)
+     *
+     * @see NodeBatchDispatcher#getAll(Collection)
+     */
+    public Observable<Map.Entry<K, Versioned<V>>> getAll(final Collection<? extends K> keys) {
+        return this.batchDispatcher.getAll(keys);
+    }
+
+    /**
+     * Write the given values in concurrent batches, one or more per master
+     * node, on this provider's batch {@link Executor}. The new version of
+     * each key is emitted as soon as its batch completes.
+     *
+     * @see Builder#setBatchExecutor(Executor)
+     *
+     * @see NodeBatchDispatcher#putAll(Map)
+     */
+    public Observable<Map.Entry<K, Version>> putAll(final Map<? extends K, ? extends Versioned<V>> values) {
+        return this.batchDispatcher.putAll(values);
+    }
+
+    /**
+     * @return  the per-node latencies and sizes of the batches sent by
+     *          {@link #getAll(Collection)} and {@link #putAll(Map)}, suitable
+     *          for registration with
+     *          {@link crud.voldemort.metrics.MBeans#register}.
+     */
+    public NodeBatchMXBean getBatchStatistics() {
+        return this.batchDispatcher;
+    }
+
+    private VoldemortResourceProvider(final Builder<K, V> builder) {
+        StoreClient<K, V> store = builder.store;
+        if (builder.valueSizeTracker != null) {
+            store = new ValueSizeTrackingStoreClient<>(store, builder.valueSizeTracker);
+        }
+        if (builder.hotKeyTracker != null) {
+            store = new HotKeyTrackingStoreClient<>(store, builder.hotKeyTracker);
+        }
+        this.store = store;
+        this.storeName = builder.storeName;
+        this.executor = builder.executor;
+        final Executor batchExecutor;
+        if (builder.batchExecutor != null) {
+            batchExecutor = builder.batchExecutor;
+        } else if (builder.executor == StoreExecutors.sameThread()) {
+            batchExecutor = StoreExecutors.sharedBatchPool();
+        } else {
+            batchExecutor = builder.executor;
+        }
+        this.batchDispatcher = NodeBatchDispatcher.newBuilder(store, batchExecutor)
+                .setBatchBytes(builder.batchBytes)
+                .build();
+    }
+
+
+    public static final class Builder<K, V> {
+        private final StoreClient<K, V> store;
+        private String storeName = null;
+        private Executor executor = StoreExecutors.sameThread();
+        private Executor batchExecutor = null;
+        private HotKeyTracker<? super K> hotKeyTracker = null;
+        private ValueSizeTracker<? super V> valueSizeTracker = null;
+        private int batchBytes = NodeBatchDispatcher.Builder.DEFAULT_BATCH_BYTES;
+
+        private Builder(final StoreClient<K, V> store) {
+            this.store = Objects.requireNonNull(store);
+        }
+
+        /**
+         * @see VoldemortResourceProvider#VoldemortResourceProvider(StoreClient, Executor)
+         */
+        public Builder<K, V> setExecutor(final Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Dispatch the per-node batches of
+         * {@link VoldemortResourceProvider#getAll(Collection)} and
+         * {@link VoldemortResourceProvider#putAll(Map)} on the given
+         * {@link Executor}, which should be able to run several at once. By
+         * default, they're dispatched on the provider's executor, unless
+         * that's {@link StoreExecutors#sameThread()}, in which case they
+         * use {@link StoreExecutors#sharedBatchPool()}.
+         */
+        public Builder<K, V> setBatchExecutor(final Executor batchExecutor) {
+            this.batchExecutor = Objects.requireNonNull(batchExecutor);
+            return this;
+        }
+
+        /**
+         * Identify the store in diagnostics, such as the events recorded by
+         * {@link crud.voldemort.metrics.OperationEvents}. The
+         * {@link StoreClient} interface doesn't expose its store's name, so
+         * it must be given here if it's wanted.
+         */
+        public Builder<K, V> setStoreName(final String storeName) {
+            this.storeName = Objects.requireNonNull(storeName);
+            return this;
+        }
+
+        /**
+         * Count the keys of all operations performed through the provider's
+         * resources, including those of its sessions, in the given tracker.
+         * The tracker's lifecycle remains the caller's responsibility.
+         */
+        public Builder<K, V> setHotKeyTracker(final HotKeyTracker<? super K> tracker) {
+            this.hotKeyTracker = Objects.requireNonNull(tracker);
+            return this;
+        }
+
+        /**
+         * Record the sizes of all values read and written through the
+         * provider's resources, including those of its sessions, in the
+         * given tracker, and reject writes above its hard limit, if any.
+         * The tracker's lifecycle remains the caller's responsibility.
+         */
+        public Builder<K, V> setValueSizeTracker(final ValueSizeTracker<? super V> tracker) {
+            this.valueSizeTracker = Objects.requireNonNull(tracker);
+            return this;
+        }
+
+        /**
+         * Limit the estimated size of each batch sent by
+         * {@link VoldemortResourceProvider#getAll(Collection)} and
+         * {@link VoldemortResourceProvider#putAll(Map)}. This should be the
+         * socket buffer size of the store's client configuration.
+         */
+        public Builder<K, V> setBatchBytes(final int batchBytes) {
+            if (batchBytes <= 0) {
+                throw new IllegalArgumentException("batch bytes " + batchBytes + " <= 0");
+            }
+            this.batchBytes = batchBytes;
+            return this;
+        }
+
+        public VoldemortResourceProvider<K, V> build() {
+            return new VoldemortResourceProvider<>(this);
+        }
     }
 
 }
@@ -0,0 +1,255 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import crud.ReadableResourceProvider;
+import crud.WritableResourceProvider;
+import crud.voldemort.client.ForwardingStoreClient;
+
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occurred;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A short-lived view of a {@link VoldemortResourceProvider} that provides
+ * read-your-writes consistency: the {@link Version} resulting from each
+ * write performed through one of this session's resources is remembered,
+ * and no subsequent read through this session will return a value older
+ * than that.
+ *
+ * Sessions are intended to be created per request, so they are cheap: no
+ * state is allocated until the first write, and the number of keys
+ * remembered is bounded; the least-recently-used keys are forgotten first.
+ * Deleting a key also forgets it.
+ *
+ * @see VoldemortResourceProvider#newSession()
+ */
+public final class VoldemortSession<K, V>
+implements ReadableResourceProvider<K, Versioned<V>>,
+           WritableResourceProvider<K, Versioned<V>, Version> {
+
+    public static final int DEFAULT_MAX_TRACKED_KEYS = 64;
+
+    private final SessionStoreClient<K, V> store;
+    private final String storeName;
+    private final Executor executor;
+
+
+    /**
+     * Determines how reads of keys that this session has written are
+     * handled.
+     */
+    public static enum ReadPolicy {
+        /**
+         * Return the value written within this session without contacting
+         * the store at all. This is fastest, but will not observe writes
+         * by other clients that happened after this session's write.
+         */
+        LOCAL,
+        /**
+         * Read from the store, and return the session's own write in place
+         * of the store's value only if the store's version happened before
+         * it, or the store has no value at all.
+         */
+        VERIFY,
+    }
+
+
+    @Override
+    public VoldemortResource<V> get(final K key) {
+        return VoldemortResource.create(this.store, this.storeName, key, this.executor);
+    }
+
+    /**
+     * @return  the version most recently written to the given key within
+     *          this session, or {@code null} if none is remembered.
+     */
+    public Version getWrittenVersion(final K key) {
+        final Versioned<V> written = this.store.written(key);
+        return (written == null) ? null : written.getVersion();
+    }
+
+    /*package*/ VoldemortSession(
+            final StoreClient<K, V> store,
+            final String storeName,
+            final Executor executor,
+            final ReadPolicy policy,
+            final int maxTrackedKeys) {
+        if (maxTrackedKeys <= 0) {
+            throw new IllegalArgumentException("maxTrackedKeys " + maxTrackedKeys + " <= 0");
+        }
+        this.store = new SessionStoreClient<>(store, Objects.requireNonNull(policy), maxTrackedKeys);
+        this.storeName = storeName;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+
+    private static final class SessionStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+        private final ReadPolicy policy;
+        private final int maxTrackedKeys;
+        /**
+         * Allocated lazily, since many sessions will never write. Guarded
+         * by {@code this}.
+         */
+        private Map<K, Versioned<V>> writes = null;
+
+        public SessionStoreClient(
+                final StoreClient<K, V> delegate,
+                final ReadPolicy policy,
+                final int maxTrackedKeys) {
+            super(delegate);
+            this.policy = policy;
+            this.maxTrackedKeys = maxTrackedKeys;
+        }
+
+        @Override
+        public V getValue(final K key) {
+            final Versioned<V> versioned = get(key);
+            return (versioned == null) ? null : versioned.getValue();
+        }
+
+        @Override
+        public V getValue(final K key, final V defaultValue) {
+            final Versioned<V> versioned = get(key);
+            return (versioned == null) ? defaultValue : versioned.getValue();
+        }
+
+        @Override
+        public Versioned<V> get(final K key) {
+            final Versioned<V> written = written(key);
+            if (written != null && this.policy == ReadPolicy.LOCAL) {
+                return written.cloneVersioned();
+            }
+            final Versioned<V> stored = super.get(key);
+            return newerOf(stored, written);
+        }
+
+        @Override
+        public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+            final Versioned<V> versioned = get(key);
+            return (versioned == null) ? defaultValue : versioned;
+        }
+
+        @Override
+        public Version put(final K key, final V value) {
+            final Version version = super.put(key, value);
+            remember(key, value, version);
+            return version;
+        }
+
+        @Override
+        public Version put(final K key, final V value, final Object transforms) {
+            // The stored value may differ from the given one: forget it.
+            final Version version = super.put(key, value, transforms);
+            forget(key);
+            return version;
+        }
+
+        @Override
+        public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+            final Version version = super.put(key, versioned);
+            remember(key, versioned.getValue(), version);
+            return version;
+        }
+
+        @Override
+        public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+            try {
+                put(key, versioned);
+                return true;
+            } catch (final ObsoleteVersionException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean delete(final K key) {
+            forget(key);
+            return super.delete(key);
+        }
+
+        @Override
+        public boolean delete(final K key, final Version version) {
+            forget(key);
+            return super.delete(key, version);
+        }
+
+        public synchronized Versioned<V> written(final K key) {
+            return (this.writes == null) ? null : this.writes.get(key);
+        }
+
+        private synchronized void remember(final K key, final V value, final Version version) {
+            if (this.writes == null) {
+                this.writes = new BoundedLruMap<>(this.maxTrackedKeys);
+            }
+            this.writes.put(key, new Versioned<>(value, version));
+        }
+
+        private synchronized void forget(final K key) {
+            if (this.writes != null) {
+                this.writes.remove(key);
+            }
+        }
+
+        private static <V> Versioned<V> newerOf(final Versioned<V> stored, final Versioned<V> written) {
+            if (written == null) {
+                return stored;
+            }
+            if (stored == null) {
+                // The replica we read from hasn't seen our write yet.
+                return written.cloneVersioned();
+            }
+            final Version storedVersion = stored.getVersion();
+            final Version writtenVersion = written.getVersion();
+            /* Check equality first: VectorClock.compare() reports equal
+             * clocks as BEFORE.
+             */
+            if (storedVersion.equals(writtenVersion)) {
+                return stored;
+            }
+            if (storedVersion.compare(writtenVersion) == Occurred.BEFORE) {
+                return written.cloneVersioned();
+            }
+            // AFTER or CONCURRENTLY: not older than our write.
+            return stored;
+        }
+    }
+
+
+    private static final class BoundedLruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        public BoundedLruMap(final int maxSize) {
+            super(Math.min(16, maxSize), 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > this.maxSize;
+        }
+    }
+
+}
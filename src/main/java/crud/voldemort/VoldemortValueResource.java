@@ -0,0 +1,84 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import crud.ReadableResource;
+import crud.voldemort.config.SmartOpCode;
+import rx.Observable;
+
+import voldemort.client.StoreClient;
+
+
+/**
+ * A read-only view of the value of a single key, for callers that don't
+ * need its version. Reads go through {@link StoreClient#getValue(Object)},
+ * so that no {@link voldemort.versioning.Versioned} is built or copied on
+ * this library's side of the client. Calls are executed and recorded as
+ * for {@link VoldemortResource}.
+ *
+ * @see VoldemortResourceProvider#getValueResource(Object)
+ */
+public class VoldemortValueResource<T> implements ReadableResource<T> {
+
+    private final KeyedStoreClient<?, T> store;
+    private final Executor executor;
+    /**
+     * Emitted in place of a missing value. May be {@code null}.
+     */
+    private final T defaultValue;
+
+
+    /**
+     * Upon each subscription, emits the current value, or the default
+     * value if there is none. The default value is {@code null} unless
+     * another was given when this resource was created.
+     */
+    @Override
+    public Observable<T> get() {
+        return VoldemortResource.observe(this.store, this.executor, SmartOpCode.GET_OP_CODE, -1, new Callable<T>() {
+            @Override
+            public T call() {
+                return (defaultValue == null) ? store.getValue() : store.getValue(defaultValue);
+            }
+        });
+    }
+
+    /*package*/ static <K, V> VoldemortValueResource<V> create(
+            final StoreClient<K, V> store,
+            final String storeName,
+            final K key,
+            final V defaultValue,
+            final Executor executor) {
+        return new VoldemortValueResource<>(
+                new KeyedStoreClient<K, V>(store, storeName, key),
+                defaultValue,
+                executor);
+    }
+
+    private VoldemortValueResource(
+            final KeyedStoreClient<?, T> store,
+            final T defaultValue,
+            final Executor executor) {
+        this.store = store;
+        this.defaultValue = defaultValue;
+        this.executor = executor;
+        assert this.store != null;
+        assert this.executor != null;
+    }
+
+}
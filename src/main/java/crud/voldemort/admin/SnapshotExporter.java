@@ -0,0 +1,220 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.admin;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Exports the contents of a store to a directory of snapshot files, one
+ * per partition, streaming many partitions in parallel from their master
+ * nodes. Each file is written through a {@link FileChannel} in large
+ * buffered writes, optionally compressed, and then recorded in the
+ * directory's {@link SnapshotManifest}.
+ *
+ * If the directory already holds a manifest from an interrupted export of
+ * the same store, the partitions that it lists as complete are not
+ * exported again.
+ *
+ * @see SnapshotFormat
+ */
+public class SnapshotExporter {
+
+    private final StoreScanner scanner;
+    private final Path directory;
+    private final int threads;
+    private final boolean compressed;
+    private final int bufferSize;
+
+
+    public static Builder newBuilder(final StoreScanner scanner, final Path directory) {
+        return new Builder(scanner, directory);
+    }
+
+    /**
+     * Export every partition not already complete, and wait until all are
+     * done.
+     *
+     * @return  the manifest describing all partitions exported, by this
+     *          and any previous call.
+     *
+     * @throws IOException  if any partition fails to export. The others
+     *          are exported nonetheless, so that a retry need export only
+     *          the failed ones.
+     */
+    public SnapshotManifest export() throws IOException, InterruptedException {
+        Files.createDirectories(this.directory);
+        SnapshotManifest manifest = SnapshotManifest.load(this.directory);
+        if (manifest == null) {
+            manifest = new SnapshotManifest(this.scanner.getStoreName(), this.compressed);
+            manifest.store(this.directory);
+        } else if (!manifest.getStoreName().equals(this.scanner.getStoreName())
+                || manifest.isCompressed() != this.compressed) {
+            throw new IOException("Existing snapshot in " + this.directory + " doesn't match: " + manifest);
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            final List<Future<?>> exports = new ArrayList<>();
+            for (final int partitionId : this.scanner.getPartitionIds()) {
+                if (!manifest.isComplete(partitionId)) {
+                    exports.add(pool.submit(newExportTask(partitionId, manifest)));
+                }
+            }
+
+            IOException failure = null;
+            for (final Future<?> export : exports) {
+                try {
+                    export.get();
+                } catch (final ExecutionException ex) {
+                    if (failure == null) {
+                        failure = new IOException("Export of " + this.scanner.getStoreName() + " failed", ex.getCause());
+                    } else {
+                        failure.addSuppressed(ex.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return manifest;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private SnapshotExporter(final Builder builder) {
+        this.scanner = builder.scanner;
+        this.directory = builder.directory;
+        this.threads = builder.threads;
+        this.compressed = builder.compressed;
+        this.bufferSize = builder.bufferSize;
+    }
+
+    private Callable<Void> newExportTask(final int partitionId, final SnapshotManifest manifest) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                manifest.add(exportPartition(partitionId));
+                manifest.store(directory);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Write the given partition to a temporary file, and rename it once
+     * it's complete.
+     */
+    private SnapshotManifest.Partition exportPartition(final int partitionId) throws IOException {
+        final String fileName = SnapshotFormat.fileName(partitionId, this.compressed);
+        final Path file = this.directory.resolve(fileName);
+        final Path temp = this.directory.resolve(fileName + SnapshotFormat.TEMP_SUFFIX);
+
+        final SnapshotFormat.Writer writer;
+        try (final FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer = new SnapshotFormat.Writer(channel, this.compressed, this.bufferSize);
+            final Iterator<Pair<ByteArray, Versioned<byte[]>>> entries = this.scanner.entries(partitionId);
+            while (entries.hasNext()) {
+                final Pair<ByteArray, Versioned<byte[]>> entry = entries.next();
+                writer.write(entry.getFirst(), entry.getSecond());
+            }
+            writer.close();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new SnapshotManifest.Partition(
+                partitionId,
+                fileName,
+                writer.getRecordCount(),
+                writer.getByteCount(),
+                writer.getChecksum());
+    }
+
+
+    public static final class Builder {
+        public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+        private final StoreScanner scanner;
+        private final Path directory;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private boolean compressed = false;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+        private Builder(final StoreScanner scanner, final Path directory) {
+            this.scanner = Objects.requireNonNull(scanner);
+            this.directory = Objects.requireNonNull(directory);
+        }
+
+        /**
+         * Set the number of partitions to export at once. By default, it's
+         * the number of available processors.
+         */
+        public Builder setThreads(final int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads " + threads + " <= 0");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * GZIP-compress each file. A snapshot must be either entirely
+         * compressed or entirely uncompressed.
+         */
+        public Builder setCompressed(final boolean compressed) {
+            this.compressed = compressed;
+            return this;
+        }
+
+        /**
+         * Set the size of the buffer in which each partition's records are
+         * accumulated between writes to its file.
+         */
+        public Builder setBufferSize(final int bufferSize) {
+            if (bufferSize < SnapshotFormat.HEADER_SIZE) {
+                throw new IllegalArgumentException("buffer size " + bufferSize + " too small");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public SnapshotExporter build() {
+            return new SnapshotExporter(this);
+        }
+    }
+
+}
@@ -0,0 +1,477 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.admin;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import voldemort.utils.ByteArray;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * The layout of snapshot files. Each partition of a store is written to
+ * its own file, which begins with a header:
+ * <pre>
+ *  int     MAGIC
+ *  int     FORMAT_VERSION
+ * </pre>
+ * followed by one record per entry, all integers big-endian:
+ * <pre>
+ *  int     key length
+ *  byte[]  serialized key
+ *  int     version length
+ *  byte[]  serialized {@link VectorClock}
+ *  int     value length
+ *  byte[]  serialized value
+ * </pre>
+ * A file may be GZIP-compressed as a whole, in which case its name has the
+ * {@link #COMPRESSED_SUFFIX}. Checksums are computed over the uncompressed
+ * bytes, header included.
+ */
+/*package*/ final class SnapshotFormat {
+
+    public static final int MAGIC = 0x56534e50;  // "VSNP"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+
+    public static final String SUFFIX = ".snap";
+    public static final String COMPRESSED_SUFFIX = SUFFIX + ".gz";
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int COMPRESSED_READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+
+    public static String fileName(final int partitionId, final boolean compressed) {
+        return String.format("partition-%05d", partitionId) + (compressed ? COMPRESSED_SUFFIX : SUFFIX);
+    }
+
+    /**
+     * Parse the records of an uncompressed partition file directly from
+     * memory-mapped regions of it, passing each to the given sink. The
+     * only copies made are of the keys, versions, and values themselves,
+     * which Voldemort requires as arrays.
+     *
+     * The file is verified before any record reaches the sink: a first
+     * pass over the mapped file checks its structure, record count, and
+     * checksum without copying anything; the second pass emits the records.
+     *
+     * @throws IOException  if the file is malformed, or its record count,
+     *          size, or checksum doesn't match the manifest.
+     */
+    public static void readMapped(
+            final Path file,
+            final SnapshotManifest.Partition partition,
+            final RecordSink sink)
+    throws IOException, InterruptedException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size != partition.getByteCount()) {
+                throw new IOException(file + " has " + size + " bytes; expected " + partition.getByteCount());
+            }
+            final CRC32 crc = new CRC32();
+            final long recordCount = scanMapped(channel, size, file, crc, null);
+            verify(file, partition, recordCount, crc);
+            scanMapped(channel, size, file, null, sink);
+        }
+    }
+
+    /**
+     * Parse the records of a compressed partition file, passing each to
+     * the given sink.
+     *
+     * The file is verified before any record reaches the sink: it is
+     * decompressed twice, first to check its structure, record count, and
+     * checksum, and then to emit the records. This trades CPU for not
+     * needing space for the uncompressed file.
+     *
+     * @throws IOException  if the file is malformed, or its record count
+     *          or checksum doesn't match the manifest.
+     */
+    public static void readCompressed(
+            final Path file,
+            final SnapshotManifest.Partition partition,
+            final RecordSink sink)
+    throws IOException, InterruptedException {
+        final CRC32 crc = new CRC32();
+        final long recordCount = scanCompressed(file, crc, null);
+        verify(file, partition, recordCount, crc);
+        scanCompressed(file, null, sink);
+    }
+
+    private static void verify(
+            final Path file,
+            final SnapshotManifest.Partition partition,
+            final long recordCount,
+            final CRC32 crc)
+    throws IOException {
+        if (recordCount != partition.getRecordCount()) {
+            throw new IOException(file + " has " + recordCount + " records; expected " + partition.getRecordCount());
+        }
+        if (crc.getValue() != partition.getChecksum()) {
+            throw new IOException(file + " has checksum " + crc.getValue() + "; expected " + partition.getChecksum());
+        }
+    }
+
+    /**
+     * Walk the records of a mapped file, one window at a time.
+     *
+     * @param crc   If not {@code null}, updated with every byte of the file.
+     * @param sink  If not {@code null}, receives each record; otherwise,
+     *              records are only checked and counted.
+     *
+     * @return  the number of records in the file.
+     */
+    private static long scanMapped(
+            final FileChannel channel,
+            final long size,
+            final Path file,
+            final CRC32 crc,
+            final RecordSink sink)
+    throws IOException, InterruptedException {
+        final byte[] checksumBuffer = (crc == null) ? null : new byte[CHECKSUM_BUFFER_SIZE];
+        final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, HEADER_SIZE);
+        readHeader(header, file);
+        if (crc != null) {
+            updateChecksum(crc, header, 0, HEADER_SIZE, checksumBuffer);
+        }
+
+        long recordCount = 0L;
+        long position = HEADER_SIZE;
+        while (position < size) {
+            // A mapping can't exceed 2 GB, so map one window at a time:
+            final ByteBuffer window = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    position,
+                    Math.min(size - position, Integer.MAX_VALUE));
+            final int windowStart = window.position();
+            while (readRecord(window, sink, file)) {
+                ++recordCount;
+            }
+            final int consumed = window.position() - windowStart;
+            if (consumed == 0) {
+                throw new IOException(file + " is truncated at byte " + position);
+            }
+            if (crc != null) {
+                // Checksum the window while its pages are still resident:
+                updateChecksum(crc, window, windowStart, consumed, checksumBuffer);
+            }
+            position += consumed;
+        }
+        return recordCount;
+    }
+
+    /**
+     * Walk the records of a compressed file.
+     *
+     * @param crc   If not {@code null}, updated with every uncompressed
+     *              byte of the file.
+     * @param sink  If not {@code null}, receives each record; otherwise,
+     *              records are only checked and counted.
+     *
+     * @return  the number of records in the file.
+     */
+    private static long scanCompressed(final Path file, final CRC32 crc, final RecordSink sink)
+    throws IOException, InterruptedException {
+        final InputStream decompressed = new GZIPInputStream(Files.newInputStream(file));
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                (crc == null) ? decompressed : new CheckedInputStream(decompressed, crc),
+                COMPRESSED_READ_BUFFER_SIZE))) {
+            final byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            readHeader(ByteBuffer.wrap(header), file);
+            long recordCount = 0L;
+            int keyLength;
+            while ((keyLength = readLengthOrEnd(in, file)) >= 0) {
+                if (sink == null) {
+                    skipFully(in, keyLength, file);
+                    skipFully(in, checkLength(in.readInt(), file), file);
+                    skipFully(in, checkLength(in.readInt(), file), file);
+                } else {
+                    final byte[] key = new byte[keyLength];
+                    in.readFully(key);
+                    final byte[] version = new byte[checkLength(in.readInt(), file)];
+                    in.readFully(version);
+                    final byte[] value = new byte[checkLength(in.readInt(), file)];
+                    in.readFully(value);
+                    sink.record(new ByteArray(key), new Versioned<>(value, new VectorClock(version)));
+                }
+                ++recordCount;
+            }
+            return recordCount;
+        }
+    }
+
+    /**
+     * @return  the length that begins the next record, or -1 at the end of
+     *          the stream.
+     */
+    private static int readLengthOrEnd(final DataInputStream in, final Path file) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return -1;
+        }
+        final int length = (first << 24) | (in.readUnsignedByte() << 16)
+                | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        return checkLength(length, file);
+    }
+
+    private static void skipFully(final DataInputStream in, final int length, final Path file)
+    throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                // skipBytes() returns 0 at EOF, and possibly before it:
+                if (in.read() < 0) {
+                    throw new EOFException(file + " is truncated");
+                }
+                --remaining;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static void readHeader(final ByteBuffer header, final Path file) throws IOException {
+        final int magic = header.getInt();
+        final int formatVersion = header.getInt();
+        if (magic != MAGIC) {
+            throw new IOException(file + " is not a snapshot file");
+        } else if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + formatVersion + " in " + file);
+        }
+    }
+
+    /**
+     * Parse the record at the buffer's position, if it's entirely within
+     * the buffer, pass it to the given sink, if any, and advance past it.
+     *
+     * @return  true if a record was read, or false if the buffer's position
+     *          is unchanged.
+     */
+    private static boolean readRecord(final ByteBuffer buffer, final RecordSink sink, final Path file)
+    throws IOException, InterruptedException {
+        final int start = buffer.position();
+        if (sink == null) {
+            if (skipField(buffer, file) && skipField(buffer, file) && skipField(buffer, file)) {
+                return true;
+            }
+            buffer.position(start);
+            return false;
+        }
+        final byte[] key = readField(buffer, file);
+        final byte[] version = (key == null) ? null : readField(buffer, file);
+        final byte[] value = (version == null) ? null : readField(buffer, file);
+        if (value == null) {
+            buffer.position(start);
+            return false;
+        }
+        sink.record(new ByteArray(key), new Versioned<>(value, new VectorClock(version)));
+        return true;
+    }
+
+    /**
+     * @return  the length-prefixed field at the buffer's position, or
+     *          {@code null} if it extends past the buffer's limit.
+     *
+     * @throws IOException  if the field's length is negative.
+     */
+    private static byte[] readField(final ByteBuffer buffer, final Path file) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        final int length = checkLength(buffer.getInt(), file);
+        if (buffer.remaining() < length) {
+            return null;
+        }
+        final byte[] field = new byte[length];
+        buffer.get(field);
+        return field;
+    }
+
+    /**
+     * Like {@link #readField(ByteBuffer, Path)}, but without copying.
+     *
+     * @return  false if the field extends past the buffer's limit.
+     */
+    private static boolean skipField(final ByteBuffer buffer, final Path file) throws IOException {
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+        final int length = checkLength(buffer.getInt(), file);
+        if (buffer.remaining() < length) {
+            return false;
+        }
+        buffer.position(buffer.position() + length);
+        return true;
+    }
+
+    private static int checkLength(final int length, final Path file) throws IOException {
+        if (length < 0) {
+            throw new IOException(file + " has a field of negative length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Add the given range of a buffer to a checksum, without moving the
+     * buffer's position. Mapped buffers have no backing array, so their
+     * bytes are copied through the given scratch array.
+     */
+    private static void updateChecksum(
+            final CRC32 crc,
+            final ByteBuffer buffer,
+            final int offset,
+            final int length,
+            final byte[] scratch) {
+        final ByteBuffer range = buffer.duplicate();
+        range.limit(offset + length);
+        range.position(offset);
+        while (range.hasRemaining()) {
+            final int count = Math.min(range.remaining(), scratch.length);
+            range.get(scratch, 0, count);
+            crc.update(scratch, 0, count);
+        }
+    }
+
+    private SnapshotFormat() {
+        // prevent instantiation
+    }
+
+
+    /**
+     * Receives the records read from a partition file.
+     */
+    public static interface RecordSink {
+        void record(ByteArray key, Versioned<byte[]> versioned) throws InterruptedException;
+    }
+
+
+    /**
+     * Writes records to a {@link FileChannel}, through a heap buffer that
+     * is flushed only when full, and counts and checksums them as it goes.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final OutputStream compressor;
+        private ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private long recordCount = 0L;
+        private long byteCount = 0L;
+
+        public Writer(final FileChannel channel, final boolean compressed, final int bufferSize)
+        throws IOException {
+            this.channel = channel;
+            this.compressor = compressed
+                    ? new GZIPOutputStream(Channels.newOutputStream(channel), bufferSize)
+                    : null;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.buffer.putInt(MAGIC);
+            this.buffer.putInt(FORMAT_VERSION);
+        }
+
+        public void write(final ByteArray key, final Versioned<byte[]> versioned) throws IOException {
+            final byte[] keyBytes = key.get();
+            final byte[] versionBytes = ((VectorClock) versioned.getVersion()).toBytes();
+            final byte[] valueBytes = versioned.getValue();
+            ensureRemaining(12 + keyBytes.length + versionBytes.length + valueBytes.length);
+            this.buffer.putInt(keyBytes.length);
+            this.buffer.put(keyBytes);
+            this.buffer.putInt(versionBytes.length);
+            this.buffer.put(versionBytes);
+            this.buffer.putInt(valueBytes.length);
+            this.buffer.put(valueBytes);
+            ++this.recordCount;
+        }
+
+        public long getRecordCount() {
+            return this.recordCount;
+        }
+
+        /**
+         * @return  the number of uncompressed bytes written so far,
+         *          including any still in the buffer.
+         */
+        public long getByteCount() {
+            return this.byteCount + this.buffer.position();
+        }
+
+        /**
+         * Valid only after {@link #close()}.
+         */
+        public long getChecksum() {
+            return this.crc.getValue();
+        }
+
+        /**
+         * Flush all records, and force them to disk. The channel is not
+         * closed.
+         */
+        @Override
+        public void close() throws IOException {
+            flush();
+            if (this.compressor != null) {
+                // Closing would close the channel.
+                ((GZIPOutputStream) this.compressor).finish();
+                this.compressor.flush();
+            }
+            this.channel.force(false);
+        }
+
+        private void ensureRemaining(final int length) throws IOException {
+            if (this.buffer.remaining() < length) {
+                flush();
+                if (this.buffer.capacity() < length) {
+                    // A single record bigger than the buffer.
+                    this.buffer = ByteBuffer.allocate(length);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            final int length = this.buffer.position();
+            this.crc.update(this.buffer.array(), 0, length);
+            this.byteCount += length;
+            if (this.compressor != null) {
+                this.compressor.write(this.buffer.array(), 0, length);
+            } else {
+                this.buffer.flip();
+                while (this.buffer.hasRemaining()) {
+                    this.channel.write(this.buffer);
+                }
+            }
+            this.buffer.clear();
+        }
+    }
+
+}
@@ -0,0 +1,413 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.admin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import voldemort.client.ClientConfig;
+import voldemort.client.protocol.admin.AdminClient;
+import voldemort.client.protocol.admin.AdminClientConfig;
+import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
+import voldemort.routing.RoutingStrategy;
+import voldemort.routing.RoutingStrategyFactory;
+import voldemort.store.StoreDefinition;
+import voldemort.utils.ByteArray;
+import voldemort.utils.EventThrottler;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Restores a store from a directory of snapshot files written by
+ * {@link SnapshotExporter}. Partition files are read in parallel, each
+ * by its own thread; uncompressed files are memory-mapped and parsed in
+ * place. Each record is routed to every node in its preference list, and
+ * each node receives a single stream of updates through the admin
+ * protocol, so that the restore bypasses the normal per-record request
+ * path entirely.
+ *
+ * The nodes apply each update only if its version is not older than the
+ * one they already hold: when the snapshot and the store conflict, the
+ * higher version wins. Versions that are concurrent are both kept, as for
+ * any other write.
+ *
+ * To keep a restore from swamping live traffic, the rate at which records
+ * and bytes are read may be limited.
+ */
+public class SnapshotImporter implements Closeable {
+
+    /**
+     * Marks the end of a node's stream of updates.
+     */
+    private static final Pair<ByteArray, Versioned<byte[]>> END_OF_STREAM = Pair.create(
+            new ByteArray(new byte[0]),
+            new Versioned<>(new byte[0]));
+
+    /**
+     * How long a reader waits to enqueue a record before checking whether
+     * the node's stream has failed.
+     */
+    private static final long ENQUEUE_POLL_MILLIS = 100L;
+
+    private final AdminClient adminClient;
+    private final Path directory;
+    private final String storeName;
+    private final int threads;
+    private final int queueSize;
+    private final EventThrottler recordThrottler;
+    private final EventThrottler byteThrottler;
+    private final AtomicLong importedRecords = new AtomicLong();
+
+
+    public static Builder newBuilder(final String bootstrapUrl, final Path directory) {
+        return new Builder(bootstrapUrl, directory);
+    }
+
+    /**
+     * Import every partition file listed in the snapshot's manifest, and
+     * wait until all have been applied.
+     *
+     * @return  the number of records read.
+     *
+     * @throws IOException  if the snapshot is missing or malformed, or if
+     *          any node fails to apply its updates. Some records may have
+     *          been applied nonetheless; since a record is never applied
+     *          over a newer version, the restore can simply be repeated.
+     */
+    public long restore() throws IOException, InterruptedException {
+        final SnapshotManifest manifest = SnapshotManifest.load(this.directory);
+        if (manifest == null) {
+            throw new IOException("No " + SnapshotManifest.FILE_NAME + " in " + this.directory);
+        }
+        final String targetStore = (this.storeName != null) ? this.storeName : manifest.getStoreName();
+        final Cluster cluster = this.adminClient.getAdminClientCluster();
+        final RoutingStrategy routing = new RoutingStrategyFactory().updateRoutingStrategy(
+                storeDefinition(cluster, targetStore),
+                cluster);
+
+        final ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            final Map<Integer, NodeStream> streams = new HashMap<>();
+            final List<Future<?>> streamFutures = new ArrayList<>();
+            for (final Node node : cluster.getNodes()) {
+                final NodeStream stream = new NodeStream(node.getId(), targetStore);
+                streams.put(node.getId(), stream);
+                streamFutures.add(pool.submit(stream));
+            }
+
+            final ExecutorService readers = Executors.newFixedThreadPool(this.threads);
+            final List<Future<?>> readerFutures = new ArrayList<>();
+            try {
+                for (final SnapshotManifest.Partition partition : manifest.getPartitions().values()) {
+                    readerFutures.add(readers.submit(newReadTask(manifest, partition, routing, streams)));
+                }
+                IOException failure = awaitAll(readerFutures, null);
+                for (final NodeStream stream : streams.values()) {
+                    stream.finish();
+                }
+                failure = awaitAll(streamFutures, failure);
+                if (failure != null) {
+                    throw failure;
+                }
+            } finally {
+                readers.shutdownNow();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return this.importedRecords.get();
+    }
+
+    /**
+     * @return  the number of records read so far.
+     */
+    public long getImportedRecordCount() {
+        return this.importedRecords.get();
+    }
+
+    @Override
+    public void close() {
+        this.adminClient.close();
+    }
+
+    private SnapshotImporter(final Builder builder) {
+        this.adminClient = new AdminClient(builder.bootstrapUrl, new AdminClientConfig(), new ClientConfig());
+        this.directory = builder.directory;
+        this.storeName = builder.storeName;
+        this.threads = builder.threads;
+        this.queueSize = builder.queueSize;
+        this.recordThrottler = (builder.maxRecordsPerSecond > 0L)
+                ? new EventThrottler(builder.maxRecordsPerSecond)
+                : null;
+        this.byteThrottler = (builder.maxBytesPerSecond > 0L)
+                ? new EventThrottler(builder.maxBytesPerSecond)
+                : null;
+    }
+
+    private StoreDefinition storeDefinition(final Cluster cluster, final String name) throws IOException {
+        final int nodeId = cluster.getNodes().iterator().next().getId();
+        for (final StoreDefinition def : this.adminClient.metadataMgmtOps.getRemoteStoreDefList(nodeId).getValue()) {
+            if (def.getName().equals(name)) {
+                return def;
+            }
+        }
+        throw new IOException("No store " + name + " in the cluster");
+    }
+
+    private Callable<Void> newReadTask(
+            final SnapshotManifest manifest,
+            final SnapshotManifest.Partition partition,
+            final RoutingStrategy routing,
+            final Map<Integer, NodeStream> streams) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                final SnapshotFormat.RecordSink sink = new SnapshotFormat.RecordSink() {
+                    @Override
+                    public void record(final ByteArray key, final Versioned<byte[]> versioned)
+                    throws InterruptedException {
+                        throttle(key, versioned);
+                        final Pair<ByteArray, Versioned<byte[]>> entry = Pair.create(key, versioned);
+                        for (final Node node : routing.routeRequest(key.get())) {
+                            streams.get(node.getId()).enqueue(entry);
+                        }
+                        importedRecords.incrementAndGet();
+                    }
+                };
+                final Path file = directory.resolve(partition.getFileName());
+                if (manifest.isCompressed()) {
+                    SnapshotFormat.readCompressed(file, partition, sink);
+                } else {
+                    SnapshotFormat.readMapped(file, partition, sink);
+                }
+                return null;
+            }
+        };
+    }
+
+    private void throttle(final ByteArray key, final Versioned<byte[]> versioned) {
+        if (this.recordThrottler != null) {
+            this.recordThrottler.maybeThrottle(1);
+        }
+        if (this.byteThrottler != null) {
+            this.byteThrottler.maybeThrottle(key.length() + versioned.getValue().length);
+        }
+    }
+
+    /**
+     * Wait for all of the given futures.
+     *
+     * @return  the given failure, or a new one if it was null and any of
+     *          the futures failed.
+     */
+    private static IOException awaitAll(final List<Future<?>> futures, final IOException priorFailure)
+    throws InterruptedException {
+        IOException failure = priorFailure;
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final ExecutionException ex) {
+                final Throwable cause = ex.getCause();
+                if (failure == null) {
+                    failure = (cause instanceof IOException)
+                            ? (IOException) cause
+                            : new IOException("Restore failed", cause);
+                } else if (failure != cause) {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        return failure;
+    }
+
+
+    /**
+     * Streams the updates for a single node from a bounded queue, which
+     * the readers fill.
+     */
+    private final class NodeStream implements Callable<Void>, Iterator<Pair<ByteArray, Versioned<byte[]>>> {
+        private final int nodeId;
+        private final String targetStore;
+        private final BlockingQueue<Pair<ByteArray, Versioned<byte[]>>> queue;
+        private Pair<ByteArray, Versioned<byte[]>> next = null;
+        private volatile boolean failed = false;
+
+        public NodeStream(final int nodeId, final String targetStore) {
+            this.nodeId = nodeId;
+            this.targetStore = targetStore;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public Void call() {
+            try {
+                adminClient.streamingOps.updateEntries(this.nodeId, this.targetStore, this, null);
+                return null;
+            } catch (final RuntimeException ex) {
+                this.failed = true;
+                throw ex;
+            }
+        }
+
+        /**
+         * Called by readers.
+         */
+        public void enqueue(final Pair<ByteArray, Versioned<byte[]>> entry) throws InterruptedException {
+            while (!this.queue.offer(entry, ENQUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (this.failed) {
+                    throw new IllegalStateException("Stream to node " + this.nodeId + " failed");
+                }
+            }
+        }
+
+        /**
+         * Called once all readers are done.
+         */
+        public void finish() throws InterruptedException {
+            try {
+                enqueue(END_OF_STREAM);
+            } catch (final IllegalStateException ex) {
+                // The stream's own failure will be reported.
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.next == null) {
+                try {
+                    this.next = this.queue.take();
+                } catch (final InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted streaming to node " + this.nodeId, ix);
+                }
+            }
+            return this.next != END_OF_STREAM;
+        }
+
+        @Override
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Pair<ByteArray, Versioned<byte[]>> result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    public static final class Builder {
+        public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+        private final String bootstrapUrl;
+        private final Path directory;
+        private String storeName = null;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int queueSize = DEFAULT_QUEUE_SIZE;
+        private long maxRecordsPerSecond = 0L;
+        private long maxBytesPerSecond = 0L;
+
+        private Builder(final String bootstrapUrl, final Path directory) {
+            this.bootstrapUrl = Objects.requireNonNull(bootstrapUrl);
+            this.directory = Objects.requireNonNull(directory);
+        }
+
+        /**
+         * Restore into the given store, rather than the one from which the
+         * snapshot was exported.
+         */
+        public Builder setStoreName(final String storeName) {
+            this.storeName = Objects.requireNonNull(storeName);
+            return this;
+        }
+
+        /**
+         * Set the number of partition files to read at once. By default,
+         * it's the number of available processors.
+         */
+        public Builder setThreads(final int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads " + threads + " <= 0");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Set the number of records that may be waiting to be sent to
+         * each node.
+         */
+        public Builder setQueueSize(final int queueSize) {
+            if (queueSize <= 0) {
+                throw new IllegalArgumentException("queue size " + queueSize + " <= 0");
+            }
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Limit the rate at which records are read, across all files. Zero,
+         * the default, means no limit.
+         */
+        public Builder setMaxRecordsPerSecond(final long maxRecordsPerSecond) {
+            if (maxRecordsPerSecond < 0L) {
+                throw new IllegalArgumentException("max records per second " + maxRecordsPerSecond + " < 0");
+            }
+            this.maxRecordsPerSecond = maxRecordsPerSecond;
+            return this;
+        }
+
+        /**
+         * Limit the rate at which key and value bytes are read, across all
+         * files. Zero, the default, means no limit.
+         */
+        public Builder setMaxBytesPerSecond(final long maxBytesPerSecond) {
+            if (maxBytesPerSecond < 0L) {
+                throw new IllegalArgumentException("max bytes per second " + maxBytesPerSecond + " < 0");
+            }
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public SnapshotImporter build() {
+            return new SnapshotImporter(this);
+        }
+    }
+
+}
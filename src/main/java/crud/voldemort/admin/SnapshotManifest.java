@@ -0,0 +1,216 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.admin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Describes a directory of snapshot files: the store they were exported
+ * from, and the number of records, size, and checksum of each partition
+ * file completed so far. A partition is present in the manifest only once
+ * its file is complete, so an interrupted export can be resumed by
+ * skipping them.
+ *
+ * The manifest is stored as a properties file, {@link #FILE_NAME}, in the
+ * snapshot directory.
+ */
+public final class SnapshotManifest {
+
+    public static final String FILE_NAME = "snapshot.manifest";
+
+    private static final String STORE_PROPERTY = "store";
+    private static final String FORMAT_VERSION_PROPERTY = "format.version";
+    private static final String COMPRESSED_PROPERTY = "compressed";
+    private static final String PARTITION_PREFIX = "partition.";
+
+    private final String storeName;
+    private final boolean compressed;
+    private final SortedMap<Integer, Partition> partitions = new TreeMap<>();
+
+
+    public SnapshotManifest(final String storeName, final boolean compressed) {
+        this.storeName = Objects.requireNonNull(storeName);
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return  the manifest in the given directory, or {@code null} if
+     *          there is none.
+     */
+    public static SnapshotManifest load(final Path directory) throws IOException {
+        final Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        final int formatVersion = Integer.parseInt(props.getProperty(FORMAT_VERSION_PROPERTY));
+        if (formatVersion != SnapshotFormat.FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + formatVersion + " in " + file);
+        }
+        final SnapshotManifest manifest = new SnapshotManifest(
+                props.getProperty(STORE_PROPERTY),
+                Boolean.parseBoolean(props.getProperty(COMPRESSED_PROPERTY)));
+        for (final String name : props.stringPropertyNames()) {
+            if (name.startsWith(PARTITION_PREFIX) && name.endsWith(".file")) {
+                final String prefix = name.substring(0, name.length() - "file".length());
+                final int partitionId = Integer.parseInt(
+                        prefix.substring(PARTITION_PREFIX.length(), prefix.length() - 1));
+                manifest.partitions.put(partitionId, new Partition(
+                        partitionId,
+                        props.getProperty(name),
+                        Long.parseLong(props.getProperty(prefix + "records")),
+                        Long.parseLong(props.getProperty(prefix + "bytes")),
+                        Long.parseLong(props.getProperty(prefix + "crc32"))));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Write this manifest to the given directory, replacing any that is
+     * there. The file is replaced atomically, so a crash leaves either the
+     * old manifest or the new one.
+     */
+    public synchronized void store(final Path directory) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(STORE_PROPERTY, this.storeName);
+        props.setProperty(FORMAT_VERSION_PROPERTY, Integer.toString(SnapshotFormat.FORMAT_VERSION));
+        props.setProperty(COMPRESSED_PROPERTY, Boolean.toString(this.compressed));
+        for (final Partition partition : this.partitions.values()) {
+            final String prefix = PARTITION_PREFIX + partition.getPartitionId() + '.';
+            props.setProperty(prefix + "file", partition.getFileName());
+            props.setProperty(prefix + "records", Long.toString(partition.getRecordCount()));
+            props.setProperty(prefix + "bytes", Long.toString(partition.getByteCount()));
+            props.setProperty(prefix + "crc32", Long.toString(partition.getChecksum()));
+        }
+
+        final Path file = directory.resolve(FILE_NAME);
+        final Path temp = directory.resolve(FILE_NAME + SnapshotFormat.TEMP_SUFFIX);
+        try (final OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, "Snapshot of store " + this.storeName);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getStoreName() {
+        return this.storeName;
+    }
+
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    /**
+     * @return  the completed partitions, by ID.
+     */
+    public synchronized SortedMap<Integer, Partition> getPartitions() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this.partitions));
+    }
+
+    public synchronized boolean isComplete(final int partitionId) {
+        return this.partitions.containsKey(partitionId);
+    }
+
+    public synchronized long getRecordCount() {
+        long count = 0L;
+        for (final Partition partition : this.partitions.values()) {
+            count += partition.getRecordCount();
+        }
+        return count;
+    }
+
+    /*package*/ synchronized void add(final Partition partition) {
+        this.partitions.put(partition.getPartitionId(), partition);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName()
+                + "(store=" + this.storeName
+                + ", compressed=" + this.compressed
+                + ", partitions=" + this.partitions.values() + ')';
+    }
+
+
+    /**
+     * A completed partition file.
+     */
+    public static final class Partition {
+        private final int partitionId;
+        private final String fileName;
+        private final long recordCount;
+        private final long byteCount;
+        private final long checksum;
+
+        public Partition(
+                final int partitionId,
+                final String fileName,
+                final long recordCount,
+                final long byteCount,
+                final long checksum) {
+            this.partitionId = partitionId;
+            this.fileName = Objects.requireNonNull(fileName);
+            this.recordCount = recordCount;
+            this.byteCount = byteCount;
+            this.checksum = checksum;
+        }
+
+        public int getPartitionId() {
+            return this.partitionId;
+        }
+
+        public String getFileName() {
+            return this.fileName;
+        }
+
+        public long getRecordCount() {
+            return this.recordCount;
+        }
+
+        /**
+         * @return  the uncompressed size of the file, header included.
+         */
+        public long getByteCount() {
+            return this.byteCount;
+        }
+
+        /**
+         * @return  the CRC-32 of the uncompressed contents of the file.
+         */
+        public long getChecksum() {
+            return this.checksum;
+        }
+
+        @Override
+        public String toString() {
+            return this.fileName + " (" + this.recordCount + " records, " + this.byteCount + " bytes)";
+        }
+    }
+
+}
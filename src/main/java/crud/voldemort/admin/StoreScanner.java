@@ -0,0 +1,128 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.admin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+import voldemort.client.ClientConfig;
+import voldemort.client.protocol.admin.AdminClient;
+import voldemort.client.protocol.admin.AdminClientConfig;
+import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Streams the raw contents of a store, one partition at a time, from the
+ * node that is the master for that partition. Keys and values are returned
+ * in their serialized forms.
+ *
+ * The partitions of a store can be scanned in parallel: each call to
+ * {@link #keys(int)} or {@link #entries(int)} opens an independent stream.
+ */
+public class StoreScanner implements Closeable {
+
+    private final AdminClient adminClient;
+    private final String storeName;
+
+
+    public StoreScanner(final String bootstrapUrl, final String storeName) {
+        this(bootstrapUrl, storeName, new ClientConfig());
+    }
+
+    public StoreScanner(
+            final String bootstrapUrl,
+            final String storeName,
+            final ClientConfig clientConfig) {
+        this.adminClient = new AdminClient(
+                Objects.requireNonNull(bootstrapUrl),
+                new AdminClientConfig(),
+                Objects.requireNonNull(clientConfig));
+        this.storeName = Objects.requireNonNull(storeName);
+    }
+
+    public String getStoreName() {
+        return this.storeName;
+    }
+
+    public Cluster getCluster() {
+        return this.adminClient.getAdminClientCluster();
+    }
+
+    /**
+     * @return  the IDs of all of the partitions in the cluster, in ascending
+     *          order.
+     */
+    public List<Integer> getPartitionIds() {
+        final List<Integer> partitionIds = new ArrayList<>();
+        for (final Node node : getCluster().getNodes()) {
+            partitionIds.addAll(node.getPartitionIds());
+        }
+        Collections.sort(partitionIds);
+        return partitionIds;
+    }
+
+    /**
+     * Stream the serialized keys in the given partition.
+     *
+     * @throws IllegalArgumentException if no node is the master for the given
+     *                                  partition.
+     */
+    public Iterator<ByteArray> keys(final int partitionId) {
+        return this.adminClient.bulkFetchOps.fetchKeys(
+                masterNodeOf(partitionId).getId(),
+                this.storeName,
+                Collections.singletonList(partitionId),
+                null,   // no filter
+                true);  // master entries only, not replicas
+    }
+
+    /**
+     * Stream the serialized entries in the given partition.
+     *
+     * @throws IllegalArgumentException if no node is the master for the given
+     *                                  partition.
+     */
+    public Iterator<Pair<ByteArray, Versioned<byte[]>>> entries(final int partitionId) {
+        return this.adminClient.bulkFetchOps.fetchEntries(
+                masterNodeOf(partitionId).getId(),
+                this.storeName,
+                Collections.singletonList(partitionId),
+                null,   // no filter
+                true);  // master entries only, not replicas
+    }
+
+    @Override
+    public void close() {
+        this.adminClient.close();
+    }
+
+    private Node masterNodeOf(final int partitionId) {
+        for (final Node node : getCluster().getNodes()) {
+            if (node.getPartitionIds().contains(partitionId)) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("No node hosts partition " + partitionId);
+    }
+
+}
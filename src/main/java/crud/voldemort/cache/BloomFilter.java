@@ -0,0 +1,203 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import crud.voldemort.admin.StoreScanner;
+
+import voldemort.utils.ByteArray;
+
+
+/**
+ * A Bloom filter over serialized keys. It answers whether a key
+ * <em>might</em> be present in a store: a negative answer is definite,
+ * while a positive answer is wrong with a probability that depends on the
+ * filter's size and the number of keys added to it.
+ *
+ * Additions and queries are thread-safe and lock-free. Keys cannot be
+ * removed.
+ */
+public final class BloomFilter {
+
+    private static final double LN2 = Math.log(2.0);
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+    private final double targetFalsePositiveRate;
+    private final AtomicLong bitsSet = new AtomicLong();
+
+
+    /**
+     * Create an empty filter sized to hold the given number of keys with the
+     * given false-positive rate.
+     *
+     * @throws IllegalArgumentException if {@code expectedKeys} is not
+     *          positive, or {@code falsePositiveRate} is not in (0, 1).
+     */
+    public static BloomFilter create(final long expectedKeys, final double falsePositiveRate) {
+        if (expectedKeys <= 0L) {
+            throw new IllegalArgumentException("expectedKeys " + expectedKeys + " <= 0");
+        }
+        if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new IllegalArgumentException("falsePositiveRate " + falsePositiveRate + " not in (0, 1)");
+        }
+        final long numBits = Math.max(64L, (long) Math.ceil(
+                -expectedKeys * Math.log(falsePositiveRate) / (LN2 * LN2)));
+        final int numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * LN2));
+        return new BloomFilter(numBits, numHashes, falsePositiveRate);
+    }
+
+    /**
+     * Create a filter, sized as by {@link #create(long, double)}, and add
+     * every key in every partition of the store to it. This requires a full
+     * scan of the store, and so is intended to be done offline or at
+     * startup.
+     */
+    public static BloomFilter fromScan(
+            final StoreScanner scanner,
+            final long expectedKeys,
+            final double falsePositiveRate) {
+        final BloomFilter filter = create(expectedKeys, falsePositiveRate);
+        for (final Integer partitionId : scanner.getPartitionIds()) {
+            final Iterator<ByteArray> keys = scanner.keys(partitionId);
+            while (keys.hasNext()) {
+                filter.add(keys.next().get());
+            }
+        }
+        return filter;
+    }
+
+    public void add(final byte[] key) {
+        final long hash1 = hash(key, 0x9747b28c9747b28cL);
+        final long hash2 = hash(key, hash1);
+        for (int i = 0; i < this.numHashes; ++i) {
+            setBit(bitIndex(hash1, hash2, i));
+        }
+    }
+
+    /**
+     * @return  false if the key has definitely not been added to this filter;
+     *          true if it might have been.
+     */
+    public boolean mightContain(final byte[] key) {
+        final long hash1 = hash(key, 0x9747b28c9747b28cL);
+        final long hash2 = hash(key, hash1);
+        for (int i = 0; i < this.numHashes; ++i) {
+            final long bit = bitIndex(hash1, hash2, i);
+            if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getBitCount() {
+        return this.numBits;
+    }
+
+    public int getHashFunctionCount() {
+        return this.numHashes;
+    }
+
+    /**
+     * @return  the number of bytes occupied by this filter's bit set.
+     */
+    public long getMemoryFootprintBytes() {
+        return (long) this.words.length() * (Long.SIZE / Byte.SIZE);
+    }
+
+    /**
+     * @return  the false-positive rate for which this filter was sized.
+     */
+    public double getTargetFalsePositiveRate() {
+        return this.targetFalsePositiveRate;
+    }
+
+    /**
+     * @return  the false-positive rate expected given the fraction of bits
+     *          that are currently set. This will exceed
+     *          {@link #getTargetFalsePositiveRate()} if more keys have been
+     *          added than the filter was sized for.
+     */
+    public double getEstimatedFalsePositiveRate() {
+        final double fractionSet = (double) this.bitsSet.get() / this.numBits;
+        return Math.pow(fractionSet, this.numHashes);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [bits=" + this.numBits
+                + ", hashes=" + this.numHashes
+                + ", targetFalsePositiveRate=" + this.targetFalsePositiveRate
+                + ", estimatedFalsePositiveRate=" + getEstimatedFalsePositiveRate()
+                + "]";
+    }
+
+    private BloomFilter(final long numBits, final int numHashes, final double targetFalsePositiveRate) {
+        final long numWords = (numBits + Long.SIZE - 1) / Long.SIZE;
+        if (numWords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large: " + numBits + " bits");
+        }
+        this.words = new AtomicLongArray((int) numWords);
+        this.numBits = numWords * Long.SIZE;
+        this.numHashes = numHashes;
+        this.targetFalsePositiveRate = targetFalsePositiveRate;
+    }
+
+    private long bitIndex(final long hash1, final long hash2, final int i) {
+        // Kirsch-Mitzenmacher double hashing
+        final long combined = hash1 + i * hash2;
+        return (combined & Long.MAX_VALUE) % this.numBits;
+    }
+
+    private void setBit(final long bit) {
+        final int wordIndex = (int) (bit >>> 6);
+        final long mask = 1L << bit;
+        while (true) {
+            final long oldWord = this.words.get(wordIndex);
+            if ((oldWord & mask) != 0L) {
+                return;
+            }
+            if (this.words.compareAndSet(wordIndex, oldWord, oldWord | mask)) {
+                this.bitsSet.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A 64-bit FNV-1a hash with a final avalanche step, so that the low bits
+     * are well distributed.
+     */
+    private static long hash(final byte[] bytes, final long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (final byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
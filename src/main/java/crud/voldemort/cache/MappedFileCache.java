@@ -0,0 +1,412 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import voldemort.utils.ByteArray;
+
+
+/**
+ * A byte-array-to-byte-array cache persisted in a memory-mapped file, so
+ * that its contents survive a restart of the process.
+ *
+ * The file is an append-only log of records, each protected by a CRC. When
+ * the file is reopened, records are replayed into an in-memory index until
+ * the first record that is truncated or fails its CRC check; anything after
+ * that point is discarded. A crash can therefore lose only the most recent
+ * writes, never corrupt earlier ones. When the file fills, live records are
+ * copied into a new file, which atomically replaces the old one.
+ *
+ * Entries replayed from the file are marked {@linkplain #isRecovered
+ * recovered} until {@link #markValidated(byte[])} is called for them, so
+ * that callers can revalidate them against the store.
+ *
+ * All methods are synchronized.
+ */
+public final class MappedFileCache implements Closeable {
+
+    private static final int MAGIC = 0x43564d43;    // "CVMC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8;
+    /**
+     * Record length, CRC, key length, value length.
+     */
+    private static final int RECORD_HEADER_BYTES = 16;
+    private static final int TOMBSTONE = -1;
+
+    private final File file;
+    private final int maxFileBytes;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private final Map<ByteArray, IndexEntry> index = new HashMap<>();
+    private long compactions = 0L;
+
+
+    /**
+     * Open the given file, creating it if necessary, and recover its
+     * contents.
+     *
+     * @param maxFileBytes  The size to which the file will be mapped. When
+     *                      it fills, it will be compacted.
+     */
+    public static MappedFileCache open(final File file, final int maxFileBytes) throws IOException {
+        if (maxFileBytes <= FILE_HEADER_BYTES + RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("maxFileBytes " + maxFileBytes + " too small");
+        }
+        final MappedFileCache cache = new MappedFileCache(file, maxFileBytes);
+        cache.map(file);
+        cache.recover();
+        return cache;
+    }
+
+    /**
+     * @return  the value cached for the given key, or {@code null} if there
+     *          is none.
+     */
+    public synchronized byte[] get(final byte[] key) {
+        checkOpen();
+        final IndexEntry entry = this.index.get(new ByteArray(key));
+        if (entry == null) {
+            return null;
+        }
+        final int offset = entry.offset;
+        final int keyLength = this.buffer.getInt(offset + 8);
+        final byte[] value = new byte[this.buffer.getInt(offset + 12)];
+        this.buffer.position(offset + RECORD_HEADER_BYTES + keyLength);
+        this.buffer.get(value);
+        return value;
+    }
+
+    /**
+     * @return  true if the entry for the given key was recovered from the
+     *          file when it was opened, and has not been
+     *          {@linkplain #markValidated validated} or replaced since.
+     */
+    public synchronized boolean isRecovered(final byte[] key) {
+        final IndexEntry entry = this.index.get(new ByteArray(key));
+        return entry != null && entry.recovered;
+    }
+
+    public synchronized void markValidated(final byte[] key) {
+        final IndexEntry entry = this.index.get(new ByteArray(key));
+        if (entry != null) {
+            entry.recovered = false;
+        }
+    }
+
+    /**
+     * Append the given entry to the file, compacting the file first if
+     * necessary.
+     *
+     * @return  false if the entry could not be stored, because the file is
+     *          full of live entries.
+     */
+    public synchronized boolean put(final byte[] key, final byte[] value) throws IOException {
+        checkOpen();
+        final int length = RECORD_HEADER_BYTES + key.length + value.length;
+        // If the append fails, don't leave the old value in the cache:
+        final boolean replacing = this.index.remove(new ByteArray(key)) != null;
+        if (!ensureRoom(length)) {
+            if (replacing) {
+                appendTombstone(key);
+            }
+            return false;
+        }
+        final int offset = append(key, value, value.length);
+        this.index.put(new ByteArray(key), new IndexEntry(offset, false));
+        return true;
+    }
+
+    /**
+     * Like {@link #put(byte[], byte[])}, but only if the value currently
+     * cached for the given key is equal to the expected one, or there is no
+     * value and the expected one is {@code null}. This allows a value read
+     * from the store to be cached without replacing one that a concurrent
+     * write has cached since.
+     *
+     * @return  true if the entry was stored.
+     */
+    public synchronized boolean replace(final byte[] key, final byte[] expected, final byte[] value)
+            throws IOException {
+        if (!Arrays.equals(get(key), expected)) {
+            return false;
+        }
+        return put(key, value);
+    }
+
+    public synchronized void remove(final byte[] key) throws IOException {
+        checkOpen();
+        if (this.index.remove(new ByteArray(key)) != null) {
+            appendTombstone(key);
+        }
+    }
+
+    /**
+     * Remove the entry for the given key only if its value is equal to the
+     * expected one.
+     *
+     * @return  true if the entry was removed.
+     */
+    public synchronized boolean remove(final byte[] key, final byte[] expected) throws IOException {
+        final byte[] current = get(key);
+        if (current == null || !Arrays.equals(current, expected)) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    /**
+     * Rewrite the file to contain only live entries. If the new file can't
+     * replace the old one, the cache continues to use the old one.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        final File tempFile = new File(this.file.getPath() + ".compact");
+        final Map<ByteArray, IndexEntry> newIndex = new HashMap<>();
+        final int newWritePosition;
+        try (final RandomAccessFile tempRaf = new RandomAccessFile(tempFile, "rw")) {
+            tempRaf.setLength(this.maxFileBytes);
+            final MappedByteBuffer tempBuffer = tempRaf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0L, this.maxFileBytes);
+            tempBuffer.putInt(0, MAGIC);
+            tempBuffer.putInt(4, FORMAT_VERSION);
+            int tempPosition = FILE_HEADER_BYTES;
+            for (final Map.Entry<ByteArray, IndexEntry> entry : this.index.entrySet()) {
+                final int offset = entry.getValue().offset;
+                final int length = this.buffer.getInt(offset);
+                final byte[] record = new byte[length];
+                this.buffer.position(offset);
+                this.buffer.get(record);
+                tempBuffer.position(tempPosition);
+                tempBuffer.put(record);
+                newIndex.put(entry.getKey(), new IndexEntry(tempPosition, entry.getValue().recovered));
+                tempPosition += length;
+            }
+            tempBuffer.force();
+            newWritePosition = tempPosition;
+        }
+
+        this.buffer.force();
+        this.raf.close();
+        try {
+            Files.move(tempFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException | RuntimeException ex) {
+            // Carry on with the old file, and its index, unchanged:
+            try {
+                map(this.file);
+            } catch (final IOException | RuntimeException reopenEx) {
+                this.raf = null;
+                this.buffer = null;
+                ex.addSuppressed(reopenEx);
+            }
+            Files.deleteIfExists(tempFile.toPath());
+            throw ex;
+        }
+        map(this.file);
+        this.writePosition = newWritePosition;
+        this.index.clear();
+        this.index.putAll(newIndex);
+        ++this.compactions;
+    }
+
+    /**
+     * Force all writes to the underlying storage device.
+     */
+    public synchronized void sync() {
+        checkOpen();
+        this.buffer.force();
+    }
+
+    public synchronized int getEntryCount() {
+        return this.index.size();
+    }
+
+    /**
+     * @return  the number of bytes of the file that have been written,
+     *          including dead records that will be removed by the next
+     *          compaction.
+     */
+    public synchronized int getUsedBytes() {
+        return this.writePosition;
+    }
+
+    public int getMaxFileBytes() {
+        return this.maxFileBytes;
+    }
+
+    public synchronized long getCompactionCount() {
+        return this.compactions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.raf != null) {
+            this.buffer.force();
+            this.raf.close();
+            this.raf = null;
+            this.buffer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [file=" + this.file + "]";
+    }
+
+    private MappedFileCache(final File file, final int maxFileBytes) {
+        this.file = Objects.requireNonNull(file);
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    private void map(final File mapFile) throws IOException {
+        this.raf = new RandomAccessFile(mapFile, "rw");
+        if (this.raf.length() != this.maxFileBytes) {
+            /* A changed maximum size may truncate records, but recovery will
+             * stop at the first of them.
+             */
+            this.raf.setLength(this.maxFileBytes);
+        }
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, this.maxFileBytes);
+    }
+
+    private void recover() {
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != FORMAT_VERSION) {
+            // New or unrecognized file: start over.
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, FORMAT_VERSION);
+            this.writePosition = FILE_HEADER_BYTES;
+            zeroFrom(this.writePosition);
+            return;
+        }
+
+        int position = FILE_HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= this.maxFileBytes) {
+            final int length = this.buffer.getInt(position);
+            if (length < RECORD_HEADER_BYTES || length > this.maxFileBytes - position) {
+                break;
+            }
+            if (this.buffer.getInt(position + 4) != crcOf(position, length)) {
+                break;
+            }
+            final int keyLength = this.buffer.getInt(position + 8);
+            final int valueLength = this.buffer.getInt(position + 12);
+            if (keyLength < 0 || RECORD_HEADER_BYTES + keyLength + Math.max(valueLength, 0) != length) {
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            this.buffer.position(position + RECORD_HEADER_BYTES);
+            this.buffer.get(key);
+            if (valueLength == TOMBSTONE) {
+                this.index.remove(new ByteArray(key));
+            } else {
+                this.index.put(new ByteArray(key), new IndexEntry(position, true));
+            }
+            position += length;
+        }
+        this.writePosition = position;
+        /* Records after a torn one may have been written before the crash;
+         * erase them, so that they can never be replayed later.
+         */
+        zeroFrom(this.writePosition);
+    }
+
+    private boolean ensureRoom(final int length) throws IOException {
+        if (length > this.maxFileBytes - FILE_HEADER_BYTES) {
+            return false;
+        }
+        if (this.writePosition + length > this.maxFileBytes) {
+            compact();
+        }
+        return this.writePosition + length <= this.maxFileBytes;
+    }
+
+    private void appendTombstone(final byte[] key) throws IOException {
+        if (ensureRoom(RECORD_HEADER_BYTES + key.length)) {
+            append(key, new byte[0], TOMBSTONE);
+        }
+        // Else: the compaction inside ensureRoom() already dropped the key.
+    }
+
+    private int append(final byte[] key, final byte[] value, final int valueLength) {
+        final int offset = this.writePosition;
+        final int length = RECORD_HEADER_BYTES + key.length + value.length;
+        this.buffer.putInt(offset, length);
+        this.buffer.putInt(offset + 8, key.length);
+        this.buffer.putInt(offset + 12, valueLength);
+        this.buffer.position(offset + RECORD_HEADER_BYTES);
+        this.buffer.put(key);
+        this.buffer.put(value);
+        // Write the CRC last, so that a partially written record fails its check.
+        this.buffer.putInt(offset + 4, crcOf(offset, length));
+        this.writePosition += length;
+        return offset;
+    }
+
+    /**
+     * @return  the CRC of the record at the given offset, excluding its
+     *          length and CRC fields.
+     */
+    private int crcOf(final int offset, final int length) {
+        final byte[] covered = new byte[length - 8];
+        this.buffer.position(offset + 8);
+        this.buffer.get(covered);
+        final CRC32 crc = new CRC32();
+        crc.update(covered, 0, covered.length);
+        return (int) crc.getValue();
+    }
+
+    private void zeroFrom(final int offset) {
+        final byte[] zeroes = new byte[Math.min(64 * 1024, this.maxFileBytes)];
+        this.buffer.position(offset);
+        while (this.buffer.hasRemaining()) {
+            this.buffer.put(zeroes, 0, Math.min(zeroes.length, this.buffer.remaining()));
+        }
+    }
+
+    private void checkOpen() {
+        if (this.raf == null) {
+            throw new IllegalStateException(this + " is closed");
+        }
+    }
+
+
+    private static final class IndexEntry {
+        public final int offset;
+        public boolean recovered;
+
+        public IndexEntry(final int offset, final boolean recovered) {
+            this.offset = offset;
+            this.recovered = recovered;
+        }
+    }
+
+}
@@ -0,0 +1,517 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * A byte-array-to-byte-array cache that keeps its entries in direct memory,
+ * outside of the Java heap, so that caching large values adds neither to
+ * the old generation nor to garbage-collection pauses.
+ *
+ * The cache is divided into independently locked segments. Each segment is
+ * a single direct slab, used as a circular log: new entries are appended at
+ * the head, and space is reclaimed from the tail. Eviction follows the CLOCK
+ * algorithm: an entry that has been read since it was written gets a second
+ * chance, and is moved to the head rather than evicted. Each segment is
+ * indexed by an open-addressing table of primitive {@code int}s, so that the
+ * only per-entry heap overhead is two array slots.
+ *
+ * The total size of all slabs is fixed at construction and never exceeded.
+ */
+public final class OffHeapCache implements OffHeapCacheMXBean {
+
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    private final Segment[] segments;
+    private final long capacityBytes;
+    private final int segmentShift;
+
+
+    /**
+     * @param capacityBytes The maximum direct memory to use, in total. It
+     *                      will be divided evenly among the segments.
+     * @param segmentCount  The number of independently locked segments;
+     *                      rounded up to a power of two.
+     */
+    public OffHeapCache(final long capacityBytes, final int segmentCount) {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount " + segmentCount + " <= 0");
+        }
+        final int actualSegmentCount = Integer.highestOneBit(segmentCount) == segmentCount
+                ? segmentCount
+                : Integer.highestOneBit(segmentCount) << 1;
+        final long bytesPerSegment = capacityBytes / actualSegmentCount;
+        if (bytesPerSegment <= Segment.HEADER_BYTES || bytesPerSegment > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    capacityBytes + " bytes can't be divided among " + actualSegmentCount + " segments");
+        }
+        this.segments = new Segment[actualSegmentCount];
+        for (int i = 0; i < this.segments.length; ++i) {
+            this.segments[i] = new Segment((int) bytesPerSegment);
+        }
+        this.capacityBytes = bytesPerSegment * actualSegmentCount;
+        this.segmentShift = Integer.SIZE - Integer.numberOfTrailingZeros(actualSegmentCount);
+    }
+
+    public OffHeapCache(final long capacityBytes) {
+        this(capacityBytes, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @return  a heap copy of the value cached for the given key, or
+     *          {@code null} if there is none.
+     */
+    public byte[] get(final byte[] key) {
+        final int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Cache the given value, replacing any value already cached for the
+     * same key, and evicting other entries as necessary.
+     *
+     * @return  false if the entry is too large to fit in a segment, and so
+     *          was not cached.
+     */
+    public boolean put(final byte[] key, final byte[] value) {
+        final int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Cache the given value only if no value is already cached for the
+     * same key, evicting other entries as necessary. This suits filling the
+     * cache after a miss, which must not replace a newer value cached by a
+     * concurrent write.
+     *
+     * @return  true if the entry was cached.
+     */
+    public boolean putIfAbsent(final byte[] key, final byte[] value) {
+        final int hash = hash(key);
+        return segmentFor(hash).putIfAbsent(key, hash, value);
+    }
+
+    public void remove(final byte[] key) {
+        final int hash = hash(key);
+        segmentFor(hash).remove(key, hash);
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public long getCapacityBytes() {
+        return this.capacityBytes;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        long total = 0L;
+        for (final Segment segment : this.segments) {
+            total += segment.usedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEntryCount() {
+        long total = 0L;
+        for (final Segment segment : this.segments) {
+            total += segment.entryCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getHitCount() {
+        long total = 0L;
+        for (final Segment segment : this.segments) {
+            total += segment.hitCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMissCount() {
+        long total = 0L;
+        for (final Segment segment : this.segments) {
+            total += segment.missCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long total = 0L;
+        for (final Segment segment : this.segments) {
+            total += segment.evictionCount();
+        }
+        return total;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return this.segments.length;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [capacityBytes=" + this.capacityBytes
+                + ", usedBytes=" + getUsedBytes()
+                + ", entryCount=" + getEntryCount()
+                + ", segmentCount=" + this.segments.length
+                + "]";
+    }
+
+    private Segment segmentFor(final int hash) {
+        // Use the high bits: the low bits select a slot within the segment.
+        return (this.segmentShift == Integer.SIZE)
+                ? this.segments[0]
+                : this.segments[hash >>> this.segmentShift];
+    }
+
+    private static int hash(final byte[] key) {
+        int hash = Arrays.hashCode(key);
+        // Murmur3 finalizer, so that both high and low bits are usable.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+
+    /**
+     * A circular log of records, each laid out as follows:
+     * <ol>
+     *  <li>record length, including this header: {@code int}</li>
+     *  <li>key hash: {@code int}</li>
+     *  <li>key length: {@code int}</li>
+     *  <li>flags: {@code byte}</li>
+     *  <li>key bytes</li>
+     *  <li>value bytes</li>
+     * </ol>
+     *
+     * Records between the tail and the head are contiguous, except that when
+     * a record doesn't fit between the head and the end of the slab, the
+     * head wraps to the start, and the records run from the tail to
+     * {@link #wrapEnd}, and then from the start of the slab to the head.
+     *
+     * All methods are synchronized on the segment.
+     */
+    private static final class Segment {
+        public static final int HEADER_BYTES = 13;
+
+        private static final int LENGTH_OFFSET = 0;
+        private static final int HASH_OFFSET = 4;
+        private static final int KEY_LENGTH_OFFSET = 8;
+        private static final int FLAGS_OFFSET = 12;
+
+        private static final byte FLAG_LIVE = 0x1;
+        private static final byte FLAG_REFERENCED = 0x2;
+
+        private static final int EMPTY_SLOT = -1;
+        private static final int DELETED_SLOT = -2;
+        private static final int INITIAL_SLOTS = 64;
+
+        private final ByteBuffer slab;
+        private final int capacity;
+
+        private int head = 0;
+        private int tail = 0;
+        private int wrapEnd = 0;
+        private boolean wrapped = false;
+
+        private int[] slotHashes;
+        private int[] slotOffsets;
+        /**
+         * The number of slots that are not {@link #EMPTY_SLOT}: live or
+         * deleted.
+         */
+        private int usedSlots = 0;
+
+        private long liveCount = 0L;
+        private long liveBytes = 0L;
+        private long hits = 0L;
+        private long misses = 0L;
+        private long evictions = 0L;
+
+        public Segment(final int capacity) {
+            this.slab = ByteBuffer.allocateDirect(capacity);
+            this.capacity = capacity;
+            resetIndex(INITIAL_SLOTS);
+        }
+
+        public synchronized byte[] get(final byte[] key, final int hash) {
+            final int slot = findSlot(key, hash);
+            if (slot < 0) {
+                ++this.misses;
+                return null;
+            }
+            ++this.hits;
+            final int offset = this.slotOffsets[slot];
+            this.slab.put(offset + FLAGS_OFFSET, (byte) (this.slab.get(offset + FLAGS_OFFSET) | FLAG_REFERENCED));
+            final int valueOffset = offset + HEADER_BYTES + key.length;
+            final byte[] value = new byte[this.slab.getInt(offset + LENGTH_OFFSET) - HEADER_BYTES - key.length];
+            this.slab.position(valueOffset);
+            this.slab.get(value);
+            return value;
+        }
+
+        public synchronized boolean put(final byte[] key, final int hash, final byte[] value) {
+            removeLocked(key, hash);
+            final long recordLength = (long) HEADER_BYTES + key.length + value.length;
+            if (recordLength > this.capacity) {
+                return false;
+            }
+            final int offset = allocate((int) recordLength);
+            this.slab.putInt(offset + LENGTH_OFFSET, (int) recordLength);
+            this.slab.putInt(offset + HASH_OFFSET, hash);
+            this.slab.putInt(offset + KEY_LENGTH_OFFSET, key.length);
+            this.slab.put(offset + FLAGS_OFFSET, FLAG_LIVE);
+            this.slab.position(offset + HEADER_BYTES);
+            this.slab.put(key);
+            this.slab.put(value);
+            insertSlot(hash, offset);
+            ++this.liveCount;
+            this.liveBytes += recordLength;
+            return true;
+        }
+
+        public synchronized boolean putIfAbsent(final byte[] key, final int hash, final byte[] value) {
+            if (findSlot(key, hash) >= 0) {
+                return false;
+            }
+            return put(key, hash, value);
+        }
+
+        public synchronized void remove(final byte[] key, final int hash) {
+            removeLocked(key, hash);
+        }
+
+        public synchronized void clear() {
+            this.head = 0;
+            this.tail = 0;
+            this.wrapEnd = 0;
+            this.wrapped = false;
+            this.liveCount = 0L;
+            this.liveBytes = 0L;
+            resetIndex(INITIAL_SLOTS);
+        }
+
+        public synchronized long usedBytes() {
+            return this.liveBytes;
+        }
+
+        public synchronized long entryCount() {
+            return this.liveCount;
+        }
+
+        public synchronized long hitCount() {
+            return this.hits;
+        }
+
+        public synchronized long missCount() {
+            return this.misses;
+        }
+
+        public synchronized long evictionCount() {
+            return this.evictions;
+        }
+
+        private void removeLocked(final byte[] key, final int hash) {
+            final int slot = findSlot(key, hash);
+            if (slot >= 0) {
+                final int offset = this.slotOffsets[slot];
+                // The record stays in the log until the tail reaches it.
+                this.slab.put(offset + FLAGS_OFFSET, (byte) 0);
+                this.slotOffsets[slot] = DELETED_SLOT;
+                --this.liveCount;
+                this.liveBytes -= this.slab.getInt(offset + LENGTH_OFFSET);
+            }
+        }
+
+        /**
+         * @return  the offset of a region of the given length, from which
+         *          all records have been evicted.
+         */
+        private int allocate(final int length) {
+            while (true) {
+                if (!this.wrapped) {
+                    if (this.tail == this.head) {
+                        // The log is empty.
+                        this.head = 0;
+                        this.tail = 0;
+                    }
+                    if (this.capacity - this.head >= length) {
+                        return take(length);
+                    }
+                    this.wrapped = true;
+                    this.wrapEnd = this.head;
+                    this.head = 0;
+                } else {
+                    if (this.tail - this.head >= length) {
+                        return take(length);
+                    }
+                    evictOldest();
+                }
+            }
+        }
+
+        private int take(final int length) {
+            final int offset = this.head;
+            this.head += length;
+            return offset;
+        }
+
+        /**
+         * Reclaim the record at the tail. If it is live, and has been read
+         * since it was written or last given a second chance, move it to the
+         * head instead of evicting it.
+         */
+        private void evictOldest() {
+            assert this.wrapped;
+            final int offset = this.tail;
+            final int length = this.slab.getInt(offset + LENGTH_OFFSET);
+            final byte flags = this.slab.get(offset + FLAGS_OFFSET);
+            this.tail += length;
+            final boolean tailWrapped = this.tail == this.wrapEnd;
+            if (tailWrapped) {
+                this.tail = 0;
+                this.wrapped = false;
+            }
+
+            if ((flags & FLAG_LIVE) == 0) {
+                return;
+            }
+            final int hash = this.slab.getInt(offset + HASH_OFFSET);
+            final int slot = findSlotOf(hash, offset);
+            assert slot >= 0;
+            if ((flags & FLAG_REFERENCED) != 0 && !tailWrapped) {
+                // Second chance: the space just freed is at least as long as the record.
+                final byte[] record = new byte[length];
+                this.slab.position(offset);
+                this.slab.get(record);
+                record[FLAGS_OFFSET] = FLAG_LIVE;
+                final int newOffset = take(length);
+                this.slab.position(newOffset);
+                this.slab.put(record);
+                this.slotOffsets[slot] = newOffset;
+            } else {
+                this.slotOffsets[slot] = DELETED_SLOT;
+                --this.liveCount;
+                this.liveBytes -= length;
+                ++this.evictions;
+            }
+        }
+
+        private int findSlot(final byte[] key, final int hash) {
+            final int mask = this.slotOffsets.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                final int offset = this.slotOffsets[i];
+                if (offset == EMPTY_SLOT) {
+                    return -1;
+                }
+                if (offset >= 0 && this.slotHashes[i] == hash && keyEquals(offset, key)) {
+                    return i;
+                }
+            }
+        }
+
+        private int findSlotOf(final int hash, final int recordOffset) {
+            final int mask = this.slotOffsets.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                final int offset = this.slotOffsets[i];
+                if (offset == EMPTY_SLOT) {
+                    return -1;
+                }
+                if (offset == recordOffset) {
+                    return i;
+                }
+            }
+        }
+
+        private void insertSlot(final int hash, final int offset) {
+            if ((this.usedSlots + 1) * 4L > this.slotOffsets.length * 3L) {
+                rehash();
+            }
+            final int mask = this.slotOffsets.length - 1;
+            int i = hash & mask;
+            while (this.slotOffsets[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+            if (this.slotOffsets[i] == EMPTY_SLOT) {
+                ++this.usedSlots;
+            }
+            this.slotHashes[i] = hash;
+            this.slotOffsets[i] = offset;
+        }
+
+        /**
+         * Rebuild the index without deleted slots, growing it if more than
+         * half of it is live.
+         */
+        private void rehash() {
+            final int[] oldHashes = this.slotHashes;
+            final int[] oldOffsets = this.slotOffsets;
+            final int newSize = (this.liveCount * 2L >= oldOffsets.length)
+                    ? oldOffsets.length * 2
+                    : oldOffsets.length;
+            resetIndex(newSize);
+            final int mask = newSize - 1;
+            for (int i = 0; i < oldOffsets.length; ++i) {
+                if (oldOffsets[i] >= 0) {
+                    int j = oldHashes[i] & mask;
+                    while (this.slotOffsets[j] != EMPTY_SLOT) {
+                        j = (j + 1) & mask;
+                    }
+                    this.slotHashes[j] = oldHashes[i];
+                    this.slotOffsets[j] = oldOffsets[i];
+                    ++this.usedSlots;
+                }
+            }
+        }
+
+        private void resetIndex(final int size) {
+            this.slotHashes = new int[size];
+            this.slotOffsets = new int[size];
+            Arrays.fill(this.slotOffsets, EMPTY_SLOT);
+            this.usedSlots = 0;
+        }
+
+        private boolean keyEquals(final int offset, final byte[] key) {
+            if (this.slab.getInt(offset + KEY_LENGTH_OFFSET) != key.length) {
+                return false;
+            }
+            final int keyOffset = offset + HEADER_BYTES;
+            for (int i = 0; i < key.length; ++i) {
+                if (this.slab.get(keyOffset + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+
+/**
+ * The JMX view of an {@link OffHeapCache}.
+ */
+public interface OffHeapCacheMXBean {
+
+    /**
+     * @return  the hard limit on the direct memory used for entries.
+     */
+    long getCapacityBytes();
+
+    /**
+     * @return  the bytes occupied by live entries, including their headers
+     *          and keys.
+     */
+    long getUsedBytes();
+
+    long getEntryCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    int getSegmentCount();
+
+    void clear();
+
+}
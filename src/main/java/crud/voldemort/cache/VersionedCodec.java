@@ -0,0 +1,81 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import voldemort.serialization.Serializer;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Converts {@link Versioned} values to and from a compact byte
+ * representation, for storage outside of the Java heap: a four-byte
+ * vector-clock length, the serialized {@link VectorClock}, and then the
+ * serialized value.
+ */
+public final class VersionedCodec<V> {
+
+    private final Serializer<V> valueSerializer;
+
+
+    public VersionedCodec(final Serializer<V> valueSerializer) {
+        this.valueSerializer = Objects.requireNonNull(valueSerializer);
+    }
+
+    /**
+     * @return  the encoded form of the given value, or {@code null} if its
+     *          version is not a {@link VectorClock} and so can't be encoded.
+     */
+    public byte[] encode(final Versioned<V> versioned) {
+        final Version version = versioned.getVersion();
+        if (!(version instanceof VectorClock)) {
+            return null;
+        }
+        return encode(((VectorClock) version).toBytes(), this.valueSerializer.toBytes(versioned.getValue()));
+    }
+
+    public Versioned<V> decode(final byte[] encoded) {
+        final ByteBuffer buf = ByteBuffer.wrap(encoded);
+        final byte[] clock = new byte[buf.getInt()];
+        buf.get(clock);
+        final byte[] value = new byte[buf.remaining()];
+        buf.get(value);
+        return new Versioned<>(this.valueSerializer.toObject(value), new VectorClock(clock));
+    }
+
+    /**
+     * @return  the {@link VectorClock} in the encoded value, without
+     *          deserializing the value itself.
+     */
+    public static VectorClock decodeVersion(final byte[] encoded) {
+        final ByteBuffer buf = ByteBuffer.wrap(encoded);
+        final byte[] clock = new byte[buf.getInt()];
+        buf.get(clock);
+        return new VectorClock(clock);
+    }
+
+    public static byte[] encode(final byte[] clock, final byte[] value) {
+        final ByteBuffer buf = ByteBuffer.allocate(4 + clock.length + value.length);
+        buf.putInt(clock.length);
+        buf.put(clock);
+        buf.put(value);
+        return buf.array();
+    }
+
+}
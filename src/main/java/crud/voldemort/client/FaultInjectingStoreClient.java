@@ -0,0 +1,420 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.config.SmartOpCode;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.store.InsufficientOperationalNodesException;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that misbehaves in controlled ways, for testing
+ * timeouts, hedging, circuit breakers, and the like without a real
+ * cluster. For each of {@link SmartOpCode#GET_OP_CODE},
+ * {@link SmartOpCode#GET_ALL_OP_CODE}, {@link SmartOpCode#PUT_OP_CODE},
+ * and {@link SmartOpCode#DELETE_OP_CODE}, it can:
+ * <ul>
+ *  <li>delay each call according to a {@link LatencyDistribution},</li>
+ *  <li>fail some fraction of calls with an
+ *      {@link InsufficientOperationalNodesException}, as the real client
+ *      does when too few replicas respond,</li>
+ *  <li>reject some fraction of writes with an
+ *      {@link ObsoleteVersionException}, as though another client had
+ *      written first, and</li>
+ *  <li>drop some fraction of the keys from the results of
+ *      {@code getAll()}, as though their replicas had not responded.</li>
+ * </ul>
+ * Injected failures occur before the call is forwarded, so they have no
+ * effect on the underlying store.
+ *
+ * The faults injected into each call are drawn from a {@link Random}
+ * derived from the configured seed, the operation, the key (or, for
+ * {@code getAll()}, the keys), and the number of earlier calls of the same
+ * operation on the same key. Each call therefore sees the same faults on
+ * every run, whichever thread makes it, as long as each key's calls of
+ * each operation are made in the same order. Keys are identified by their
+ * contents if they are arrays, and otherwise by {@link Object#hashCode()}
+ * and {@link Object#equals(Object)}, which must be stable from run to run.
+ * The per-key call counts are retained for the life of the client.
+ */
+public class FaultInjectingStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+
+    private final Map<SmartOpCode, Faults> faults;
+    private final double partialGetAllProbability;
+    private final long seed;
+    /**
+     * The number of calls so far, per operation and key.
+     */
+    private final ConcurrentMap<List<Object>, AtomicLong> callCounts = new ConcurrentHashMap<>();
+
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong injectedObsoleteVersions = new AtomicLong();
+    private final AtomicLong droppedKeys = new AtomicLong();
+
+
+    public static <K, V> Builder<K, V> newBuilder(final StoreClient<K, V> delegate) {
+        return new Builder<>(delegate);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        inject(SmartOpCode.GET_OP_CODE, randomFor(SmartOpCode.GET_OP_CODE, key));
+        return super.get(key);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Object transforms) {
+        inject(SmartOpCode.GET_OP_CODE, randomFor(SmartOpCode.GET_OP_CODE, key));
+        return super.get(key, transforms);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        final Random random = randomFor(SmartOpCode.GET_ALL_OP_CODE, contentsOf(keys));
+        inject(SmartOpCode.GET_ALL_OP_CODE, random);
+        return dropSome(super.getAll(keys), random);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys, final Map<K, Object> transforms) {
+        final Random random = randomFor(SmartOpCode.GET_ALL_OP_CODE, contentsOf(keys));
+        inject(SmartOpCode.GET_ALL_OP_CODE, random);
+        return dropSome(super.getAll(keys, transforms), random);
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        injectWrite(key);
+        return super.put(key, value);
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        injectWrite(key);
+        return super.put(key, value, transforms);
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        injectWrite(key);
+        return super.put(key, versioned);
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        try {
+            put(key, versioned);
+            return true;
+        } catch (final ObsoleteVersionException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        inject(SmartOpCode.DELETE_OP_CODE, randomFor(SmartOpCode.DELETE_OP_CODE, key));
+        return super.delete(key);
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        inject(SmartOpCode.DELETE_OP_CODE, randomFor(SmartOpCode.DELETE_OP_CODE, key));
+        return super.delete(key, version);
+    }
+
+    public long getInjectedErrorCount() {
+        return this.injectedErrors.get();
+    }
+
+    public long getInjectedObsoleteVersionCount() {
+        return this.injectedObsoleteVersions.get();
+    }
+
+    /**
+     * @return  the number of keys omitted from the results of
+     *          {@code getAll()}.
+     */
+    public long getDroppedKeyCount() {
+        return this.droppedKeys.get();
+    }
+
+    /*package*/ static double requireProbability(final double probability) {
+        if (probability < 0.0 || probability > 1.0) {
+            throw new IllegalArgumentException("probability " + probability + " not in [0, 1]");
+        }
+        return probability;
+    }
+
+    private FaultInjectingStoreClient(final Builder<K, V> builder) {
+        super(builder.delegate);
+        this.faults = new EnumMap<>(builder.faults);
+        this.partialGetAllProbability = builder.partialGetAllProbability;
+        this.seed = builder.seed;
+    }
+
+    private void injectWrite(final K key) {
+        final Random random = randomFor(SmartOpCode.PUT_OP_CODE, key);
+        final Faults opFaults = inject(SmartOpCode.PUT_OP_CODE, random);
+        if (opFaults != null && random.nextDouble() < opFaults.obsoleteVersionProbability) {
+            this.injectedObsoleteVersions.incrementAndGet();
+            throw new ObsoleteVersionException("Injected obsolete version");
+        }
+    }
+
+    /**
+     * Delay, and then possibly fail, according to the faults configured for
+     * the given operation.
+     *
+     * @return  the faults for the operation, or {@code null} if there are
+     *          none.
+     */
+    private Faults inject(final SmartOpCode op, final Random random) {
+        final Faults opFaults = this.faults.get(op);
+        if (opFaults == null) {
+            return null;
+        }
+        final long delayNanos = opFaults.latency.nextDelayNanos(random);
+        if (delayNanos > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (final InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                throw new VoldemortException("Interrupted during injected latency", ix);
+            }
+        }
+        if (random.nextDouble() < opFaults.errorProbability) {
+            this.injectedErrors.incrementAndGet();
+            throw new InsufficientOperationalNodesException("Injected failure of " + op);
+        }
+        return opFaults;
+    }
+
+    /**
+     * Omit keys from the given results independently of the order in which
+     * the map returns them.
+     */
+    private Map<K, Versioned<V>> dropSome(final Map<K, Versioned<V>> results, final Random random) {
+        if (this.partialGetAllProbability <= 0.0 || results.isEmpty()) {
+            return results;
+        }
+        final long callSeed = random.nextLong();
+        final Map<K, Versioned<V>> partial = new LinkedHashMap<>(results);
+        for (final K key : results.keySet()) {
+            final Random keyRandom = new Random(mix(callSeed ^ contentOf(key).hashCode()));
+            if (keyRandom.nextDouble() < this.partialGetAllProbability) {
+                partial.remove(key);
+                this.droppedKeys.incrementAndGet();
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * @return  a {@link Random} for the next call of the given operation on
+     *          the given key, or keys, seeded by the client's seed, the
+     *          operation, the key, and the number of earlier such calls.
+     */
+    private Random randomFor(final SmartOpCode op, final Object key) {
+        final Object content = contentOf(key);
+        final List<Object> callKey = Arrays.<Object>asList(op, content);
+        AtomicLong count = this.callCounts.get(callKey);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = this.callCounts.putIfAbsent(callKey, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        final long sequence = count.getAndIncrement();
+        return new Random(mix(mix(mix(this.seed ^ op.ordinal()) ^ content.hashCode()) ^ sequence));
+    }
+
+    private static List<Object> contentsOf(final Iterable<?> keys) {
+        final List<Object> contents = new ArrayList<>();
+        for (final Object key : keys) {
+            contents.add(contentOf(key));
+        }
+        return contents;
+    }
+
+    /**
+     * @return  an object equal to, and hashing like, any other returned for
+     *          a key with the same contents.
+     */
+    private static Object contentOf(final Object key) {
+        if (key instanceof byte[]) {
+            return new ByteArray((byte[]) key);
+        } else if (key instanceof Object[]) {
+            return Arrays.asList((Object[]) key);
+        } else {
+            return key;
+        }
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3, so that similar inputs give
+     * unrelated seeds.
+     */
+    private static long mix(final long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+
+    private static final class Faults {
+        public static final Faults NONE = new Faults(LatencyDistribution.none(), 0.0, 0.0);
+
+        public final LatencyDistribution latency;
+        public final double errorProbability;
+        public final double obsoleteVersionProbability;
+
+        public Faults(
+                final LatencyDistribution latency,
+                final double errorProbability,
+                final double obsoleteVersionProbability) {
+            this.latency = latency;
+            this.errorProbability = errorProbability;
+            this.obsoleteVersionProbability = obsoleteVersionProbability;
+        }
+    }
+
+
+    public static final class Builder<K, V> {
+        private final StoreClient<K, V> delegate;
+        private final Map<SmartOpCode, Faults> faults = new EnumMap<>(SmartOpCode.class);
+        private double partialGetAllProbability = 0.0;
+        private long seed = 0L;
+
+        private Builder(final StoreClient<K, V> delegate) {
+            this.delegate = Objects.requireNonNull(delegate);
+        }
+
+        /**
+         * Delay each call of the given operation by an amount drawn from
+         * the given distribution.
+         */
+        public Builder<K, V> setLatency(final SmartOpCode op, final LatencyDistribution latency) {
+            final Faults old = faultsOf(op);
+            this.faults.put(op, new Faults(
+                    Objects.requireNonNull(latency),
+                    old.errorProbability,
+                    old.obsoleteVersionProbability));
+            return this;
+        }
+
+        /**
+         * Fail the given fraction of calls of the given operation with an
+         * {@link InsufficientOperationalNodesException}, after any delay.
+         */
+        public Builder<K, V> setErrorProbability(final SmartOpCode op, final double probability) {
+            final Faults old = faultsOf(op);
+            this.faults.put(op, new Faults(
+                    old.latency,
+                    requireProbability(probability),
+                    old.obsoleteVersionProbability));
+            return this;
+        }
+
+        /**
+         * Reject the given fraction of writes with an
+         * {@link ObsoleteVersionException}, or, from
+         * {@link StoreClient#putIfNotObsolete(Object, Versioned)}, a result
+         * of {@code false}.
+         */
+        public Builder<K, V> setObsoleteVersionProbability(final double probability) {
+            final Faults old = faultsOf(SmartOpCode.PUT_OP_CODE);
+            this.faults.put(SmartOpCode.PUT_OP_CODE, new Faults(
+                    old.latency,
+                    old.errorProbability,
+                    requireProbability(probability)));
+            return this;
+        }
+
+        /**
+         * Omit each key from the results of {@code getAll()} independently
+         * with the given probability.
+         */
+        public Builder<K, V> setPartialGetAllProbability(final double probability) {
+            this.partialGetAllProbability = requireProbability(probability);
+            return this;
+        }
+
+        public Builder<K, V> setSeed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public FaultInjectingStoreClient<K, V> build() {
+            return new FaultInjectingStoreClient<>(this);
+        }
+
+        private Faults faultsOf(final SmartOpCode op) {
+            switch (op) {
+                case GET_OP_CODE:
+                case GET_ALL_OP_CODE:
+                case PUT_OP_CODE:
+                case DELETE_OP_CODE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Faults can't be injected into " + op);
+            }
+            final Faults old = this.faults.get(op);
+            return (old == null) ? Faults.NONE : old;
+        }
+    }
+
+}
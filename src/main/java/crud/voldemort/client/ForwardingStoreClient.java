@@ -0,0 +1,159 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import voldemort.client.StoreClient;
+import voldemort.client.UpdateAction;
+import voldemort.cluster.Node;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that forwards all calls to another. Subclasses
+ * override only those methods whose behavior they wish to decorate; the
+ * results can be passed to
+ * {@link crud.voldemort.VoldemortResourceProvider#VoldemortResourceProvider(StoreClient)}
+ * like any other {@code StoreClient}.
+ */
+public abstract class ForwardingStoreClient<K, V> implements StoreClient<K, V> {
+
+    /**
+     * The same default used by {@link voldemort.client.DefaultStoreClient}.
+     */
+    private static final int DEFAULT_UPDATE_TRIES = 3;
+
+    private final StoreClient<K, V> delegate;
+
+
+    protected ForwardingStoreClient(final StoreClient<K, V> delegate) {
+        this.delegate = Objects.requireNonNull(delegate);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        return this.delegate.getValue(key);
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        return this.delegate.getValue(key, defaultValue);
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        return this.delegate.get(key);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Object transforms) {
+        return this.delegate.get(key, transforms);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        return this.delegate.getAll(keys);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys, final Map<K, Object> transforms) {
+        return this.delegate.getAll(keys, transforms);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        return this.delegate.get(key, defaultValue);
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        return this.delegate.put(key, value);
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        return this.delegate.put(key, value, transforms);
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        return this.delegate.putIfNotObsolete(key, versioned);
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        return this.delegate.put(key, versioned);
+    }
+
+    /**
+     * @see #applyUpdate(UpdateAction, int)
+     */
+    @Override
+    public boolean applyUpdate(final UpdateAction<K, V> action) {
+        return applyUpdate(action, DEFAULT_UPDATE_TRIES);
+    }
+
+    /**
+     * This implementation does not forward to the delegate. Instead, it
+     * applies the action to this client, so that the reads and writes that
+     * the action performs pass through any decoration implemented by
+     * subclasses.
+     */
+    @Override
+    public boolean applyUpdate(final UpdateAction<K, V> action, final int maxTries) {
+        boolean success = false;
+        try {
+            for (int i = 0; i < maxTries; ++i) {
+                try {
+                    action.update(this);
+                    success = true;
+                    return success;
+                } catch (final ObsoleteVersionException ex) {
+                    // Someone else got there first; try again.
+                }
+            }
+        } finally {
+            if (!success) {
+                action.rollback();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        return this.delegate.delete(key);
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        return this.delegate.delete(key, version);
+    }
+
+    @Override
+    public List<Node> getResponsibleNodes(final K key) {
+        return this.delegate.getResponsibleNodes(key);
+    }
+
+    protected final StoreClient<K, V> delegate() {
+        return this.delegate;
+    }
+
+}
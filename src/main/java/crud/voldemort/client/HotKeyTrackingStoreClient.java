@@ -0,0 +1,128 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Map;
+import java.util.Objects;
+
+import crud.voldemort.config.SmartOpCode;
+import crud.voldemort.metrics.HotKeyTracker;
+
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that counts the keys of all reads, writes, and
+ * deletes in a {@link HotKeyTracker}. Each key of a {@code getAll()} counts
+ * as one read.
+ */
+public class HotKeyTrackingStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+
+    private final HotKeyTracker<? super K> tracker;
+
+
+    public HotKeyTrackingStoreClient(final StoreClient<K, V> delegate, final HotKeyTracker<? super K> tracker) {
+        super(delegate);
+        this.tracker = Objects.requireNonNull(tracker);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        return super.getValue(key);
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        return super.getValue(key, defaultValue);
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        return super.get(key);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Object transforms) {
+        this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        return super.get(key, transforms);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        return super.get(key, defaultValue);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        recordAll(keys);
+        return super.getAll(keys);
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys, final Map<K, Object> transforms) {
+        recordAll(keys);
+        return super.getAll(keys, transforms);
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        this.tracker.record(SmartOpCode.PUT_OP_CODE, key);
+        return super.put(key, value);
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        this.tracker.record(SmartOpCode.PUT_OP_CODE, key);
+        return super.put(key, value, transforms);
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        this.tracker.record(SmartOpCode.PUT_OP_CODE, key);
+        return super.put(key, versioned);
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        this.tracker.record(SmartOpCode.PUT_OP_CODE, key);
+        return super.putIfNotObsolete(key, versioned);
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        this.tracker.record(SmartOpCode.DELETE_OP_CODE, key);
+        return super.delete(key);
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        this.tracker.record(SmartOpCode.DELETE_OP_CODE, key);
+        return super.delete(key, version);
+    }
+
+    private void recordAll(final Iterable<K> keys) {
+        for (final K key : keys) {
+            this.tracker.record(SmartOpCode.GET_OP_CODE, key);
+        }
+    }
+
+}
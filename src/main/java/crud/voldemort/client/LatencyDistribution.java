@@ -0,0 +1,147 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A distribution of artificial delays, for use with
+ * {@link FaultInjectingStoreClient}. Instances are immutable; all
+ * randomness comes from the {@link Random} passed to
+ * {@link #nextDelayNanos(Random)}, so that sequences of delays can be
+ * reproduced.
+ */
+public abstract class LatencyDistribution {
+
+    private static final LatencyDistribution NONE = fixed(0L, TimeUnit.NANOSECONDS);
+
+
+    /**
+     * @return  a distribution that never delays.
+     */
+    public static LatencyDistribution none() {
+        return NONE;
+    }
+
+    /**
+     * @return  a distribution that always delays by the given amount.
+     */
+    public static LatencyDistribution fixed(final long delay, final TimeUnit unit) {
+        final long delayNanos = unit.toNanos(requireNonNegative(delay));
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos(final Random random) {
+                return delayNanos;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed(" + delayNanos + " ns)";
+            }
+        };
+    }
+
+    /**
+     * @return  a distribution that delays by an amount uniformly
+     *          distributed in [min, max).
+     */
+    public static LatencyDistribution uniform(final long min, final long max, final TimeUnit unit) {
+        final long minNanos = unit.toNanos(requireNonNegative(min));
+        final long maxNanos = unit.toNanos(max);
+        if (maxNanos < minNanos) {
+            throw new IllegalArgumentException("max " + max + " < min " + min);
+        }
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos(final Random random) {
+                return minNanos + (long) (random.nextDouble() * (maxNanos - minNanos));
+            }
+
+            @Override
+            public String toString() {
+                return "uniform(" + minNanos + " ns, " + maxNanos + " ns)";
+            }
+        };
+    }
+
+    /**
+     * @return  a distribution that delays by an exponentially distributed
+     *          amount with the given mean: most delays are short, with a
+     *          long tail.
+     */
+    public static LatencyDistribution exponential(final long mean, final TimeUnit unit) {
+        final double meanNanos = unit.toNanos(requireNonNegative(mean));
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos(final Random random) {
+                return (long) (-meanNanos * Math.log(1.0 - random.nextDouble()));
+            }
+
+            @Override
+            public String toString() {
+                return "exponential(mean " + (long) meanNanos + " ns)";
+            }
+        };
+    }
+
+    /**
+     * @return  a distribution that usually draws from {@code fast}, but
+     *          with the given probability draws from {@code slow} instead.
+     *          This models a service with occasional stalls, such as from
+     *          garbage collection, which is the case that hedged requests
+     *          are meant to address.
+     */
+    public static LatencyDistribution bimodal(
+            final LatencyDistribution fast,
+            final LatencyDistribution slow,
+            final double slowProbability) {
+        Objects.requireNonNull(fast);
+        Objects.requireNonNull(slow);
+        FaultInjectingStoreClient.requireProbability(slowProbability);
+        return new LatencyDistribution() {
+            @Override
+            public long nextDelayNanos(final Random random) {
+                return (random.nextDouble() < slowProbability)
+                        ? slow.nextDelayNanos(random)
+                        : fast.nextDelayNanos(random);
+            }
+
+            @Override
+            public String toString() {
+                return "bimodal(" + fast + ", " + slow + " @ " + slowProbability + ")";
+            }
+        };
+    }
+
+    /**
+     * @return  a non-negative delay, in nanoseconds.
+     */
+    public abstract long nextDelayNanos(Random random);
+
+    private static long requireNonNegative(final long value) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("negative delay " + value);
+        }
+        return value;
+    }
+
+    private LatencyDistribution() {
+        // only subclassed here
+    }
+
+}
@@ -0,0 +1,59 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+
+/**
+ * The JMX view of a {@link NegativeCachingStoreClient}.
+ */
+public interface NegativeCacheMXBean {
+
+    /**
+     * @return  the number of reads answered from the negative-result cache.
+     */
+    long getNegativeCacheHits();
+
+    /**
+     * @return  the number of reads answered because the Bloom filter ruled
+     *          out the key.
+     */
+    long getBloomFilterRejections();
+
+    /**
+     * @return  the number of reads that went to the store.
+     */
+    long getStoreReads();
+
+    int getNegativeCacheSize();
+
+    int getNegativeCacheMaxSize();
+
+    long getNegativeCacheTtlMs();
+
+    boolean isBloomFilterEnabled();
+
+    /**
+     * @return  the size of the Bloom filter's bit set, or zero if there is
+     *          no filter.
+     */
+    long getBloomFilterMemoryBytes();
+
+    double getBloomFilterTargetFalsePositiveRate();
+
+    double getBloomFilterEstimatedFalsePositiveRate();
+
+    void clearNegativeCache();
+
+}
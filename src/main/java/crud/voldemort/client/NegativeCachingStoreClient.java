@@ -0,0 +1,351 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.cache.BloomFilter;
+
+import voldemort.client.StoreClient;
+import voldemort.serialization.Serializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that answers reads of absent keys without a round
+ * trip to the store, where it can:
+ * <ul>
+ *  <li>Keys that the store recently reported absent are remembered for a
+ *      short time-to-live in a bounded negative-result cache.</li>
+ *  <li>Optionally, a {@link BloomFilter} of all keys in the store rules out
+ *      keys that are definitely absent. The filter is typically built with
+ *      {@link BloomFilter#fromScan BloomFilter.fromScan()}, and every write
+ *      through this client adds its key to it.</li>
+ * </ul>
+ *
+ * Writes through this client invalidate negative results for their keys,
+ * both before and after writing. Each write also advances a write epoch,
+ * shared by the keys that hash alike; a read that finds a key absent
+ * remembers that only if no write of a similarly hashed key finished
+ * while it was in progress, so that a read racing with a write can't hide
+ * the write. Writes by <em>other</em> clients do not invalidate anything,
+ * so callers must choose a TTL that bounds acceptable staleness. Likewise,
+ * a Bloom filter is only accurate if all writers go through this client or
+ * the filter is rebuilt regularly.
+ */
+public class NegativeCachingStoreClient<K, V> extends ForwardingStoreClient<K, V>
+implements NegativeCacheMXBean {
+
+    public static final long DEFAULT_TTL_MS = TimeUnit.SECONDS.toMillis(5);
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final long ttlNanos;
+    private final int maxSize;
+    /**
+     * Map absent keys to the {@link System#nanoTime()} at which they expire.
+     */
+    private final ConcurrentMap<K, Long> absentKeys = new ConcurrentHashMap<>();
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+
+    private final BloomFilter bloomFilter;
+    private final Serializer<K> keySerializer;
+
+    private final AtomicLong negativeCacheHits = new AtomicLong();
+    private final AtomicLong bloomFilterRejections = new AtomicLong();
+    private final AtomicLong storeReads = new AtomicLong();
+
+
+    /**
+     * Create a client with a negative-result cache but no Bloom filter.
+     */
+    public NegativeCachingStoreClient(
+            final StoreClient<K, V> delegate,
+            final long ttl,
+            final TimeUnit unit,
+            final int maxSize) {
+        this(delegate, ttl, unit, maxSize, null, null);
+    }
+
+    /**
+     * @param bloomFilter   A filter over the serialized keys in the store,
+     *                      or {@code null} to use no filter.
+     * @param keySerializer Must serialize keys the same way as the store;
+     *                      may be {@code null} only if {@code bloomFilter}
+     *                      is.
+     */
+    public NegativeCachingStoreClient(
+            final StoreClient<K, V> delegate,
+            final long ttl,
+            final TimeUnit unit,
+            final int maxSize,
+            final BloomFilter bloomFilter,
+            final Serializer<K> keySerializer) {
+        super(delegate);
+        if (ttl < 0L) {
+            throw new IllegalArgumentException("negative TTL " + ttl);
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("negative max size " + maxSize);
+        }
+        if (bloomFilter != null) {
+            Objects.requireNonNull(keySerializer, "Bloom filter requires key serializer");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxSize = maxSize;
+        this.bloomFilter = bloomFilter;
+        this.keySerializer = keySerializer;
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        if (isKnownAbsent(key)) {
+            return null;
+        }
+        this.storeReads.incrementAndGet();
+        final long epoch = this.writeEpochs.current(key);
+        final Versioned<V> result = super.get(key);
+        if (result == null) {
+            rememberAbsent(key, epoch);
+        }
+        return result;
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        final List<K> unknownKeys = new ArrayList<>();
+        final List<Long> epochs = new ArrayList<>();
+        for (final K key : keys) {
+            if (!isKnownAbsent(key)) {
+                unknownKeys.add(key);
+                epochs.add(this.writeEpochs.current(key));
+            }
+        }
+        this.storeReads.addAndGet(unknownKeys.size());
+        final Map<K, Versioned<V>> result = super.getAll(unknownKeys);
+        for (int i = 0; i < unknownKeys.size(); ++i) {
+            final K key = unknownKeys.get(i);
+            if (!result.containsKey(key)) {
+                rememberAbsent(key, epochs.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        forgetAbsent(key);
+        try {
+            return super.put(key, value);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        forgetAbsent(key);
+        try {
+            return super.put(key, value, transforms);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        forgetAbsent(key);
+        try {
+            return super.putIfNotObsolete(key, versioned);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        forgetAbsent(key);
+        try {
+            return super.put(key, versioned);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        final long epoch = this.writeEpochs.current(key);
+        final boolean deleted = super.delete(key);
+        rememberAbsent(key, epoch);
+        return deleted;
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        // Other versions may remain, so the key isn't known to be absent.
+        return super.delete(key, version);
+    }
+
+    @Override
+    public long getNegativeCacheHits() {
+        return this.negativeCacheHits.get();
+    }
+
+    @Override
+    public long getBloomFilterRejections() {
+        return this.bloomFilterRejections.get();
+    }
+
+    @Override
+    public long getStoreReads() {
+        return this.storeReads.get();
+    }
+
+    @Override
+    public int getNegativeCacheSize() {
+        return this.absentKeys.size();
+    }
+
+    @Override
+    public int getNegativeCacheMaxSize() {
+        return this.maxSize;
+    }
+
+    @Override
+    public long getNegativeCacheTtlMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+    }
+
+    @Override
+    public boolean isBloomFilterEnabled() {
+        return this.bloomFilter != null;
+    }
+
+    @Override
+    public long getBloomFilterMemoryBytes() {
+        return (this.bloomFilter == null) ? 0L : this.bloomFilter.getMemoryFootprintBytes();
+    }
+
+    @Override
+    public double getBloomFilterTargetFalsePositiveRate() {
+        return (this.bloomFilter == null) ? 0.0 : this.bloomFilter.getTargetFalsePositiveRate();
+    }
+
+    @Override
+    public double getBloomFilterEstimatedFalsePositiveRate() {
+        return (this.bloomFilter == null) ? 0.0 : this.bloomFilter.getEstimatedFalsePositiveRate();
+    }
+
+    @Override
+    public void clearNegativeCache() {
+        this.absentKeys.clear();
+    }
+
+    private boolean isKnownAbsent(final K key) {
+        if (this.bloomFilter != null && !this.bloomFilter.mightContain(this.keySerializer.toBytes(key))) {
+            this.bloomFilterRejections.incrementAndGet();
+            return true;
+        }
+        final Long expiry = this.absentKeys.get(key);
+        if (expiry != null) {
+            if (System.nanoTime() - expiry < 0L) {
+                this.negativeCacheHits.incrementAndGet();
+                return true;
+            }
+            this.absentKeys.remove(key, expiry);
+        }
+        return false;
+    }
+
+    /**
+     * Remember that the given key is absent, unless a write of a key in the
+     * same stripe has finished since the given epoch was read: it may have
+     * written this key after the store reported it absent.
+     *
+     * @see WriteEpochs
+     */
+    private void rememberAbsent(final K key, final long epoch) {
+        if (this.ttlNanos == 0L || this.maxSize == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (this.absentKeys.size() >= this.maxSize) {
+            purgeExpired(now);
+            if (this.absentKeys.size() >= this.maxSize) {
+                // Still full of live entries: don't grow beyond the bound.
+                return;
+            }
+        }
+        final Long expiry = now + this.ttlNanos;
+        this.absentKeys.put(key, expiry);
+        if (!this.writeEpochs.isCurrent(key, epoch)) {
+            this.absentKeys.remove(key, expiry);
+        }
+    }
+
+    /**
+     * Advance the key's write epoch, so that reads in progress don't
+     * remember it as absent, and then forget any such read that already
+     * has.
+     */
+    private void finishWrite(final K key) {
+        this.writeEpochs.advance(key);
+        this.absentKeys.remove(key);
+    }
+
+    private void forgetAbsent(final K key) {
+        this.absentKeys.remove(key);
+        if (this.bloomFilter != null) {
+            this.bloomFilter.add(this.keySerializer.toBytes(key));
+        }
+    }
+
+    private void purgeExpired(final long now) {
+        final Iterator<Long> expiries = this.absentKeys.values().iterator();
+        while (expiries.hasNext()) {
+            if (now - expiries.next() >= 0L) {
+                expiries.remove();
+            }
+        }
+    }
+
+}
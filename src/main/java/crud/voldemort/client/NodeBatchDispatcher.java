@@ -0,0 +1,527 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.metrics.Histogram;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.client.ClientConfig;
+import voldemort.client.StoreClient;
+import voldemort.cluster.Node;
+import voldemort.serialization.Serializer;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Performs multi-key reads and writes as concurrent per-node batches.
+ * Keys are grouped by their master node, the first node in their
+ * {@link StoreClient#getResponsibleNodes(Object) preference list}, so
+ * that each batch is served by a single replica set. Each group is split
+ * into batches whose estimated size fits in the client's socket buffer,
+ * and every batch is dispatched on the {@link Executor} at once. Results
+ * are emitted as each batch completes, so that one slow node delays only
+ * its own keys. The batches are concurrent only if the executor can run
+ * several tasks at once: on {@link crud.voldemort.StoreExecutors#sameThread()},
+ * they run one after another on the subscribing thread.
+ *
+ * The latency and size of the batches sent to each node are recorded, and
+ * are available through {@link NodeBatchMXBean}.
+ */
+public class NodeBatchDispatcher<K, V> implements NodeBatchMXBean {
+
+    /**
+     * The node ID under which keys are grouped when the client can't say
+     * which node is responsible for them.
+     */
+    public static final int UNKNOWN_NODE_ID = -1;
+
+    private final StoreClient<K, V> store;
+    private final Executor executor;
+    private final int batchBytes;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final ConcurrentMap<Integer, NodeStats> nodeStats = new ConcurrentHashMap<>();
+
+
+    public static <K, V> Builder<K, V> newBuilder(final StoreClient<K, V> store, final Executor executor) {
+        return new Builder<>(store, executor);
+    }
+
+    /**
+     * Read the given keys. Upon each subscription, emits an entry for each
+     * key found, in the order in which the batches complete, and then
+     * completes. If any batch fails, the first failure is emitted instead
+     * of completion, after the results of the batches that succeeded.
+     */
+    public Observable<Map.Entry<K, Versioned<V>>> getAll(final Collection<? extends K> keys) {
+        final List<K> keyList = new ArrayList<>(keys);
+        return dispatch(keyList, new BatchOperation<K, Versioned<V>>() {
+            @Override
+            public int sizeOf(final K key) {
+                return keySize(key);
+            }
+
+            @Override
+            public Map<K, Versioned<V>> call(
+                    final List<K> batch,
+                    final BatchSubscription<K, Versioned<V>> results) {
+                return store.getAll(batch);
+            }
+        });
+    }
+
+    /**
+     * Write the given values, each of which must carry the version that it
+     * supersedes, as in {@link StoreClient#put(Object, Versioned)}. Upon
+     * each subscription, emits an entry with the new version of each key
+     * written as soon as it is written. Within a batch, keys are written in
+     * turn; the first failure, such as an
+     * {@link voldemort.versioning.ObsoleteVersionException}, ends its batch,
+     * so that only the versions of the keys written before it are emitted.
+     * Unsubscribing stops each batch before its next key.
+     */
+    public Observable<Map.Entry<K, Version>> putAll(final Map<? extends K, ? extends Versioned<V>> values) {
+        final Map<K, Versioned<V>> valueMap = new LinkedHashMap<>(values);
+        return dispatch(new ArrayList<>(valueMap.keySet()), new BatchOperation<K, Version>() {
+            @Override
+            public int sizeOf(final K key) {
+                return keySize(key) + valueSize(valueMap.get(key).getValue());
+            }
+
+            @Override
+            public Map<K, Version> call(final List<K> batch, final BatchSubscription<K, Version> results) {
+                for (final K key : batch) {
+                    if (results.isUnsubscribed()) {
+                        break;
+                    }
+                    results.emit(key, store.put(key, valueMap.get(key)));
+                }
+                return Collections.<K, Version>emptyMap();
+            }
+        });
+    }
+
+    @Override
+    public Map<Integer, Long> getBatchCounts() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeStats> entry : this.nodeStats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().latencyNanos.getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Long> getFailedBatchCounts() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeStats> entry : this.nodeStats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().failures.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Long> getMeanBatchSizes() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeStats> entry : this.nodeStats.entrySet()) {
+            result.put(entry.getKey(), Math.round(entry.getValue().batchSizes.getMean()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Long> getMedianLatenciesMs() {
+        return latencyPercentilesMs(50.0);
+    }
+
+    @Override
+    public Map<Integer, Long> get99thPercentileLatenciesMs() {
+        return latencyPercentilesMs(99.0);
+    }
+
+    @Override
+    public Map<Integer, Long> getMaxLatenciesMs() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeStats> entry : this.nodeStats.entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().latencyNanos.getMax()));
+        }
+        return result;
+    }
+
+    @Override
+    public void resetStatistics() {
+        this.nodeStats.clear();
+    }
+
+    private NodeBatchDispatcher(final Builder<K, V> builder) {
+        this.store = builder.store;
+        this.executor = builder.executor;
+        this.batchBytes = builder.batchBytes;
+        this.keySerializer = builder.keySerializer;
+        this.valueSerializer = builder.valueSerializer;
+    }
+
+    /**
+     * Group the given keys into batches, and create an {@link Observable}
+     * that, upon each subscription, dispatches all of them.
+     */
+    private <R> Observable<Map.Entry<K, R>> dispatch(
+            final List<K> keys,
+            final BatchOperation<K, R> operation) {
+        return Observable.create(new Observable.OnSubscribe<Map.Entry<K, R>>() {
+            @Override
+            public void call(final Subscriber<? super Map.Entry<K, R>> subscriber) {
+                final Map<Integer, List<List<K>>> batchesByNode = partition(keys, operation);
+                int batchCount = 0;
+                for (final List<List<K>> batches : batchesByNode.values()) {
+                    batchCount += batches.size();
+                }
+                if (batchCount == 0) {
+                    subscriber.onCompleted();
+                    return;
+                }
+
+                final BatchSubscription<K, R> subscription = new BatchSubscription<>(subscriber, batchCount);
+                for (final Map.Entry<Integer, List<List<K>>> node : batchesByNode.entrySet()) {
+                    for (final List<K> batch : node.getValue()) {
+                        final Runnable task = newBatchTask(node.getKey(), batch, operation, subscription);
+                        try {
+                            executor.execute(task);
+                        } catch (final RejectedExecutionException rex) {
+                            subscription.batchFailed(rex);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private <R> Runnable newBatchTask(
+            final int nodeId,
+            final List<K> batch,
+            final BatchOperation<K, R> operation,
+            final BatchSubscription<K, R> subscription) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (subscription.subscriber.isUnsubscribed()) {
+                    subscription.batchSkipped();
+                    return;
+                }
+                final NodeStats stats = statsOf(nodeId);
+                final long start = System.nanoTime();
+                final Map<K, R> results;
+                try {
+                    results = operation.call(batch, subscription);
+                } catch (final RuntimeException ex) {
+                    stats.failures.incrementAndGet();
+                    subscription.batchFailed(ex);
+                    return;
+                }
+                stats.latencyNanos.record(System.nanoTime() - start);
+                stats.batchSizes.record(batch.size());
+                subscription.batchSucceeded(results);
+            }
+        };
+    }
+
+    /**
+     * @return  the given keys, grouped by master node ID, and then into
+     *          batches of no more than {@link #batchBytes} each, by
+     *          estimate. A single key larger than that is sent by itself.
+     */
+    private Map<Integer, List<List<K>>> partition(final List<K> keys, final BatchOperation<K, ?> operation) {
+        final Map<Integer, List<K>> keysByNode = new LinkedHashMap<>();
+        for (final K key : keys) {
+            final int nodeId = masterNodeId(key);
+            List<K> nodeKeys = keysByNode.get(nodeId);
+            if (nodeKeys == null) {
+                nodeKeys = new ArrayList<>();
+                keysByNode.put(nodeId, nodeKeys);
+            }
+            nodeKeys.add(key);
+        }
+
+        final Map<Integer, List<List<K>>> batchesByNode = new LinkedHashMap<>();
+        for (final Map.Entry<Integer, List<K>> node : keysByNode.entrySet()) {
+            final List<List<K>> batches = new ArrayList<>();
+            List<K> batch = new ArrayList<>();
+            long bytes = 0L;
+            for (final K key : node.getValue()) {
+                final int size = operation.sizeOf(key);
+                if (!batch.isEmpty() && bytes + size > this.batchBytes) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    bytes = 0L;
+                }
+                batch.add(key);
+                bytes += size;
+            }
+            batches.add(batch);
+            batchesByNode.put(node.getKey(), batches);
+        }
+        return batchesByNode;
+    }
+
+    private int masterNodeId(final K key) {
+        final List<Node> nodes;
+        try {
+            nodes = this.store.getResponsibleNodes(key);
+        } catch (final UnsupportedOperationException uox) {
+            return UNKNOWN_NODE_ID;
+        }
+        return (nodes == null || nodes.isEmpty()) ? UNKNOWN_NODE_ID : nodes.get(0).getId();
+    }
+
+    private int keySize(final K key) {
+        return (this.keySerializer != null)
+                ? this.keySerializer.toBytes(key).length
+                : estimateSize(key);
+    }
+
+    private int valueSize(final V value) {
+        return (this.valueSerializer != null)
+                ? this.valueSerializer.toBytes(value).length
+                : estimateSize(value);
+    }
+
+    private static int estimateSize(final Object obj) {
+        if (obj instanceof byte[]) {
+            return ((byte[]) obj).length;
+        } else if (obj instanceof CharSequence) {
+            return ((CharSequence) obj).length();
+        } else {
+            return Builder.DEFAULT_ESTIMATED_SIZE;
+        }
+    }
+
+    private Map<Integer, Long> latencyPercentilesMs(final double percentile) {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeStats> entry : this.nodeStats.entrySet()) {
+            final long nanos = entry.getValue().latencyNanos.getValueAtPercentile(percentile);
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+        return result;
+    }
+
+    private NodeStats statsOf(final int nodeId) {
+        NodeStats stats = this.nodeStats.get(nodeId);
+        if (stats == null) {
+            final NodeStats newStats = new NodeStats();
+            stats = this.nodeStats.putIfAbsent(nodeId, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+
+    private static interface BatchOperation<K, R> {
+        /**
+         * @return  the estimated number of bytes that the given key will
+         *          contribute to its batch's request.
+         */
+        int sizeOf(K key);
+
+        /**
+         * Perform the operation on the given batch. Results may be emitted
+         * through the given subscription as they become available; those
+         * returned are emitted when the batch completes.
+         */
+        Map<K, R> call(List<K> batch, BatchSubscription<K, R> results);
+    }
+
+
+    /**
+     * Serializes the results of concurrent batches to a single
+     * {@link Subscriber}, and terminates it once all batches are done.
+     */
+    private static final class BatchSubscription<K, R> {
+        public final Subscriber<? super Map.Entry<K, R>> subscriber;
+        private final AtomicInteger remainingBatches;
+        private final AtomicBoolean terminated = new AtomicBoolean(false);
+        private volatile Throwable firstFailure = null;
+
+        public BatchSubscription(final Subscriber<? super Map.Entry<K, R>> subscriber, final int batchCount) {
+            this.subscriber = subscriber;
+            this.remainingBatches = new AtomicInteger(batchCount);
+        }
+
+        /**
+         * @return  true if no more results will be accepted, because the
+         *          subscriber has unsubscribed or been terminated.
+         */
+        public boolean isUnsubscribed() {
+            return this.subscriber.isUnsubscribed() || this.terminated.get();
+        }
+
+        /**
+         * Emit a single result ahead of the completion of its batch.
+         */
+        public void emit(final K key, final R result) {
+            synchronized (this) {
+                if (this.subscriber.isUnsubscribed() || this.terminated.get() || result == null) {
+                    return;
+                }
+                try {
+                    this.subscriber.onNext(new AbstractMap.SimpleImmutableEntry<>(key, result));
+                } catch (final Throwable error) {
+                    terminate(error);
+                }
+            }
+        }
+
+        public void batchSucceeded(final Map<K, R> results) {
+            synchronized (this) {
+                try {
+                    for (final Map.Entry<K, R> result : results.entrySet()) {
+                        if (this.subscriber.isUnsubscribed() || this.terminated.get()) {
+                            break;
+                        }
+                        if (result.getValue() != null) {
+                            this.subscriber.onNext(
+                                    new AbstractMap.SimpleImmutableEntry<>(result.getKey(), result.getValue()));
+                        }
+                    }
+                } catch (final Throwable error) {
+                    terminate(error);
+                }
+            }
+            batchDone();
+        }
+
+        public void batchFailed(final Throwable error) {
+            synchronized (this) {
+                if (this.firstFailure == null) {
+                    this.firstFailure = error;
+                }
+            }
+            batchDone();
+        }
+
+        public void batchSkipped() {
+            batchDone();
+        }
+
+        private void batchDone() {
+            if (this.remainingBatches.decrementAndGet() == 0) {
+                synchronized (this) {
+                    terminate(this.firstFailure);
+                }
+            }
+        }
+
+        /**
+         * Must be called while synchronized.
+         */
+        private void terminate(final Throwable error) {
+            if (!this.terminated.compareAndSet(false, true)) {
+                return;
+            }
+            if (error != null) {
+                this.subscriber.onError(error);
+            } else {
+                this.subscriber.onCompleted();
+            }
+        }
+    }
+
+
+    private static final class NodeStats {
+        public final Histogram latencyNanos = new Histogram();
+        public final Histogram batchSizes = new Histogram();
+        public final AtomicLong failures = new AtomicLong();
+    }
+
+
+    public static final class Builder<K, V> {
+        /**
+         * The default socket buffer size of {@link ClientConfig}.
+         */
+        public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+        /**
+         * The size assumed for keys and values that are neither byte arrays
+         * nor strings, when no {@link Serializer} is given.
+         */
+        public static final int DEFAULT_ESTIMATED_SIZE = 64;
+
+        private final StoreClient<K, V> store;
+        private final Executor executor;
+        private int batchBytes = DEFAULT_BATCH_BYTES;
+        private Serializer<K> keySerializer = null;
+        private Serializer<V> valueSerializer = null;
+
+        private Builder(final StoreClient<K, V> store, final Executor executor) {
+            this.store = Objects.requireNonNull(store);
+            this.executor = Objects.requireNonNull(executor);
+        }
+
+        /**
+         * Limit each batch to the given estimated number of bytes. This
+         * should be the {@link ClientConfig#getSocketBufferSize()} of the
+         * client.
+         */
+        public Builder<K, V> setBatchBytes(final int batchBytes) {
+            if (batchBytes <= 0) {
+                throw new IllegalArgumentException("batch bytes " + batchBytes + " <= 0");
+            }
+            this.batchBytes = batchBytes;
+            return this;
+        }
+
+        /**
+         * Size batches by the serialized sizes of their keys, rather than
+         * by estimate.
+         */
+        public Builder<K, V> setKeySerializer(final Serializer<K> keySerializer) {
+            this.keySerializer = Objects.requireNonNull(keySerializer);
+            return this;
+        }
+
+        /**
+         * Size write batches by the serialized sizes of their values,
+         * rather than by estimate.
+         */
+        public Builder<K, V> setValueSerializer(final Serializer<V> valueSerializer) {
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+            return this;
+        }
+
+        public NodeBatchDispatcher<K, V> build() {
+            return new NodeBatchDispatcher<>(this);
+        }
+    }
+
+}
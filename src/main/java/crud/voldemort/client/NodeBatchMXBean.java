@@ -0,0 +1,43 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Map;
+
+
+/**
+ * The JMX view of a {@link NodeBatchDispatcher}. Each map is keyed by the
+ * ID of the master node to which the batches were sent.
+ */
+public interface NodeBatchMXBean {
+
+    Map<Integer, Long> getBatchCounts();
+
+    Map<Integer, Long> getFailedBatchCounts();
+
+    /**
+     * @return  the mean number of keys per batch.
+     */
+    Map<Integer, Long> getMeanBatchSizes();
+
+    Map<Integer, Long> getMedianLatenciesMs();
+
+    Map<Integer, Long> get99thPercentileLatenciesMs();
+
+    Map<Integer, Long> getMaxLatenciesMs();
+
+    void resetStatistics();
+
+}
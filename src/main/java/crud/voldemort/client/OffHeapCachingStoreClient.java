@@ -0,0 +1,262 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import crud.voldemort.cache.OffHeapCache;
+import crud.voldemort.cache.VersionedCodec;
+
+import voldemort.client.StoreClient;
+import voldemort.serialization.Serializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that caches values, in serialized form, in an
+ * {@link OffHeapCache}. Values are deserialized only when they are read
+ * from the cache, so the cache itself contributes nothing to heap
+ * occupancy.
+ *
+ * Successful writes through this client update the cache, unless another
+ * write of a key in the same stripe finished while they were in progress,
+ * in which case they invalidate it; deletes invalidate it. A value read
+ * from the store after a miss is cached only if no other value has been
+ * cached for its key in the meantime, and no write of a key in the same
+ * stripe finished while it was being read, so that a slow read or write
+ * can't replace a newer value written through this client.
+ * Writes by other clients are not observed, so this cache is
+ * appropriate only for data that is written through a single client or
+ * that can tolerate staleness until entries are evicted.
+ */
+public class OffHeapCachingStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+
+    private final OffHeapCache cache;
+    private final Serializer<K> keySerializer;
+    private final VersionedCodec<V> codec;
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+
+
+    /**
+     * @param keySerializer     Used to form cache keys; need not match the
+     *                          store's serializer, though it typically will.
+     * @param valueSerializer   Used to store values in the cache; need not
+     *                          match the store's serializer, though it
+     *                          typically will.
+     */
+    public OffHeapCachingStoreClient(
+            final StoreClient<K, V> delegate,
+            final OffHeapCache cache,
+            final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer) {
+        super(delegate);
+        this.cache = Objects.requireNonNull(cache);
+        this.keySerializer = Objects.requireNonNull(keySerializer);
+        this.codec = new VersionedCodec<>(valueSerializer);
+    }
+
+    public OffHeapCache getCache() {
+        return this.cache;
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final byte[] cached = this.cache.get(cacheKey);
+        if (cached != null) {
+            return this.codec.decode(cached);
+        }
+        final long epoch = this.writeEpochs.current(cacheKey);
+        final Versioned<V> result = super.get(key);
+        if (result != null) {
+            fill(cacheKey, result, epoch);
+        }
+        return result;
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        final Map<K, Versioned<V>> result = new HashMap<>();
+        final List<K> missing = new ArrayList<>();
+        final List<byte[]> missingCacheKeys = new ArrayList<>();
+        final List<Long> epochs = new ArrayList<>();
+        for (final K key : keys) {
+            final byte[] cacheKey = this.keySerializer.toBytes(key);
+            final byte[] cached = this.cache.get(cacheKey);
+            if (cached != null) {
+                result.put(key, this.codec.decode(cached));
+            } else {
+                missing.add(key);
+                missingCacheKeys.add(cacheKey);
+                epochs.add(this.writeEpochs.current(cacheKey));
+            }
+        }
+        if (!missing.isEmpty()) {
+            final Map<K, Versioned<V>> fetched = super.getAll(missing);
+            for (int i = 0; i < missing.size(); ++i) {
+                final Versioned<V> versioned = fetched.get(missing.get(i));
+                if (versioned != null) {
+                    fill(missingCacheKeys.get(i), versioned, epochs.get(i));
+                }
+            }
+            result.putAll(fetched);
+        }
+        return result;
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final long epoch = this.writeEpochs.current(cacheKey);
+        this.cache.remove(cacheKey);
+        Version version = null;
+        try {
+            version = super.put(key, value);
+            return version;
+        } finally {
+            finishWrite(cacheKey, epoch, (version == null) ? null : new Versioned<>(value, version));
+        }
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        // The stored value may differ from the given one: just invalidate.
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        this.cache.remove(cacheKey);
+        try {
+            return super.put(key, value, transforms);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final long epoch = this.writeEpochs.current(cacheKey);
+        this.cache.remove(cacheKey);
+        Version version = null;
+        try {
+            version = super.put(key, versioned);
+            return version;
+        } finally {
+            finishWrite(cacheKey, epoch,
+                    (version == null) ? null : new Versioned<>(versioned.getValue(), version));
+        }
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        try {
+            put(key, versioned);
+            return true;
+        } catch (final ObsoleteVersionException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        this.cache.remove(cacheKey);
+        try {
+            return super.delete(key);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        this.cache.remove(cacheKey);
+        try {
+            return super.delete(key, version);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    /**
+     * Cache a value read from the store after a miss, unless a value has
+     * been cached since, or a write of a key in the same stripe has finished
+     * since the given epoch was read: it may be newer than this value.
+     *
+     * @see WriteEpochs
+     */
+    private void fill(final byte[] cacheKey, final Versioned<V> versioned, final long epoch) {
+        final byte[] encoded = this.codec.encode(versioned);
+        if (encoded != null && this.cache.putIfAbsent(cacheKey, encoded)) {
+            if (!this.writeEpochs.isCurrent(cacheKey, epoch)) {
+                this.cache.remove(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Advance the write epoch of the given key, so that reads in progress
+     * don't cache the values they read, and invalidate its entry.
+     */
+    private void finishWrite(final byte[] cacheKey) {
+        this.writeEpochs.advance(cacheKey);
+        this.cache.remove(cacheKey);
+    }
+
+    /**
+     * Advance the write epoch of the given key, and cache the value just
+     * written, if any, unless another write of a key in the same stripe has
+     * finished since the given epoch was read: either may have been applied
+     * last, so invalidate the entry instead.
+     *
+     * @see WriteEpochs
+     */
+    private void finishWrite(final byte[] cacheKey, final long epoch, final Versioned<V> written) {
+        final long newEpoch = this.writeEpochs.advance(cacheKey);
+        final byte[] encoded = (written == null || newEpoch != epoch + 1L) ? null : this.codec.encode(written);
+        if (encoded == null) {
+            this.cache.remove(cacheKey);
+            return;
+        }
+        this.cache.put(cacheKey, encoded);
+        if (!this.writeEpochs.isCurrent(cacheKey, newEpoch)) {
+            this.cache.remove(cacheKey);
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import crud.voldemort.cache.MappedFileCache;
+import crud.voldemort.cache.VersionedCodec;
+
+import voldemort.client.StoreClient;
+import voldemort.serialization.Serializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that caches values in a {@link MappedFileCache}, so
+ * that a restarted process begins with a warm cache.
+ *
+ * Entries recovered from the file may be out of date. The first read of
+ * each such entry returns the cached value immediately, and asynchronously
+ * reads the key from the store: if the store's version differs, the cache is
+ * updated; if the key is gone, it is removed. Either happens only if the
+ * cached value hasn't changed in the meantime. If the store can't be read,
+ * or the executor rejects the read, the recovered entry is removed instead,
+ * so that the next read goes to the store. Entries written during the life
+ * of this process are not revalidated.
+ *
+ * As for {@link OffHeapCachingStoreClient}, successful writes through this
+ * client update the cache, unless another write of a key in the same
+ * stripe finished while they were in progress; deletes invalidate it. A
+ * value read after a miss is cached only if nothing else has been cached
+ * for its key, and no write of a key in the same stripe finished, while it
+ * was read.
+ *
+ * The cache is only an optimization: if the file can't be written, the
+ * failure is logged, the entry is left uncached, and the store operation
+ * proceeds.
+ */
+public class PersistentCachingStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+
+    private static final Logger log = Logger.getLogger(PersistentCachingStoreClient.class);
+
+    private final MappedFileCache cache;
+    private final Serializer<K> keySerializer;
+    private final VersionedCodec<V> codec;
+    private final Executor revalidationExecutor;
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+
+
+    /**
+     * @param revalidationExecutor  Runs reads that revalidate entries
+     *                              recovered from the file.
+     */
+    public PersistentCachingStoreClient(
+            final StoreClient<K, V> delegate,
+            final MappedFileCache cache,
+            final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer,
+            final Executor revalidationExecutor) {
+        super(delegate);
+        this.cache = Objects.requireNonNull(cache);
+        this.keySerializer = Objects.requireNonNull(keySerializer);
+        this.codec = new VersionedCodec<>(valueSerializer);
+        this.revalidationExecutor = Objects.requireNonNull(revalidationExecutor);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final byte[] cached = this.cache.get(cacheKey);
+        if (cached != null) {
+            if (this.cache.isRecovered(cacheKey)) {
+                // Only revalidate once, even if there are concurrent readers.
+                this.cache.markValidated(cacheKey);
+                revalidateLater(key, cacheKey, cached);
+            }
+            return this.codec.decode(cached);
+        }
+        final long epoch = this.writeEpochs.current(cacheKey);
+        final Versioned<V> result = super.get(key);
+        if (result != null) {
+            fill(cacheKey, result, epoch);
+        }
+        return result;
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final long epoch = this.writeEpochs.current(cacheKey);
+        uncache(cacheKey);
+        Version version = null;
+        try {
+            version = super.put(key, value);
+            return version;
+        } finally {
+            finishWrite(cacheKey, epoch, (version == null) ? null : new Versioned<>(value, version));
+        }
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        // The stored value may differ from the given one: just invalidate.
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        uncache(cacheKey);
+        try {
+            return super.put(key, value, transforms);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        final long epoch = this.writeEpochs.current(cacheKey);
+        uncache(cacheKey);
+        Version version = null;
+        try {
+            version = super.put(key, versioned);
+            return version;
+        } finally {
+            finishWrite(cacheKey, epoch,
+                    (version == null) ? null : new Versioned<>(versioned.getValue(), version));
+        }
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        try {
+            put(key, versioned);
+            return true;
+        } catch (final ObsoleteVersionException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        uncache(cacheKey);
+        try {
+            return super.delete(key);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        final byte[] cacheKey = this.keySerializer.toBytes(key);
+        uncache(cacheKey);
+        try {
+            return super.delete(key, version);
+        } finally {
+            finishWrite(cacheKey);
+        }
+    }
+
+    /**
+     * Read the given key from the store, and replace or remove the given
+     * recovered value accordingly, unless a write through this client has
+     * replaced or removed it in the meantime. If the key can't be read,
+     * remove the recovered value, so that it isn't served unvalidated.
+     */
+    private void revalidateLater(final K key, final byte[] cacheKey, final byte[] cached) {
+        final Runnable revalidation = new Runnable() {
+            @Override
+            public void run() {
+                final long epoch = writeEpochs.current(cacheKey);
+                try {
+                    final Versioned<V> current = delegate().get(key);
+                    if (current == null) {
+                        cache.remove(cacheKey, cached);
+                    } else if (!current.getVersion().equals(VersionedCodec.decodeVersion(cached))) {
+                        final byte[] encoded = codec.encode(current);
+                        if (encoded == null) {
+                            cache.remove(cacheKey, cached);
+                        } else if (cache.replace(cacheKey, cached, encoded)
+                                && !writeEpochs.isCurrent(cacheKey, epoch)) {
+                            // A write finished while the store was read: it may be newer.
+                            cache.remove(cacheKey, encoded);
+                        }
+                    }
+                } catch (final IOException iox) {
+                    log.warn("Unable to update cache " + cache + " with revalidated entry", iox);
+                } catch (final RuntimeException ex) {
+                    log.warn("Unable to revalidate cache entry; removing it", ex);
+                    uncache(cacheKey, cached);
+                }
+            }
+        };
+        try {
+            this.revalidationExecutor.execute(revalidation);
+        } catch (final RejectedExecutionException rex) {
+            log.warn("Unable to schedule revalidation of cache entry; removing it", rex);
+            uncache(cacheKey, cached);
+        }
+    }
+
+    /**
+     * Cache a value read from the store after a miss, unless a value has
+     * been cached since, or a write of a key in the same stripe has finished
+     * since the given epoch was read: it may be newer than this value.
+     *
+     * @see WriteEpochs
+     */
+    private void fill(final byte[] cacheKey, final Versioned<V> versioned, final long epoch) {
+        final byte[] encoded = this.codec.encode(versioned);
+        if (encoded == null) {
+            return;
+        }
+        try {
+            if (this.cache.replace(cacheKey, null, encoded)
+                    && !this.writeEpochs.isCurrent(cacheKey, epoch)) {
+                this.cache.remove(cacheKey, encoded);
+            }
+        } catch (final IOException iox) {
+            log.warn("Unable to write to cache " + this.cache, iox);
+        }
+    }
+
+    /**
+     * Advance the write epoch of the given key, so that reads in progress
+     * don't cache the values they read, and invalidate its entry.
+     */
+    private void finishWrite(final byte[] cacheKey) {
+        this.writeEpochs.advance(cacheKey);
+        uncache(cacheKey);
+    }
+
+    /**
+     * Advance the write epoch of the given key, and cache the value just
+     * written, if any, unless another write of a key in the same stripe has
+     * finished since the given epoch was read: either may have been applied
+     * last, so invalidate the entry instead.
+     *
+     * @see WriteEpochs
+     */
+    private void finishWrite(final byte[] cacheKey, final long epoch, final Versioned<V> written) {
+        final long newEpoch = this.writeEpochs.advance(cacheKey);
+        final byte[] encoded = (written == null || newEpoch != epoch + 1L) ? null : this.codec.encode(written);
+        if (encoded == null) {
+            uncache(cacheKey);
+            return;
+        }
+        try {
+            this.cache.put(cacheKey, encoded);
+            if (!this.writeEpochs.isCurrent(cacheKey, newEpoch)) {
+                this.cache.remove(cacheKey, encoded);
+            }
+        } catch (final IOException iox) {
+            log.warn("Unable to write to cache " + this.cache, iox);
+            uncache(cacheKey);
+        }
+    }
+
+    private void uncache(final byte[] cacheKey) {
+        try {
+            this.cache.remove(cacheKey);
+        } catch (final IOException iox) {
+            log.warn("Unable to write to cache " + this.cache, iox);
+        }
+    }
+
+    private void uncache(final byte[] cacheKey, final byte[] expected) {
+        try {
+            this.cache.remove(cacheKey, expected);
+        } catch (final IOException iox) {
+            log.warn("Unable to write to cache " + this.cache, iox);
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.config.SmartOpCode;
+import crud.voldemort.metrics.HotKey;
+import crud.voldemort.metrics.HotKeyTracker;
+
+import voldemort.VoldemortException;
+
+
+/**
+ * Keeps the entries for a set of hot keys in a
+ * {@link StaleWhileRevalidateStoreClient} from ever expiring, so that reads
+ * of them never wait for the store. At a fixed interval, shorter than the
+ * client's soft TTL, all hot keys are re-read with batched
+ * {@code getAll()} calls, a bounded number at a time.
+ *
+ * Hot keys may be registered explicitly, discovered from a
+ * {@link HotKeyTracker}, or both. Before the service that owns the client
+ * reports itself ready, it can {@link #preload preload} a known set of
+ * keys, and wait for them to be loaded.
+ */
+public class RefreshAheadScheduler<K> implements Closeable {
+
+    private final StaleWhileRevalidateStoreClient<K, ?> client;
+    private final HotKeyTracker<K> hotKeyTracker;
+    private final int batchSize;
+    private final Set<K> registeredKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService batchExecutor;
+
+    private volatile boolean preloaded = false;
+    private final AtomicLong refreshCycles = new AtomicLong();
+    private final AtomicLong refreshedKeys = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+
+
+    public static <K> Builder<K> newBuilder(final StaleWhileRevalidateStoreClient<K, ?> client) {
+        return new Builder<>(client);
+    }
+
+    public void register(final K key) {
+        this.registeredKeys.add(Objects.requireNonNull(key));
+    }
+
+    public void registerAll(final Collection<? extends K> keys) {
+        for (final K key : keys) {
+            register(key);
+        }
+    }
+
+    public void unregister(final K key) {
+        this.registeredKeys.remove(key);
+    }
+
+    /**
+     * @return  the keys that will be refreshed in the next cycle: those
+     *          registered, plus the current top read keys of the
+     *          {@link HotKeyTracker}, if there is one.
+     */
+    public Set<K> getHotKeys() {
+        final Set<K> keys = new LinkedHashSet<>(this.registeredKeys);
+        if (this.hotKeyTracker != null) {
+            for (final HotKey<K> hotKey : this.hotKeyTracker.getTopKeys(SmartOpCode.GET_OP_CODE)) {
+                keys.add(hotKey.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Register the given keys, and load them into the cache, waiting until
+     * all are loaded. Thereafter, {@link #isPreloaded()} returns true.
+     *
+     * @throws TimeoutException     if the keys aren't all loaded within the
+     *          given time. Loading continues in the background.
+     * @throws VoldemortException   if any batch of keys fails to load.
+     */
+    public void preload(final Collection<? extends K> keys, final long timeout, final TimeUnit unit)
+    throws InterruptedException, TimeoutException {
+        registerAll(keys);
+        final List<K> keyList = new ArrayList<>(keys);
+        refresh(keyList, System.nanoTime() + unit.toNanos(timeout));
+        this.preloaded = true;
+    }
+
+    /**
+     * @return  true once a call to {@link #preload} has succeeded. Suitable
+     *          for use in a readiness check.
+     */
+    public boolean isPreloaded() {
+        return this.preloaded;
+    }
+
+    /**
+     * Refresh all hot keys now, rather than waiting for the next scheduled
+     * cycle, and wait for the refresh to complete.
+     *
+     * @throws VoldemortException   if any batch of keys fails to load.
+     */
+    public void refreshNow() throws InterruptedException {
+        try {
+            refresh(new ArrayList<>(getHotKeys()), Long.MAX_VALUE);
+        } catch (final TimeoutException tx) {
+            throw new AssertionError(tx);
+        }
+    }
+
+    public long getRefreshCycles() {
+        return this.refreshCycles.get();
+    }
+
+    public long getRefreshedKeyCount() {
+        return this.refreshedKeys.get();
+    }
+
+    public long getFailedBatchCount() {
+        return this.failedBatches.get();
+    }
+
+    /**
+     * Stop refreshing. The client is not closed.
+     */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+        this.batchExecutor.shutdownNow();
+    }
+
+    private RefreshAheadScheduler(final Builder<K> builder) {
+        this.client = builder.client;
+        this.hotKeyTracker = builder.hotKeyTracker;
+        this.batchSize = builder.batchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("scheduler"));
+        this.batchExecutor = Executors.newFixedThreadPool(builder.maxConcurrency, new DaemonThreadFactory("batch"));
+
+        final long intervalNanos = (builder.intervalNanos > 0L)
+                ? builder.intervalNanos
+                : TimeUnit.MILLISECONDS.toNanos(this.client.getSoftTtlMs()) * 4 / 5;
+        this.scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            refreshNow();
+                        } catch (final InterruptedException ix) {
+                            Thread.currentThread().interrupt();
+                        } catch (final RuntimeException ex) {
+                            // Counted already; don't let the schedule die.
+                        }
+                    }
+                },
+                intervalNanos,
+                Math.max(1L, intervalNanos),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Refresh the given keys in batches, at most
+     * {@link Builder#setMaxConcurrency(int) maxConcurrency} at a time, and
+     * wait for all of them.
+     */
+    private void refresh(final List<K> keys, final long deadlineNanos)
+    throws InterruptedException, TimeoutException {
+        this.refreshCycles.incrementAndGet();
+        final List<Future<?>> batches = new ArrayList<>();
+        for (int start = 0; start < keys.size(); start += this.batchSize) {
+            final List<K> batch = keys.subList(start, Math.min(keys.size(), start + this.batchSize));
+            batches.add(this.batchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.refreshAll(batch);
+                        refreshedKeys.addAndGet(batch.size());
+                    } catch (final RuntimeException ex) {
+                        failedBatches.incrementAndGet();
+                        throw ex;
+                    }
+                }
+            }));
+        }
+
+        RuntimeException failure = null;
+        for (final Future<?> batch : batches) {
+            try {
+                final long remaining = deadlineNanos - System.nanoTime();
+                if (deadlineNanos == Long.MAX_VALUE) {
+                    batch.get();
+                } else if (remaining <= 0L) {
+                    throw new TimeoutException("Timed out loading " + keys.size() + " keys");
+                } else {
+                    batch.get(remaining, TimeUnit.NANOSECONDS);
+                }
+            } catch (final ExecutionException ex) {
+                if (failure == null) {
+                    final Throwable cause = ex.getCause();
+                    failure = (cause instanceof RuntimeException)
+                            ? (RuntimeException) cause
+                            : new VoldemortException(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String role;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public DaemonThreadFactory(final String role) {
+            this.role = role;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(
+                    runnable,
+                    "RefreshAheadScheduler " + this.role + " " + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    public static final class Builder<K> {
+        public static final int DEFAULT_BATCH_SIZE = 100;
+        public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+        private final StaleWhileRevalidateStoreClient<K, ?> client;
+        private HotKeyTracker<K> hotKeyTracker = null;
+        private long intervalNanos = 0L;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+        private Builder(final StaleWhileRevalidateStoreClient<K, ?> client) {
+            this.client = Objects.requireNonNull(client);
+        }
+
+        /**
+         * Also refresh the keys that the given tracker reports as most
+         * frequently read. The tracker should observe the reads of the
+         * client being refreshed.
+         */
+        public Builder<K> setHotKeyTracker(final HotKeyTracker<K> tracker) {
+            this.hotKeyTracker = Objects.requireNonNull(tracker);
+            return this;
+        }
+
+        /**
+         * Set the delay between refresh cycles. By default, it's 80% of the
+         * client's soft TTL.
+         */
+        public Builder<K> setRefreshInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0L) {
+                throw new IllegalArgumentException("refresh interval " + interval + " <= 0");
+            }
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Set the maximum number of keys read by each {@code getAll()}.
+         */
+        public Builder<K> setBatchSize(final int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batch size " + batchSize + " <= 0");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of {@code getAll()} calls in flight at
+         * once.
+         */
+        public Builder<K> setMaxConcurrency(final int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("max concurrency " + maxConcurrency + " <= 0");
+            }
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Create the scheduler, and start refreshing.
+         */
+        public RefreshAheadScheduler<K> build() {
+            return new RefreshAheadScheduler<>(this);
+        }
+    }
+
+}
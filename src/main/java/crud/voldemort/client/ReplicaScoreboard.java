@@ -0,0 +1,247 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import voldemort.cluster.Node;
+
+
+/**
+ * Tracks an exponentially weighted moving average (EWMA) of the read latency
+ * of each node in a cluster, and ranks replicas accordingly: first by
+ * whether they are in the client's zone, then by whether they have failed
+ * recently, and finally by latency score. Ties preserve the order of the
+ * preference list provided by Voldemort.
+ *
+ * Instances are thread-safe; scores are updated without locking.
+ */
+public final class ReplicaScoreboard implements ReplicaScoreboardMXBean {
+
+    public static final double DEFAULT_SMOOTHING_FACTOR = 0.2;
+    public static final long DEFAULT_FAILURE_PENALTY_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final int clientZoneId;
+    private final double smoothingFactor;
+    private final long failurePenaltyNanos;
+    private final ConcurrentMap<Integer, NodeScore> scores = new ConcurrentHashMap<>();
+
+
+    public ReplicaScoreboard(final int clientZoneId) {
+        this(clientZoneId, DEFAULT_SMOOTHING_FACTOR, DEFAULT_FAILURE_PENALTY_MS);
+    }
+
+    /**
+     * @param smoothingFactor   The weight, in (0, 1], given to each new
+     *                          sample relative to the accumulated average.
+     * @param failurePenaltyMs  The length of time after a failure during
+     *                          which a node will be ranked behind all healthy
+     *                          nodes in the same zone.
+     */
+    public ReplicaScoreboard(
+            final int clientZoneId,
+            final double smoothingFactor,
+            final long failurePenaltyMs) {
+        if (smoothingFactor <= 0.0 || smoothingFactor > 1.0) {
+            throw new IllegalArgumentException("smoothing factor " + smoothingFactor + " not in (0, 1]");
+        }
+        if (failurePenaltyMs < 0L) {
+            throw new IllegalArgumentException("negative failure penalty " + failurePenaltyMs);
+        }
+        this.clientZoneId = clientZoneId;
+        this.smoothingFactor = smoothingFactor;
+        this.failurePenaltyNanos = TimeUnit.MILLISECONDS.toNanos(failurePenaltyMs);
+    }
+
+    public int getClientZoneId() {
+        return this.clientZoneId;
+    }
+
+    /**
+     * Return a copy of the given preference list, sorted from most to least
+     * preferred.
+     */
+    public List<Node> rank(final List<Node> preferenceList) {
+        final List<Node> ranked = new ArrayList<>(preferenceList);
+        if (ranked.size() > 1) {
+            final long now = System.nanoTime();
+            // Collections.sort() is stable, so ties keep preference-list order.
+            Collections.sort(ranked, new Comparator<Node>() {
+                @Override
+                public int compare(final Node left, final Node right) {
+                    return compareNodes(left, right, now);
+                }
+            });
+        }
+        return ranked;
+    }
+
+    /**
+     * @return  true if the given node has not failed within the failure
+     *          penalty period.
+     */
+    public boolean isHealthy(final Node node) {
+        final NodeScore score = this.scores.get(node.getId());
+        return score == null || score.isHealthy(System.nanoTime());
+    }
+
+    public void recordSuccess(final Node node, final long latencyNanos) {
+        scoreOf(node.getId()).update(latencyNanos, this.smoothingFactor);
+    }
+
+    public void recordFailure(final Node node) {
+        scoreOf(node.getId()).fail(System.nanoTime() + this.failurePenaltyNanos);
+    }
+
+    @Override
+    public Map<Integer, Double> getNodeLatencyScoresMs() {
+        final Map<Integer, Double> result = new TreeMap<>();
+        for (final Map.Entry<Integer, NodeScore> entry : this.scores.entrySet()) {
+            final double ewmaNanos = entry.getValue().ewmaNanos();
+            if (!Double.isNaN(ewmaNanos)) {
+                result.put(entry.getKey(), ewmaNanos / TimeUnit.MILLISECONDS.toNanos(1L));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] getUnhealthyNodeIds() {
+        final long now = System.nanoTime();
+        final List<Integer> unhealthy = new ArrayList<>();
+        for (final Map.Entry<Integer, NodeScore> entry : this.scores.entrySet()) {
+            if (!entry.getValue().isHealthy(now)) {
+                unhealthy.add(entry.getKey());
+            }
+        }
+        Collections.sort(unhealthy);
+        final int[] result = new int[unhealthy.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = unhealthy.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public double getSmoothingFactor() {
+        return this.smoothingFactor;
+    }
+
+    @Override
+    public long getFailurePenaltyMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.failurePenaltyNanos);
+    }
+
+    @Override
+    public void reset() {
+        this.scores.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [clientZoneId=" + this.clientZoneId
+                + ", nodeLatencyScoresMs=" + getNodeLatencyScoresMs()
+                + "]";
+    }
+
+    private int compareNodes(final Node left, final Node right, final long now) {
+        final boolean leftLocal = left.getZoneId() == this.clientZoneId;
+        final boolean rightLocal = right.getZoneId() == this.clientZoneId;
+        if (leftLocal != rightLocal) {
+            return leftLocal ? -1 : 1;
+        }
+
+        final NodeScore leftScore = this.scores.get(left.getId());
+        final NodeScore rightScore = this.scores.get(right.getId());
+        final boolean leftHealthy = leftScore == null || leftScore.isHealthy(now);
+        final boolean rightHealthy = rightScore == null || rightScore.isHealthy(now);
+        if (leftHealthy != rightHealthy) {
+            return leftHealthy ? -1 : 1;
+        }
+
+        /* Nodes without samples sort first, so that they acquire some
+         * samples; otherwise, a node that was once slow could never be
+         * rediscovered.
+         */
+        final double leftEwma = (leftScore == null) ? 0.0 : leftScore.ewmaNanosOrZero();
+        final double rightEwma = (rightScore == null) ? 0.0 : rightScore.ewmaNanosOrZero();
+        return Double.compare(leftEwma, rightEwma);
+    }
+
+    private NodeScore scoreOf(final int nodeId) {
+        NodeScore score = this.scores.get(nodeId);
+        if (score == null) {
+            final NodeScore newScore = new NodeScore();
+            score = this.scores.putIfAbsent(nodeId, newScore);
+            if (score == null) {
+                score = newScore;
+            }
+        }
+        return score;
+    }
+
+
+    private static final class NodeScore {
+        /**
+         * The raw bits of a {@code double} moving average, in nanoseconds,
+         * so that it can be updated with compare-and-set.
+         */
+        private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+        private volatile long penalizedUntilNanos = Long.MIN_VALUE;
+        private volatile boolean everFailed = false;
+
+        public void update(final long sampleNanos, final double smoothingFactor) {
+            while (true) {
+                final long oldBits = this.ewmaBits.get();
+                final double oldEwma = Double.longBitsToDouble(oldBits);
+                final double newEwma = Double.isNaN(oldEwma)
+                        ? sampleNanos
+                        : oldEwma + smoothingFactor * (sampleNanos - oldEwma);
+                if (this.ewmaBits.compareAndSet(oldBits, Double.doubleToRawLongBits(newEwma))) {
+                    return;
+                }
+            }
+        }
+
+        public void fail(final long penalizedUntil) {
+            this.penalizedUntilNanos = penalizedUntil;
+            this.everFailed = true;
+        }
+
+        public boolean isHealthy(final long now) {
+            return !this.everFailed || now - this.penalizedUntilNanos >= 0L;
+        }
+
+        public double ewmaNanos() {
+            return Double.longBitsToDouble(this.ewmaBits.get());
+        }
+
+        public double ewmaNanosOrZero() {
+            final double ewma = ewmaNanos();
+            return Double.isNaN(ewma) ? 0.0 : ewma;
+        }
+    }
+
+}
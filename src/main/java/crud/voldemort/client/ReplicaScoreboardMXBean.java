@@ -0,0 +1,48 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Map;
+
+
+/**
+ * The JMX view of a {@link ReplicaScoreboard}.
+ */
+public interface ReplicaScoreboardMXBean {
+
+    /**
+     * @return  the exponentially weighted moving average of the read
+     *          latency, in milliseconds, of each node for which at least one
+     *          sample has been recorded, keyed by node ID.
+     */
+    Map<Integer, Double> getNodeLatencyScoresMs();
+
+    /**
+     * @return  the IDs of the nodes that are currently considered unhealthy
+     *          because of a recent failure.
+     */
+    int[] getUnhealthyNodeIds();
+
+    double getSmoothingFactor();
+
+    long getFailurePenaltyMs();
+
+    /**
+     * Forget all recorded samples, returning all nodes to their initial
+     * state.
+     */
+    void reset();
+
+}
@@ -0,0 +1,73 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+
+/**
+ * The JMX view of a {@link StaleWhileRevalidateStoreClient}.
+ */
+public interface StaleReadMXBean {
+
+    /**
+     * @return  the number of reads answered from the cache within the soft
+     *          TTL.
+     */
+    long getFreshHits();
+
+    /**
+     * @return  the number of reads answered from the cache between the soft
+     *          and hard TTLs, each of which triggered a background refresh.
+     */
+    long getStaleWhileRevalidateServes();
+
+    /**
+     * @return  the number of reads answered from the cache because the
+     *          store failed.
+     */
+    long getStaleOnErrorServes();
+
+    /**
+     * @return  the number of reads answered from the cache because the
+     *          store didn't respond within the fallback timeout.
+     */
+    long getStaleOnTimeoutServes();
+
+    /**
+     * @return  the number of reads that waited for the store.
+     */
+    long getMisses();
+
+    long getRefreshFailures();
+
+    /**
+     * @return  the median age, in milliseconds, of the stale values served.
+     */
+    long getStaleServedAgeMedianMs();
+
+    long getStaleServedAge99thPercentileMs();
+
+    long getStaleServedAgeMaxMs();
+
+    int getCacheSize();
+
+    long getSoftTtlMs();
+
+    long getHardTtlMs();
+
+    long getMaxStalenessMs();
+
+    void clearCache();
+
+}
@@ -0,0 +1,599 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import crud.voldemort.metrics.Histogram;
+import crud.voldemort.metrics.MBeans;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that caches the results of reads, and prefers
+ * serving a slightly stale value to failing or waiting:
+ * <ul>
+ *  <li>Within the <em>soft TTL</em> of being read, a cached value is
+ *      returned without contacting the store.</li>
+ *  <li>Between the soft and <em>hard TTL</em>s, the cached value is
+ *      returned immediately, and refreshed in the background.</li>
+ *  <li>Beyond the hard TTL, the read waits for the store. But if the
+ *      store fails, or doesn't respond within the <em>fallback
+ *      timeout</em>, a cached value no older than the <em>maximum
+ *      staleness</em> is returned instead. A timed-out read continues in
+ *      the background, and updates the cache when it completes.</li>
+ * </ul>
+ * Reads of absent keys are cached in the same way. Concurrent refreshes
+ * of the same key are coalesced. Writes and deletes through this client
+ * invalidate the cached results for their keys, both before and after
+ * writing. Each write also advances a write epoch, shared by the keys that
+ * hash alike; a read or refresh caches its result only if no write of a
+ * similarly hashed key finished while it was in progress, so that a
+ * refresh racing with a write can't cache the value it replaced.
+ *
+ * Since only {@link #get(Object)} and the methods based on it are cached,
+ * this client is intended for use with
+ * {@link crud.voldemort.VoldemortResourceProvider}, whose resources read
+ * with {@code get()}.
+ */
+public class StaleWhileRevalidateStoreClient<K, V> extends ForwardingStoreClient<K, V>
+implements StaleReadMXBean, Closeable {
+
+    public static final String MBEAN_TYPE = "StaleWhileRevalidate";
+
+    private final Executor refreshExecutor;
+    private final long softTtlNanos;
+    private final long hardTtlNanos;
+    private final long maxStalenessNanos;
+    private final long fallbackTimeoutNanos;
+    private final int maxSize;
+    private final ObjectName mbeanName;
+
+    private final ConcurrentMap<K, Entry<V>> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, Future<Versioned<V>>> refreshes = new ConcurrentHashMap<>();
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+
+    private final AtomicLong freshHits = new AtomicLong();
+    private final AtomicLong staleWhileRevalidateServes = new AtomicLong();
+    private final AtomicLong staleOnErrorServes = new AtomicLong();
+    private final AtomicLong staleOnTimeoutServes = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final Histogram staleServedAgeMs = new Histogram();
+
+
+    /**
+     * @param refreshExecutor   Runs background refreshes, and reads subject
+     *                          to the fallback timeout. It must not run
+     *                          tasks on the calling thread.
+     */
+    public static <K, V> Builder<K, V> newBuilder(
+            final StoreClient<K, V> delegate,
+            final Executor refreshExecutor) {
+        return new Builder<>(delegate, refreshExecutor);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final long now = System.nanoTime();
+        final Entry<V> entry = this.cache.get(key);
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            final long epoch = this.writeEpochs.current(key);
+            final Versioned<V> versioned = super.get(key);
+            remember(key, versioned, System.nanoTime(), epoch);
+            return copyOf(versioned);
+        }
+
+        final long age = now - entry.readNanos;
+        if (age < this.softTtlNanos) {
+            this.freshHits.incrementAndGet();
+            return copyOf(entry.versioned);
+        }
+        if (age < this.hardTtlNanos) {
+            try {
+                refresh(key);
+            } catch (final RejectedExecutionException rex) {
+                this.refreshFailures.incrementAndGet();
+            }
+            this.staleWhileRevalidateServes.incrementAndGet();
+            return serveStale(entry, age);
+        }
+
+        this.misses.incrementAndGet();
+        try {
+            final Future<Versioned<V>> refresh = refresh(key);
+            final Versioned<V> versioned = (this.fallbackTimeoutNanos > 0L)
+                    ? refresh.get(this.fallbackTimeoutNanos, TimeUnit.NANOSECONDS)
+                    : refresh.get();
+            return copyOf(versioned);
+        } catch (final TimeoutException tx) {
+            if (age < this.maxStalenessNanos) {
+                this.staleOnTimeoutServes.incrementAndGet();
+                return serveStale(entry, age);
+            }
+            // Too old to serve: wait it out.
+            return copyOf(awaitRefresh(key));
+        } catch (final ExecutionException | RejectedExecutionException ex) {
+            if (age < this.maxStalenessNanos) {
+                this.staleOnErrorServes.incrementAndGet();
+                return serveStale(entry, age);
+            }
+            throw asRuntimeException((ex instanceof ExecutionException) ? ex.getCause() : ex);
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new VoldemortException("Interrupted awaiting " + key, ix);
+        }
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        this.cache.remove(key);
+        try {
+            return super.put(key, value);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        this.cache.remove(key);
+        try {
+            return super.put(key, value, transforms);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        this.cache.remove(key);
+        try {
+            return super.put(key, versioned);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        this.cache.remove(key);
+        try {
+            return super.putIfNotObsolete(key, versioned);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public boolean delete(final K key) {
+        this.cache.remove(key);
+        try {
+            return super.delete(key);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        this.cache.remove(key);
+        try {
+            return super.delete(key, version);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    /**
+     * Read the given keys from the store with a single {@code getAll()},
+     * and cache the results, including the absence of any keys not found.
+     * This is the means by which a {@link RefreshAheadScheduler} keeps
+     * entries from expiring.
+     */
+    public void refreshAll(final Collection<K> keys) {
+        final Map<K, Long> epochs = new HashMap<>();
+        for (final K key : keys) {
+            epochs.put(key, this.writeEpochs.current(key));
+        }
+        final Map<K, Versioned<V>> results = delegate().getAll(keys);
+        final long now = System.nanoTime();
+        for (final Map.Entry<K, Long> epoch : epochs.entrySet()) {
+            final K key = epoch.getKey();
+            remember(key, results.get(key), now, epoch.getValue());
+        }
+    }
+
+    @Override
+    public long getFreshHits() {
+        return this.freshHits.get();
+    }
+
+    @Override
+    public long getStaleWhileRevalidateServes() {
+        return this.staleWhileRevalidateServes.get();
+    }
+
+    @Override
+    public long getStaleOnErrorServes() {
+        return this.staleOnErrorServes.get();
+    }
+
+    @Override
+    public long getStaleOnTimeoutServes() {
+        return this.staleOnTimeoutServes.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return this.refreshFailures.get();
+    }
+
+    /**
+     * @return  the live histogram of the ages, in milliseconds, of the stale
+     *          values served.
+     */
+    public Histogram getStaleServedAges() {
+        return this.staleServedAgeMs;
+    }
+
+    @Override
+    public long getStaleServedAgeMedianMs() {
+        return this.staleServedAgeMs.getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getStaleServedAge99thPercentileMs() {
+        return this.staleServedAgeMs.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getStaleServedAgeMaxMs() {
+        return this.staleServedAgeMs.getMax();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return this.cache.size();
+    }
+
+    @Override
+    public long getSoftTtlMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.softTtlNanos);
+    }
+
+    @Override
+    public long getHardTtlMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.hardTtlNanos);
+    }
+
+    @Override
+    public long getMaxStalenessMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxStalenessNanos);
+    }
+
+    @Override
+    public void clearCache() {
+        this.cache.clear();
+    }
+
+    /**
+     * Unregister from JMX, if registered. The refresh executor is the
+     * caller's to shut down.
+     */
+    @Override
+    public void close() {
+        if (this.mbeanName != null) {
+            MBeans.unregister(this.mbeanName);
+        }
+    }
+
+    private StaleWhileRevalidateStoreClient(final Builder<K, V> builder) {
+        super(builder.delegate);
+        this.refreshExecutor = builder.refreshExecutor;
+        this.softTtlNanos = builder.softTtlNanos;
+        this.hardTtlNanos = builder.hardTtlNanos;
+        this.maxStalenessNanos = builder.maxStalenessNanos;
+        this.fallbackTimeoutNanos = builder.fallbackTimeoutNanos;
+        this.maxSize = builder.maxSize;
+        this.mbeanName = (builder.jmxName != null)
+                ? MBeans.register(this, MBEAN_TYPE, builder.jmxName)
+                : null;
+    }
+
+    /**
+     * Start reading the given key in the background, unless a read of it
+     * is already in progress.
+     *
+     * @return  the read in progress.
+     *
+     * @throws RejectedExecutionException   if the executor refuses the read.
+     */
+    private Future<Versioned<V>> refresh(final K key) {
+        final FutureTask<Versioned<V>> task = new FutureTask<>(new Callable<Versioned<V>>() {
+            @Override
+            public Versioned<V> call() {
+                final long epoch = writeEpochs.current(key);
+                try {
+                    final Versioned<V> versioned = delegate().get(key);
+                    remember(key, versioned, System.nanoTime(), epoch);
+                    return versioned;
+                } catch (final RuntimeException ex) {
+                    refreshFailures.incrementAndGet();
+                    throw ex;
+                } finally {
+                    refreshes.remove(key);
+                }
+            }
+        });
+        final Future<Versioned<V>> existing = this.refreshes.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            this.refreshExecutor.execute(task);
+        } catch (final RejectedExecutionException rex) {
+            this.refreshes.remove(key, task);
+            throw rex;
+        }
+        return task;
+    }
+
+    private Versioned<V> awaitRefresh(final K key) {
+        final Future<Versioned<V>> refresh = this.refreshes.get(key);
+        if (refresh == null) {
+            // Finished in the meantime:
+            return super.get(key);
+        }
+        try {
+            return refresh.get();
+        } catch (final ExecutionException ex) {
+            throw asRuntimeException(ex.getCause());
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new VoldemortException("Interrupted awaiting " + key, ix);
+        }
+    }
+
+    private Versioned<V> serveStale(final Entry<V> entry, final long ageNanos) {
+        this.staleServedAgeMs.record(TimeUnit.NANOSECONDS.toMillis(ageNanos));
+        return copyOf(entry.versioned);
+    }
+
+    /**
+     * Cache the given result of reading the given key, unless a write of a
+     * key in the same stripe has finished since the given epoch was read:
+     * it may have written this key after the result was read.
+     *
+     * @see WriteEpochs
+     */
+    private void remember(final K key, final Versioned<V> versioned, final long now, final long epoch) {
+        if (this.maxSize == 0) {
+            return;
+        }
+        if (this.cache.size() >= this.maxSize && !this.cache.containsKey(key)) {
+            makeRoom(now);
+        }
+        final Entry<V> entry = new Entry<>(versioned, now);
+        this.cache.put(key, entry);
+        if (!this.writeEpochs.isCurrent(key, epoch)) {
+            this.cache.remove(key, entry);
+        }
+    }
+
+    /**
+     * Advance the key's write epoch, so that reads in progress don't cache
+     * what they read, and then forget any such read that already has.
+     */
+    private void finishWrite(final K key) {
+        this.writeEpochs.advance(key);
+        this.cache.remove(key);
+    }
+
+    /**
+     * Remove the entries too old to be served even on error, and if that
+     * doesn't free any space, the oldest entry.
+     */
+    private void makeRoom(final long now) {
+        K oldestKey = null;
+        Entry<V> oldest = null;
+        boolean purged = false;
+        final Iterator<Map.Entry<K, Entry<V>>> entries = this.cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<K, Entry<V>> next = entries.next();
+            final Entry<V> entry = next.getValue();
+            if (now - entry.readNanos >= this.maxStalenessNanos) {
+                entries.remove();
+                purged = true;
+            } else if (oldest == null || entry.readNanos - oldest.readNanos < 0L) {
+                oldestKey = next.getKey();
+                oldest = entry;
+            }
+        }
+        if (!purged && oldest != null) {
+            this.cache.remove(oldestKey, oldest);
+        }
+    }
+
+    /**
+     * Callers may mutate the {@link Versioned}s they're given; don't let
+     * them mutate the cache.
+     */
+    private static <V> Versioned<V> copyOf(final Versioned<V> versioned) {
+        return (versioned == null) ? null : versioned.cloneVersioned();
+    }
+
+    private static RuntimeException asRuntimeException(final Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new VoldemortException(cause);
+        }
+    }
+
+
+    private static final class Entry<V> {
+        public final Versioned<V> versioned;
+        public final long readNanos;
+
+        public Entry(final Versioned<V> versioned, final long readNanos) {
+            this.versioned = versioned;
+            this.readNanos = readNanos;
+        }
+    }
+
+
+    public static final class Builder<K, V> {
+        public static final long DEFAULT_SOFT_TTL_MS = TimeUnit.SECONDS.toMillis(5);
+        public static final long DEFAULT_HARD_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+        public static final long DEFAULT_MAX_STALENESS_MS = TimeUnit.MINUTES.toMillis(10);
+        public static final int DEFAULT_MAX_SIZE = 10000;
+
+        private final StoreClient<K, V> delegate;
+        private final Executor refreshExecutor;
+        private long softTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SOFT_TTL_MS);
+        private long hardTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HARD_TTL_MS);
+        private long maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_STALENESS_MS);
+        private long fallbackTimeoutNanos = 0L;
+        private int maxSize = DEFAULT_MAX_SIZE;
+        private String jmxName = null;
+
+        private Builder(final StoreClient<K, V> delegate, final Executor refreshExecutor) {
+            this.delegate = Objects.requireNonNull(delegate);
+            this.refreshExecutor = Objects.requireNonNull(refreshExecutor);
+        }
+
+        /**
+         * @param soft  Cached values younger than this are served without
+         *              contacting the store.
+         * @param hard  Cached values younger than this, but older than
+         *              {@code soft}, are served while being refreshed in
+         *              the background. Older values are served only as a
+         *              fallback.
+         */
+        public Builder<K, V> setTtls(final long soft, final long hard, final TimeUnit unit) {
+            if (soft < 0L || hard < soft) {
+                throw new IllegalArgumentException("Need 0 <= soft TTL " + soft + " <= hard TTL " + hard);
+            }
+            this.softTtlNanos = unit.toNanos(soft);
+            this.hardTtlNanos = unit.toNanos(hard);
+            return this;
+        }
+
+        /**
+         * Cached values older than this are never served, even if the store
+         * fails. It should be at least the hard TTL.
+         */
+        public Builder<K, V> setMaxStaleness(final long maxStaleness, final TimeUnit unit) {
+            if (maxStaleness < 0L) {
+                throw new IllegalArgumentException("max staleness " + maxStaleness + " < 0");
+            }
+            this.maxStalenessNanos = unit.toNanos(maxStaleness);
+            return this;
+        }
+
+        /**
+         * When a cached value has passed its hard TTL, wait at most this
+         * long for the store before serving the cached value instead. It
+         * should be well under the client's own GET timeout. The default,
+         * zero, waits for the store to respond or fail.
+         */
+        public Builder<K, V> setFallbackTimeout(final long timeout, final TimeUnit unit) {
+            if (timeout < 0L) {
+                throw new IllegalArgumentException("fallback timeout " + timeout + " < 0");
+            }
+            this.fallbackTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Bound the number of keys cached. To cache another key when full,
+         * the client drops the entries too old to serve, or if there are
+         * none, the oldest entry.
+         */
+        public Builder<K, V> setMaxSize(final int maxSize) {
+            if (maxSize < 0) {
+                throw new IllegalArgumentException("negative max size " + maxSize);
+            }
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Register the client with JMX under the given name.
+         */
+        public Builder<K, V> setJmxName(final String name) {
+            this.jmxName = Objects.requireNonNull(name);
+            return this;
+        }
+
+        public StaleWhileRevalidateStoreClient<K, V> build() {
+            if (this.maxStalenessNanos < this.hardTtlNanos) {
+                throw new IllegalStateException("max staleness < hard TTL");
+            }
+            return new StaleWhileRevalidateStoreClient<>(this);
+        }
+    }
+
+}
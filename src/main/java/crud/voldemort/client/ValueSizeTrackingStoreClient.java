@@ -0,0 +1,129 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Map;
+import java.util.Objects;
+
+import crud.voldemort.metrics.ValueSizeTracker;
+import crud.voldemort.metrics.ValueTooLargeException;
+
+import voldemort.client.StoreClient;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that records the size of every value read and
+ * written in a {@link ValueSizeTracker}. Writes that exceed the tracker's
+ * hard limit fail with a {@link ValueTooLargeException} without reaching
+ * the store.
+ */
+public class ValueSizeTrackingStoreClient<K, V> extends ForwardingStoreClient<K, V> {
+
+    private final ValueSizeTracker<? super V> tracker;
+
+
+    public ValueSizeTrackingStoreClient(final StoreClient<K, V> delegate, final ValueSizeTracker<? super V> tracker) {
+        super(delegate);
+        this.tracker = Objects.requireNonNull(tracker);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final V value = super.getValue(key);
+        this.tracker.recordRead(key, value);
+        return value;
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final V value = super.getValue(key, defaultValue);
+        // The default, returned for an absent key, wasn't read from the store:
+        if (value != defaultValue) {
+            this.tracker.recordRead(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final Versioned<V> versioned = super.get(key);
+        recordRead(key, versioned);
+        return versioned;
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Object transforms) {
+        final Versioned<V> versioned = super.get(key, transforms);
+        recordRead(key, versioned);
+        return versioned;
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        return recordReads(super.getAll(keys));
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys, final Map<K, Object> transforms) {
+        return recordReads(super.getAll(keys, transforms));
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        this.tracker.recordWrite(key, value);
+        return super.put(key, value);
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        this.tracker.recordWrite(key, value);
+        return super.put(key, value, transforms);
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        this.tracker.recordWrite(key, versioned.getValue());
+        return super.put(key, versioned);
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        this.tracker.recordWrite(key, versioned.getValue());
+        return super.putIfNotObsolete(key, versioned);
+    }
+
+    private void recordRead(final K key, final Versioned<V> versioned) {
+        if (versioned != null) {
+            this.tracker.recordRead(key, versioned.getValue());
+        }
+    }
+
+    private Map<K, Versioned<V>> recordReads(final Map<K, Versioned<V>> results) {
+        for (final Map.Entry<K, Versioned<V>> entry : results.entrySet()) {
+            recordRead(entry.getKey(), entry.getValue());
+        }
+        return results;
+    }
+
+}
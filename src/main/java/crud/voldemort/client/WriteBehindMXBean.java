@@ -0,0 +1,60 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+
+/**
+ * The JMX view of a {@link WriteBehindStoreClient}.
+ */
+public interface WriteBehindMXBean {
+
+    /**
+     * @return  the number of distinct keys with writes that have been
+     *          journaled but not yet flushed to the store.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return  the age, in milliseconds, of the oldest write that has not
+     *          yet been flushed to the store, or zero if there is none.
+     */
+    long getLagMs();
+
+    /**
+     * @return  the number of writes that were superseded by later writes to
+     *          the same key before they could be flushed.
+     */
+    long getCollapsedWriteCount();
+
+    long getFlushedWriteCount();
+
+    long getFailedWriteCount();
+
+    long getFlushCount();
+
+    long getLastFlushDurationMs();
+
+    /**
+     * @return  the number of writes per second achieved by the most recent
+     *          non-empty flush.
+     */
+    double getLastFlushThroughputPerSecond();
+
+    /**
+     * Flush all pending writes now, on the calling thread.
+     */
+    void flush();
+
+}
@@ -0,0 +1,517 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.serialization.Serializer;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that acknowledges writes and deletes as soon as they
+ * are appended to a local journal, and applies them to the store later, in
+ * batches, on a background thread.
+ *
+ * Repeated writes to the same key between flushes are collapsed, so that
+ * only the last is sent to the store. Reads through this client observe
+ * pending writes. If the process crashes, the journal is replayed when the
+ * next instance is built on the same directory.
+ *
+ * This mode is intended for data, such as counters and timestamps, for
+ * which the last write may win. Pending writes are flushed with
+ * {@link StoreClient#put(Object, Object)}, and so ignore any version
+ * supplied by the caller. For the same reason, the {@link Version} returned
+ * by a write is not assigned by the store: it's the version given by the
+ * caller, or else an empty {@link VectorClock}. Writes with transforms and
+ * deletes of specific versions flush all pending writes and then execute
+ * synchronously.
+ *
+ * Lag is bounded in two ways: pending writes are flushed at a fixed
+ * interval, and a write that would exceed the maximum number of pending
+ * keys first flushes synchronously.
+ */
+public class WriteBehindStoreClient<K, V> extends ForwardingStoreClient<K, V>
+implements WriteBehindMXBean, Closeable {
+
+    private static final Logger log = Logger.getLogger(WriteBehindStoreClient.class);
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int maxPendingKeys;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Guards {@link #journal}, {@link #pending}, {@link #flushing}, and
+     * {@link #pendingSinceNanos}.
+     */
+    private final Object lock = new Object();
+    private final WriteJournal journal;
+    private Map<K, Pending<V>> pending = new HashMap<>();
+    /**
+     * Writes that have been taken from {@link #pending} by a flush in
+     * progress, and so are not yet in the store.
+     */
+    private Map<K, Pending<V>> flushing = Collections.emptyMap();
+    private long pendingSinceNanos = 0L;
+
+    /**
+     * Ensures that only one flush runs at a time, so that writes to the
+     * same key reach the store in order.
+     */
+    private final Object flushLock = new Object();
+
+    private final AtomicLong collapsedWrites = new AtomicLong();
+    private final AtomicLong flushedWrites = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile long lastFlushDurationNanos = 0L;
+    private volatile double lastFlushThroughput = 0.0;
+
+
+    public static <K, V> Builder<K, V> newBuilder(
+            final StoreClient<K, V> delegate,
+            final File journalDirectory,
+            final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer) {
+        return new Builder<>(delegate, journalDirectory, keySerializer, valueSerializer);
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final Pending<V> write = pendingWrite(key);
+        if (write != null) {
+            return write.toVersioned();
+        }
+        return super.get(key);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public Map<K, Versioned<V>> getAll(final Iterable<K> keys) {
+        final Map<K, Versioned<V>> result = new HashMap<>();
+        final List<K> unwritten = new ArrayList<>();
+        for (final K key : keys) {
+            final Pending<V> write = pendingWrite(key);
+            if (write == null) {
+                unwritten.add(key);
+            } else if (!write.isDelete()) {
+                result.put(key, write.toVersioned());
+            }
+        }
+        if (!unwritten.isEmpty()) {
+            result.putAll(super.getAll(unwritten));
+        }
+        return result;
+    }
+
+    @Override
+    public Version put(final K key, final V value) {
+        enqueue(key, new Pending<>(value, false));
+        return new VectorClock();
+    }
+
+    @Override
+    public Version put(final K key, final V value, final Object transforms) {
+        flush();
+        return super.put(key, value, transforms);
+    }
+
+    @Override
+    public Version put(final K key, final Versioned<V> versioned) throws ObsoleteVersionException {
+        enqueue(key, new Pending<>(versioned.getValue(), false));
+        return versioned.getVersion();
+    }
+
+    @Override
+    public boolean putIfNotObsolete(final K key, final Versioned<V> versioned) {
+        enqueue(key, new Pending<>(versioned.getValue(), false));
+        return true;
+    }
+
+    /**
+     * @return  true: whether the key actually existed is not known until
+     *          the delete is flushed.
+     */
+    @Override
+    public boolean delete(final K key) {
+        enqueue(key, new Pending<V>(null, true));
+        return true;
+    }
+
+    @Override
+    public boolean delete(final K key, final Version version) {
+        flush();
+        return super.delete(key, version);
+    }
+
+    @Override
+    public void flush() {
+        synchronized (this.flushLock) {
+            final Map<K, Pending<V>> batch;
+            final long newSegment;
+            synchronized (this.lock) {
+                if (this.pending.isEmpty()) {
+                    return;
+                }
+                // Rotate first: if it fails, the writes remain pending.
+                try {
+                    newSegment = this.journal.rotate();
+                } catch (final IOException iox) {
+                    throw new VoldemortException(iox);
+                }
+                batch = this.pending;
+                this.pending = new HashMap<>();
+                this.pendingSinceNanos = 0L;
+                this.flushing = batch;
+            }
+
+            final long start = System.nanoTime();
+            final Map<K, Pending<V>> failed = new HashMap<>();
+            for (final Map.Entry<K, Pending<V>> entry : batch.entrySet()) {
+                final K key = entry.getKey();
+                final Pending<V> write = entry.getValue();
+                try {
+                    if (write.isDelete()) {
+                        delegate().delete(key);
+                    } else {
+                        delegate().put(key, write.value);
+                    }
+                } catch (final RuntimeException ex) {
+                    failed.put(key, write);
+                }
+            }
+            final long duration = System.nanoTime() - start;
+
+            synchronized (this.lock) {
+                // Retry failures in the next flush, unless superseded.
+                final Map<K, Pending<V>> requeued = new HashMap<>();
+                for (final Map.Entry<K, Pending<V>> entry : failed.entrySet()) {
+                    if (!this.pending.containsKey(entry.getKey())) {
+                        if (this.pending.isEmpty()) {
+                            this.pendingSinceNanos = start;
+                        }
+                        this.pending.put(entry.getKey(), entry.getValue());
+                        requeued.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                this.flushing = Collections.emptyMap();
+                /* If journaling fails, the old segments remain, and the
+                 * requeued writes remain pending, so nothing is lost.
+                 */
+                try {
+                    for (final Map.Entry<K, Pending<V>> entry : requeued.entrySet()) {
+                        appendToJournal(entry.getKey(), entry.getValue());
+                    }
+                    this.journal.sync();
+                    this.journal.deleteBefore(newSegment);
+                } catch (final IOException iox) {
+                    throw new VoldemortException(iox);
+                }
+            }
+
+            final int succeeded = batch.size() - failed.size();
+            this.flushedWrites.addAndGet(succeeded);
+            this.failedWrites.addAndGet(failed.size());
+            this.flushes.incrementAndGet();
+            this.lastFlushDurationNanos = duration;
+            this.lastFlushThroughput = succeeded / Math.max(duration / 1e9, 1e-9);
+        }
+    }
+
+    /**
+     * Stop the background flushes, flush all pending writes, and close the
+     * journal. Any writes that fail to flush remain in the journal, and
+     * will be replayed the next time a client is built on it.
+     */
+    @Override
+    public void close() throws IOException {
+        this.flusher.shutdown();
+        try {
+            this.flusher.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (this.lock) {
+            this.journal.close();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        synchronized (this.lock) {
+            return this.pending.size() + this.flushing.size();
+        }
+    }
+
+    @Override
+    public long getLagMs() {
+        synchronized (this.lock) {
+            if (this.pending.isEmpty()) {
+                return 0L;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.pendingSinceNanos);
+        }
+    }
+
+    @Override
+    public long getCollapsedWriteCount() {
+        return this.collapsedWrites.get();
+    }
+
+    @Override
+    public long getFlushedWriteCount() {
+        return this.flushedWrites.get();
+    }
+
+    @Override
+    public long getFailedWriteCount() {
+        return this.failedWrites.get();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return this.flushes.get();
+    }
+
+    @Override
+    public long getLastFlushDurationMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.lastFlushDurationNanos);
+    }
+
+    @Override
+    public double getLastFlushThroughputPerSecond() {
+        return this.lastFlushThroughput;
+    }
+
+    private WriteBehindStoreClient(final Builder<K, V> builder) throws IOException {
+        super(builder.delegate);
+        this.keySerializer = builder.keySerializer;
+        this.valueSerializer = builder.valueSerializer;
+        this.maxPendingKeys = builder.maxPendingKeys;
+        this.journal = new WriteJournal(builder.journalDirectory, builder.syncEachAppend);
+        recover();
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "WriteBehindStoreClient flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flush();
+                        } catch (final RuntimeException ex) {
+                            // Don't let the schedule die; the next flush will retry.
+                            log.warn("Background flush failed", ex);
+                        }
+                    }
+                },
+                builder.flushIntervalNanos,
+                builder.flushIntervalNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Move writes left in the journal by a previous instance into the
+     * pending set, and into the new active journal segment.
+     */
+    private void recover() throws IOException {
+        synchronized (this.lock) {
+            final Map<ByteArray, byte[]> replayed = this.journal.replay();
+            for (final Map.Entry<ByteArray, byte[]> entry : replayed.entrySet()) {
+                final K key = this.keySerializer.toObject(entry.getKey().get());
+                final byte[] valueBytes = entry.getValue();
+                final Pending<V> write = (valueBytes == null)
+                        ? new Pending<V>(null, true)
+                        : new Pending<>(this.valueSerializer.toObject(valueBytes), false);
+                appendToJournal(key, write);
+                this.pending.put(key, write);
+            }
+            if (!this.pending.isEmpty()) {
+                this.pendingSinceNanos = System.nanoTime();
+            }
+            this.journal.sync();
+            this.journal.deleteBefore(this.journal.activeSegment());
+        }
+    }
+
+    private void enqueue(final K key, final Pending<V> write) {
+        boolean full;
+        synchronized (this.lock) {
+            full = this.pending.size() >= this.maxPendingKeys && !this.pending.containsKey(key);
+        }
+        if (full) {
+            // Apply back pressure rather than let the lag grow without bound.
+            flush();
+        }
+        synchronized (this.lock) {
+            try {
+                appendToJournal(key, write);
+            } catch (final IOException iox) {
+                throw new VoldemortException(iox);
+            }
+            if (this.pending.isEmpty()) {
+                this.pendingSinceNanos = System.nanoTime();
+            }
+            if (this.pending.put(key, write) != null) {
+                this.collapsedWrites.incrementAndGet();
+            }
+        }
+    }
+
+    private void appendToJournal(final K key, final Pending<V> write) throws IOException {
+        final byte[] keyBytes = this.keySerializer.toBytes(key);
+        if (write.isDelete()) {
+            this.journal.appendDelete(keyBytes);
+        } else {
+            this.journal.appendPut(keyBytes, this.valueSerializer.toBytes(write.value));
+        }
+    }
+
+    private Pending<V> pendingWrite(final K key) {
+        synchronized (this.lock) {
+            final Pending<V> write = this.pending.get(key);
+            return (write != null) ? write : this.flushing.get(key);
+        }
+    }
+
+
+    private static final class Pending<V> {
+        public final V value;
+        private final boolean delete;
+
+        public Pending(final V value, final boolean delete) {
+            this.value = value;
+            this.delete = delete;
+        }
+
+        public boolean isDelete() {
+            return this.delete;
+        }
+
+        /**
+         * @return  the pending value, or {@code null} if it's a delete.
+         */
+        public Versioned<V> toVersioned() {
+            return this.delete ? null : new Versioned<>(this.value);
+        }
+    }
+
+
+    public static final class Builder<K, V> {
+        public static final long DEFAULT_FLUSH_INTERVAL_MS = 100L;
+        public static final int DEFAULT_MAX_PENDING_KEYS = 10000;
+
+        private final StoreClient<K, V> delegate;
+        private final File journalDirectory;
+        private final Serializer<K> keySerializer;
+        private final Serializer<V> valueSerializer;
+        private long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FLUSH_INTERVAL_MS);
+        private int maxPendingKeys = DEFAULT_MAX_PENDING_KEYS;
+        private boolean syncEachAppend = false;
+
+        private Builder(
+                final StoreClient<K, V> delegate,
+                final File journalDirectory,
+                final Serializer<K> keySerializer,
+                final Serializer<V> valueSerializer) {
+            this.delegate = Objects.requireNonNull(delegate);
+            this.journalDirectory = Objects.requireNonNull(journalDirectory);
+            this.keySerializer = Objects.requireNonNull(keySerializer);
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        }
+
+        public Builder<K, V> setFlushInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0L) {
+                throw new IllegalArgumentException("flush interval " + interval + " <= 0");
+            }
+            this.flushIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public Builder<K, V> setMaxPendingKeys(final int maxPendingKeys) {
+            if (maxPendingKeys <= 0) {
+                throw new IllegalArgumentException("max pending keys " + maxPendingKeys + " <= 0");
+            }
+            this.maxPendingKeys = maxPendingKeys;
+            return this;
+        }
+
+        /**
+         * @param sync  If true, each write is forced to the storage device
+         *              before it is acknowledged. Otherwise, a crash of the
+         *              process will not lose acknowledged writes, but a
+         *              crash of the operating system may.
+         */
+        public Builder<K, V> setSyncEachAppend(final boolean sync) {
+            this.syncEachAppend = sync;
+            return this;
+        }
+
+        /**
+         * Open the journal, replay any writes left in it, and start
+         * flushing in the background.
+         */
+        public WriteBehindStoreClient<K, V> build() throws IOException {
+            return new WriteBehindStoreClient<>(this);
+        }
+    }
+
+}
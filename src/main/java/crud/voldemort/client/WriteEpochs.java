@@ -0,0 +1,70 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts the writes finished through a caching client, per stripe of keys,
+ * so that the client doesn't cache a result that a concurrent write may have
+ * made obsolete:
+ * <ul>
+ *  <li>A read notes the {@link #current(Object) current} epoch of its key
+ *      before reading from the store. After caching what it read, it
+ *      removes that entry again unless the epoch
+ *      {@link #isCurrent(Object, long) is still current}.</li>
+ *  <li>A write {@link #advance(Object) advances} the epoch of its key after
+ *      writing to the store, and only then updates or invalidates the
+ *      cache. So a write that finishes after a read's check replaces or
+ *      removes the read's entry itself.</li>
+ *  <li>A write that caches its own result does so only if it advanced the
+ *      epoch from the value it noted before writing, and removes the entry
+ *      again if the epoch moves on: otherwise, another write finished
+ *      while it was in progress, and either may have been applied last.</li>
+ * </ul>
+ * Keys that hash alike share a stripe, so a write occasionally keeps
+ * another key's read from being cached. {@code byte[]} keys are hashed by
+ * content, other keys by {@link Object#hashCode()}.
+ */
+/*package*/ final class WriteEpochs {
+
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray epochs = new AtomicLongArray(STRIPES);
+
+
+    public long current(final Object key) {
+        return this.epochs.get(stripeOf(key));
+    }
+
+    public boolean isCurrent(final Object key, final long epoch) {
+        return this.epochs.get(stripeOf(key)) == epoch;
+    }
+
+    /**
+     * @return  the key's new epoch.
+     */
+    public long advance(final Object key) {
+        return this.epochs.incrementAndGet(stripeOf(key));
+    }
+
+    private static int stripeOf(final Object key) {
+        final int hash = (key instanceof byte[]) ? Arrays.hashCode((byte[]) key) : key.hashCode();
+        return (hash & Integer.MAX_VALUE) % STRIPES;
+    }
+
+}
@@ -0,0 +1,269 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import voldemort.utils.ByteArray;
+
+
+/**
+ * An append-only journal of serialized writes and deletes, divided into
+ * numbered segment files in a single directory. The active segment can be
+ * {@linkplain #rotate() rotated}, so that older segments can be
+ * {@linkplain #deleteBefore(long) deleted} once their contents are known to
+ * be safely in the store.
+ *
+ * Each record is protected by a CRC; {@link #replay()} stops reading a
+ * segment at the first truncated or corrupt record, which can only be the
+ * result of a crash during the append.
+ *
+ * Not thread-safe: callers must synchronize.
+ */
+/*package*/ final class WriteJournal implements Closeable {
+
+    private static final Logger log = Logger.getLogger(WriteJournal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * Record length, CRC, type, key length.
+     */
+    private static final int RECORD_HEADER_BYTES = 13;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private final File directory;
+    private final boolean syncEachAppend;
+    private long activeSegment;
+    private FileChannel channel;
+
+
+    /**
+     * Open a journal in the given directory, creating the directory if
+     * necessary. Existing segments are left in place until they are
+     * {@linkplain #replay() replayed} and deleted; appends go to a new
+     * segment.
+     *
+     * @param syncEachAppend    If true, force each record to the storage
+     *                          device before returning from
+     *                          {@link #appendPut} or
+     *                          {@link #appendDelete}; otherwise, a crash of
+     *                          the operating system may lose the records
+     *                          written since the last {@link #sync()}.
+     */
+    public WriteJournal(final File directory, final boolean syncEachAppend) throws IOException {
+        this.directory = Objects.requireNonNull(directory);
+        this.syncEachAppend = syncEachAppend;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+        final List<Long> existing = segmentNumbers();
+        this.activeSegment = existing.isEmpty() ? 0L : existing.get(existing.size() - 1) + 1L;
+        this.channel = openSegment(this.activeSegment);
+    }
+
+    public void appendPut(final byte[] key, final byte[] value) throws IOException {
+        append(TYPE_PUT, key, value);
+    }
+
+    public void appendDelete(final byte[] key) throws IOException {
+        append(TYPE_DELETE, key, new byte[0]);
+    }
+
+    /**
+     * @return  the number of the segment to which records are currently
+     *          appended.
+     */
+    public long activeSegment() {
+        return this.activeSegment;
+    }
+
+    /**
+     * Begin a new active segment. If this fails, the current segment
+     * remains active, and the journal remains usable.
+     *
+     * @return  the number of the new segment. All records appended before
+     *          this call are in segments with lower numbers.
+     */
+    public long rotate() throws IOException {
+        this.channel.force(false);
+        final FileChannel newChannel = openSegment(this.activeSegment + 1L);
+        final FileChannel oldChannel = this.channel;
+        this.channel = newChannel;
+        ++this.activeSegment;
+        try {
+            oldChannel.close();
+        } catch (final IOException iox) {
+            // Its contents are already on disk, so only the descriptor is lost:
+            log.warn("Unable to close journal segment " + segmentFile(this.activeSegment - 1L), iox);
+        }
+        return this.activeSegment;
+    }
+
+    /**
+     * Delete all segments numbered lower than the given one.
+     */
+    public void deleteBefore(final long segment) throws IOException {
+        for (final Long number : segmentNumbers()) {
+            if (number < segment) {
+                final File file = segmentFile(number);
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("Can't delete journal segment " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read every record in every inactive segment, in the order in which
+     * they were written, and collapse them: the result maps each key to its
+     * most recent value, or to {@code null} if it was most recently
+     * deleted.
+     */
+    public Map<ByteArray, byte[]> replay() throws IOException {
+        final Map<ByteArray, byte[]> result = new LinkedHashMap<>();
+        for (final Long number : segmentNumbers()) {
+            if (number == this.activeSegment) {
+                continue;
+            }
+            try (final RandomAccessFile raf = new RandomAccessFile(segmentFile(number), "r")) {
+                final ByteBuffer buf = ByteBuffer.allocate((int) raf.length());
+                raf.getChannel().read(buf, 0L);
+                buf.flip();
+                replaySegment(buf, result);
+            }
+        }
+        return result;
+    }
+
+    public void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.force(false);
+        this.channel.close();
+    }
+
+    private void append(final byte type, final byte[] key, final byte[] value) throws IOException {
+        final int length = RECORD_HEADER_BYTES + key.length + value.length;
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(length);
+        buf.putInt(0);  // CRC placeholder
+        buf.put(type);
+        buf.putInt(key.length);
+        buf.put(key);
+        buf.put(value);
+        buf.putInt(4, crcOf(buf.array(), length));
+        buf.flip();
+        while (buf.hasRemaining()) {
+            this.channel.write(buf);
+        }
+        if (this.syncEachAppend) {
+            this.channel.force(false);
+        }
+    }
+
+    private static void replaySegment(final ByteBuffer buf, final Map<ByteArray, byte[]> result) {
+        while (buf.remaining() >= RECORD_HEADER_BYTES) {
+            final int start = buf.position();
+            final int length = buf.getInt(start);
+            if (length < RECORD_HEADER_BYTES || length > buf.remaining()) {
+                return;
+            }
+            final byte[] record = new byte[length];
+            buf.get(record);
+            final ByteBuffer recordBuf = ByteBuffer.wrap(record);
+            if (recordBuf.getInt(4) != crcOf(record, length)) {
+                return;
+            }
+            final byte type = recordBuf.get(8);
+            final int keyLength = recordBuf.getInt(9);
+            if (keyLength < 0 || keyLength > length - RECORD_HEADER_BYTES) {
+                return;
+            }
+            final ByteArray key = new ByteArray(Arrays.copyOfRange(
+                    record, RECORD_HEADER_BYTES, RECORD_HEADER_BYTES + keyLength));
+            // Remove first, so that iteration order reflects the latest write.
+            result.remove(key);
+            if (type == TYPE_PUT) {
+                result.put(key, Arrays.copyOfRange(record, RECORD_HEADER_BYTES + keyLength, length));
+            } else {
+                result.put(key, null);
+            }
+        }
+    }
+
+    private static int crcOf(final byte[] record, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 8, length - 8);
+        return (int) crc.getValue();
+    }
+
+    private FileChannel openSegment(final long number) throws IOException {
+        @SuppressWarnings("resource")
+        final FileChannel newChannel = new RandomAccessFile(segmentFile(number), "rw").getChannel();
+        newChannel.position(newChannel.size());
+        return newChannel;
+    }
+
+    private File segmentFile(final long number) {
+        return new File(this.directory, String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> segmentNumbers() {
+        final File[] files = this.directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                final String name = file.getName();
+                return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final List<Long> numbers = new ArrayList<>();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                try {
+                    numbers.add(Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (final NumberFormatException nfx) {
+                    // Not one of ours; ignore it.
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+}
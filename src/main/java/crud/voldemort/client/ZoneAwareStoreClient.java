@@ -0,0 +1,219 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import crud.voldemort.metrics.MBeans;
+import voldemort.client.ClientConfig;
+import voldemort.client.StoreClient;
+import voldemort.client.protocol.RequestFormatType;
+import voldemort.cluster.Node;
+import voldemort.serialization.Serializer;
+import voldemort.server.RequestRoutingType;
+import voldemort.store.Store;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A {@link StoreClient} that sends single-key reads directly to one replica,
+ * chosen by a {@link ReplicaScoreboard}: replicas in the client's zone are
+ * preferred, then healthy replicas, then those with the lowest recent
+ * latency. All other operations are routed normally.
+ *
+ * A direct read consults only one replica, so it is accepted only when
+ * that replica returns exactly one version of the value. If the replica
+ * fails, returns nothing, or returns concurrent versions, the read falls back
+ * to the normally routed read, which consults the replicas in
+ * preference-list order and resolves conflicts as usual. Callers that require
+ * quorum reads for every operation should not use this class.
+ *
+ * Pass an instance to
+ * {@link crud.voldemort.VoldemortResourceProvider#VoldemortResourceProvider(StoreClient)}
+ * to use this routing mode for resources' reads.
+ */
+public class ZoneAwareStoreClient<K, V> extends ForwardingStoreClient<K, V> implements Closeable {
+
+    private static final String MBEAN_TYPE = "ReplicaScoreboard";
+
+    private final String storeName;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final ReplicaScoreboard scoreboard;
+    private final ClientRequestExecutorPool pool;
+    private final RequestFormatType requestFormat;
+    private final ConcurrentMap<Integer, Store<ByteArray, byte[], byte[]>> nodeStores = new ConcurrentHashMap<>();
+    private final ObjectName mbeanName;
+
+
+    /**
+     * @param delegate          The normally routed client for the store.
+     * @param storeName         The name of the store that {@code delegate}
+     *                          accesses.
+     * @param config            The configuration from which {@code delegate}
+     *                          was created. Its zone ID and socket settings
+     *                          will be used for direct reads.
+     * @param keySerializer     Must serialize keys the same way as the store.
+     * @param valueSerializer   Must deserialize values the same way as the
+     *                          store.
+     */
+    public ZoneAwareStoreClient(
+            final StoreClient<K, V> delegate,
+            final String storeName,
+            final ClientConfig config,
+            final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer) {
+        this(delegate, storeName, config, keySerializer, valueSerializer,
+             new ReplicaScoreboard(config.getClientZoneId()));
+    }
+
+    public ZoneAwareStoreClient(
+            final StoreClient<K, V> delegate,
+            final String storeName,
+            final ClientConfig config,
+            final Serializer<K> keySerializer,
+            final Serializer<V> valueSerializer,
+            final ReplicaScoreboard scoreboard) {
+        super(delegate);
+        this.storeName = Objects.requireNonNull(storeName);
+        this.keySerializer = Objects.requireNonNull(keySerializer);
+        this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        this.scoreboard = Objects.requireNonNull(scoreboard);
+        this.requestFormat = config.getRequestFormatType();
+        // Register first: it fails if the name is taken, and leaks nothing.
+        this.mbeanName = config.isJmxEnabled()
+                ? MBeans.register(this.scoreboard, MBEAN_TYPE, this.storeName)
+                : null;
+        try {
+            this.pool = new ClientRequestExecutorPool(
+                    config.getSelectors(),
+                    config.getMaxConnectionsPerNode(),
+                    config.getConnectionTimeout(TimeUnit.MILLISECONDS),
+                    config.getSocketTimeout(TimeUnit.MILLISECONDS),
+                    config.getSocketBufferSize(),
+                    config.getSocketKeepAlive());
+        } catch (final RuntimeException ex) {
+            if (this.mbeanName != null) {
+                MBeans.unregister(this.mbeanName);
+            }
+            throw ex;
+        }
+    }
+
+    public ReplicaScoreboard getScoreboard() {
+        return this.scoreboard;
+    }
+
+    @Override
+    public V getValue(final K key) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? null : versioned.getValue();
+    }
+
+    @Override
+    public V getValue(final K key, final V defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned.getValue();
+    }
+
+    @Override
+    public Versioned<V> get(final K key) {
+        final Versioned<V> direct = getDirect(key);
+        return (direct != null) ? direct : super.get(key);
+    }
+
+    @Override
+    public Versioned<V> get(final K key, final Versioned<V> defaultValue) {
+        final Versioned<V> versioned = get(key);
+        return (versioned == null) ? defaultValue : versioned;
+    }
+
+    @Override
+    public void close() {
+        if (this.mbeanName != null) {
+            MBeans.unregister(this.mbeanName);
+        }
+        for (final Store<ByteArray, byte[], byte[]> store : this.nodeStores.values()) {
+            store.close();
+        }
+        this.nodeStores.clear();
+        this.pool.close();
+    }
+
+    /**
+     * @return  the value read from the most preferred healthy replica, or
+     *          {@code null} if the result must come from a routed read.
+     */
+    private Versioned<V> getDirect(final K key) {
+        Node node = null;
+        for (final Node candidate : this.scoreboard.rank(getResponsibleNodes(key))) {
+            if (this.scoreboard.isHealthy(candidate)) {
+                node = candidate;
+                break;
+            }
+        }
+        if (node == null) {
+            // No healthy replica, even in other zones: let normal routing handle it.
+            return null;
+        }
+
+        final ByteArray keyBytes = new ByteArray(this.keySerializer.toBytes(key));
+        final List<Versioned<byte[]>> found;
+        final long start = System.nanoTime();
+        try {
+            found = nodeStore(node).get(keyBytes, null);
+        } catch (final RuntimeException ex) {
+            this.scoreboard.recordFailure(node);
+            return null;
+        }
+        this.scoreboard.recordSuccess(node, System.nanoTime() - start);
+
+        if (found == null || found.size() != 1) {
+            // Absent on this replica, or in conflict: not authoritative.
+            return null;
+        }
+        final Versioned<byte[]> raw = found.get(0);
+        return new Versioned<>(this.valueSerializer.toObject(raw.getValue()), raw.getVersion());
+    }
+
+    private Store<ByteArray, byte[], byte[]> nodeStore(final Node node) {
+        Store<ByteArray, byte[], byte[]> store = this.nodeStores.get(node.getId());
+        if (store == null) {
+            final Store<ByteArray, byte[], byte[]> newStore = this.pool.create(
+                    this.storeName,
+                    node.getHost(),
+                    node.getSocketPort(),
+                    this.requestFormat,
+                    RequestRoutingType.IGNORE_CHECKS);
+            store = this.nodeStores.putIfAbsent(node.getId(), newStore);
+            if (store == null) {
+                store = newStore;
+            } else {
+                newStore.close();
+            }
+        }
+        return store;
+    }
+
+}
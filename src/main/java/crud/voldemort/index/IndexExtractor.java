@@ -0,0 +1,35 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import java.util.Set;
+
+
+/**
+ * Derives the index terms of a record, for an {@link IndexedResourceProvider}.
+ * A record can be found by any of its terms. The result must depend only on
+ * the given key and value, since it's computed again to find the terms to
+ * remove when the value changes, and to check index entries when they're
+ * looked up.
+ */
+public interface IndexExtractor<K, V> {
+
+    /**
+     * @return  the index terms of the given record, possibly empty, never
+     *          null.
+     */
+    Set<String> extract(K key, V value);
+
+}
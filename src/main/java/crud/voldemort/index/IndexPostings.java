@@ -0,0 +1,83 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import voldemort.VoldemortException;
+import voldemort.utils.ByteArray;
+
+
+/**
+ * Encodes the value of an index entry: the set of serialized primary keys
+ * of the records that have a given term.
+ */
+/*package*/ final class IndexPostings {
+
+    private static final byte FORMAT_VERSION = 1;
+
+
+    public static byte[] encode(final Set<ByteArray> keys) {
+        int length = 1 + 4;
+        for (final ByteArray key : keys) {
+            length += 4 + key.length();
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(length)
+                .put(FORMAT_VERSION)
+                .putInt(keys.size());
+        for (final ByteArray key : keys) {
+            buf.putInt(key.length()).put(key.get());
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return  a mutable set of the keys, in the order they were added.
+     *
+     * @throws VoldemortException   if the bytes are not an index entry.
+     */
+    public static Set<ByteArray> decode(final byte[] bytes) {
+        try {
+            final ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (buf.get() != FORMAT_VERSION) {
+                throw new VoldemortException("Not an index entry");
+            }
+            final int count = buf.getInt();
+            if (count < 0) {
+                throw new VoldemortException("Corrupt index entry");
+            }
+            final Set<ByteArray> keys = new LinkedHashSet<>();
+            for (int i = 0; i < count; ++i) {
+                final byte[] key = new byte[buf.getInt()];
+                buf.get(key);
+                keys.add(new ByteArray(key));
+            }
+            if (buf.hasRemaining()) {
+                throw new VoldemortException("Corrupt index entry");
+            }
+            return keys;
+        } catch (final BufferUnderflowException | NegativeArraySizeException ex) {
+            throw new VoldemortException("Corrupt index entry", ex);
+        }
+    }
+
+    private IndexPostings() {
+        // prevent instantiation
+    }
+
+}
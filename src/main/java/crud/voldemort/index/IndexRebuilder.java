@@ -0,0 +1,239 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.admin.StoreScanner;
+
+import voldemort.VoldemortException;
+import voldemort.serialization.Serializer;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Adds every record of a primary store to the index of an
+ * {@link IndexedResourceProvider}, by scanning the store's partitions in
+ * parallel from their master nodes. Use it to build an index for records
+ * written before the index existed, or to restore one that was lost.
+ *
+ * Rebuilding only adds keys to index entries, so it may run while the
+ * store is being written: a record that changes after it's scanned may
+ * leave a stale key behind, which lookups will repair. Each partition's
+ * keys are accumulated in memory by term, and merged into the index
+ * every {@link Builder#setBatchSize(int) batch} of records, so that a
+ * common term costs one index update per batch rather than one per
+ * record.
+ */
+public class IndexRebuilder<K, V> {
+
+    private final StoreScanner scanner;
+    private final IndexedResourceProvider<K, V> index;
+    private final Serializer<V> valueSerializer;
+    private final int threads;
+    private final int batchSize;
+
+    private final AtomicLong scannedRecords = new AtomicLong();
+    private final AtomicLong completedPartitions = new AtomicLong();
+
+
+    /**
+     * @param scanner           A scanner of the index's primary store.
+     * @param valueSerializer   The serializer of the primary store's values.
+     */
+    public static <K, V> Builder<K, V> newBuilder(
+            final StoreScanner scanner,
+            final IndexedResourceProvider<K, V> index,
+            final Serializer<V> valueSerializer) {
+        return new Builder<>(scanner, index, valueSerializer);
+    }
+
+    /**
+     * Index every partition, and wait until all are done.
+     *
+     * @return  the number of records scanned.
+     *
+     * @throws VoldemortException   if any partition fails. The others are
+     *          indexed nonetheless.
+     */
+    public long rebuild() throws InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            final List<Future<?>> partitions = new ArrayList<>();
+            for (final int partitionId : this.scanner.getPartitionIds()) {
+                partitions.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        rebuildPartition(partitionId);
+                        completedPartitions.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            VoldemortException failure = null;
+            for (final Future<?> partition : partitions) {
+                try {
+                    partition.get();
+                } catch (final ExecutionException ex) {
+                    if (failure == null) {
+                        failure = new VoldemortException(
+                                "Index rebuild of " + this.scanner.getStoreName() + " failed",
+                                ex.getCause());
+                    } else {
+                        failure.addSuppressed(ex.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return this.scannedRecords.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Start {@link #rebuild()} on a background thread.
+     *
+     * @return  the result of the rebuild.
+     */
+    public Future<Long> start() {
+        final FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() throws InterruptedException {
+                return rebuild();
+            }
+        });
+        final Thread thread = new Thread(task, "IndexRebuilder " + this.scanner.getStoreName());
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    public long getScannedRecordCount() {
+        return this.scannedRecords.get();
+    }
+
+    public long getCompletedPartitionCount() {
+        return this.completedPartitions.get();
+    }
+
+    private IndexRebuilder(final Builder<K, V> builder) {
+        this.scanner = builder.scanner;
+        this.index = builder.index;
+        this.valueSerializer = builder.valueSerializer;
+        this.threads = builder.threads;
+        this.batchSize = builder.batchSize;
+    }
+
+    private void rebuildPartition(final int partitionId) {
+        final Serializer<K> keySerializer = this.index.keySerializer();
+        final IndexExtractor<? super K, ? super V> extractor = this.index.extractor();
+        final Map<String, Set<ByteArray>> batch = new HashMap<>();
+        int batchCount = 0;
+        final Iterator<Pair<ByteArray, Versioned<byte[]>>> entries = this.scanner.entries(partitionId);
+        while (entries.hasNext()) {
+            final Pair<ByteArray, Versioned<byte[]>> entry = entries.next();
+            final K key = keySerializer.toObject(entry.getFirst().get());
+            final V value = this.valueSerializer.toObject(entry.getSecond().getValue());
+            for (final String term : extractor.extract(key, value)) {
+                Set<ByteArray> keys = batch.get(term);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    batch.put(term, keys);
+                }
+                keys.add(entry.getFirst());
+            }
+            this.scannedRecords.incrementAndGet();
+            if (++batchCount >= this.batchSize) {
+                flush(batch);
+                batchCount = 0;
+            }
+        }
+        flush(batch);
+    }
+
+    private void flush(final Map<String, Set<ByteArray>> batch) {
+        for (final Map.Entry<String, Set<ByteArray>> term : batch.entrySet()) {
+            this.index.updatePostings(term.getKey(), term.getValue(), true);
+        }
+        batch.clear();
+    }
+
+
+    public static final class Builder<K, V> {
+        public static final int DEFAULT_BATCH_SIZE = 1000;
+
+        private final StoreScanner scanner;
+        private final IndexedResourceProvider<K, V> index;
+        private final Serializer<V> valueSerializer;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int batchSize = DEFAULT_BATCH_SIZE;
+
+        private Builder(
+                final StoreScanner scanner,
+                final IndexedResourceProvider<K, V> index,
+                final Serializer<V> valueSerializer) {
+            this.scanner = Objects.requireNonNull(scanner);
+            this.index = Objects.requireNonNull(index);
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        }
+
+        /**
+         * Set the number of partitions to scan at once. By default, it's
+         * the number of available processors.
+         */
+        public Builder<K, V> setThreads(final int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads " + threads + " <= 0");
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Set the number of records scanned between merges into the index.
+         */
+        public Builder<K, V> setBatchSize(final int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batch size " + batchSize + " <= 0");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public IndexRebuilder<K, V> build() {
+            return new IndexRebuilder<>(this);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import crud.DeletableResource;
+import crud.ReadableResource;
+import crud.WritableResource;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A record whose writes and deletes also update the secondary index of its
+ * {@link IndexedResourceProvider}. Reads go straight to the primary store.
+ *
+ * Each write or delete reads the record, to find its old terms, and then
+ * replaces it with a versioned put, so that concurrent updates are
+ * serialized; see {@link IndexedResourceProvider} for the details.
+ */
+public class IndexedResource<K, V>
+implements ReadableResource<Versioned<V>>,
+           WritableResource<V, Version>,
+           DeletableResource<Boolean> {
+
+    private final IndexedResourceProvider<K, V> owner;
+    private final K key;
+
+
+    @Override
+    public Observable<Versioned<V>> get() {
+        return this.owner.primary().get(this.key).get();
+    }
+
+    @Override
+    public Observable<Version> write(final V newValue) {
+        if (newValue == null) {
+            throw new NullPointerException("null value; use delete() instead");
+        }
+        return Observable.create(new Observable.OnSubscribe<Version>() {
+            @Override
+            public void call(final Subscriber<? super Version> subscriber) {
+                try {
+                    final Version version = owner.update(key, newValue);
+                    subscriber.onNext(version);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Observable<Boolean> delete() {
+        return Observable.create(new Observable.OnSubscribe<Boolean>() {
+            @Override
+            public void call(final Subscriber<? super Boolean> subscriber) {
+                try {
+                    final boolean deleted = owner.update(key, null) != null;
+                    subscriber.onNext(deleted);
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /*package*/ IndexedResource(final IndexedResourceProvider<K, V> owner, final K key) {
+        this.owner = owner;
+        this.key = key;
+        assert this.owner != null;
+        assert this.key != null;
+    }
+
+}
@@ -0,0 +1,422 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.DeletableResourceProvider;
+import crud.ReadableResourceProvider;
+import crud.WritableResourceProvider;
+import crud.voldemort.VoldemortResourceProvider;
+import rx.Observable;
+import rx.Subscriber;
+
+import voldemort.VoldemortException;
+import voldemort.client.StoreClient;
+import voldemort.serialization.Serializer;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Provides {@link IndexedResource}s, whose writes and deletes also
+ * maintain a secondary index, so that records can be found by terms other
+ * than their primary keys. The terms of each record are derived by an
+ * {@link IndexExtractor}. The index is a companion store with
+ * {@code string} keys, which are the terms, and {@code identity} values,
+ * which are sets of serialized primary keys.
+ *
+ * Every update, of a record or of an index entry, is a versioned put, so
+ * that concurrent updates of the same key are detected rather than lost;
+ * the loser reads the key again and repeats its update, up to
+ * {@link Builder#setMaxRetries(int) a limit}.
+ *
+ * A write adds the record's key to the entries of its new terms both
+ * before and after writing the record, and removes it from the entries of
+ * its old terms afterward. A removal may be delayed past a concurrent
+ * write that gives the record one of those terms again, so after its
+ * removals, a writer reads the record again, and adds its key back to any
+ * of those terms that it still has. Once all writers of a record have
+ * finished without failing, the index therefore refers to it under each
+ * of its terms. A writer that fails part way may leave it missing from an
+ * entry until it is written again, or the index is rebuilt. The index may
+ * also refer to records that no longer have a term. {@link #find(String)}
+ * checks each record against its term, and removes the stale keys from
+ * the index entry, but only if the entry hasn't been updated in the
+ * meantime. Since a writer's additions always update the entry, even when
+ * its key is already present, a repair can't remove a key that a
+ * concurrent writer is adding.
+ *
+ * Operations run on the subscribing thread, and wait for the primary
+ * provider's {@link java.util.concurrent.Executor}; they should not
+ * subscribe on that executor.
+ *
+ * @see IndexRebuilder
+ */
+public class IndexedResourceProvider<K, V>
+implements ReadableResourceProvider<K, Versioned<V>>,
+           WritableResourceProvider<K, V, Version>,
+           DeletableResourceProvider<K, Boolean> {
+
+    private final VoldemortResourceProvider<K, V> primary;
+    private final StoreClient<String, byte[]> indexStore;
+    private final Serializer<K> keySerializer;
+    private final IndexExtractor<? super K, ? super V> extractor;
+    private final int maxRetries;
+
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong repairs = new AtomicLong();
+
+
+    /**
+     * @param keySerializer The serializer of the primary store's keys, used
+     *                      to store them in index entries.
+     */
+    public static <K, V> Builder<K, V> newBuilder(
+            final VoldemortResourceProvider<K, V> primary,
+            final StoreClient<String, byte[]> indexStore,
+            final Serializer<K> keySerializer,
+            final IndexExtractor<? super K, ? super V> extractor) {
+        return new Builder<>(primary, indexStore, keySerializer, extractor);
+    }
+
+    @Override
+    public IndexedResource<K, V> get(final K key) {
+        return new IndexedResource<>(this, Objects.requireNonNull(key));
+    }
+
+    /**
+     * Upon each subscription, emit the primary keys in the index entry of
+     * the given term, without checking them. They can be read with a
+     * single call to {@link VoldemortResourceProvider#getAllAsync}.
+     */
+    public Observable<K> lookup(final String term) {
+        Objects.requireNonNull(term);
+        return Observable.create(new Observable.OnSubscribe<K>() {
+            @Override
+            public void call(final Subscriber<? super K> subscriber) {
+                try {
+                    final Versioned<byte[]> entry = indexStore.get(term);
+                    if (entry != null) {
+                        for (final ByteArray key : IndexPostings.decode(entry.getValue())) {
+                            if (subscriber.isUnsubscribed()) {
+                                return;
+                            }
+                            subscriber.onNext(keySerializer.toObject(key.get()));
+                        }
+                    }
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Upon each subscription, read all records in the index entry of the
+     * given term with a single {@code getAll()}, and emit those that still
+     * have the term. Keys of records that are absent, or that no longer
+     * have the term, are removed from the entry.
+     */
+    public Observable<Map.Entry<K, Versioned<V>>> find(final String term) {
+        Objects.requireNonNull(term);
+        return Observable.create(new Observable.OnSubscribe<Map.Entry<K, Versioned<V>>>() {
+            @Override
+            public void call(final Subscriber<? super Map.Entry<K, Versioned<V>>> subscriber) {
+                try {
+                    for (final Map.Entry<K, Versioned<V>> record : doFind(term)) {
+                        if (subscriber.isUnsubscribed()) {
+                            return;
+                        }
+                        subscriber.onNext(record);
+                    }
+                    subscriber.onCompleted();
+                } catch (final Throwable error) {
+                    subscriber.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return  the number of versioned puts and deletes, of records or of
+     *          index entries, that lost races with concurrent updates.
+     */
+    public long getConflictCount() {
+        return this.conflicts.get();
+    }
+
+    /**
+     * @return  the number of stale keys removed from index entries by
+     *          {@link #find(String)}.
+     */
+    public long getRepairCount() {
+        return this.repairs.get();
+    }
+
+    /*package*/ VoldemortResourceProvider<K, V> primary() {
+        return this.primary;
+    }
+
+    /*package*/ IndexExtractor<? super K, ? super V> extractor() {
+        return this.extractor;
+    }
+
+    /*package*/ Serializer<K> keySerializer() {
+        return this.keySerializer;
+    }
+
+    /**
+     * Write the given record, or delete it if the value is null, and update
+     * the index to match.
+     *
+     * @return  the new version, or, for a deletion, the version deleted, or
+     *          {@code null} if the record was absent.
+     */
+    /*package*/ Version update(final K key, final V newValue) throws InterruptedException {
+        final ByteArray keyBytes = new ByteArray(this.keySerializer.toBytes(key));
+        final Set<String> newTerms = (newValue == null)
+                ? Collections.<String>emptySet()
+                : this.extractor.extract(key, newValue);
+        for (int attempt = 0; attempt <= this.maxRetries; ++attempt) {
+            final Versioned<V> current = await(this.primary.getAsync(key));
+            if (current == null && newValue == null) {
+                return null;
+            }
+            final Set<String> oldTerms = (current == null)
+                    ? Collections.<String>emptySet()
+                    : this.extractor.extract(key, current.getValue());
+
+            final Set<String> addedTerms = new HashSet<>(newTerms);
+            addedTerms.removeAll(oldTerms);
+            for (final String term : addedTerms) {
+                updatePostings(term, Collections.singleton(keyBytes), true);
+            }
+
+            final Version result;
+            if (newValue == null) {
+                if (!await(this.primary.deleteAsync(key, current.getVersion()))) {
+                    // Written again since we read it.
+                    this.conflicts.incrementAndGet();
+                    continue;
+                }
+                result = current.getVersion();
+            } else {
+                try {
+                    result = await(this.primary.putAsync(key, (current == null)
+                            ? new Versioned<>(newValue)
+                            : new Versioned<>(newValue, current.getVersion())));
+                } catch (final ObsoleteVersionException ex) {
+                    // Any terms we added are repaired by the next attempt, or
+                    // by find().
+                    this.conflicts.incrementAndGet();
+                    continue;
+                }
+            }
+
+            // Again, in case a repair removed the key before the record was
+            // written:
+            for (final String term : addedTerms) {
+                updatePostings(term, Collections.singleton(keyBytes), true);
+            }
+            final Set<String> removedTerms = new HashSet<>(oldTerms);
+            removedTerms.removeAll(newTerms);
+            for (final String term : removedTerms) {
+                updatePostings(term, Collections.singleton(keyBytes), false);
+            }
+            if (!removedTerms.isEmpty()) {
+                // A concurrent writer may have given the record one of those
+                // terms again, and added its key before we removed it:
+                final Versioned<V> latest = await(this.primary.getAsync(key));
+                if (latest != null) {
+                    removedTerms.retainAll(this.extractor.extract(key, latest.getValue()));
+                    for (final String term : removedTerms) {
+                        updatePostings(term, Collections.singleton(keyBytes), true);
+                    }
+                }
+            }
+            return result;
+        }
+        throw new ObsoleteVersionException("Update of " + key + " repeatedly lost races with other updates");
+    }
+
+    /**
+     * Add the given serialized primary keys to, or remove them from, the
+     * index entry of the given term. An addition always writes the entry,
+     * so that its version changes; see {@link #removeStale}.
+     */
+    /*package*/ void updatePostings(final String term, final Set<ByteArray> keys, final boolean add) {
+        for (int attempt = 0; attempt <= this.maxRetries; ++attempt) {
+            final Versioned<byte[]> entry = this.indexStore.get(term);
+            final Set<ByteArray> postings = (entry == null)
+                    ? new HashSet<ByteArray>()
+                    : IndexPostings.decode(entry.getValue());
+            if (add) {
+                postings.addAll(keys);
+            } else if (!postings.removeAll(keys)) {
+                return;
+            }
+            try {
+                if (postings.isEmpty()) {
+                    if (this.indexStore.delete(term, entry.getVersion())) {
+                        return;
+                    }
+                    // Written again since we read it; fall through to retry.
+                } else {
+                    final byte[] newPostings = IndexPostings.encode(postings);
+                    this.indexStore.put(term, (entry == null)
+                            ? new Versioned<>(newPostings)
+                            : new Versioned<>(newPostings, entry.getVersion()));
+                    return;
+                }
+            } catch (final ObsoleteVersionException ex) {
+                // Another update of the entry won the race.
+            }
+            this.conflicts.incrementAndGet();
+        }
+        throw new ObsoleteVersionException("Update of index entry " + term + " repeatedly lost races");
+    }
+
+    private IndexedResourceProvider(final Builder<K, V> builder) {
+        this.primary = builder.primary;
+        this.indexStore = builder.indexStore;
+        this.keySerializer = builder.keySerializer;
+        this.extractor = builder.extractor;
+        this.maxRetries = builder.maxRetries;
+    }
+
+    private List<Map.Entry<K, Versioned<V>>> doFind(final String term) throws InterruptedException {
+        final Versioned<byte[]> entry = this.indexStore.get(term);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        final Map<K, ByteArray> keys = new LinkedHashMap<>();
+        for (final ByteArray keyBytes : IndexPostings.decode(entry.getValue())) {
+            keys.put(this.keySerializer.toObject(keyBytes.get()), keyBytes);
+        }
+        final Map<K, Versioned<V>> records = await(this.primary.getAllAsync(keys.keySet()));
+
+        final List<Map.Entry<K, Versioned<V>>> found = new ArrayList<>(records.size());
+        final Set<ByteArray> stale = new HashSet<>();
+        for (final Map.Entry<K, ByteArray> key : keys.entrySet()) {
+            final Versioned<V> record = records.get(key.getKey());
+            if (record != null && this.extractor.extract(key.getKey(), record.getValue()).contains(term)) {
+                found.add(new AbstractMap.SimpleImmutableEntry<>(key.getKey(), record));
+            } else {
+                stale.add(key.getValue());
+            }
+        }
+        if (!stale.isEmpty() && removeStale(term, entry, new LinkedHashSet<>(keys.values()), stale)) {
+            this.repairs.addAndGet(stale.size());
+        }
+        return found;
+    }
+
+    /**
+     * Remove the given stale keys from the index entry of the given term,
+     * only if it's still the given version: if it has been written since,
+     * a concurrent writer may have added one of the keys again, and the
+     * next lookup will repair it instead.
+     *
+     * @return  true if the keys were removed.
+     */
+    private boolean removeStale(
+            final String term,
+            final Versioned<byte[]> entry,
+            final Set<ByteArray> postings,
+            final Set<ByteArray> stale) {
+        postings.removeAll(stale);
+        try {
+            if (postings.isEmpty()) {
+                return this.indexStore.delete(term, entry.getVersion());
+            }
+            this.indexStore.put(term, new Versioned<>(IndexPostings.encode(postings), entry.getVersion()));
+            return true;
+        } catch (final ObsoleteVersionException ex) {
+            this.conflicts.incrementAndGet();
+            return false;
+        }
+    }
+
+    private static <R> R await(final Future<R> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new VoldemortException(cause);
+            }
+        }
+    }
+
+
+    public static final class Builder<K, V> {
+        public static final int DEFAULT_MAX_RETRIES = 10;
+
+        private final VoldemortResourceProvider<K, V> primary;
+        private final StoreClient<String, byte[]> indexStore;
+        private final Serializer<K> keySerializer;
+        private final IndexExtractor<? super K, ? super V> extractor;
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+
+        private Builder(
+                final VoldemortResourceProvider<K, V> primary,
+                final StoreClient<String, byte[]> indexStore,
+                final Serializer<K> keySerializer,
+                final IndexExtractor<? super K, ? super V> extractor) {
+            this.primary = Objects.requireNonNull(primary);
+            this.indexStore = Objects.requireNonNull(indexStore);
+            this.keySerializer = Objects.requireNonNull(keySerializer);
+            this.extractor = Objects.requireNonNull(extractor);
+        }
+
+        /**
+         * Set the number of times an update of a record, or of an index
+         * entry, is repeated after losing a race with a concurrent update,
+         * before it fails with an {@link ObsoleteVersionException}.
+         */
+        public Builder<K, V> setMaxRetries(final int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("max retries " + maxRetries + " < 0");
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public IndexedResourceProvider<K, V> build() {
+            return new IndexedResourceProvider<>(this);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A Count-Min sketch: an approximate, fixed-size frequency table that may
+ * overestimate, but never underestimates, the number of times an item has
+ * been added. Updates are lock-free.
+ */
+/*package*/ final class CountMinSketch {
+
+    private final int depth;
+    private final int widthMask;
+    private final AtomicLongArray counts;
+
+
+    /**
+     * @param width The number of counters per row; rounded up to a power of
+     *              two. Estimates are within {@code e * N / width} of the
+     *              true count with probability {@code 1 - e^-depth}, where
+     *              N is the total of all counts.
+     */
+    public CountMinSketch(final int depth, final int width) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth " + depth + " <= 0");
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("width " + width + " <= 0");
+        }
+        this.depth = depth;
+        final int roundedWidth = Integer.highestOneBit(width - 1) << 1;
+        this.widthMask = Math.max(1, roundedWidth) - 1;
+        this.counts = new AtomicLongArray(depth * (this.widthMask + 1));
+    }
+
+    /**
+     * Count one occurrence of the item with the given hash code.
+     *
+     * @return  the item's estimated count, including this occurrence.
+     */
+    public long add(final int hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < this.depth; ++row) {
+            estimate = Math.min(estimate, this.counts.incrementAndGet(indexOf(row, hash)));
+        }
+        return estimate;
+    }
+
+    public long estimate(final int hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < this.depth; ++row) {
+            estimate = Math.min(estimate, this.counts.get(indexOf(row, hash)));
+        }
+        return estimate;
+    }
+
+    public int getMemoryFootprintBytes() {
+        return this.counts.length() * (Long.SIZE / Byte.SIZE);
+    }
+
+    private int indexOf(final int row, final int hash) {
+        // Each row uses a different multiplier, then an avalanche step:
+        int h = hash * (0x9e3779b9 + 2 * row + 1);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return row * (this.widthMask + 1) + (h & this.widthMask);
+    }
+
+}
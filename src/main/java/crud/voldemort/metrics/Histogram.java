@@ -0,0 +1,170 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of non-negative {@code long} values, such as latencies or
+ * sizes, with log-linear buckets: each power of two is divided into 32
+ * equal sub-buckets, so that every reported percentile is within about 3%
+ * of the true value, regardless of magnitude. Memory use is fixed, at about
+ * 15 KB.
+ *
+ * Recording is thread-safe and lock-free. Reads are not atomic with respect
+ * to concurrent recording, but each is individually consistent.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * @throws IllegalArgumentException if {@code value} is negative.
+     */
+    public void record(final long value) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("negative value " + value);
+        }
+        this.counts.incrementAndGet(bucketIndex(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        while (true) {
+            final long oldMax = this.max.get();
+            if (value <= oldMax || this.max.compareAndSet(oldMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add all of the values recorded in another histogram to this one.
+     */
+    public void add(final Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            final long bucketCount = other.counts.get(i);
+            if (bucketCount != 0L) {
+                this.counts.addAndGet(i, bucketCount);
+            }
+        }
+        this.count.addAndGet(other.count.get());
+        this.sum.addAndGet(other.sum.get());
+        final long otherMax = other.max.get();
+        while (true) {
+            final long oldMax = this.max.get();
+            if (otherMax <= oldMax || this.max.compareAndSet(oldMax, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            this.counts.set(i, 0L);
+        }
+        this.count.set(0L);
+        this.sum.set(0L);
+        this.max.set(0L);
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        final long n = this.count.get();
+        return (n == 0L) ? 0.0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * @param percentile    In [0, 100].
+     *
+     * @return  an upper bound on the given percentile of the recorded
+     *          values, accurate to the bucket resolution; zero if no values
+     *          have been recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile " + percentile + " not in [0, 100]");
+        }
+        long total = 0L;
+        final long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()
+                + " [count=" + getCount()
+                + ", mean=" + getMean()
+                + ", p50=" + getValueAtPercentile(50.0)
+                + ", p99=" + getValueAtPercentile(99.0)
+                + ", max=" + getMax()
+                + "]";
+    }
+
+    private static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + mantissa;
+    }
+
+    private static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final int mantissa = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        final long lowerBound = (1L << (shift + SUB_BUCKET_BITS)) | ((long) mantissa << shift);
+        return lowerBound + (1L << shift) - 1L;
+    }
+
+}
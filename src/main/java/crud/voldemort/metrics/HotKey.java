@@ -0,0 +1,78 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.util.Objects;
+
+import crud.voldemort.config.SmartOpCode;
+
+
+/**
+ * A frequently accessed key, as reported by a {@link HotKeyTracker}.
+ */
+public final class HotKey<K> {
+
+    private final K key;
+    private final SmartOpCode opCode;
+    private final long estimatedCount;
+
+
+    public HotKey(final K key, final SmartOpCode opCode, final long estimatedCount) {
+        this.key = Objects.requireNonNull(key);
+        this.opCode = Objects.requireNonNull(opCode);
+        this.estimatedCount = estimatedCount;
+    }
+
+    public K getKey() {
+        return this.key;
+    }
+
+    public SmartOpCode getOpCode() {
+        return this.opCode;
+    }
+
+    /**
+     * @return  the approximate number of operations on this key within the
+     *          tracker's window. It may be an overestimate.
+     */
+    public long getEstimatedCount() {
+        return this.estimatedCount;
+    }
+
+    @Override
+    public String toString() {
+        return this.opCode + " " + this.key + ": ~" + this.estimatedCount;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final HotKey<?> other = (HotKey<?>) obj;
+        return this.estimatedCount == other.estimatedCount
+                && this.opCode == other.opCode
+                && this.key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.key, this.opCode, this.estimatedCount);
+    }
+
+}
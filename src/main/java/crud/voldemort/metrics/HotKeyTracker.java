@@ -0,0 +1,561 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+import crud.voldemort.config.SmartOpCode;
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Identifies the most frequently accessed keys, for each of
+ * {@link SmartOpCode#GET_OP_CODE}, {@link SmartOpCode#PUT_OP_CODE}, and
+ * {@link SmartOpCode#DELETE_OP_CODE}, within a sliding window of time.
+ *
+ * The window is divided into a fixed number of sub-windows, each of which
+ * counts keys with a {@link CountMinSketch} and keeps a bounded set of
+ * candidate heavy hitters: keys whose estimated counts exceed those of
+ * the weakest candidates. At the end of each sub-window, the oldest is
+ * discarded, and the top keys across the remaining sub-windows are
+ * published to {@link #observeTopKeys(SmartOpCode) subscribers}. Memory
+ * use is therefore fixed, apart from the candidate keys themselves, whose
+ * number is bounded. Counting is lock-free; admitting a new candidate
+ * is a {@link ConcurrentHashMap} insertion.
+ *
+ * Keys of type {@code byte[]}, such as those of
+ * {@link crud.voldemort.LongKeyResourceProvider}, are compared by their
+ * contents. Other keys must implement {@link Object#equals(Object)} and
+ * {@link Object#hashCode()} by value.
+ *
+ * @see crud.voldemort.VoldemortResourceProvider.Builder#setHotKeyTracker(HotKeyTracker)
+ */
+public final class HotKeyTracker<K> implements HotKeyTrackerMXBean, Closeable {
+
+    public static final String MBEAN_TYPE = "HotKeyTracker";
+
+    private final int topK;
+    private final long windowNanos;
+    private final int sketchDepth;
+    private final int sketchWidth;
+    private final Map<SmartOpCode, WindowedCounter> counters = new EnumMap<>(SmartOpCode.class);
+    private final List<TopKeysSubscriber<K>> subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService ticker;
+    private volatile Thread tickerThread = null;
+    private final ObjectName mbeanName;
+
+
+    public static <K> Builder<K> newBuilder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Count one operation on the given key. Operations other than
+     * {@link SmartOpCode#GET_OP_CODE}, {@link SmartOpCode#PUT_OP_CODE}, and
+     * {@link SmartOpCode#DELETE_OP_CODE} are ignored.
+     */
+    public void record(final SmartOpCode opCode, final K key) {
+        final WindowedCounter counter = this.counters.get(opCode);
+        if (counter != null) {
+            counter.add((key instanceof byte[]) ? new BytesKey((byte[]) key) : key);
+        }
+    }
+
+    /**
+     * @return  up to {@link #getTopK()} keys, most frequent first, as of
+     *          this moment.
+     */
+    public List<HotKey<K>> getTopKeys(final SmartOpCode opCode) {
+        final WindowedCounter counter = this.counters.get(opCode);
+        return (counter == null)
+                ? Collections.<HotKey<K>>emptyList()
+                : counter.<K>top(opCode, this.topK);
+    }
+
+    /**
+     * @return  an {@link Observable} that emits the result of
+     *          {@link #getTopKeys(SmartOpCode)} at the end of each
+     *          sub-window, and completes when this tracker is closed.
+     */
+    public Observable<List<HotKey<K>>> observeTopKeys(final SmartOpCode opCode) {
+        Objects.requireNonNull(opCode);
+        return Observable.create(new Observable.OnSubscribe<List<HotKey<K>>>() {
+            @Override
+            public void call(final Subscriber<? super List<HotKey<K>>> subscriber) {
+                subscribers.add(new TopKeysSubscriber<K>(opCode, subscriber));
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> getTopReadKeys() {
+        return toStringMap(getTopKeys(SmartOpCode.GET_OP_CODE));
+    }
+
+    @Override
+    public Map<String, Long> getTopWriteKeys() {
+        return toStringMap(getTopKeys(SmartOpCode.PUT_OP_CODE));
+    }
+
+    @Override
+    public Map<String, Long> getTopDeleteKeys() {
+        return toStringMap(getTopKeys(SmartOpCode.DELETE_OP_CODE));
+    }
+
+    @Override
+    public int getTopK() {
+        return this.topK;
+    }
+
+    @Override
+    public long getWindowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(this.windowNanos);
+    }
+
+    @Override
+    public long getMemoryFootprintBytes() {
+        long total = 0L;
+        for (final WindowedCounter counter : this.counters.values()) {
+            total += counter.getMemoryFootprintBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Stop advancing the window, complete all subscriptions, and unregister
+     * from JMX, if registered. Unless it's called by a subscriber, this
+     * waits for any publication in progress to finish first, so that no
+     * subscriber receives a result after its completion.
+     */
+    @Override
+    public void close() {
+        this.ticker.shutdownNow();
+        if (Thread.currentThread() != this.tickerThread) {
+            try {
+                this.ticker.awaitTermination(1L, TimeUnit.MINUTES);
+            } catch (final InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.mbeanName != null) {
+            MBeans.unregister(this.mbeanName);
+        }
+        for (final TopKeysSubscriber<K> subscriber : this.subscribers) {
+            subscriber.subscriber.onCompleted();
+        }
+        this.subscribers.clear();
+    }
+
+    private HotKeyTracker(final Builder<K> builder) {
+        this.topK = builder.topK;
+        this.windowNanos = builder.windowNanos;
+        this.sketchDepth = builder.sketchDepth;
+        this.sketchWidth = builder.sketchWidth;
+        for (final SmartOpCode opCode : new SmartOpCode[] {
+                SmartOpCode.GET_OP_CODE,
+                SmartOpCode.PUT_OP_CODE,
+                SmartOpCode.DELETE_OP_CODE,
+        }) {
+            this.counters.put(opCode, new WindowedCounter(builder.windowCount, this));
+        }
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "HotKeyTracker ticker");
+                thread.setDaemon(true);
+                tickerThread = thread;
+                return thread;
+            }
+        });
+        final long tickNanos = this.windowNanos / builder.windowCount;
+        this.ticker.scheduleAtFixedRate(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            tick();
+                        } catch (final RuntimeException ex) {
+                            // Don't let the schedule die.
+                        }
+                    }
+                },
+                tickNanos,
+                tickNanos,
+                TimeUnit.NANOSECONDS);
+
+        try {
+            this.mbeanName = (builder.jmxName != null)
+                    ? MBeans.register(this, MBEAN_TYPE, builder.jmxName)
+                    : null;
+        } catch (final RuntimeException ex) {
+            // The name is taken: no one will close this tracker.
+            this.ticker.shutdownNow();
+            throw ex;
+        }
+    }
+
+    /**
+     * Publish the top keys for the sub-window that has just ended, then
+     * start a new one, discarding the oldest.
+     */
+    private void tick() {
+        final Map<SmartOpCode, List<HotKey<K>>> tops = new EnumMap<>(SmartOpCode.class);
+        for (final TopKeysSubscriber<K> subscriber : this.subscribers) {
+            if (subscriber.subscriber.isUnsubscribed()) {
+                this.subscribers.remove(subscriber);
+                continue;
+            }
+            List<HotKey<K>> top = tops.get(subscriber.opCode);
+            if (top == null) {
+                top = getTopKeys(subscriber.opCode);
+                tops.put(subscriber.opCode, top);
+            }
+            try {
+                subscriber.subscriber.onNext(top);
+            } catch (final RuntimeException ex) {
+                subscriber.subscriber.onError(ex);
+                this.subscribers.remove(subscriber);
+            }
+        }
+        for (final WindowedCounter counter : this.counters.values()) {
+            counter.rotate(this);
+        }
+    }
+
+    private CountMinSketch newSketch() {
+        return new CountMinSketch(this.sketchDepth, this.sketchWidth);
+    }
+
+    private static <K> Map<String, Long> toStringMap(final List<HotKey<K>> hotKeys) {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (final HotKey<K> hotKey : hotKeys) {
+            final Object key = hotKey.getKey();
+            result.put(
+                    (key instanceof byte[]) ? Arrays.toString((byte[]) key) : String.valueOf(key),
+                    hotKey.getEstimatedCount());
+        }
+        return result;
+    }
+
+
+    private static final class TopKeysSubscriber<K> {
+        public final SmartOpCode opCode;
+        public final Subscriber<? super List<HotKey<K>>> subscriber;
+
+        public TopKeysSubscriber(
+                final SmartOpCode opCode,
+                final Subscriber<? super List<HotKey<K>>> subscriber) {
+            this.opCode = opCode;
+            this.subscriber = subscriber;
+        }
+    }
+
+
+    /**
+     * A ring of {@link SubWindow}s. Only the ticker thread advances it.
+     * Keys are counted as given to {@link HotKeyTracker#record}, except
+     * that arrays are wrapped in {@link BytesKey}s.
+     */
+    private static final class WindowedCounter {
+        private final AtomicReferenceArray<SubWindow> ring;
+        private int currentIndex = 0;
+        private volatile SubWindow current;
+
+        public WindowedCounter(final int windowCount, final HotKeyTracker<?> tracker) {
+            this.ring = new AtomicReferenceArray<>(windowCount);
+            this.current = new SubWindow(tracker.newSketch(), 4 * tracker.topK);
+            this.ring.set(0, this.current);
+        }
+
+        public void add(final Object key) {
+            this.current.add(key);
+        }
+
+        public void rotate(final HotKeyTracker<?> tracker) {
+            this.currentIndex = (this.currentIndex + 1) % this.ring.length();
+            final SubWindow next = new SubWindow(tracker.newSketch(), 4 * tracker.topK);
+            this.ring.set(this.currentIndex, next);
+            this.current = next;
+        }
+
+        /**
+         * @param <K>   The type of keys given to
+         *              {@link HotKeyTracker#record}.
+         */
+        @SuppressWarnings("unchecked")
+        public <K> List<HotKey<K>> top(final SmartOpCode opCode, final int k) {
+            final List<SubWindow> windows = new ArrayList<>(this.ring.length());
+            for (int i = 0; i < this.ring.length(); ++i) {
+                final SubWindow window = this.ring.get(i);
+                if (window != null) {
+                    windows.add(window);
+                }
+            }
+
+            // Estimate each candidate's total over the whole window:
+            final Map<Object, Long> totals = new HashMap<>();
+            for (final SubWindow window : windows) {
+                for (final Object key : window.candidates.keySet()) {
+                    if (!totals.containsKey(key)) {
+                        final int hash = key.hashCode();
+                        long total = 0L;
+                        for (final SubWindow other : windows) {
+                            total += other.sketch.estimate(hash);
+                        }
+                        totals.put(key, total);
+                    }
+                }
+            }
+
+            // Keep the k largest in a min-heap:
+            final PriorityQueue<Map.Entry<Object, Long>> heap = new PriorityQueue<>(
+                    k + 1, EntryCountComparator.INSTANCE);
+            for (final Map.Entry<Object, Long> entry : totals.entrySet()) {
+                heap.add(entry);
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+            final List<HotKey<K>> result = new ArrayList<>(heap.size());
+            while (!heap.isEmpty()) {
+                final Map.Entry<Object, Long> entry = heap.poll();
+                final Object key = entry.getKey();
+                final K originalKey = (K) ((key instanceof BytesKey) ? ((BytesKey) key).bytes : key);
+                result.add(new HotKey<>(originalKey, opCode, entry.getValue()));
+            }
+            Collections.reverse(result);
+            return Collections.unmodifiableList(result);
+        }
+
+        public long getMemoryFootprintBytes() {
+            return (long) this.ring.length() * this.current.sketch.getMemoryFootprintBytes();
+        }
+    }
+
+
+    /**
+     * A sketch of all keys seen during one sub-window, plus the candidates
+     * for the top keys. The candidate set may grow to twice its capacity
+     * before it's pruned back to the strongest candidates.
+     */
+    private static final class SubWindow {
+        public final CountMinSketch sketch;
+        public final ConcurrentMap<Object, Long> candidates = new ConcurrentHashMap<>();
+        private final int capacity;
+        private final AtomicInteger candidateCount = new AtomicInteger();
+        private final AtomicBoolean pruning = new AtomicBoolean();
+        /**
+         * A key must exceed this estimated count to become a candidate once
+         * the candidate set is full: the weakest count retained by the last
+         * pruning.
+         */
+        private volatile long admissionThreshold = 0L;
+
+        public SubWindow(final CountMinSketch sketch, final int capacity) {
+            this.sketch = sketch;
+            this.capacity = capacity;
+        }
+
+        public void add(final Object key) {
+            final long estimate = this.sketch.add(key.hashCode());
+            final Long old = this.candidates.get(key);
+            if (old != null) {
+                if (estimate > old) {
+                    this.candidates.replace(key, old, estimate);
+                }
+            } else if (this.candidateCount.get() < this.capacity || estimate > this.admissionThreshold) {
+                if (this.candidates.putIfAbsent(key, estimate) == null
+                        && this.candidateCount.incrementAndGet() > 2 * this.capacity) {
+                    prune();
+                }
+            }
+        }
+
+        private void prune() {
+            if (!this.pruning.compareAndSet(false, true)) {
+                return;     // someone else is already doing it
+            }
+            try {
+                final List<Map.Entry<Object, Long>> entries = new ArrayList<>(this.candidates.entrySet());
+                if (entries.size() <= this.capacity) {
+                    return;
+                }
+                Collections.sort(entries, Collections.reverseOrder(EntryCountComparator.INSTANCE));
+                for (final Map.Entry<Object, Long> evicted : entries.subList(this.capacity, entries.size())) {
+                    if (this.candidates.remove(evicted.getKey()) != null) {
+                        this.candidateCount.decrementAndGet();
+                    }
+                }
+                this.admissionThreshold = entries.get(this.capacity - 1).getValue();
+            } finally {
+                this.pruning.set(false);
+            }
+        }
+    }
+
+
+    /**
+     * A {@code byte[]} key, compared by its contents.
+     */
+    private static final class BytesKey {
+        public final byte[] bytes;
+        private final int hash;
+
+        public BytesKey(final byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof BytesKey && Arrays.equals(this.bytes, ((BytesKey) obj).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+
+    /**
+     * Orders map entries by ascending count.
+     */
+    private static enum EntryCountComparator implements Comparator<Map.Entry<?, Long>> {
+        INSTANCE;
+
+        @Override
+        public int compare(final Map.Entry<?, Long> o1, final Map.Entry<?, Long> o2) {
+            return Long.compare(o1.getValue(), o2.getValue());
+        }
+    }
+
+
+    public static final class Builder<K> {
+        public static final int DEFAULT_TOP_K = 10;
+        public static final long DEFAULT_WINDOW_MS = 60000L;
+        public static final int DEFAULT_WINDOW_COUNT = 6;
+        public static final int DEFAULT_SKETCH_DEPTH = 4;
+        public static final int DEFAULT_SKETCH_WIDTH = 1024;
+        /**
+         * The shortest sub-window allowed by
+         * {@link #setWindow(long, TimeUnit, int)}.
+         */
+        public static final long MIN_SUB_WINDOW_MS = 1L;
+
+        private int topK = DEFAULT_TOP_K;
+        private long windowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WINDOW_MS);
+        private int windowCount = DEFAULT_WINDOW_COUNT;
+        private int sketchDepth = DEFAULT_SKETCH_DEPTH;
+        private int sketchWidth = DEFAULT_SKETCH_WIDTH;
+        private String jmxName = null;
+
+        private Builder() {
+            // use newBuilder()
+        }
+
+        public Builder<K> setTopK(final int topK) {
+            if (topK <= 0) {
+                throw new IllegalArgumentException("top K " + topK + " <= 0");
+            }
+            this.topK = topK;
+            return this;
+        }
+
+        /**
+         * @param window        The length of time over which keys are
+         *                      counted.
+         * @param windowCount   The number of sub-windows into which the
+         *                      window is divided. The window slides, and
+         *                      top keys are published, once per sub-window,
+         *                      which must be at least
+         *                      {@value #MIN_SUB_WINDOW_MS} ms long.
+         */
+        public Builder<K> setWindow(final long window, final TimeUnit unit, final int windowCount) {
+            if (window <= 0L) {
+                throw new IllegalArgumentException("window " + window + " <= 0");
+            }
+            if (windowCount <= 0) {
+                throw new IllegalArgumentException("window count " + windowCount + " <= 0");
+            }
+            final long newWindowNanos = unit.toNanos(window);
+            if (newWindowNanos / windowCount < TimeUnit.MILLISECONDS.toNanos(MIN_SUB_WINDOW_MS)) {
+                throw new IllegalArgumentException(
+                        "window " + window + " " + unit + " / " + windowCount + " < " + MIN_SUB_WINDOW_MS + " ms");
+            }
+            this.windowNanos = newWindowNanos;
+            this.windowCount = windowCount;
+            return this;
+        }
+
+        /**
+         * Size each sub-window's {@link CountMinSketch}. Larger sketches
+         * overestimate less, at a cost of {@code 8 * depth * width} bytes
+         * per sub-window per operation.
+         */
+        public Builder<K> setSketchSize(final int depth, final int width) {
+            if (depth <= 0) {
+                throw new IllegalArgumentException("depth " + depth + " <= 0");
+            }
+            if (width <= 0) {
+                throw new IllegalArgumentException("width " + width + " <= 0");
+            }
+            this.sketchDepth = depth;
+            this.sketchWidth = width;
+            return this;
+        }
+
+        /**
+         * Register the tracker with JMX under the given name.
+         */
+        public Builder<K> setJmxName(final String name) {
+            this.jmxName = Objects.requireNonNull(name);
+            return this;
+        }
+
+        /**
+         * Create the tracker, and start its window sliding.
+         */
+        public HotKeyTracker<K> build() {
+            return new HotKeyTracker<>(this);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.util.Map;
+
+
+/**
+ * The JMX view of a {@link HotKeyTracker}. Keys are shown as strings.
+ */
+public interface HotKeyTrackerMXBean {
+
+    /**
+     * @return  the most frequently read keys within the current window,
+     *          with their estimated read counts.
+     */
+    Map<String, Long> getTopReadKeys();
+
+    /**
+     * @return  the most frequently written keys within the current window,
+     *          with their estimated write counts.
+     */
+    Map<String, Long> getTopWriteKeys();
+
+    /**
+     * @return  the most frequently deleted keys within the current window,
+     *          with their estimated delete counts.
+     */
+    Map<String, Long> getTopDeleteKeys();
+
+    int getTopK();
+
+    long getWindowMs();
+
+    /**
+     * @return  the approximate memory used by all sketches, in bytes,
+     *          excluding the tracked keys themselves.
+     */
+    long getMemoryFootprintBytes();
+
+}
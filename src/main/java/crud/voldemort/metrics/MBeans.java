@@ -0,0 +1,96 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Registers the MXBeans defined in this project with the platform
+ * {@link MBeanServer}, using a consistent naming scheme.
+ */
+public final class MBeans {
+
+    /**
+     * The JMX domain under which all MXBeans in this project are registered.
+     */
+    public static final String DOMAIN = "crud.voldemort";
+
+
+    /**
+     * Create a name of the form
+     * {@code crud.voldemort:type=<type>,name=<name>}.
+     *
+     * @throws IllegalArgumentException if the resulting name is malformed.
+     */
+    public static ObjectName nameOf(final String type, final String name) {
+        try {
+            return new ObjectName(DOMAIN
+                    + ":type=" + ObjectName.quote(Objects.requireNonNull(type))
+                    + ",name=" + ObjectName.quote(Objects.requireNonNull(name)));
+        } catch (final JMException jmx) {
+            throw new IllegalArgumentException(jmx);
+        }
+    }
+
+    /**
+     * Register the given MXBean with the platform {@link MBeanServer} under
+     * {@link #nameOf(String, String)}. Names must be unique: replacing
+     * another bean would let its owner unregister this one when closed.
+     *
+     * @return  the name under which the bean was registered.
+     *
+     * @throws IllegalStateException    if a bean is already registered
+     *                                  under the name, or the registration
+     *                                  fails.
+     */
+    public static ObjectName register(final Object mxBean, final String type, final String name) {
+        final ObjectName objectName = nameOf(type, name);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mxBean, objectName);
+            return objectName;
+        } catch (final InstanceAlreadyExistsException dup) {
+            throw new IllegalStateException("A bean is already registered as " + objectName, dup);
+        } catch (final JMException jmx) {
+            throw new IllegalStateException("Failed to register " + objectName, jmx);
+        }
+    }
+
+    /**
+     * Unregister the bean of the given name, if there is one.
+     */
+    public static void unregister(final ObjectName objectName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (final JMException jmx) {
+            throw new IllegalStateException("Failed to unregister " + objectName, jmx);
+        }
+    }
+
+    private MBeans() {
+        // prevent instantiation
+    }
+
+}
@@ -0,0 +1,161 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import crud.voldemort.config.SmartOpCode;
+
+
+/**
+ * Records individual Voldemort operations as custom Java Flight Recorder
+ * events of type {@value #EVENT_NAME}, so that they can be seen in
+ * profiles alongside the socket reads they cause.
+ *
+ * JFR support is present when this project is built and run on JDK 11 or
+ * later. Otherwise, and whenever no recording has enabled the event,
+ * {@link #begin()} returns {@code null}, and recording costs no more than a
+ * field read.
+ *
+ * Only operations that take at least the event's threshold are recorded.
+ * The default threshold is 10 ms; it can be changed like that of any JFR
+ * event, for example with
+ * {@code -XX:StartFlightRecording:settings=<file>}, where the file sets
+ * {@code crud.voldemort.Operation#threshold}.
+ */
+public final class OperationEvents {
+
+    public static final String EVENT_NAME = "crud.voldemort.Operation";
+
+    private static final String JFR_RECORDER_CLASS_NAME = "crud.voldemort.metrics.JfrOperationRecorder";
+
+    private static final OperationRecorder recorder = loadRecorder();
+
+
+    /**
+     * The possible results of an operation.
+     */
+    public static enum Outcome {
+        SUCCESS,
+        /**
+         * A read found no value, or a delete found nothing to delete.
+         */
+        NOT_FOUND,
+        OBSOLETE_VERSION,
+        ERROR,
+    }
+
+
+    /**
+     * @return  true if operations can be recorded in this JVM.
+     */
+    public static boolean isSupported() {
+        return recorder != NoOpRecorder.INSTANCE;
+    }
+
+    /**
+     * Call immediately before an operation.
+     *
+     * @return  a token to pass to {@link #end}, or {@code null} if the
+     *          operation will not be recorded, in which case the caller
+     *          need not call {@code end} at all.
+     */
+    public static Object begin() {
+        return recorder.begin();
+    }
+
+    /**
+     * Call immediately after an operation that was begun with
+     * {@link #begin()}. The event is committed only if the operation took
+     * at least the configured threshold.
+     *
+     * @param token         The result of {@link #begin()}. If it's
+     *                      {@code null}, this method does nothing.
+     * @param storeName     May be {@code null} if unknown.
+     * @param valueSize     The size of the value read or written, or -1 if
+     *                      unknown or not applicable.
+     */
+    public static void end(
+            final Object token,
+            final SmartOpCode opCode,
+            final String storeName,
+            final Object key,
+            final int valueSize,
+            final Outcome outcome) {
+        if (token == null) {
+            return;
+        }
+        recorder.end(
+                token,
+                opCode.name(),
+                storeName,
+                hashOf(key),
+                valueSize,
+                outcome.name());
+    }
+
+    private static OperationRecorder loadRecorder() {
+        try {
+            final Class<?> recorderClass = Class.forName(JFR_RECORDER_CLASS_NAME);
+            return (OperationRecorder) recorderClass.getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException | LinkageError ex) {
+            // Not built with JFR support, or not running on JDK 11+:
+            return NoOpRecorder.INSTANCE;
+        }
+    }
+
+    /**
+     * @return  a hash of the contents of the given key, so that events for
+     *          the same key share a hash even if the key is an array, such
+     *          as the {@code byte[]} keys of
+     *          {@link crud.voldemort.LongKeyResourceProvider}.
+     */
+    /*package*/ static int hashOf(final Object key) {
+        if (key instanceof byte[]) {
+            return Arrays.hashCode((byte[]) key);
+        } else if (key instanceof Object[]) {
+            return Arrays.deepHashCode((Object[]) key);
+        } else {
+            return Objects.hashCode(key);
+        }
+    }
+
+    private OperationEvents() {
+        // prevent instantiation
+    }
+
+
+    private static enum NoOpRecorder implements OperationRecorder {
+        INSTANCE;
+
+        @Override
+        public Object begin() {
+            return null;
+        }
+
+        @Override
+        public void end(
+                final Object token,
+                final String opCode,
+                final String storeName,
+                final int keyHash,
+                final int valueSize,
+                final String outcome) {
+            // nothing to do
+        }
+    }
+
+}
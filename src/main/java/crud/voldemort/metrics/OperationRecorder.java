@@ -0,0 +1,39 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+
+/**
+ * The means by which {@link OperationEvents} records operations. The
+ * implementation that emits Java Flight Recorder events is compiled only
+ * on JDK 11 and later, and loaded reflectively.
+ */
+/*package*/ interface OperationRecorder {
+
+    /**
+     * @return  a token with which to end the operation, or {@code null} if
+     *          operations are not currently being recorded.
+     */
+    Object begin();
+
+    void end(
+            Object token,
+            String opCode,
+            String storeName,
+            int keyHash,
+            int valueSize,
+            String outcome);
+
+}
@@ -0,0 +1,75 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+
+/**
+ * The JMX view of a {@link ValueSizeTracker}. All sizes are of serialized
+ * values, in bytes.
+ */
+public interface ValueSizeMXBean {
+
+    long getReadCount();
+
+    double getReadMeanBytes();
+
+    long getReadMedianBytes();
+
+    long getRead99thPercentileBytes();
+
+    long getReadMaxBytes();
+
+    long getWriteCount();
+
+    double getWriteMeanBytes();
+
+    long getWriteMedianBytes();
+
+    long getWrite99thPercentileBytes();
+
+    long getWriteMaxBytes();
+
+    /**
+     * @return  the number of values read that were larger than
+     *          {@link #getLargeValueThresholdBytes()}.
+     */
+    long getLargeReadCount();
+
+    /**
+     * @return  the number of values written, or attempted, that were larger
+     *          than {@link #getLargeValueThresholdBytes()}.
+     */
+    long getLargeWriteCount();
+
+    /**
+     * @return  the number of writes rejected because their values were
+     *          larger than {@link #getHardLimitBytes()}.
+     */
+    long getRejectedWriteCount();
+
+    int getLargeValueThresholdBytes();
+
+    /**
+     * @return  the size above which writes are rejected, or
+     *          {@link Integer#MAX_VALUE} if there is no limit.
+     */
+    int getHardLimitBytes();
+
+    /**
+     * Forget all recorded sizes and counts.
+     */
+    void reset();
+
+}
@@ -0,0 +1,329 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import voldemort.serialization.Serializer;
+
+
+/**
+ * Records {@link Histogram}s of the serialized sizes of the values read from
+ * and written to a single store, and flags values larger than a threshold.
+ * Each large value is counted, and logged along with the hash of its key;
+ * to keep a burst of large values from flooding the log, at most one
+ * message is logged per interval, with a count of those suppressed.
+ * Optionally, writes of values above a hard limit can be rejected before
+ * they reach the store.
+ *
+ * Measuring a value requires serializing it, in addition to the
+ * serialization performed by the client itself; this is cheap for the
+ * {@code identity} and {@code string} serializers, but may not be for
+ * others.
+ *
+ * @see crud.voldemort.client.ValueSizeTrackingStoreClient
+ * @see crud.voldemort.VoldemortResourceProvider.Builder#setValueSizeTracker(ValueSizeTracker)
+ */
+public final class ValueSizeTracker<V> implements ValueSizeMXBean, Closeable {
+
+    public static final String MBEAN_TYPE = "ValueSize";
+
+    private static final Logger log = Logger.getLogger(ValueSizeTracker.class);
+
+    private final String storeName;
+    private final Serializer<V> valueSerializer;
+    private final int largeValueThresholdBytes;
+    private final int hardLimitBytes;
+    private final long logIntervalNanos;
+    private final ObjectName mbeanName;
+
+    private final Histogram readSizes = new Histogram();
+    private final Histogram writeSizes = new Histogram();
+    private final AtomicLong largeReads = new AtomicLong();
+    private final AtomicLong largeWrites = new AtomicLong();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+
+    private final AtomicLong nextLogNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong suppressedLogs = new AtomicLong();
+
+
+    public static <V> Builder<V> newBuilder(final String storeName, final Serializer<V> valueSerializer) {
+        return new Builder<>(storeName, valueSerializer);
+    }
+
+    /**
+     * Record the size of a value read. {@code null} values are ignored.
+     */
+    public void recordRead(final Object key, final V value) {
+        if (value == null) {
+            return;
+        }
+        final int size = sizeOf(value);
+        this.readSizes.record(size);
+        if (size > this.largeValueThresholdBytes) {
+            this.largeReads.incrementAndGet();
+            logLargeValue("read", key, size);
+        }
+    }
+
+    /**
+     * Record the size of a value about to be written, and check it against
+     * the hard limit, if any. {@code null} values are ignored.
+     *
+     * @throws ValueTooLargeException   if the value exceeds the hard limit.
+     */
+    public void recordWrite(final Object key, final V value) {
+        if (value == null) {
+            return;
+        }
+        final int size = sizeOf(value);
+        this.writeSizes.record(size);
+        if (size > this.largeValueThresholdBytes) {
+            this.largeWrites.incrementAndGet();
+            if (size > this.hardLimitBytes) {
+                this.rejectedWrites.incrementAndGet();
+                throw new ValueTooLargeException(
+                        "Rejected write of " + size + " bytes to store " + this.storeName
+                        + ", key hash " + OperationEvents.hashOf(key)
+                        + "; the limit is " + this.hardLimitBytes,
+                        size,
+                        this.hardLimitBytes);
+            }
+            logLargeValue("written", key, size);
+        }
+    }
+
+    public String getStoreName() {
+        return this.storeName;
+    }
+
+    /**
+     * @return  the live histogram of the sizes of values read.
+     */
+    public Histogram getReadSizes() {
+        return this.readSizes;
+    }
+
+    /**
+     * @return  the live histogram of the sizes of values written.
+     */
+    public Histogram getWriteSizes() {
+        return this.writeSizes;
+    }
+
+    @Override
+    public long getReadCount() {
+        return this.readSizes.getCount();
+    }
+
+    @Override
+    public double getReadMeanBytes() {
+        return this.readSizes.getMean();
+    }
+
+    @Override
+    public long getReadMedianBytes() {
+        return this.readSizes.getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getRead99thPercentileBytes() {
+        return this.readSizes.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getReadMaxBytes() {
+        return this.readSizes.getMax();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return this.writeSizes.getCount();
+    }
+
+    @Override
+    public double getWriteMeanBytes() {
+        return this.writeSizes.getMean();
+    }
+
+    @Override
+    public long getWriteMedianBytes() {
+        return this.writeSizes.getValueAtPercentile(50.0);
+    }
+
+    @Override
+    public long getWrite99thPercentileBytes() {
+        return this.writeSizes.getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public long getWriteMaxBytes() {
+        return this.writeSizes.getMax();
+    }
+
+    @Override
+    public long getLargeReadCount() {
+        return this.largeReads.get();
+    }
+
+    @Override
+    public long getLargeWriteCount() {
+        return this.largeWrites.get();
+    }
+
+    @Override
+    public long getRejectedWriteCount() {
+        return this.rejectedWrites.get();
+    }
+
+    @Override
+    public int getLargeValueThresholdBytes() {
+        return this.largeValueThresholdBytes;
+    }
+
+    @Override
+    public int getHardLimitBytes() {
+        return this.hardLimitBytes;
+    }
+
+    @Override
+    public void reset() {
+        this.readSizes.reset();
+        this.writeSizes.reset();
+        this.largeReads.set(0L);
+        this.largeWrites.set(0L);
+        this.rejectedWrites.set(0L);
+    }
+
+    /**
+     * Unregister from JMX, if registered.
+     */
+    @Override
+    public void close() {
+        if (this.mbeanName != null) {
+            MBeans.unregister(this.mbeanName);
+        }
+    }
+
+    private ValueSizeTracker(final Builder<V> builder) {
+        this.storeName = builder.storeName;
+        this.valueSerializer = builder.valueSerializer;
+        this.largeValueThresholdBytes = builder.largeValueThresholdBytes;
+        this.hardLimitBytes = builder.hardLimitBytes;
+        this.logIntervalNanos = builder.logIntervalNanos;
+        this.mbeanName = builder.jmxEnabled
+                ? MBeans.register(this, MBEAN_TYPE, this.storeName)
+                : null;
+    }
+
+    private int sizeOf(final V value) {
+        if (value instanceof byte[]) {
+            // Avoid copying: the identity serializer would return the same length.
+            return ((byte[]) value).length;
+        }
+        return this.valueSerializer.toBytes(value).length;
+    }
+
+    private void logLargeValue(final String operation, final Object key, final int size) {
+        if (!log.isEnabledFor(Level.WARN)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long next = this.nextLogNanos.get();
+        if (now - next < 0L || !this.nextLogNanos.compareAndSet(next, now + this.logIntervalNanos)) {
+            this.suppressedLogs.incrementAndGet();
+            return;
+        }
+        final long suppressed = this.suppressedLogs.getAndSet(0L);
+        log.warn("Large value " + operation + " in store " + this.storeName
+                + ": " + size + " bytes, key hash " + OperationEvents.hashOf(key)
+                + ((suppressed > 0L) ? " (" + suppressed + " similar messages suppressed)" : ""));
+    }
+
+
+    public static final class Builder<V> {
+        public static final int DEFAULT_LARGE_VALUE_THRESHOLD_BYTES = 1024 * 1024;
+        public static final long DEFAULT_LOG_INTERVAL_MS = 10000L;
+
+        private final String storeName;
+        private final Serializer<V> valueSerializer;
+        private int largeValueThresholdBytes = DEFAULT_LARGE_VALUE_THRESHOLD_BYTES;
+        private int hardLimitBytes = Integer.MAX_VALUE;
+        private long logIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOG_INTERVAL_MS);
+        private boolean jmxEnabled = false;
+
+        private Builder(final String storeName, final Serializer<V> valueSerializer) {
+            this.storeName = Objects.requireNonNull(storeName);
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        }
+
+        public Builder<V> setLargeValueThreshold(final int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("threshold " + bytes + " < 0");
+            }
+            this.largeValueThresholdBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Reject writes of values larger than the given size with a
+         * {@link ValueTooLargeException}. This limit must not be smaller
+         * than the large-value threshold.
+         */
+        public Builder<V> setHardLimit(final int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("hard limit " + bytes + " <= 0");
+            }
+            this.hardLimitBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Log at most one large value per the given interval.
+         */
+        public Builder<V> setLogInterval(final long interval, final TimeUnit unit) {
+            if (interval < 0L) {
+                throw new IllegalArgumentException("log interval " + interval + " < 0");
+            }
+            this.logIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Register the tracker with JMX under its store name.
+         */
+        public Builder<V> setJmxEnabled(final boolean enable) {
+            this.jmxEnabled = enable;
+            return this;
+        }
+
+        public ValueSizeTracker<V> build() {
+            if (this.hardLimitBytes < this.largeValueThresholdBytes) {
+                throw new IllegalStateException("hard limit " + this.hardLimitBytes
+                        + " < large-value threshold " + this.largeValueThresholdBytes);
+            }
+            return new ValueSizeTracker<>(this);
+        }
+    }
+
+}
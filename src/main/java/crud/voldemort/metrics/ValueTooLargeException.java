@@ -0,0 +1,46 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import voldemort.VoldemortException;
+
+
+/**
+ * Thrown by a {@link ValueSizeTracker} to reject the write of a value
+ * larger than its hard limit.
+ */
+public class ValueTooLargeException extends VoldemortException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int valueSizeBytes;
+    private final int limitBytes;
+
+
+    public ValueTooLargeException(final String message, final int valueSizeBytes, final int limitBytes) {
+        super(message);
+        this.valueSizeBytes = valueSizeBytes;
+        this.limitBytes = limitBytes;
+    }
+
+    public int getValueSizeBytes() {
+        return this.valueSizeBytes;
+    }
+
+    public int getLimitBytes() {
+        return this.limitBytes;
+    }
+
+}
@@ -0,0 +1,141 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+
+import crud.voldemort.admin.SnapshotExporter;
+import crud.voldemort.admin.SnapshotImporter;
+import crud.voldemort.admin.SnapshotManifest;
+import crud.voldemort.admin.StoreScanner;
+
+
+/**
+ * Command-line access to store snapshots:
+ * <pre>
+ *  SnapshotTool export --bootstrapUrl=tcp://host:6666 --store=name --directory=dir
+ *      [--threads=n] [--compressed=true] [--bufferSize=bytes]
+ *  SnapshotTool import --bootstrapUrl=tcp://host:6666 --directory=dir
+ *      [--store=name] [--threads=n] [--maxRecordsPerSecond=n] [--maxBytesPerSecond=n]
+ * </pre>
+ * Re-running an interrupted export with the same arguments resumes it.
+ * An import may be repeated safely, since no record overwrites a newer
+ * version.
+ *
+ * @see SnapshotExporter
+ * @see SnapshotImporter
+ */
+public final class SnapshotTool {
+
+    private static final String EXPORT_COMMAND = "export";
+    private static final String IMPORT_COMMAND = "import";
+
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Expected a command: " + EXPORT_COMMAND + " or " + IMPORT_COMMAND);
+        }
+        final Properties props = parseOptions(Arrays.copyOfRange(args, 1, args.length));
+        if (EXPORT_COMMAND.equals(args[0])) {
+            export(props, System.out);
+        } else if (IMPORT_COMMAND.equals(args[0])) {
+            restore(props, System.out);
+        } else {
+            throw new IllegalArgumentException("Unknown command " + args[0]);
+        }
+    }
+
+    private static void export(final Properties props, final PrintStream out)
+    throws IOException, InterruptedException {
+        final Path directory = Paths.get(requireProperty(props, "directory"));
+        try (final StoreScanner scanner = new StoreScanner(
+                requireProperty(props, "bootstrapUrl"),
+                requireProperty(props, "store"))) {
+            final SnapshotExporter.Builder exporter = SnapshotExporter.newBuilder(scanner, directory)
+                    .setCompressed(Boolean.parseBoolean(props.getProperty("compressed", "false")));
+            if (props.containsKey("threads")) {
+                exporter.setThreads(Integer.parseInt(props.getProperty("threads")));
+            }
+            if (props.containsKey("bufferSize")) {
+                exporter.setBufferSize(Integer.parseInt(props.getProperty("bufferSize")));
+            }
+
+            final long start = System.nanoTime();
+            final SnapshotManifest manifest = exporter.build().export();
+            final double elapsedSeconds = (System.nanoTime() - start) / 1.0e9;
+            out.println("Exported " + manifest.getRecordCount() + " records of " + manifest.getStoreName()
+                    + " in " + manifest.getPartitions().size() + " partitions to " + directory
+                    + " (" + Math.round(elapsedSeconds) + " s)");
+        }
+    }
+
+    private static void restore(final Properties props, final PrintStream out)
+    throws IOException, InterruptedException {
+        final Path directory = Paths.get(requireProperty(props, "directory"));
+        final SnapshotImporter.Builder builder = SnapshotImporter.newBuilder(
+                requireProperty(props, "bootstrapUrl"),
+                directory);
+        if (props.containsKey("store")) {
+            builder.setStoreName(props.getProperty("store"));
+        }
+        if (props.containsKey("threads")) {
+            builder.setThreads(Integer.parseInt(props.getProperty("threads")));
+        }
+        if (props.containsKey("maxRecordsPerSecond")) {
+            builder.setMaxRecordsPerSecond(Long.parseLong(props.getProperty("maxRecordsPerSecond")));
+        }
+        if (props.containsKey("maxBytesPerSecond")) {
+            builder.setMaxBytesPerSecond(Long.parseLong(props.getProperty("maxBytesPerSecond")));
+        }
+
+        try (final SnapshotImporter importer = builder.build()) {
+            final long start = System.nanoTime();
+            final long recordCount = importer.restore();
+            final double elapsedSeconds = (System.nanoTime() - start) / 1.0e9;
+            out.println("Imported " + recordCount + " records from " + directory
+                    + " (" + Math.round(elapsedSeconds) + " s)");
+        }
+    }
+
+    private static Properties parseOptions(final String[] args) {
+        final Properties props = new Properties();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            props.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return props;
+    }
+
+    private static String requireProperty(final Properties props, final String name) {
+        final String value = props.getProperty(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+
+    private SnapshotTool() {
+        // prevent instantiation
+    }
+
+}
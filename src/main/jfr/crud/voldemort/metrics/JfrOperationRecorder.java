@@ -0,0 +1,61 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import jdk.jfr.EventType;
+
+
+/**
+ * Records operations as {@link OperationEvent}s. This class is compiled
+ * only on JDK 11 and later, by the {@code jfr} profile, and is loaded
+ * reflectively by {@link OperationEvents}.
+ */
+/*package*/ final class JfrOperationRecorder implements OperationRecorder {
+
+    private final EventType eventType = EventType.getEventType(OperationEvent.class);
+
+
+    @Override
+    public Object begin() {
+        if (!this.eventType.isEnabled()) {
+            return null;
+        }
+        final OperationEvent event = new OperationEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(
+            final Object token,
+            final String opCode,
+            final String storeName,
+            final int keyHash,
+            final int valueSize,
+            final String outcome) {
+        final OperationEvent event = (OperationEvent) token;
+        event.end();
+        // Applies the threshold:
+        if (event.shouldCommit()) {
+            event.opCode = opCode;
+            event.storeName = storeName;
+            event.keyHash = keyHash;
+            event.valueSize = valueSize;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+}
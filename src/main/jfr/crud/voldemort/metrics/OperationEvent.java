@@ -0,0 +1,52 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+
+/**
+ * The JFR event recorded by {@link JfrOperationRecorder}.
+ */
+@Name(OperationEvents.EVENT_NAME)
+@Label("Voldemort Operation")
+@Category({ "Voldemort" })
+@Description("A single operation against a Voldemort store")
+@Threshold("10 ms")
+/*package*/ final class OperationEvent extends Event {
+
+    @Label("Operation")
+    /*package*/ String opCode;
+
+    @Label("Store")
+    /*package*/ String storeName;
+
+    @Label("Key Hash")
+    /*package*/ int keyHash;
+
+    @Label("Value Size")
+    @DataAmount
+    /*package*/ int valueSize;
+
+    @Label("Outcome")
+    /*package*/ String outcome;
+
+}
@@ -0,0 +1,96 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Waits for {@link Observable}s to terminate, in tests. This is used instead
+ * of RxJava's blocking operators, since their API has changed across the
+ * versions with which this project may be used.
+ */
+public final class BlockingResults {
+
+    private static final long TIMEOUT_SECONDS = 30L;
+
+
+    /**
+     * @return  all of the values emitted by the given {@link Observable}.
+     *
+     * @throws RuntimeException if the {@code Observable} fails with one.
+     */
+    public static <T> List<T> await(final Observable<T> observable) {
+        final List<T> values = Collections.synchronizedList(new ArrayList<T>());
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        observable.subscribe(new Subscriber<T>() {
+            @Override
+            public void onNext(final T value) {
+                values.add(value);
+            }
+
+            @Override
+            public void onError(final Throwable ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new AssertionError("Observable didn't terminate");
+            }
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted awaiting result", ix);
+        }
+        if (error[0] instanceof RuntimeException) {
+            throw (RuntimeException) error[0];
+        } else if (error[0] instanceof Error) {
+            throw (Error) error[0];
+        } else if (error[0] != null) {
+            throw new IllegalStateException(error[0]);
+        }
+        return new ArrayList<>(values);
+    }
+
+    /**
+     * @return  the only value emitted by the given {@link Observable}.
+     */
+    public static <T> T awaitSingle(final Observable<T> observable) {
+        final List<T> values = await(observable);
+        if (values.size() != 1) {
+            throw new AssertionError("Expected one value, not " + values);
+        }
+        return values.get(0);
+    }
+
+    private BlockingResults() {
+        // prevent instantiation
+    }
+
+}
@@ -0,0 +1,212 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import voldemort.VoldemortException;
+
+
+public class BucketedListHeadTest {
+
+    @Test
+    public void emptyHeadStartsAtZero() {
+        final BucketedListHead head = BucketedListHead.empty(16);
+        assertEquals(16, head.getBucketSize());
+        assertEquals(0L, head.getFirstIndex());
+        assertEquals(0L, head.getTailBucket());
+        assertEquals(0L, head.getCompactedBucket());
+        assertEquals(0L, head.getGeneration());
+        assertFalse(head.isDeleted());
+    }
+
+    @Test
+    public void headRoundTrip() {
+        final BucketedListHead head = BucketedListHead.empty(16)
+                .withFirstIndex(40L)
+                .withTailBucket(5L)
+                .withCompactedBucket(2L)
+                .deleted()
+                .nextGeneration(8)
+                .withFirstIndex(3L)
+                .deleted();
+        final BucketedListHead decoded = BucketedListHead.decode(head.encode());
+        assertEquals(8, decoded.getBucketSize());
+        assertEquals(3L, decoded.getFirstIndex());
+        assertEquals(0L, decoded.getTailBucket());
+        assertEquals(0L, decoded.getCompactedBucket());
+        assertEquals(1L, decoded.getGeneration());
+        assertTrue(decoded.isDeleted());
+    }
+
+    @Test
+    public void readsFirstFormatVersionAsGenerationZero() {
+        final byte[] bytes = ByteBuffer.allocate(1 + 4 + 8 + 8 + 8)
+                .put((byte) 1)
+                .putInt(16)
+                .putLong(40L)
+                .putLong(5L)
+                .putLong(2L)
+                .array();
+        final BucketedListHead head = BucketedListHead.decode(bytes);
+        assertEquals(16, head.getBucketSize());
+        assertEquals(40L, head.getFirstIndex());
+        assertEquals(5L, head.getTailBucket());
+        assertEquals(2L, head.getCompactedBucket());
+        assertEquals(0L, head.getGeneration());
+        assertFalse(head.isDeleted());
+    }
+
+    @Test
+    public void bucketKeysOfGenerationZeroAreUnchanged() {
+        assertEquals("list#bucket-3", BucketedListHead.empty(16).bucketKey("list", 3L));
+    }
+
+    @Test
+    public void bucketKeysOfLaterGenerationsAreDistinct() {
+        final BucketedListHead head = BucketedListHead.empty(16).deleted().nextGeneration(16);
+        assertEquals("list#gen-1#bucket-3", head.bucketKey("list", 3L));
+    }
+
+    @Test
+    public void fieldsOnlyIncrease() {
+        final BucketedListHead head = BucketedListHead.empty(16)
+                .withFirstIndex(40L)
+                .withTailBucket(5L)
+                .withCompactedBucket(2L)
+                .withFirstIndex(10L)
+                .withTailBucket(1L)
+                .withCompactedBucket(0L);
+        assertEquals(40L, head.getFirstIndex());
+        assertEquals(5L, head.getTailBucket());
+        assertEquals(2L, head.getCompactedBucket());
+    }
+
+    @Test
+    public void deletedKeepsGeneration() {
+        final BucketedListHead head = BucketedListHead.empty(16).deleted().nextGeneration(16).deleted();
+        assertTrue(head.isDeleted());
+        assertEquals(1L, head.getGeneration());
+    }
+
+    @Test
+    public void nextGenerationIsEmpty() {
+        final BucketedListHead next = BucketedListHead.empty(16)
+                .withFirstIndex(40L)
+                .withTailBucket(5L)
+                .withCompactedBucket(2L)
+                .deleted()
+                .nextGeneration(4);
+        assertEquals(4, next.getBucketSize());
+        assertEquals(0L, next.getFirstIndex());
+        assertEquals(0L, next.getTailBucket());
+        assertEquals(0L, next.getCompactedBucket());
+        assertEquals(1L, next.getGeneration());
+        assertFalse(next.isDeleted());
+    }
+
+    @Test
+    public void bucketOfIndex() {
+        final BucketedListHead head = BucketedListHead.empty(16).withFirstIndex(33L);
+        assertEquals(0L, head.bucketOf(15L));
+        assertEquals(1L, head.bucketOf(16L));
+        assertEquals(2L, head.getFirstBucket());
+    }
+
+    @Test
+    public void bucketRoundTrip() {
+        final List<byte[]> entries = new ArrayList<>();
+        entries.add(new byte[] { 1, 2, 3 });
+        entries.add(new byte[0]);
+        entries.add(new byte[] { 4 });
+        final List<byte[]> decoded = BucketedListHead.decodeBucket(BucketedListHead.encodeBucket(entries));
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); ++i) {
+            assertArrayEquals(entries.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void decodedBucketIsMutable() {
+        final List<byte[]> decoded = BucketedListHead.decodeBucket(
+                BucketedListHead.encodeBucket(Arrays.asList(new byte[] { 1 })));
+        decoded.add(new byte[] { 2 });
+        assertEquals(2, decoded.size());
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsHeadOfWrongSize() {
+        final byte[] bytes = BucketedListHead.empty(16).encode();
+        BucketedListHead.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsHeadOfUnknownVersion() {
+        final byte[] bytes = BucketedListHead.empty(16).encode();
+        bytes[0] = 99;
+        BucketedListHead.decode(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsHeadWithZeroBucketSize() {
+        final byte[] bytes = BucketedListHead.empty(16).encode();
+        ByteBuffer.wrap(bytes).putInt(1, 0);
+        BucketedListHead.decode(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsHeadWithBadDeletedFlag() {
+        final byte[] bytes = BucketedListHead.empty(16).encode();
+        bytes[bytes.length - 1] = 2;
+        BucketedListHead.decode(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsBucketOfUnknownVersion() {
+        final byte[] bytes = BucketedListHead.encodeBucket(Arrays.asList(new byte[] { 1 }));
+        bytes[0] = 99;
+        BucketedListHead.decodeBucket(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsTruncatedBucket() {
+        final byte[] bytes = BucketedListHead.encodeBucket(Arrays.asList(new byte[] { 1, 2 }));
+        BucketedListHead.decodeBucket(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsBucketWithTrailingBytes() {
+        final byte[] bytes = BucketedListHead.encodeBucket(Arrays.asList(new byte[] { 1, 2 }));
+        BucketedListHead.decodeBucket(Arrays.copyOf(bytes, bytes.length + 1));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsBucketWithNegativeEntryLength() {
+        final byte[] bytes = BucketedListHead.encodeBucket(Arrays.asList(new byte[] { 1, 2 }));
+        ByteBuffer.wrap(bytes).putInt(1 + 4, -1);
+        BucketedListHead.decodeBucket(bytes);
+    }
+
+}
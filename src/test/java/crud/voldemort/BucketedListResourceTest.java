@@ -0,0 +1,129 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import crud.voldemort.client.ForwardingStoreClient;
+
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.IdentitySerializer;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.Versioned;
+
+
+public class BucketedListResourceTest {
+
+    private static final String KEY = "list";
+    private static final int BUCKET_SIZE = 2;
+
+    private final StoreClient<String, byte[]> store = new MockStoreClientFactory(
+            new StringSerializer(), new IdentitySerializer(), null).getStoreClient("test");
+    private final BucketedListResourceProvider provider = newProvider(this.store);
+
+
+    @Test
+    public void readsRangeAcrossBuckets() {
+        appendAll(7);
+        assertEquals(Arrays.asList("2", "3", "4"), read(newProvider(this.store).get(KEY), 2L, 3L));
+        assertEquals(Arrays.asList("5", "6"), read(newProvider(this.store).get(KEY), 5L, 10L));
+    }
+
+    @Test
+    public void trimmedEntriesAreNotRead() {
+        appendAll(7);
+        assertEquals(Long.valueOf(3L), BlockingResults.awaitSingle(this.provider.get(KEY).trim(3L)));
+        BlockingResults.await(this.provider.get(KEY).compact());
+        assertEquals(Arrays.asList("3", "4", "5", "6"), read(this.provider.get(KEY), 0L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void readContinuesAfterConcurrentCompaction() {
+        appendAll(6);
+        final StoreClient<String, byte[]> racing = racingHeadRead(new Runnable() {
+            @Override
+            public void run() {
+                BlockingResults.await(provider.get(KEY).trim(4L));
+                BlockingResults.await(provider.get(KEY).compact());
+            }
+        });
+        assertEquals(Arrays.asList("4", "5"), read(newProvider(racing).get(KEY), 0L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void readCompletesAfterConcurrentDeletion() {
+        appendAll(6);
+        final StoreClient<String, byte[]> racing = racingHeadRead(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(BlockingResults.awaitSingle(provider.get(KEY).delete()));
+                BlockingResults.await(provider.get(KEY).append(entry(100)));
+            }
+        });
+        assertTrue(read(newProvider(racing).get(KEY), 0L, Long.MAX_VALUE).isEmpty());
+    }
+
+    /**
+     * @return  a store client that runs the given action after its first
+     *          read of the list's head, before returning the head, now
+     *          stale, to the caller.
+     */
+    private StoreClient<String, byte[]> racingHeadRead(final Runnable action) {
+        return new ForwardingStoreClient<String, byte[]>(this.store) {
+            private boolean raced = false;
+
+            @Override
+            public Versioned<byte[]> get(final String key) {
+                final Versioned<byte[]> versioned = super.get(key);
+                if (!this.raced && key.equals(KEY)) {
+                    this.raced = true;
+                    action.run();
+                }
+                return versioned;
+            }
+        };
+    }
+
+    private void appendAll(final int count) {
+        for (int i = 0; i < count; ++i) {
+            assertEquals(Long.valueOf(i), BlockingResults.awaitSingle(this.provider.get(KEY).append(entry(i))));
+        }
+    }
+
+    private static List<String> read(final BucketedListResource list, final long fromIndex, final long maxCount) {
+        final List<String> result = new ArrayList<>();
+        for (final byte[] entry : BlockingResults.await(list.get(fromIndex, maxCount))) {
+            result.add(new String(entry));
+        }
+        return result;
+    }
+
+    private static byte[] entry(final int index) {
+        return Integer.toString(index).getBytes();
+    }
+
+    private static BucketedListResourceProvider newProvider(final StoreClient<String, byte[]> store) {
+        return BucketedListResourceProvider.newBuilder(store).setBucketSize(BUCKET_SIZE).build();
+    }
+
+}
@@ -0,0 +1,179 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import voldemort.VoldemortException;
+
+
+public class ChunkManifestTest {
+
+    @Test
+    public void inlineRoundTrip() {
+        final byte[] value = { 1, 2, 3 };
+        final ChunkManifest decoded = ChunkManifest.decode(ChunkManifest.inline(value).encode());
+        assertTrue(decoded.isInline());
+        assertArrayEquals(value, decoded.getInlineValue());
+        assertEquals(3L, decoded.getTotalLength());
+        assertEquals(0, decoded.getChunkCount());
+    }
+
+    @Test
+    public void emptyInlineRoundTrip() {
+        final ChunkManifest decoded = ChunkManifest.decode(ChunkManifest.inline(new byte[0]).encode());
+        assertTrue(decoded.isInline());
+        assertArrayEquals(new byte[0], decoded.getInlineValue());
+    }
+
+    @Test
+    public void chunkedRoundTrip() {
+        final ChunkManifest manifest = ChunkManifest.chunked(0x1234L, 25L, 10);
+        final ChunkManifest decoded = ChunkManifest.decode(manifest.encode());
+        assertFalse(decoded.isInline());
+        assertNull(decoded.getInlineValue());
+        assertEquals(0x1234L, decoded.getWriteId());
+        assertEquals(25L, decoded.getTotalLength());
+        assertEquals(3, decoded.getChunkCount());
+    }
+
+    @Test
+    public void lastChunkHoldsRemainder() {
+        final ChunkManifest manifest = ChunkManifest.chunked(1L, 25L, 10);
+        assertEquals(10, manifest.getChunkLength(0));
+        assertEquals(10, manifest.getChunkLength(1));
+        assertEquals(5, manifest.getChunkLength(2));
+    }
+
+    @Test
+    public void exactMultipleHasNoPartialChunk() {
+        final ChunkManifest manifest = ChunkManifest.chunked(1L, 30L, 10);
+        assertEquals(3, manifest.getChunkCount());
+        assertEquals(10, manifest.getChunkLength(2));
+    }
+
+    @Test
+    public void chunksReassembleValue() {
+        final byte[] value = new byte[25];
+        for (int i = 0; i < value.length; ++i) {
+            value[i] = (byte) i;
+        }
+        final ChunkManifest manifest = ChunkManifest.chunked(42L, value.length, 10);
+        final ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        for (int i = 0; i < manifest.getChunkCount(); ++i) {
+            final byte[] chunk = manifest.encodeChunk(value, i);
+            assertEquals(ChunkManifest.CHUNK_HEADER_SIZE + manifest.getChunkLength(i), chunk.length);
+            final byte[] decoded = manifest.decodeChunk(chunk, i);
+            reassembled.write(decoded, 0, decoded.length);
+        }
+        assertArrayEquals(value, reassembled.toByteArray());
+    }
+
+    @Test
+    public void chunkOfAnotherWriteIsRejected() {
+        final byte[] value = new byte[25];
+        final ChunkManifest mine = ChunkManifest.chunked(1L, value.length, 10);
+        final ChunkManifest theirs = ChunkManifest.chunked(2L, value.length, 10);
+        assertNull(mine.decodeChunk(theirs.encodeChunk(value, 0), 0));
+    }
+
+    @Test
+    public void chunkOfWrongLengthIsRejected() {
+        final byte[] value = new byte[25];
+        final ChunkManifest manifest = ChunkManifest.chunked(1L, value.length, 10);
+        // The last chunk is shorter than the others:
+        assertNull(manifest.decodeChunk(manifest.encodeChunk(value, 2), 0));
+    }
+
+    @Test
+    public void chunkKeysDifferByWriteAndIndex() {
+        final ChunkManifest first = ChunkManifest.chunked(1L, 25L, 10);
+        final ChunkManifest second = ChunkManifest.chunked(2L, 25L, 10);
+        assertFalse(first.chunkKey("k", 0).equals(first.chunkKey("k", 1)));
+        assertFalse(first.chunkKey("k", 0).equals(second.chunkKey("k", 0)));
+        assertTrue(first.chunkKey("k", 0).startsWith("k#"));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsEmptyBytes() {
+        ChunkManifest.decode(new byte[0]);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsUnknownFormatVersion() {
+        final byte[] bytes = ChunkManifest.inline(new byte[] { 1 }).encode();
+        bytes[0] = 99;
+        ChunkManifest.decode(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsUnknownKind() {
+        final byte[] bytes = ChunkManifest.inline(new byte[] { 1 }).encode();
+        bytes[1] = 99;
+        ChunkManifest.decode(bytes);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsTruncatedChunkedManifest() {
+        final byte[] bytes = ChunkManifest.chunked(1L, 25L, 10).encode();
+        final byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        ChunkManifest.decode(truncated);
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsMismatchedChunkCount() {
+        ChunkManifest.decode(corruptChunked(25L, 10, 4));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsZeroChunkSize() {
+        ChunkManifest.decode(corruptChunked(25L, 0, 3));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsNegativeTotalLength() {
+        ChunkManifest.decode(corruptChunked(-1L, 10, 0));
+    }
+
+    @Test(expected = VoldemortException.class)
+    public void rejectsTooManyChunks() {
+        ChunkManifest.decode(corruptChunked(Long.MAX_VALUE, 1, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return  a chunked manifest with the given fields, bypassing the
+     *          checks made by {@link ChunkManifest#chunked}.
+     */
+    private static byte[] corruptChunked(final long totalLength, final int chunkSize, final int chunkCount) {
+        final byte[] bytes = ChunkManifest.chunked(1L, 25L, 10).encode();
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        buf.position(2 + 8);
+        buf.putLong(totalLength);
+        buf.putInt(chunkSize);
+        buf.putInt(chunkCount);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,243 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import crud.voldemort.client.ForwardingStoreClient;
+
+import voldemort.VoldemortException;
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.IdentitySerializer;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+public class ChunkedValueResourceTest {
+
+    private static final String KEY = "value";
+    private static final int CHUNK_SIZE = 10;
+
+    private final StoreClient<String, byte[]> store = newStore();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+
+    @After
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void absentValueEmitsNothing() {
+        assertTrue(BlockingResults.await(newProvider(this.store).get(KEY).get()).isEmpty());
+    }
+
+    @Test
+    public void smallValueIsStoredInline() {
+        final ChunkedValueResourceProvider provider = newProvider(this.store);
+        BlockingResults.await(provider.get(KEY).write(value(CHUNK_SIZE, 1)));
+        assertTrue(manifest(this.store).isInline());
+        assertArrayEquals(value(CHUNK_SIZE, 1), read(provider));
+    }
+
+    @Test
+    public void largeValueIsChunked() {
+        final ChunkedValueResourceProvider provider = newProvider(this.store);
+        BlockingResults.await(provider.get(KEY).write(value(95, 1)));
+        final ChunkManifest manifest = manifest(this.store);
+        assertFalse(manifest.isInline());
+        assertEquals(10, manifest.getChunkCount());
+        assertArrayEquals(value(95, 1), read(provider));
+    }
+
+    @Test
+    public void replacingValueDeletesOldChunks() {
+        final ChunkedValueResourceProvider provider = newProvider(this.store);
+        BlockingResults.await(provider.get(KEY).write(value(95, 1)));
+        final ChunkManifest oldManifest = manifest(this.store);
+        BlockingResults.await(provider.get(KEY).write(value(45, 2)));
+        assertArrayEquals(value(45, 2), read(provider));
+        assertNoChunks(oldManifest);
+    }
+
+    @Test
+    public void deleteRemovesManifestAndChunks() {
+        final ChunkedValueResourceProvider provider = newProvider(this.store);
+        BlockingResults.await(provider.get(KEY).write(value(95, 1)));
+        final ChunkManifest manifest = manifest(this.store);
+        assertTrue(BlockingResults.awaitSingle(provider.get(KEY).delete()));
+        assertNull(this.store.get(KEY));
+        assertNoChunks(manifest);
+        assertFalse(BlockingResults.awaitSingle(provider.get(KEY).delete()));
+    }
+
+    @Test
+    public void writerThatLosesRaceDeletesItsChunks() {
+        final List<String> chunkKeys = new CopyOnWriteArrayList<>();
+        final StoreClient<String, byte[]> racing = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final byte[] value) {
+                chunkKeys.add(key);
+                return super.put(key, value);
+            }
+
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                // Another writer commits between our read and our write:
+                BlockingResults.await(newProvider(store).get(KEY).write(value(35, 3)));
+                return super.put(key, versioned);
+            }
+        };
+        BlockingResults.await(newProvider(this.store).get(KEY).write(value(25, 1)));
+
+        try {
+            BlockingResults.await(newProvider(racing).get(KEY).write(value(95, 2)));
+            fail("Expected write to conflict");
+        } catch (final ObsoleteVersionException expected) {
+            // expected
+        }
+        assertArrayEquals(value(35, 3), read(newProvider(this.store)));
+        assertEquals(10, chunkKeys.size());
+        for (final String chunkKey : chunkKeys) {
+            assertNull(chunkKey, this.store.get(chunkKey));
+        }
+    }
+
+    @Test
+    public void manifestWriteFailureKeepsChunks() {
+        final StoreClient<String, byte[]> timingOut = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                // Applied, but the client gave up waiting for a quorum:
+                super.put(key, versioned);
+                throw new VoldemortException("Timed out");
+            }
+        };
+        try {
+            BlockingResults.await(newProvider(timingOut).get(KEY).write(value(95, 1)));
+            fail("Expected write to fail");
+        } catch (final VoldemortException expected) {
+            // expected
+        }
+        assertArrayEquals(value(95, 1), read(newProvider(this.store)));
+    }
+
+    @Test
+    public void chunkWriteFailureKeepsOldValue() {
+        final List<String> chunkKeys = new CopyOnWriteArrayList<>();
+        final StoreClient<String, byte[]> failing = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final byte[] value) {
+                if (chunkKeys.size() == 5) {
+                    throw new VoldemortException("Injected failure");
+                }
+                chunkKeys.add(key);
+                return super.put(key, value);
+            }
+        };
+        BlockingResults.await(newProvider(this.store).get(KEY).write(value(25, 1)));
+        try {
+            BlockingResults.await(newProvider(failing, 1).get(KEY).write(value(95, 2)));
+            fail("Expected write to fail");
+        } catch (final VoldemortException expected) {
+            // expected
+        }
+        assertArrayEquals(value(25, 1), read(newProvider(this.store)));
+        for (final String chunkKey : chunkKeys) {
+            assertNull(chunkKey, this.store.get(chunkKey));
+        }
+    }
+
+    @Test
+    public void readerStartsOverWhenValueIsReplacedFirst() {
+        final StoreClient<String, byte[]> replacing = new ForwardingStoreClient<String, byte[]>(this.store) {
+            private boolean replaced = false;
+
+            @Override
+            public Versioned<byte[]> get(final String key) {
+                final Versioned<byte[]> manifest = super.get(key);
+                if (!this.replaced) {
+                    // Replace the value after we've read its manifest:
+                    this.replaced = true;
+                    BlockingResults.await(newProvider(store).get(KEY).write(value(95, 2)));
+                }
+                return manifest;
+            }
+        };
+        BlockingResults.await(newProvider(this.store).get(KEY).write(value(95, 1)));
+        assertArrayEquals(value(95, 2), read(newProvider(replacing, 1)));
+    }
+
+    private ChunkedValueResourceProvider newProvider(final StoreClient<String, byte[]> client) {
+        return newProvider(client, 4);
+    }
+
+    private ChunkedValueResourceProvider newProvider(
+            final StoreClient<String, byte[]> client,
+            final int parallelism) {
+        return ChunkedValueResourceProvider.newBuilder(client)
+                .setChunkSize(CHUNK_SIZE)
+                .setExecutor((parallelism == 1) ? StoreExecutors.sameThread() : this.executor)
+                .build();
+    }
+
+    private static byte[] read(final ChunkedValueResourceProvider provider) {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (final byte[] chunk : BlockingResults.await(provider.get(KEY).get())) {
+            value.write(chunk, 0, chunk.length);
+        }
+        return value.toByteArray();
+    }
+
+    private static ChunkManifest manifest(final StoreClient<String, byte[]> store) {
+        return ChunkManifest.decode(store.getValue(KEY));
+    }
+
+    private void assertNoChunks(final ChunkManifest manifest) {
+        for (int i = 0; i < manifest.getChunkCount(); ++i) {
+            assertNull(this.store.get(manifest.chunkKey(KEY, i)));
+        }
+    }
+
+    private static byte[] value(final int length, final long seed) {
+        final byte[] value = new byte[length];
+        new Random(seed).nextBytes(value);
+        return value;
+    }
+
+    private static StoreClient<String, byte[]> newStore() {
+        return new MockStoreClientFactory(new StringSerializer(), new IdentitySerializer(), null)
+                .getStoreClient("test");
+    }
+
+}
@@ -0,0 +1,243 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import crud.voldemort.ShardedCounterResourceProvider.ShardSelection;
+import crud.voldemort.client.ForwardingStoreClient;
+
+import voldemort.VoldemortException;
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.IdentitySerializer;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+public class ShardedCounterResourceTest {
+
+    private static final String KEY = "counter";
+    private static final int SHARD_COUNT = 4;
+
+    private final StoreClient<String, byte[]> store = new MockStoreClientFactory(
+            new StringSerializer(), new IdentitySerializer(), null).getStoreClient("test");
+    private final List<ShardedCounterResourceProvider> providers = new ArrayList<>();
+
+
+    @After
+    public void tearDown() {
+        for (final ShardedCounterResourceProvider provider : this.providers) {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void incrementsAreSummedAcrossShards() {
+        final ShardedCounterResourceProvider provider = newProvider(this.store, false, ShardSelection.RANDOM);
+        for (int i = 0; i < 20; ++i) {
+            BlockingResults.await(provider.get(KEY).increment(1L));
+        }
+        BlockingResults.await(provider.get(KEY).increment(-5L));
+        assertEquals(15L, read(provider));
+        assertEquals(15L, storedSum());
+    }
+
+    @Test
+    public void conflictingIncrementIsRetriedOnAnotherShard() {
+        final StoreClient<String, byte[]> racing = new ForwardingStoreClient<String, byte[]>(this.store) {
+            private boolean raced = false;
+
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                if (!this.raced) {
+                    // Another increment of the same shard wins:
+                    this.raced = true;
+                    super.put(key, new Versioned<>(encode(5L)));
+                }
+                return super.put(key, versioned);
+            }
+        };
+        final ShardedCounterResourceProvider provider = newProvider(racing, false, ShardSelection.THREAD);
+        BlockingResults.await(provider.get(KEY).increment(1L));
+        assertEquals(1L, provider.getRetryCount());
+        assertEquals(6L, read(provider));
+    }
+
+    @Test
+    public void incrementFailsAfterMaxRetries() {
+        final StoreClient<String, byte[]> conflicting = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                throw new ObsoleteVersionException("Lost the race");
+            }
+        };
+        final ShardedCounterResourceProvider provider = track(ShardedCounterResourceProvider
+                .newBuilder(new VoldemortResourceProvider<>(conflicting))
+                .setShardCount(SHARD_COUNT)
+                .setMaxRetries(2)
+                .build());
+        try {
+            BlockingResults.await(provider.get(KEY).increment(1L));
+            fail("Expected a conflict");
+        } catch (final ObsoleteVersionException expected) {
+            // expected
+        }
+        assertEquals(2L, provider.getRetryCount());
+    }
+
+    @Test
+    public void bufferedIncrementsAreReadBeforeAndAfterFlush() throws InterruptedException {
+        final ShardedCounterResourceProvider provider = newProvider(this.store, true, ShardSelection.THREAD);
+        BlockingResults.await(provider.get(KEY).increment(2L));
+        BlockingResults.await(provider.get(KEY).increment(1L));
+        assertEquals(0L, storedSum());
+        assertEquals(3L, read(provider));
+        provider.flush();
+        assertEquals(3L, storedSum());
+        assertEquals(3L, read(provider));
+    }
+
+    @Test
+    public void incrementWhoseShardCantBeReadIsRebuffered() throws InterruptedException {
+        final StoreClient<String, byte[]> failingOnce = new ForwardingStoreClient<String, byte[]>(this.store) {
+            private boolean failed = false;
+
+            @Override
+            public Versioned<byte[]> get(final String key) {
+                if (!this.failed) {
+                    this.failed = true;
+                    throw new VoldemortException("Unreachable");
+                }
+                return super.get(key);
+            }
+        };
+        final ShardedCounterResourceProvider provider = newProvider(failingOnce, true, ShardSelection.THREAD);
+        BlockingResults.await(provider.get(KEY).increment(2L));
+        provider.flush();
+        assertEquals(1L, provider.getFlushFailureCount());
+        assertEquals(0L, storedSum());
+        assertEquals(2L, read(provider));
+        provider.flush();
+        assertEquals(2L, storedSum());
+        assertEquals(2L, read(provider));
+    }
+
+    @Test
+    public void incrementThatMayHaveBeenWrittenIsDropped() throws InterruptedException {
+        final StoreClient<String, byte[]> timingOut = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                // Applied, but the client gave up waiting for a quorum:
+                super.put(key, versioned);
+                throw new VoldemortException("Timed out");
+            }
+        };
+        final ShardedCounterResourceProvider provider = newProvider(timingOut, true, ShardSelection.THREAD);
+        BlockingResults.await(provider.get(KEY).increment(2L));
+        provider.flush();
+        assertEquals(1L, provider.getFlushFailureCount());
+        provider.flush();
+        assertEquals(2L, storedSum());
+        assertEquals(2L, read(provider));
+    }
+
+    @Test
+    public void readDuringFlushDoesNotCountTwice() throws InterruptedException {
+        final ShardedCounterResourceProvider[] provider = { null };
+        final List<Long> readsDuringFlush = new ArrayList<>();
+        final StoreClient<String, byte[]> reading = new ForwardingStoreClient<String, byte[]>(this.store) {
+            @Override
+            public Version put(final String key, final Versioned<byte[]> versioned) {
+                final Version version = super.put(key, versioned);
+                // Written, but not yet acknowledged to the flush:
+                readsDuringFlush.add(read(provider[0]));
+                return version;
+            }
+        };
+        provider[0] = newProvider(reading, true, ShardSelection.THREAD);
+        BlockingResults.await(provider[0].get(KEY).increment(2L));
+        provider[0].flush();
+        assertEquals(1, readsDuringFlush.size());
+        assertEquals(2L, readsDuringFlush.get(0).longValue());
+        assertEquals(2L, read(provider[0]));
+    }
+
+    @Test
+    public void deleteRemovesShardsAndBufferedIncrements() throws InterruptedException {
+        final ShardedCounterResourceProvider provider = newProvider(this.store, true, ShardSelection.THREAD);
+        BlockingResults.await(provider.get(KEY).increment(2L));
+        provider.flush();
+        BlockingResults.await(provider.get(KEY).increment(1L));
+        assertTrue(BlockingResults.awaitSingle(provider.get(KEY).delete()));
+        assertEquals(0L, read(provider));
+        provider.flush();
+        assertEquals(0L, storedSum());
+        assertFalse(BlockingResults.awaitSingle(provider.get(KEY).delete()));
+    }
+
+    private ShardedCounterResourceProvider newProvider(
+            final StoreClient<String, byte[]> store,
+            final boolean buffered,
+            final ShardSelection shardSelection) {
+        final ShardedCounterResourceProvider.Builder builder = ShardedCounterResourceProvider
+                .newBuilder(new VoldemortResourceProvider<>(store))
+                .setShardCount(SHARD_COUNT)
+                .setShardSelection(shardSelection);
+        if (buffered) {
+            // Flushed explicitly by the tests:
+            builder.setFlushInterval(1L, TimeUnit.HOURS);
+        }
+        return track(builder.build());
+    }
+
+    private ShardedCounterResourceProvider track(final ShardedCounterResourceProvider provider) {
+        this.providers.add(provider);
+        return provider;
+    }
+
+    private static long read(final ShardedCounterResourceProvider provider) {
+        return BlockingResults.awaitSingle(provider.get(KEY).get());
+    }
+
+    private long storedSum() {
+        long sum = 0L;
+        for (int i = 0; i < SHARD_COUNT; ++i) {
+            final byte[] value = this.store.getValue(KEY + "#shard-" + i);
+            if (value != null) {
+                sum += ByteBuffer.wrap(value).getLong();
+            }
+        }
+        return sum;
+    }
+
+    private static byte[] encode(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+}
@@ -0,0 +1,289 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+
+public class StoreFutureTest {
+
+    @Test
+    public void completeSetsResult() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        assertFalse(future.isDone());
+        assertTrue(future.complete("result"));
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertEquals("result", future.get());
+        assertEquals("result", future.get(0L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void onlyFirstCompletionCounts() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.fail(new IllegalStateException()));
+        assertFalse(future.cancel(true));
+        assertEquals("first", future.get());
+    }
+
+    @Test
+    public void failureIsWrappedByGet() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final IllegalStateException cause = new IllegalStateException();
+        assertTrue(future.fail(cause));
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("expected failure");
+        } catch (final ExecutionException ex) {
+            assertSame(cause, ex.getCause());
+        }
+    }
+
+    @Test
+    public void cancelCompletesWithCancellation() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertFalse(future.complete("late"));
+        try {
+            future.get();
+            fail("expected cancellation");
+        } catch (final CancellationException ex) {
+            // expected
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOutWhilePending() throws Exception {
+        new StoreFuture<String>().get(10L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getWaitsForCompletionOnAnotherThread() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final Thread completer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20L);
+                } catch (final InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                }
+                future.complete("later");
+            }
+        };
+        completer.start();
+        assertEquals("later", future.get(10L, TimeUnit.SECONDS));
+        completer.join();
+    }
+
+    @Test
+    public void callbacksAddedBeforeCompletionRunOnCompletingThread() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final RecordingCallback first = new RecordingCallback();
+        final RecordingCallback second = new RecordingCallback();
+        future.addCallback(first, StoreExecutors.sameThread());
+        future.addCallback(second, StoreExecutors.sameThread());
+        assertNull(first.result);
+
+        future.complete("done");
+        assertEquals("done", first.result);
+        assertEquals("done", second.result);
+        assertSame(Thread.currentThread(), first.thread);
+        assertSame(Thread.currentThread(), second.thread);
+    }
+
+    @Test
+    public void callbackAddedAfterCompletionRunsImmediately() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        future.complete("done");
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback, StoreExecutors.sameThread());
+        assertEquals("done", callback.result);
+        assertEquals(1, callback.calls);
+    }
+
+    @Test
+    public void callbackSeesCompletedFuture() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final List<Boolean> doneWhenCalled = new ArrayList<>();
+        future.addCallback(new StoreFuture.Callback<String>() {
+            @Override
+            public void onSuccess(final String result) {
+                doneWhenCalled.add(future.isDone());
+            }
+
+            @Override
+            public void onFailure(final Throwable cause) {
+                fail("unexpected failure");
+            }
+        }, StoreExecutors.sameThread());
+        future.complete("done");
+        assertEquals(Collections.singletonList(true), doneWhenCalled);
+    }
+
+    @Test
+    public void failureIsPassedToCallbacks() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final RecordingCallback before = new RecordingCallback();
+        future.addCallback(before, StoreExecutors.sameThread());
+        final IllegalStateException cause = new IllegalStateException();
+        future.fail(cause);
+        final RecordingCallback after = new RecordingCallback();
+        future.addCallback(after, StoreExecutors.sameThread());
+
+        assertSame(cause, before.failure);
+        assertSame(cause, after.failure);
+        assertNull(before.result);
+    }
+
+    @Test
+    public void cancellationIsPassedToCallbacks() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback, StoreExecutors.sameThread());
+        future.cancel(true);
+        assertTrue(callback.failure instanceof CancellationException);
+    }
+
+    @Test
+    public void callbacksRunOnTheirExecutors() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final StoreFuture<String> future = new StoreFuture<>();
+            final CountDownLatch called = new CountDownLatch(1);
+            final RecordingCallback callback = new RecordingCallback() {
+                @Override
+                public void onSuccess(final String result) {
+                    super.onSuccess(result);
+                    called.countDown();
+                }
+            };
+            future.addCallback(callback, executor);
+            future.complete("done");
+            assertTrue(called.await(10L, TimeUnit.SECONDS));
+            assertEquals("done", callback.result);
+            assertFalse(Thread.currentThread() == callback.thread);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void throwingCallbackDoesNotStopOthers() throws Exception {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final RecordingCallback before = new RecordingCallback();
+        final RecordingCallback after = new RecordingCallback();
+        future.addCallback(before, StoreExecutors.sameThread());
+        future.addCallback(new StoreFuture.Callback<String>() {
+            @Override
+            public void onSuccess(final String result) {
+                throw new IllegalStateException("callback failed");
+            }
+
+            @Override
+            public void onFailure(final Throwable cause) {
+                throw new IllegalStateException("callback failed");
+            }
+        }, StoreExecutors.sameThread());
+        future.addCallback(after, StoreExecutors.sameThread());
+
+        assertTrue(future.complete("done"));
+        assertEquals("done", before.result);
+        assertEquals("done", after.result);
+        assertEquals("done", future.get());
+    }
+
+    @Test
+    public void rejectingExecutorDoesNotStopOthers() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        final RecordingCallback rejected = new RecordingCallback();
+        future.addCallback(rejected, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        final RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback, StoreExecutors.sameThread());
+        assertTrue(future.complete("done"));
+        assertEquals("done", callback.result);
+        assertTrue(rejected.failure instanceof RejectedExecutionException);
+        assertNull(rejected.result);
+        assertSame(Thread.currentThread(), rejected.thread);
+    }
+
+    @Test
+    public void callbackRejectedAfterCompletionFailsInline() {
+        final StoreFuture<String> future = new StoreFuture<>();
+        future.complete("done");
+        final RecordingCallback rejected = new RecordingCallback();
+        future.addCallback(rejected, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        assertTrue(rejected.failure instanceof RejectedExecutionException);
+        assertEquals(1, rejected.calls);
+    }
+
+
+    private static class RecordingCallback implements StoreFuture.Callback<String> {
+        public volatile String result = null;
+        public volatile Throwable failure = null;
+        public volatile Thread thread = null;
+        public volatile int calls = 0;
+
+        @Override
+        public void onSuccess(final String result) {
+            this.result = result;
+            this.thread = Thread.currentThread();
+            ++this.calls;
+        }
+
+        @Override
+        public void onFailure(final Throwable cause) {
+            this.failure = cause;
+            this.thread = Thread.currentThread();
+            ++this.calls;
+        }
+    }
+
+}
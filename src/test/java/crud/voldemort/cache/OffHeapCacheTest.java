@@ -0,0 +1,217 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class OffHeapCacheTest {
+
+    /**
+     * The size of each record in the tests that fill a segment exactly:
+     * the header, a four-byte key, and an 83-byte value.
+     */
+    private static final int RECORD_BYTES = 100;
+    private static final int VALUE_BYTES = RECORD_BYTES - 13 - 4;
+
+
+    @Test
+    public void getReturnsWhatWasPut() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        assertTrue(cache.put(key(1), value(1)));
+        assertArrayEquals(value(1), cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+        assertEquals(1L, cache.getHitCount());
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(1L, cache.getEntryCount());
+        assertEquals(RECORD_BYTES, cache.getUsedBytes());
+    }
+
+    @Test
+    public void getReturnsCopy() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        cache.put(key(1), value(1));
+        cache.get(key(1))[0] = 42;
+        assertArrayEquals(value(1), cache.get(key(1)));
+    }
+
+    @Test
+    public void putReplacesValue() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        cache.put(key(1), value(1));
+        cache.put(key(1), new byte[] { 7 });
+        assertArrayEquals(new byte[] { 7 }, cache.get(key(1)));
+        assertEquals(1L, cache.getEntryCount());
+        assertEquals(13 + 4 + 1, cache.getUsedBytes());
+    }
+
+    @Test
+    public void putIfAbsentKeepsExistingValue() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        assertTrue(cache.putIfAbsent(key(1), value(1)));
+        assertFalse(cache.putIfAbsent(key(1), value(2)));
+        assertArrayEquals(value(1), cache.get(key(1)));
+    }
+
+    @Test
+    public void removeForgetsEntry() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        cache.put(key(1), value(1));
+        cache.remove(key(1));
+        assertNull(cache.get(key(1)));
+        assertEquals(0L, cache.getEntryCount());
+        assertEquals(0L, cache.getUsedBytes());
+        assertTrue(cache.putIfAbsent(key(1), value(2)));
+        assertArrayEquals(value(2), cache.get(key(1)));
+    }
+
+    @Test
+    public void clearForgetsAllEntries() {
+        final OffHeapCache cache = new OffHeapCache(4096, 1);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(key(i), value(i));
+        }
+        cache.clear();
+        assertEquals(0L, cache.getEntryCount());
+        for (int i = 0; i < 10; ++i) {
+            assertNull(cache.get(key(i)));
+        }
+    }
+
+    @Test
+    public void entryLargerThanSegmentIsNotCached() {
+        final OffHeapCache cache = new OffHeapCache(1000, 1);
+        assertFalse(cache.put(key(1), new byte[1000]));
+        assertNull(cache.get(key(1)));
+        assertEquals(0L, cache.getEntryCount());
+    }
+
+    @Test
+    public void oldestEntriesAreEvictedFirst() {
+        final OffHeapCache cache = new OffHeapCache(10 * RECORD_BYTES, 1);
+        for (int i = 0; i < 15; ++i) {
+            assertTrue(cache.put(key(i), value(i)));
+        }
+        for (int i = 0; i < 5; ++i) {
+            assertNull(cache.get(key(i)));
+        }
+        for (int i = 5; i < 15; ++i) {
+            assertArrayEquals(value(i), cache.get(key(i)));
+        }
+        assertEquals(5L, cache.getEvictionCount());
+        assertEquals(10L, cache.getEntryCount());
+        assertEquals(10L * RECORD_BYTES, cache.getUsedBytes());
+    }
+
+    @Test
+    public void referencedEntryGetsSecondChance() {
+        final OffHeapCache cache = new OffHeapCache(10 * RECORD_BYTES, 1);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(key(i), value(i));
+        }
+        assertNotNull(cache.get(key(0)));
+
+        cache.put(key(10), value(10));
+        assertArrayEquals(value(0), cache.get(key(0)));
+        assertNull(cache.get(key(1)));
+        assertArrayEquals(value(10), cache.get(key(10)));
+        assertEquals(1L, cache.getEvictionCount());
+    }
+
+    @Test
+    public void secondChanceIsGivenOnlyOnce() {
+        final OffHeapCache cache = new OffHeapCache(10 * RECORD_BYTES, 1);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(key(i), value(i));
+        }
+        cache.get(key(0));
+        // Enough new entries to go round the log again:
+        for (int i = 10; i < 21; ++i) {
+            cache.put(key(i), value(i));
+        }
+        assertNull(cache.get(key(0)));
+    }
+
+    @Test
+    public void logWrapsAroundWithMixedSizes() {
+        final int capacity = 8192;
+        final OffHeapCache cache = new OffHeapCache(capacity, 1);
+        final Map<Integer, byte[]> latest = new HashMap<>();
+        final Random random = new Random(0L);
+        for (int n = 0; n < 20000; ++n) {
+            final int k = random.nextInt(200);
+            final int op = random.nextInt(10);
+            if (op < 5) {
+                final byte[] value = new byte[random.nextInt(300)];
+                random.nextBytes(value);
+                assertTrue(cache.put(key(k), value));
+                latest.put(k, value);
+            } else if (op < 9) {
+                final byte[] cached = cache.get(key(k));
+                if (cached != null) {
+                    // Evicted entries may be missing, but never stale.
+                    assertArrayEquals(latest.get(k), cached);
+                }
+            } else {
+                cache.remove(key(k));
+                latest.remove(k);
+            }
+            assertTrue(cache.getUsedBytes() <= capacity);
+        }
+        assertTrue(cache.getEvictionCount() > 0L);
+        assertTrue(cache.getEntryCount() <= latest.size());
+    }
+
+    @Test
+    public void segmentCountIsRoundedUpToPowerOfTwo() {
+        final OffHeapCache cache = new OffHeapCache(1 << 20, 3);
+        assertEquals(4, cache.getSegmentCount());
+        assertEquals(1 << 20, cache.getCapacityBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooSmallCapacity() {
+        new OffHeapCache(16, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSegmentCount() {
+        new OffHeapCache(4096, 0);
+    }
+
+    private static byte[] key(final int i) {
+        return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+
+    private static byte[] value(final int i) {
+        final byte[] value = new byte[VALUE_BYTES];
+        for (int j = 0; j < value.length; ++j) {
+            value[j] = (byte) (i + j);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,204 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import crud.voldemort.cache.OffHeapCache;
+
+import voldemort.VoldemortException;
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+public class OffHeapCachingStoreClientTest {
+
+    private final StoreClient<String, String> store = new MockStoreClientFactory(
+            new StringSerializer(), new StringSerializer(), null).getStoreClient("test");
+    private final AtomicInteger storeReads = new AtomicInteger();
+
+
+    @Test
+    public void readMissIsCached() {
+        this.store.put("key", "value");
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        assertEquals("value", client.getValue("key"));
+        assertEquals("value", client.getValue("key"));
+        assertEquals(1, this.storeReads.get());
+    }
+
+    @Test
+    public void absentKeyIsNotCached() {
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        assertNull(client.get("key"));
+        this.store.put("key", "value");
+        assertEquals("value", client.getValue("key"));
+    }
+
+    @Test
+    public void getAllFillsMisses() {
+        this.store.put("a", "1");
+        this.store.put("b", "2");
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        assertEquals("1", client.getValue("a"));
+        final Map<String, Versioned<String>> all = client.getAll(Arrays.asList("a", "b", "c"));
+        assertEquals(2, all.size());
+        assertEquals("2", all.get("b").getValue());
+        assertEquals("2", client.getValue("b"));
+        assertEquals(2, this.storeReads.get());
+    }
+
+    @Test
+    public void writeUpdatesCache() {
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        client.put("key", "first");
+        client.put("key", "second");
+        final int readsByWrites = this.storeReads.get();
+        assertEquals("second", client.getValue("key"));
+        assertEquals(readsByWrites, this.storeReads.get());
+        assertEquals("second", this.store.getValue("key"));
+    }
+
+    @Test
+    public void deleteInvalidatesCache() {
+        final StoreClient<String, String> client = newClient(this.store);
+        client.put("key", "value");
+        assertTrue(client.delete("key"));
+        assertNull(client.get("key"));
+    }
+
+    @Test
+    public void conflictingWriteInvalidatesCache() {
+        final StoreClient<String, String> client = newClient(this.store);
+        client.put("key", "first");
+        final Versioned<String> stale = this.store.get("key");
+        this.store.put("key", "second");
+        try {
+            client.put("key", new Versioned<>("third", stale.getVersion()));
+            fail("Expected a conflict");
+        } catch (final ObsoleteVersionException expected) {
+            // expected
+        }
+        assertEquals("second", client.getValue("key"));
+        assertFalse(client.putIfNotObsolete("key", new Versioned<>("third", stale.getVersion())));
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void failedWriteInvalidatesCache() {
+        final StoreClient<String, String> timingOut = new ForwardingStoreClient<String, String>(this.store) {
+            @Override
+            public Version put(final String key, final String value) {
+                // Applied, but the client gave up waiting for a quorum:
+                super.put(key, value);
+                throw new VoldemortException("Timed out");
+            }
+        };
+        final StoreClient<String, String> client = newClient(timingOut);
+        client.put("key", new Versioned<>("first"));
+        assertEquals("first", client.getValue("key"));
+        try {
+            client.put("key", "second");
+            fail("Expected a failure");
+        } catch (final VoldemortException expected) {
+            // expected
+        }
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void olderOfTwoRacingWritesIsNotCached() {
+        final StoreClient<String, String>[] client = newClientArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.store) {
+            @Override
+            public Version put(final String key, final String value) {
+                final Version version = super.put(key, value);
+                if (value.equals("older")) {
+                    // Another writer finishes, and caches its value, before we cache ours:
+                    client[0].put(key, "newer");
+                }
+                return version;
+            }
+        };
+        client[0] = newClient(racing);
+        client[0].put("key", "older");
+        assertEquals("newer", this.store.getValue("key"));
+        assertEquals("newer", client[0].getValue("key"));
+    }
+
+    @Test
+    public void readRacingWriteDoesNotCacheOldValue() {
+        this.store.put("key", "older");
+        final StoreClient<String, String>[] client = newClientArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.store) {
+            private boolean raced = false;
+
+            @Override
+            public Versioned<String> get(final String key) {
+                final Versioned<String> versioned = super.get(key);
+                if (!this.raced) {
+                    // A write finishes after we've read, but before we cache:
+                    this.raced = true;
+                    client[0].put(key, "newer");
+                }
+                return versioned;
+            }
+        };
+        client[0] = newClient(racing);
+        assertEquals("older", client[0].getValue("key"));
+        assertEquals("newer", client[0].getValue("key"));
+    }
+
+    private static StoreClient<String, String> newClient(final StoreClient<String, String> delegate) {
+        return new OffHeapCachingStoreClient<>(
+                delegate, new OffHeapCache(1024 * 1024), new StringSerializer(), new StringSerializer());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StoreClient<String, String>[] newClientArray() {
+        return new StoreClient[1];
+    }
+
+    private StoreClient<String, String> countingReads(final StoreClient<String, String> delegate) {
+        return new ForwardingStoreClient<String, String>(delegate) {
+            @Override
+            public Versioned<String> get(final String key) {
+                storeReads.incrementAndGet();
+                return super.get(key);
+            }
+
+            @Override
+            public Map<String, Versioned<String>> getAll(final Iterable<String> keys) {
+                storeReads.incrementAndGet();
+                return super.getAll(keys);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,253 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import crud.voldemort.StoreExecutors;
+import crud.voldemort.cache.MappedFileCache;
+
+import voldemort.VoldemortException;
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+public class PersistentCachingStoreClientTest {
+
+    private static final int MAX_FILE_BYTES = 64 * 1024;
+
+    private final StoreClient<String, String> store = new MockStoreClientFactory(
+            new StringSerializer(), new StringSerializer(), null).getStoreClient("test");
+    private final AtomicInteger storeReads = new AtomicInteger();
+    private final List<MappedFileCache> caches = new ArrayList<>();
+    private final File file;
+
+
+    public PersistentCachingStoreClientTest() throws IOException {
+        this.file = File.createTempFile("PersistentCachingStoreClientTest", ".cache");
+        this.file.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (final MappedFileCache cache : this.caches) {
+            cache.close();
+        }
+        this.file.delete();
+        new File(this.file.getPath() + ".compact").delete();
+    }
+
+    @Test
+    public void readMissIsCached() throws IOException {
+        this.store.put("key", "value");
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        assertEquals("value", client.getValue("key"));
+        assertEquals("value", client.getValue("key"));
+        assertEquals(1, this.storeReads.get());
+    }
+
+    @Test
+    public void recoveredEntryIsServedThenRevalidated() throws IOException {
+        newClient(this.store).put("key", "first");
+        reopen();
+        this.store.put("key", "second");
+        final StoreClient<String, String> client = newClient(countingReads(this.store));
+        assertEquals("first", client.getValue("key"));
+        assertEquals(1, this.storeReads.get());
+        assertEquals("second", client.getValue("key"));
+        assertEquals(1, this.storeReads.get());
+    }
+
+    @Test
+    public void failedRevalidationRemovesRecoveredEntry() throws IOException {
+        newClient(this.store).put("key", "first");
+        reopen();
+        this.store.put("key", "second");
+        final StoreClient<String, String> failingOnce = new ForwardingStoreClient<String, String>(this.store) {
+            private boolean failed = false;
+
+            @Override
+            public Versioned<String> get(final String key) {
+                if (!this.failed) {
+                    this.failed = true;
+                    throw new VoldemortException("Unreachable");
+                }
+                return super.get(key);
+            }
+        };
+        final StoreClient<String, String> client = newClient(failingOnce);
+        assertEquals("first", client.getValue("key"));
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void rejectedRevalidationDoesNotFailReader() throws IOException {
+        newClient(this.store).put("key", "first");
+        reopen();
+        this.store.put("key", "second");
+        final StoreClient<String, String> client = new PersistentCachingStoreClient<>(
+                this.store, openCache(), new StringSerializer(), new StringSerializer(), new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        throw new RejectedExecutionException();
+                    }
+                });
+        assertEquals("first", client.getValue("key"));
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void deleteInvalidatesCache() throws IOException {
+        final StoreClient<String, String> client = newClient(this.store);
+        client.put("key", "value");
+        client.delete("key");
+        assertNull(client.get("key"));
+    }
+
+    @Test
+    public void conflictingWriteInvalidatesCache() throws IOException {
+        final StoreClient<String, String> client = newClient(this.store);
+        client.put("key", "first");
+        final Versioned<String> stale = this.store.get("key");
+        this.store.put("key", "second");
+        try {
+            client.put("key", new Versioned<>("third", stale.getVersion()));
+            fail("Expected a conflict");
+        } catch (final ObsoleteVersionException expected) {
+            // expected
+        }
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void failedWriteInvalidatesCache() throws IOException {
+        final StoreClient<String, String> timingOut = new ForwardingStoreClient<String, String>(this.store) {
+            @Override
+            public Version put(final String key, final String value) {
+                // Applied, but the client gave up waiting for a quorum:
+                super.put(key, value);
+                throw new VoldemortException("Timed out");
+            }
+        };
+        final StoreClient<String, String> client = newClient(timingOut);
+        client.put("key", new Versioned<>("first"));
+        assertEquals("first", client.getValue("key"));
+        try {
+            client.put("key", "second");
+            fail("Expected a failure");
+        } catch (final VoldemortException expected) {
+            // expected
+        }
+        assertEquals("second", client.getValue("key"));
+    }
+
+    @Test
+    public void olderOfTwoRacingWritesIsNotCached() throws IOException {
+        final StoreClient<String, String>[] client = newClientArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.store) {
+            @Override
+            public Version put(final String key, final String value) {
+                final Version version = super.put(key, value);
+                if (value.equals("older")) {
+                    // Another writer finishes, and caches its value, before we cache ours:
+                    client[0].put(key, "newer");
+                }
+                return version;
+            }
+        };
+        client[0] = newClient(racing);
+        client[0].put("key", "older");
+        assertEquals("newer", this.store.getValue("key"));
+        assertEquals("newer", client[0].getValue("key"));
+    }
+
+    @Test
+    public void readRacingWriteDoesNotCacheOldValue() throws IOException {
+        this.store.put("key", "older");
+        final StoreClient<String, String>[] client = newClientArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.store) {
+            private boolean raced = false;
+
+            @Override
+            public Versioned<String> get(final String key) {
+                final Versioned<String> versioned = super.get(key);
+                if (!this.raced) {
+                    // A write finishes after we've read, but before we cache:
+                    this.raced = true;
+                    client[0].put(key, "newer");
+                }
+                return versioned;
+            }
+        };
+        client[0] = newClient(racing);
+        assertEquals("older", client[0].getValue("key"));
+        assertEquals("newer", client[0].getValue("key"));
+    }
+
+    private StoreClient<String, String> newClient(final StoreClient<String, String> delegate) throws IOException {
+        return new PersistentCachingStoreClient<>(
+                delegate, openCache(), new StringSerializer(), new StringSerializer(),
+                StoreExecutors.sameThread());
+    }
+
+    private MappedFileCache openCache() throws IOException {
+        if (this.caches.isEmpty()) {
+            this.caches.add(MappedFileCache.open(this.file, MAX_FILE_BYTES));
+        }
+        return this.caches.get(this.caches.size() - 1);
+    }
+
+    /**
+     * Close the cache file, so that the next client recovers its entries.
+     */
+    private void reopen() throws IOException {
+        final MappedFileCache old = this.caches.remove(this.caches.size() - 1);
+        old.close();
+        this.caches.add(MappedFileCache.open(this.file, MAX_FILE_BYTES));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StoreClient<String, String>[] newClientArray() {
+        return new StoreClient[1];
+    }
+
+    private StoreClient<String, String> countingReads(final StoreClient<String, String> delegate) {
+        return new ForwardingStoreClient<String, String>(delegate) {
+            @Override
+            public Versioned<String> get(final String key) {
+                storeReads.incrementAndGet();
+                return super.get(key);
+            }
+        };
+    }
+
+}
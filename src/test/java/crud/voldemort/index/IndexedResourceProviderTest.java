@@ -0,0 +1,206 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import crud.voldemort.BlockingResults;
+import crud.voldemort.VoldemortResourceProvider;
+import crud.voldemort.client.ForwardingStoreClient;
+
+import voldemort.client.MockStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.serialization.IdentitySerializer;
+import voldemort.serialization.StringSerializer;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+
+public class IndexedResourceProviderTest {
+
+    /**
+     * Indexes each record under the words of its value.
+     */
+    private static final IndexExtractor<String, String> WORDS = new IndexExtractor<String, String>() {
+        @Override
+        public Set<String> extract(final String key, final String value) {
+            return new LinkedHashSet<>(Arrays.asList(value.split(" ")));
+        }
+    };
+
+    private final StoreClient<String, String> primary = new MockStoreClientFactory(
+            new StringSerializer(), new StringSerializer(), null).getStoreClient("primary");
+    private final StoreClient<String, byte[]> index = new MockStoreClientFactory(
+            new StringSerializer(), new IdentitySerializer(), null).getStoreClient("index");
+    private final IndexedResourceProvider<String, String> provider = newProvider(this.primary);
+
+
+    @Test
+    public void writeIndexesEachTerm() {
+        write(this.provider, "a", "red round");
+        write(this.provider, "b", "red square");
+        assertEquals(Arrays.asList("a", "b"), sorted(lookup("red")));
+        assertEquals(Collections.singletonList("a"), lookup("round"));
+        assertEquals(Collections.singletonList("b"), findKeys("square"));
+    }
+
+    @Test
+    public void rewriteMovesKeyBetweenTerms() {
+        write(this.provider, "a", "red");
+        write(this.provider, "a", "blue");
+        assertTrue(lookup("red").isEmpty());
+        assertEquals(Collections.singletonList("a"), lookup("blue"));
+    }
+
+    @Test
+    public void deleteRemovesKeyFromIndex() {
+        write(this.provider, "a", "red");
+        assertTrue(BlockingResults.awaitSingle(this.provider.get("a").delete()));
+        assertTrue(lookup("red").isEmpty());
+        assertTrue(findKeys("red").isEmpty());
+    }
+
+    @Test
+    public void conflictingRecordWriteIsRetried() {
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.primary) {
+            private boolean raced = false;
+
+            @Override
+            public Version put(final String key, final Versioned<String> versioned) {
+                if (!this.raced) {
+                    // Another writer updates the record first:
+                    this.raced = true;
+                    super.put(key, new Versioned<>("green"));
+                }
+                return super.put(key, versioned);
+            }
+        };
+        final IndexedResourceProvider<String, String> racingProvider = newProvider(racing);
+        write(racingProvider, "a", "red");
+        assertEquals("red", this.primary.getValue("a"));
+        assertEquals(Collections.singletonList("a"), lookup("red"));
+        assertTrue(racingProvider.getConflictCount() > 0L);
+    }
+
+    @Test
+    public void findRepairsStaleEntries() {
+        write(this.provider, "a", "red");
+        write(this.provider, "b", "red");
+        // Changed without maintaining the index:
+        this.primary.put("b", "blue");
+        this.primary.delete("a");
+        assertTrue(findKeys("red").isEmpty());
+        assertEquals(2L, this.provider.getRepairCount());
+        assertTrue(lookup("red").isEmpty());
+    }
+
+    @Test
+    public void repairDoesNotRemoveKeyBeingAddedAgain() {
+        write(this.provider, "a", "red");
+        this.primary.put("a", "blue");
+        final IndexedResourceProvider<String, String>[] racingProvider = newProviderArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.primary) {
+            @Override
+            public Map<String, Versioned<String>> getAll(final Iterable<String> keys) {
+                final Map<String, Versioned<String>> records = super.getAll(keys);
+                // After find() has read the stale record, a writer makes it current again:
+                write(racingProvider[0], "a", "red");
+                return records;
+            }
+        };
+        racingProvider[0] = newProvider(racing);
+        assertTrue(findKeys(racingProvider[0], "red").isEmpty());
+        assertEquals(0L, racingProvider[0].getRepairCount());
+        assertEquals(Collections.singletonList("a"), lookup("red"));
+        assertEquals(Collections.singletonList("a"), findKeys("red"));
+    }
+
+    @Test
+    public void removalRacingWithReadditionKeepsKey() {
+        write(this.provider, "a", "red");
+        final IndexedResourceProvider<String, String>[] racingProvider = newProviderArray();
+        final StoreClient<String, String> racing = new ForwardingStoreClient<String, String>(this.primary) {
+            private boolean raced = false;
+
+            @Override
+            public Version put(final String key, final Versioned<String> versioned) {
+                final Version version = super.put(key, versioned);
+                if (!this.raced) {
+                    // Another writer restores the old term before we remove it:
+                    this.raced = true;
+                    write(racingProvider[0], key, "red");
+                }
+                return version;
+            }
+        };
+        racingProvider[0] = newProvider(racing);
+        write(racingProvider[0], "a", "blue");
+        assertEquals("red", this.primary.getValue("a"));
+        assertEquals(Collections.singletonList("a"), lookup("red"));
+        assertTrue(findKeys("blue").isEmpty());
+        assertTrue(lookup("blue").isEmpty());
+    }
+
+    private IndexedResourceProvider<String, String> newProvider(final StoreClient<String, String> store) {
+        return IndexedResourceProvider.newBuilder(
+                new VoldemortResourceProvider<>(store), this.index, new StringSerializer(), WORDS).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IndexedResourceProvider<String, String>[] newProviderArray() {
+        return new IndexedResourceProvider[1];
+    }
+
+    private static void write(
+            final IndexedResourceProvider<String, String> provider,
+            final String key,
+            final String value) {
+        BlockingResults.await(provider.get(key).write(value));
+    }
+
+    private List<String> lookup(final String term) {
+        return BlockingResults.await(this.provider.lookup(term));
+    }
+
+    private List<String> findKeys(final String term) {
+        return findKeys(this.provider, term);
+    }
+
+    private static List<String> findKeys(final IndexedResourceProvider<String, String> provider, final String term) {
+        final List<String> keys = new ArrayList<>();
+        for (final Map.Entry<String, Versioned<String>> record : BlockingResults.await(provider.find(term))) {
+            keys.add(record.getKey());
+        }
+        return keys;
+    }
+
+    private static List<String> sorted(final List<String> values) {
+        final List<String> result = new ArrayList<>(values);
+        Collections.sort(result);
+        return result;
+    }
+
+}
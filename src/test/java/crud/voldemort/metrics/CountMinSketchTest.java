@@ -0,0 +1,94 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class CountMinSketchTest {
+
+    @Test
+    public void unseenItemHasNoCount() {
+        assertEquals(0L, new CountMinSketch(4, 64).estimate(12345));
+    }
+
+    @Test
+    public void addReturnsRunningEstimate() {
+        final CountMinSketch sketch = new CountMinSketch(4, 64);
+        assertEquals(1L, sketch.add(7));
+        assertEquals(2L, sketch.add(7));
+        assertEquals(3L, sketch.add(7));
+        assertEquals(3L, sketch.estimate(7));
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        final CountMinSketch sketch = new CountMinSketch(4, 16);
+        final int[] trueCounts = new int[200];
+        final Random random = new Random(42L);
+        for (int i = 0; i < 10000; ++i) {
+            final int item = random.nextInt(trueCounts.length);
+            ++trueCounts[item];
+            sketch.add(item);
+        }
+        for (int item = 0; item < trueCounts.length; ++item) {
+            assertTrue(sketch.estimate(item) >= trueCounts[item]);
+        }
+    }
+
+    @Test
+    public void heavyHitterStandsOut() {
+        final CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 1000; ++i) {
+            sketch.add(-1);
+            sketch.add(i);
+        }
+        assertTrue(sketch.estimate(-1) >= 1000L);
+        // The error bound is e * N / width, or about 5 here:
+        assertTrue(sketch.estimate(500) < 10L);
+    }
+
+    @Test
+    public void widthIsRoundedUpToPowerOfTwo() {
+        assertEquals(2 * 4 * 8, new CountMinSketch(2, 3).getMemoryFootprintBytes());
+        assertEquals(2 * 4 * 8, new CountMinSketch(2, 4).getMemoryFootprintBytes());
+        assertEquals(2 * 8 * 8, new CountMinSketch(2, 5).getMemoryFootprintBytes());
+    }
+
+    @Test
+    public void widthOfOneCountsEverything() {
+        final CountMinSketch sketch = new CountMinSketch(3, 1);
+        assertEquals(3 * 8, sketch.getMemoryFootprintBytes());
+        sketch.add(1);
+        sketch.add(2);
+        assertEquals(2L, sketch.estimate(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroDepth() {
+        new CountMinSketch(0, 64);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroWidth() {
+        new CountMinSketch(4, 0);
+    }
+
+}
@@ -0,0 +1,135 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getSum());
+        assertEquals(0L, histogram.getMax());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0L, histogram.getValueAtPercentile(50.0));
+    }
+
+    @Test
+    public void tracksCountSumMeanAndMax() {
+        final Histogram histogram = new Histogram();
+        histogram.record(2L);
+        histogram.record(10L);
+        histogram.record(0L);
+        assertEquals(3L, histogram.getCount());
+        assertEquals(12L, histogram.getSum());
+        assertEquals(10L, histogram.getMax());
+        assertEquals(4.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final Histogram histogram = new Histogram();
+        for (long value = 0L; value < 32L; ++value) {
+            histogram.record(value);
+        }
+        assertEquals(0L, histogram.getValueAtPercentile(0.0));
+        assertEquals(15L, histogram.getValueAtPercentile(50.0));
+        assertEquals(31L, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketResolution() {
+        final Histogram histogram = new Histogram();
+        for (long value = 1L; value <= 100000L; ++value) {
+            histogram.record(value);
+        }
+        assertWithinResolution(50000L, histogram.getValueAtPercentile(50.0));
+        assertWithinResolution(90000L, histogram.getValueAtPercentile(90.0));
+        assertWithinResolution(99000L, histogram.getValueAtPercentile(99.0));
+        assertEquals(100000L, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        final Histogram histogram = new Histogram();
+        histogram.record(1000L);
+        assertEquals(1000L, histogram.getValueAtPercentile(50.0));
+    }
+
+    @Test
+    public void recordsLargestValue() {
+        final Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void addMergesRecordedValues() {
+        final Histogram first = new Histogram();
+        final Histogram second = new Histogram();
+        first.record(1L);
+        first.record(3L);
+        second.record(5L);
+        second.record(7L);
+        first.add(second);
+        assertEquals(4L, first.getCount());
+        assertEquals(16L, first.getSum());
+        assertEquals(7L, first.getMax());
+        assertEquals(3L, first.getValueAtPercentile(50.0));
+        assertEquals(2L, second.getCount());
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        final Histogram histogram = new Histogram();
+        histogram.record(42L);
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getSum());
+        assertEquals(0L, histogram.getMax());
+        assertEquals(0L, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeValue() {
+        new Histogram().record(-1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPercentileAboveHundred() {
+        new Histogram().getValueAtPercentile(100.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativePercentile() {
+        new Histogram().getValueAtPercentile(-0.5);
+    }
+
+    /**
+     * Percentiles are upper bounds, within 1/32 of the true value.
+     */
+    private static void assertWithinResolution(final long expected, final long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " too far above " + expected, actual <= expected + expected / 32L);
+    }
+
+}
@@ -0,0 +1,423 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import crud.voldemort.LongKeyCodec;
+import crud.voldemort.LongKeyResourceProvider;
+import crud.voldemort.VoldemortResourceProvider;
+import crud.voldemort.cache.OffHeapCache;
+import crud.voldemort.client.ForwardingStoreClient;
+import crud.voldemort.client.OffHeapCachingStoreClient;
+import crud.voldemort.config.ImmutableClientConfig;
+
+import voldemort.client.SocketStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.client.StoreClientFactory;
+import voldemort.serialization.IdentitySerializer;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Compares the memory allocated, and the time taken, per operation by
+ * alternative ways of reading through this library, against stores in an
+ * {@link EmbeddedVoldemortServer}. Each case reads every record in turn,
+ * many times:
+ * <ul>
+ *  <li>{@code BoxedLongKeys} and {@code PrimitiveLongKeys} compare the
+ *      generic provider with {@link LongKeyResourceProvider}.</li>
+ *  <li>{@code VersionedReads} and {@code ValueOnlyReads} compare
+ *      {@link crud.voldemort.VoldemortResource} with
+ *      {@link crud.voldemort.VoldemortValueResource}.</li>
+ *  <li>{@code VersionedReads} and {@code FutureReads} compare reading
+ *      through an {@link rx.Observable} with reading through a
+ *      {@link crud.voldemort.StoreFuture}.</li>
+ *  <li>{@code OnHeapCachedReads} and {@code OffHeapCachedReads} compare an
+ *      LRU cache of {@link Versioned} objects on the heap with an
+ *      {@link OffHeapCache} of the same capacity, in bytes of keys and
+ *      values. Rather than reading every record in turn, these cases choose
+ *      records from a {@link KeyDistribution#ZIPFIAN Zipfian} distribution,
+ *      so that popular records hit and the rest are evicted.</li>
+ * </ul>
+ * <pre>
+ *  AllocationBenchmark [--operations=n] [--records=n] [--valueSize=bytes] [--cacheBytes=n]
+ * </pre>
+ *
+ * The caches hold half of the records by default. Their effect on garbage
+ * collection shows only once they hold far more than the young generation,
+ * for example with {@code --records=100000 --valueSize=10000}, and the
+ * heap large enough for the on-heap cache.
+ *
+ * Allocation is measured across all threads, including the client's
+ * selector threads, using the HotSpot extension of {@link ThreadMXBean}.
+ * Each case also reports the collections and collection time during its
+ * measurement, and the heap still in use after a full collection at the
+ * end of it, while its cache remains reachable.
+ * As for {@link WorkloadDriver}, the results are meaningful only relative
+ * to one another.
+ */
+public final class AllocationBenchmark {
+
+    private static final String BOXED_STORE = "boxed";
+    private static final String PRIMITIVE_STORE = "primitive";
+
+    private final long operationCount;
+    private final int recordCount;
+    private final int valueSize;
+    private final long cacheBytes;
+
+
+    public static void main(final String[] args) throws IOException {
+        final Properties props = new Properties();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            props.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        final int recordCount = Integer.parseInt(props.getProperty("records", "1000"));
+        final int valueSize = Integer.parseInt(props.getProperty("valueSize", "100"));
+        final long defaultCacheBytes = (long) recordCount * (LongKeyCodec.SIZE + valueSize) / 2L;
+        new AllocationBenchmark(
+                Long.parseLong(props.getProperty("operations", "200000")),
+                recordCount,
+                valueSize,
+                Long.parseLong(props.getProperty("cacheBytes", Long.toString(defaultCacheBytes))))
+            .run(System.out);
+    }
+
+    public AllocationBenchmark(
+            final long operationCount,
+            final int recordCount,
+            final int valueSize,
+            final long cacheBytes) {
+        if (operationCount <= 0L || recordCount <= 0 || valueSize < 0 || cacheBytes <= 0L) {
+            throw new IllegalArgumentException(
+                    "operations " + operationCount + ", records " + recordCount + ", value size " + valueSize
+                    + ", cache bytes " + cacheBytes);
+        }
+        this.operationCount = operationCount;
+        this.recordCount = recordCount;
+        this.valueSize = valueSize;
+        this.cacheBytes = cacheBytes;
+    }
+
+    public void run(final PrintStream out) throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("Allocation can't be measured in this JVM");
+        }
+
+        final Map<String, EmbeddedVoldemortServer.KeySerializer> stores = new LinkedHashMap<>();
+        stores.put(BOXED_STORE, EmbeddedVoldemortServer.KeySerializer.LONG);
+        stores.put(PRIMITIVE_STORE, EmbeddedVoldemortServer.KeySerializer.IDENTITY);
+        try (final EmbeddedVoldemortServer server = EmbeddedVoldemortServer.start(stores)) {
+            final StoreClientFactory factory = new SocketStoreClientFactory(ImmutableClientConfig.newBuilder()
+                    .setBootstrapUrls(server.getBootstrapUrl())
+                    .build());
+            try {
+                final StoreClient<Long, byte[]> boxedStore = factory.getStoreClient(BOXED_STORE);
+                final StoreClient<byte[], byte[]> primitiveStore = factory.getStoreClient(PRIMITIVE_STORE);
+                final byte[] value = new byte[this.valueSize];
+                for (long id = 0L; id < this.recordCount; ++id) {
+                    boxedStore.put(id, value);
+                    primitiveStore.put(LongKeyCodec.toBytes(id), value);
+                }
+
+                final VoldemortResourceProvider<Long, byte[]> boxedProvider = VoldemortResourceProvider
+                        .newBuilder(boxedStore)
+                        .setStoreName(BOXED_STORE)
+                        .build();
+                final List<Case> cases = new ArrayList<>();
+                cases.add(new BoxedKeyCase(boxedProvider));
+                cases.add(new PrimitiveKeyCase(primitiveStore));
+                cases.add(new VersionedReadCase(boxedProvider));
+                cases.add(new ValueOnlyReadCase(boxedProvider));
+                cases.add(new FutureReadCase(boxedProvider));
+                cases.add(new CachedReadCase(
+                        "OnHeapCachedReads",
+                        new OnHeapCachingStoreClient(primitiveStore, this.cacheBytes),
+                        this.recordCount));
+                cases.add(new CachedReadCase(
+                        "OffHeapCachedReads",
+                        new OffHeapCachingStoreClient<>(
+                                primitiveStore,
+                                new OffHeapCache(this.cacheBytes),
+                                new IdentitySerializer(),
+                                new IdentitySerializer()),
+                        this.recordCount));
+                while (!cases.isEmpty()) {
+                    // Let each case, and its cache, be collected once it's measured:
+                    measure(cases.remove(0), (com.sun.management.ThreadMXBean) threads, out);
+                }
+            } finally {
+                factory.close();
+            }
+        }
+    }
+
+    private void measure(
+            final Case benchmark,
+            final com.sun.management.ThreadMXBean threads,
+            final PrintStream out) {
+        // Warm up, so that the measurement excludes class loading and compilation:
+        for (long i = 0L; i < this.operationCount / 10L; ++i) {
+            benchmark.perform(i % this.recordCount);
+        }
+
+        final long startCollections = collectionCount();
+        final long startCollectionMillis = collectionMillis();
+        final long startBytes = allocatedBytes(threads);
+        final long startNanos = System.nanoTime();
+        for (long i = 0L; i < this.operationCount; ++i) {
+            benchmark.perform(i % this.recordCount);
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long bytes = allocatedBytes(threads) - startBytes;
+        final long collections = collectionCount() - startCollections;
+        final long collectionMillis = collectionMillis() - startCollectionMillis;
+        System.gc();
+        final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        final String label = "[" + benchmark.name + "], ";
+        out.println(label + "Operations, " + this.operationCount);
+        out.println(label + "AllocatedBytes/op, " + (bytes / this.operationCount));
+        out.println(label + "Latency(ns/op), " + (elapsedNanos / this.operationCount));
+        out.println(label + "GcCount, " + collections);
+        out.println(label + "GcTime(ms), " + collectionMillis);
+        out.println(label + "HeapUsedAfterGc(bytes), " + heapUsed);
+        out.flush();
+    }
+
+    private static long collectionCount() {
+        long total = 0L;
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(collector.getCollectionCount(), 0L);
+        }
+        return total;
+    }
+
+    private static long collectionMillis() {
+        long total = 0L;
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(collector.getCollectionTime(), 0L);
+        }
+        return total;
+    }
+
+    private static long allocatedBytes(final com.sun.management.ThreadMXBean threads) {
+        long total = 0L;
+        for (final long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0L) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+
+    private abstract static class Case {
+        public final String name;
+
+        protected Case(final String name) {
+            this.name = name;
+        }
+
+        public abstract void perform(long id);
+    }
+
+
+    /**
+     * Reads through the generic provider, with boxed {@link Long} keys
+     * serialized by the client.
+     */
+    private static final class BoxedKeyCase extends Case {
+        private final VoldemortResourceProvider<Long, byte[]> provider;
+
+        public BoxedKeyCase(final VoldemortResourceProvider<Long, byte[]> provider) {
+            super("BoxedLongKeys");
+            this.provider = provider;
+        }
+
+        @Override
+        public void perform(final long id) {
+            AwaitingSubscriber.subscribeAndAwait(this.provider.get(id).get());
+        }
+    }
+
+
+    /**
+     * Reads through the {@code long}-keyed provider.
+     */
+    private static final class PrimitiveKeyCase extends Case {
+        private final LongKeyResourceProvider<byte[]> provider;
+
+        public PrimitiveKeyCase(final StoreClient<byte[], byte[]> store) {
+            super("PrimitiveLongKeys");
+            this.provider = LongKeyResourceProvider.newBuilder(store).setStoreName(PRIMITIVE_STORE).build();
+        }
+
+        @Override
+        public void perform(final long id) {
+            AwaitingSubscriber.subscribeAndAwait(this.provider.get(id).get());
+        }
+    }
+
+
+    private static final class VersionedReadCase extends Case {
+        private final VoldemortResourceProvider<Long, byte[]> provider;
+
+        public VersionedReadCase(final VoldemortResourceProvider<Long, byte[]> provider) {
+            super("VersionedReads");
+            this.provider = provider;
+        }
+
+        @Override
+        public void perform(final long id) {
+            AwaitingSubscriber.subscribeAndAwait(this.provider.get(id).get());
+        }
+    }
+
+
+    private static final class ValueOnlyReadCase extends Case {
+        private final VoldemortResourceProvider<Long, byte[]> provider;
+
+        public ValueOnlyReadCase(final VoldemortResourceProvider<Long, byte[]> provider) {
+            super("ValueOnlyReads");
+            this.provider = provider;
+        }
+
+        @Override
+        public void perform(final long id) {
+            AwaitingSubscriber.subscribeAndAwait(this.provider.getValueResource(id).get());
+        }
+    }
+
+
+    private static final class FutureReadCase extends Case {
+        private final VoldemortResourceProvider<Long, byte[]> provider;
+
+        public FutureReadCase(final VoldemortResourceProvider<Long, byte[]> provider) {
+            super("FutureReads");
+            this.provider = provider;
+        }
+
+        @Override
+        public void perform(final long id) {
+            try {
+                this.provider.getAsync(id).get();
+            } catch (final InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted awaiting result", ix);
+            } catch (final ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
+
+
+    /**
+     * Reads through a caching {@link StoreClient}, choosing the records to
+     * read from a Zipfian distribution, not in turn.
+     */
+    private static final class CachedReadCase extends Case {
+        private final VoldemortResourceProvider<byte[], byte[]> provider;
+        private final KeyDistribution.KeyChooser chooser;
+        private final Random random = new Random(0L);
+
+        public CachedReadCase(final String name, final StoreClient<byte[], byte[]> store, final int recordCount) {
+            super(name);
+            this.provider = VoldemortResourceProvider.newBuilder(store).setStoreName(PRIMITIVE_STORE).build();
+            this.chooser = KeyDistribution.ZIPFIAN.newChooser(recordCount);
+        }
+
+        @Override
+        public void perform(final long id) {
+            final byte[] key = LongKeyCodec.toBytes(this.chooser.nextKeyIndex(this.random));
+            AwaitingSubscriber.subscribeAndAwait(this.provider.get(key).get());
+        }
+    }
+
+
+    /**
+     * The on-heap counterpart of {@link OffHeapCachingStoreClient}: an LRU
+     * cache of deserialized values, limited to the given number of bytes of
+     * keys and values. Only reads are cached, as the benchmark doesn't
+     * write.
+     */
+    private static final class OnHeapCachingStoreClient extends ForwardingStoreClient<byte[], byte[]> {
+        private final long capacityBytes;
+        private final LinkedHashMap<ByteArray, Versioned<byte[]>> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes = 0L;
+
+        public OnHeapCachingStoreClient(final StoreClient<byte[], byte[]> delegate, final long capacityBytes) {
+            super(delegate);
+            this.capacityBytes = capacityBytes;
+        }
+
+        @Override
+        public Versioned<byte[]> get(final byte[] key) {
+            final ByteArray cacheKey = new ByteArray(key);
+            synchronized (this.cache) {
+                final Versioned<byte[]> cached = this.cache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            final Versioned<byte[]> result = super.get(key);
+            if (result != null) {
+                cache(cacheKey, result);
+            }
+            return result;
+        }
+
+        private void cache(final ByteArray cacheKey, final Versioned<byte[]> versioned) {
+            final long entryBytes = cacheKey.length() + versioned.getValue().length;
+            if (entryBytes > this.capacityBytes) {
+                return;
+            }
+            synchronized (this.cache) {
+                final Versioned<byte[]> replaced = this.cache.put(cacheKey, versioned);
+                if (replaced != null) {
+                    this.usedBytes -= cacheKey.length() + replaced.getValue().length;
+                }
+                this.usedBytes += entryBytes;
+                final Iterator<Map.Entry<ByteArray, Versioned<byte[]>>> eldest = this.cache.entrySet().iterator();
+                while (this.usedBytes > this.capacityBytes) {
+                    final Map.Entry<ByteArray, Versioned<byte[]>> entry = eldest.next();
+                    this.usedBytes -= entry.getKey().length() + entry.getValue().getValue().length;
+                    eldest.remove();
+                }
+            }
+        }
+    }
+
+}
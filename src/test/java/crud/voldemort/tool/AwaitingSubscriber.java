@@ -0,0 +1,79 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.util.concurrent.CountDownLatch;
+
+import rx.Observable;
+import rx.Subscriber;
+
+
+/**
+ * Blocks until its {@link Observable} completes. This is used instead
+ * of RxJava's blocking operators, since their API has changed across
+ * the versions with which this project may be used.
+ */
+/*package*/ final class AwaitingSubscriber<T> extends Subscriber<T> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile T last = null;
+    private volatile Throwable error = null;
+
+    /**
+     * Subscribe to the given {@link Observable}, and wait for it to
+     * complete.
+     *
+     * @return  the last value emitted, or {@code null} if none.
+     */
+    public static <T> T subscribeAndAwait(final Observable<T> observable) {
+        final AwaitingSubscriber<T> subscriber = new AwaitingSubscriber<>();
+        observable.subscribe(subscriber);
+        return subscriber.await();
+    }
+
+    @Override
+    public void onNext(final T value) {
+        this.last = value;
+    }
+
+    @Override
+    public void onError(final Throwable ex) {
+        this.error = ex;
+        this.done.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        this.done.countDown();
+    }
+
+    public T await() {
+        try {
+            this.done.await();
+        } catch (final InterruptedException ix) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted awaiting result", ix);
+        }
+        final Throwable ex = this.error;
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        } else if (ex != null) {
+            throw new IllegalStateException(ex);
+        }
+        return this.last;
+    }
+
+}
@@ -0,0 +1,201 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import crud.voldemort.ShardedCounterResource;
+import crud.voldemort.ShardedCounterResourceProvider;
+import crud.voldemort.VoldemortResourceProvider;
+import crud.voldemort.config.ImmutableClientConfig;
+
+import voldemort.client.SocketStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.client.StoreClientFactory;
+
+
+/**
+ * Compares the throughput of concurrent increments of a single counter,
+ * against an {@link EmbeddedVoldemortServer}, when the counter is stored
+ * in different ways:
+ * <ul>
+ *  <li>{@code SingleKey}: one key, so that concurrent increments
+ *      conflict and must be retried;</li>
+ *  <li>{@code ThreadShards} and {@code RandomShards}: several keys, one
+ *      chosen per increment by
+ *      {@link ShardedCounterResourceProvider.ShardSelection};</li>
+ *  <li>{@code Buffered}: several keys, with increments buffered locally
+ *      and flushed periodically.</li>
+ * </ul>
+ * <pre>
+ *  CounterBenchmark [--threads=n] [--operations=n] [--shards=n] [--flushMillis=n]
+ * </pre>
+ *
+ * The operation count is per thread. After each case, the counter is read
+ * back and checked against the number of increments.
+ */
+public final class CounterBenchmark {
+
+    private static final String STORE_NAME = "counters";
+    /**
+     * Under heavy contention of a single key, an increment may lose many
+     * races before it succeeds.
+     */
+    private static final int MAX_RETRIES = 10000;
+
+    private final int threadCount;
+    private final long operationCount;
+    private final int shardCount;
+    private final long flushMillis;
+
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Properties props = new Properties();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            props.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new CounterBenchmark(
+                Integer.parseInt(props.getProperty("threads", "8")),
+                Long.parseLong(props.getProperty("operations", "2000")),
+                Integer.parseInt(props.getProperty("shards", "16")),
+                Long.parseLong(props.getProperty("flushMillis", "10")))
+            .run(System.out);
+    }
+
+    public CounterBenchmark(
+            final int threadCount,
+            final long operationCount,
+            final int shardCount,
+            final long flushMillis) {
+        if (threadCount <= 0 || operationCount <= 0L || shardCount <= 0 || flushMillis <= 0L) {
+            throw new IllegalArgumentException(
+                    "threads " + threadCount + ", operations " + operationCount
+                    + ", shards " + shardCount + ", flush interval " + flushMillis);
+        }
+        this.threadCount = threadCount;
+        this.operationCount = operationCount;
+        this.shardCount = shardCount;
+        this.flushMillis = flushMillis;
+    }
+
+    public void run(final PrintStream out) throws IOException, InterruptedException {
+        try (final EmbeddedVoldemortServer server = EmbeddedVoldemortServer.start(STORE_NAME)) {
+            final StoreClientFactory factory = new SocketStoreClientFactory(ImmutableClientConfig.newBuilder()
+                    .setBootstrapUrls(server.getBootstrapUrl())
+                    .build());
+            try {
+                final StoreClient<String, byte[]> store = factory.getStoreClient(STORE_NAME);
+                final VoldemortResourceProvider<String, byte[]> provider = VoldemortResourceProvider
+                        .newBuilder(store)
+                        .setStoreName(STORE_NAME)
+                        .build();
+
+                final List<Case> cases = new ArrayList<>();
+                cases.add(new Case("SingleKey", ShardedCounterResourceProvider.newBuilder(provider)
+                        .setShardCount(1)));
+                cases.add(new Case("ThreadShards", ShardedCounterResourceProvider.newBuilder(provider)
+                        .setShardCount(this.shardCount)
+                        .setShardSelection(ShardedCounterResourceProvider.ShardSelection.THREAD)));
+                cases.add(new Case("RandomShards", ShardedCounterResourceProvider.newBuilder(provider)
+                        .setShardCount(this.shardCount)
+                        .setShardSelection(ShardedCounterResourceProvider.ShardSelection.RANDOM)));
+                cases.add(new Case("Buffered", ShardedCounterResourceProvider.newBuilder(provider)
+                        .setShardCount(this.shardCount)
+                        .setFlushInterval(this.flushMillis, TimeUnit.MILLISECONDS)));
+                for (final Case benchmark : cases) {
+                    measure(benchmark, out);
+                }
+            } finally {
+                factory.close();
+            }
+        }
+    }
+
+    private void measure(final Case benchmark, final PrintStream out) throws InterruptedException {
+        final ShardedCounterResourceProvider counters = benchmark.builder
+                .setMaxRetries(MAX_RETRIES)
+                .build();
+        final ShardedCounterResource counter = counters.get(benchmark.name);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(this.threadCount);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        for (int i = 0; i < this.threadCount; ++i) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (long op = 0L; op < operationCount; ++op) {
+                            AwaitingSubscriber.subscribeAndAwait(counter.increment(1L));
+                        }
+                    } catch (final InterruptedException ix) {
+                        Thread.currentThread().interrupt();
+                    } catch (final RuntimeException ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, benchmark.name + " " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        counters.close();
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        final long expected = this.threadCount * this.operationCount;
+        final Long actual = AwaitingSubscriber.subscribeAndAwait(counter.get());
+        if (actual == null || actual.longValue() != expected) {
+            throw new IllegalStateException(benchmark.name + " counted " + actual + ", expected " + expected);
+        }
+        AwaitingSubscriber.subscribeAndAwait(counter.delete());
+
+        final String label = "[" + benchmark.name + "], ";
+        out.println(label + "Operations, " + expected);
+        out.println(label + "Throughput(ops/sec), " + (expected * TimeUnit.SECONDS.toNanos(1L) / elapsedNanos));
+        out.println(label + "Retries, " + counters.getRetryCount());
+        out.flush();
+    }
+
+
+    private static final class Case {
+        public final String name;
+        public final ShardedCounterResourceProvider.Builder builder;
+
+        public Case(final String name, final ShardedCounterResourceProvider.Builder builder) {
+            this.name = name;
+            this.builder = builder;
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+
+import voldemort.server.VoldemortConfig;
+import voldemort.server.VoldemortServer;
+import voldemort.store.memory.InMemoryStorageConfiguration;
+
+
+/**
+ * A single-node Voldemort server, running in this JVM, with in-memory
+ * stores whose values are {@code byte[]}, and whose keys are, by default,
+ * {@link String}s. Its home directory is created in a temporary location,
+ * and deleted when the server is closed.
+ *
+ * Because the server shares the client's JVM and host, it's suitable for
+ * comparing client configurations with each other, not for predicting
+ * production latencies.
+ */
+public final class EmbeddedVoldemortServer implements Closeable {
+
+    private static final String LOCALHOST = "localhost";
+
+    private final File home;
+    private final int socketPort;
+    private final VoldemortServer server;
+
+
+    /**
+     * Create and start a server with a single store with {@link String}
+     * keys.
+     */
+    public static EmbeddedVoldemortServer start(final String storeName) throws IOException {
+        return start(Collections.singletonMap(storeName, KeySerializer.STRING));
+    }
+
+    /**
+     * Create and start a server with the given stores, each with the given
+     * type of key.
+     */
+    public static EmbeddedVoldemortServer start(final Map<String, KeySerializer> stores) throws IOException {
+        final EmbeddedVoldemortServer server = new EmbeddedVoldemortServer(stores);
+        try {
+            server.server.start();
+            return server;
+        } catch (final RuntimeException ex) {
+            server.deleteHome();
+            throw ex;
+        }
+    }
+
+    public String getBootstrapUrl() {
+        return "tcp://" + LOCALHOST + ':' + this.socketPort;
+    }
+
+    /**
+     * Stop the server and delete its home directory.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.server.stop();
+        } finally {
+            deleteHome();
+        }
+    }
+
+    private EmbeddedVoldemortServer(final Map<String, KeySerializer> stores) throws IOException {
+        if (stores.isEmpty()) {
+            throw new IllegalArgumentException("no stores");
+        }
+        this.home = Files.createTempDirectory("voldemort-").toFile();
+        final File configDir = new File(this.home, "config");
+        if (!configDir.mkdir()) {
+            throw new IOException("Unable to create " + configDir);
+        }
+        this.socketPort = findFreePort();
+        final int adminPort = findFreePort();
+        final int httpPort = findFreePort();
+
+        write(new File(configDir, "cluster.xml"),
+                "<cluster>\n"
+                + "  <name>embedded</name>\n"
+                + "  <server>\n"
+                + "    <id>0</id>\n"
+                + "    <host>" + LOCALHOST + "</host>\n"
+                + "    <http-port>" + httpPort + "</http-port>\n"
+                + "    <socket-port>" + this.socketPort + "</socket-port>\n"
+                + "    <admin-port>" + adminPort + "</admin-port>\n"
+                + "    <partitions>0, 1, 2, 3, 4, 5, 6, 7</partitions>\n"
+                + "  </server>\n"
+                + "</cluster>\n");
+        final StringBuilder storesXml = new StringBuilder("<stores>\n");
+        for (final Map.Entry<String, KeySerializer> store : stores.entrySet()) {
+            storesXml.append("  <store>\n"
+                    + "    <name>" + store.getKey() + "</name>\n"
+                    + "    <persistence>" + InMemoryStorageConfiguration.TYPE_NAME + "</persistence>\n"
+                    + "    <routing>client</routing>\n"
+                    + "    <replication-factor>1</replication-factor>\n"
+                    + "    <required-reads>1</required-reads>\n"
+                    + "    <required-writes>1</required-writes>\n"
+                    + "    <key-serializer>" + store.getValue().xml + "</key-serializer>\n"
+                    + "    <value-serializer><type>identity</type></value-serializer>\n"
+                    + "  </store>\n");
+        }
+        storesXml.append("</stores>\n");
+        write(new File(configDir, "stores.xml"), storesXml.toString());
+        write(new File(configDir, "server.properties"),
+                "node.id=0\n"
+                + "storage.configs=" + InMemoryStorageConfiguration.class.getName() + "\n"
+                + "http.enable=false\n"
+                + "enable.server.routing=false\n");
+
+        final VoldemortConfig config = VoldemortConfig.loadFromVoldemortHome(this.home.getAbsolutePath());
+        this.server = new VoldemortServer(config);
+    }
+
+    private static int findFreePort() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        try (final Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+    }
+
+    private void deleteHome() throws IOException {
+        Files.walkFileTree(this.home.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    /**
+     * The types of key that a store may have.
+     */
+    public static enum KeySerializer {
+        /**
+         * {@link String} keys.
+         */
+        STRING("<type>string</type>"),
+        /**
+         * {@code byte[]} keys, as for
+         * {@link crud.voldemort.LongKeyResourceProvider}.
+         */
+        IDENTITY("<type>identity</type>"),
+        /**
+         * {@link Long} keys.
+         */
+        LONG("<type>json</type><schema-info>\"int64\"</schema-info>"),
+        ;
+
+        /*package*/ final String xml;
+
+        private KeySerializer(final String xml) {
+            this.xml = xml;
+        }
+    }
+
+}
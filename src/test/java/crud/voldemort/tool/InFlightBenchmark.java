@@ -0,0 +1,212 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import crud.voldemort.StoreExecutors;
+import crud.voldemort.StoreFuture;
+import crud.voldemort.VoldemortResourceProvider;
+import crud.voldemort.config.ImmutableClientConfig;
+
+import voldemort.client.SocketStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.client.StoreClientFactory;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * Compares the throughput and memory use of many concurrent reads, against
+ * an {@link EmbeddedVoldemortServer}, when the blocking store calls run on
+ * different {@link java.util.concurrent.Executor}s:
+ * <ul>
+ *  <li>{@code FixedPool}: a fixed pool of platform threads, so that reads
+ *      beyond the pool's size wait in its queue;</li>
+ *  <li>{@code VirtualThreads}: a new virtual thread per read, from
+ *      {@link StoreExecutors#newVirtualThreadPerTaskExecutor()}. This case
+ *      is skipped on JVMs before Java 21.</li>
+ * </ul>
+ * <pre>
+ *  InFlightBenchmark [--inFlight=n] [--operations=n] [--poolSize=n]
+ *                    [--connections=n] [--records=n] [--valueSize=bytes]
+ * </pre>
+ *
+ * Each case keeps the given number of reads in flight, issuing a new read
+ * through {@link VoldemortResourceProvider#getAsync(Object)} as soon as one
+ * completes, until it has issued the given number. It reports throughput,
+ * the peak number of live platform threads, and the peak heap usage.
+ * Since every read needs a connection, the client's maximum connections
+ * per node bounds the reads actually sent to the server at once, in both
+ * cases; the executor determines what waiting for them costs.
+ */
+public final class InFlightBenchmark {
+
+    private static final String STORE_NAME = "inflight";
+
+    private final int inFlight;
+    private final long operationCount;
+    private final int poolSize;
+    private final int connectionCount;
+    private final int recordCount;
+    private final int valueSize;
+
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Properties props = new Properties();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            props.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        new InFlightBenchmark(
+                Integer.parseInt(props.getProperty("inFlight", "10000")),
+                Long.parseLong(props.getProperty("operations", "200000")),
+                Integer.parseInt(props.getProperty("poolSize", "200")),
+                Integer.parseInt(props.getProperty("connections", "200")),
+                Integer.parseInt(props.getProperty("records", "1000")),
+                Integer.parseInt(props.getProperty("valueSize", "100")))
+            .run(System.out);
+    }
+
+    public InFlightBenchmark(
+            final int inFlight,
+            final long operationCount,
+            final int poolSize,
+            final int connectionCount,
+            final int recordCount,
+            final int valueSize) {
+        if (inFlight <= 0 || operationCount <= 0L || poolSize <= 0 || connectionCount <= 0
+                || recordCount <= 0 || valueSize < 0) {
+            throw new IllegalArgumentException(
+                    "in flight " + inFlight + ", operations " + operationCount + ", pool size " + poolSize
+                    + ", connections " + connectionCount + ", records " + recordCount
+                    + ", value size " + valueSize);
+        }
+        this.inFlight = inFlight;
+        this.operationCount = operationCount;
+        this.poolSize = poolSize;
+        this.connectionCount = connectionCount;
+        this.recordCount = recordCount;
+        this.valueSize = valueSize;
+    }
+
+    public void run(final PrintStream out) throws IOException, InterruptedException {
+        try (final EmbeddedVoldemortServer server = EmbeddedVoldemortServer.start(STORE_NAME)) {
+            final StoreClientFactory factory = new SocketStoreClientFactory(ImmutableClientConfig.newBuilder()
+                    .setBootstrapUrls(server.getBootstrapUrl())
+                    .setMaxConnectionsPerNode(this.connectionCount)
+                    .build());
+            try {
+                final StoreClient<String, byte[]> store = factory.getStoreClient(STORE_NAME);
+                final byte[] value = new byte[this.valueSize];
+                for (int i = 0; i < this.recordCount; ++i) {
+                    store.put(keyOf(i), value);
+                }
+
+                measure("FixedPool", store, Executors.newFixedThreadPool(this.poolSize), out);
+                if (StoreExecutors.isVirtualThreadSupported()) {
+                    measure("VirtualThreads", store, StoreExecutors.newVirtualThreadPerTaskExecutor(), out);
+                } else {
+                    out.println("[VirtualThreads], Skipped, requires Java 21 or later");
+                    out.flush();
+                }
+            } finally {
+                factory.close();
+            }
+        }
+    }
+
+    private void measure(
+            final String name,
+            final StoreClient<String, byte[]> store,
+            final ExecutorService executor,
+            final PrintStream out) throws InterruptedException {
+        final VoldemortResourceProvider<String, byte[]> provider = VoldemortResourceProvider
+                .newBuilder(store)
+                .setStoreName(STORE_NAME)
+                .setExecutor(executor)
+                .build();
+        final Semaphore permits = new Semaphore(this.inFlight);
+        final AtomicLong failures = new AtomicLong();
+        final StoreFuture.Callback<Versioned<byte[]>> release = new StoreFuture.Callback<Versioned<byte[]>>() {
+            @Override
+            public void onSuccess(final Versioned<byte[]> result) {
+                permits.release();
+            }
+
+            @Override
+            public void onFailure(final Throwable cause) {
+                failures.incrementAndGet();
+                permits.release();
+            }
+        };
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.gc();
+        threads.resetPeakThreadCount();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        final long startNanos = System.nanoTime();
+        try {
+            for (long i = 0L; i < this.operationCount; ++i) {
+                permits.acquire();
+                provider.getAsync(keyOf((int) (i % this.recordCount)))
+                        .addCallback(release, StoreExecutors.sameThread());
+            }
+            // Await the reads still in flight:
+            permits.acquire(this.inFlight);
+        } finally {
+            executor.shutdown();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        executor.awaitTermination(1L, TimeUnit.MINUTES);
+
+        long peakHeapBytes = 0L;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        final String label = "[" + name + "], ";
+        out.println(label + "Operations, " + this.operationCount);
+        out.println(label + "InFlight, " + this.inFlight);
+        out.println(label + "Failures, " + failures.get());
+        out.println(label + "Throughput(ops/sec), "
+                + (this.operationCount * TimeUnit.SECONDS.toNanos(1L) / elapsedNanos));
+        out.println(label + "PeakPlatformThreads, " + threads.getPeakThreadCount());
+        out.println(label + "PeakHeapUsed(bytes), " + peakHeapBytes);
+        out.flush();
+    }
+
+    private static String keyOf(final int index) {
+        return "record" + index;
+    }
+
+}
@@ -0,0 +1,144 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.util.Random;
+
+
+/**
+ * The ways in which a {@link WorkloadDriver} can choose the keys for its
+ * operations, after the YCSB distributions of the same names.
+ */
+public enum KeyDistribution {
+    /**
+     * Every record is equally likely.
+     */
+    UNIFORM {
+        @Override
+        public KeyChooser newChooser(final long recordCount) {
+            return new KeyChooser() {
+                @Override
+                public long nextKeyIndex(final Random random) {
+                    return (long) (random.nextDouble() * recordCount);
+                }
+            };
+        }
+    },
+    /**
+     * A few records are very popular, and most are not. The popular records
+     * are scattered throughout the key space.
+     */
+    ZIPFIAN {
+        @Override
+        public KeyChooser newChooser(final long recordCount) {
+            final ZipfianGenerator zipf = new ZipfianGenerator(recordCount);
+            return new KeyChooser() {
+                @Override
+                public long nextKeyIndex(final Random random) {
+                    return scramble(zipf.next(random)) % recordCount;
+                }
+            };
+        }
+    },
+    /**
+     * The most recently loaded records are the most popular, with
+     * popularity falling off as for {@link #ZIPFIAN}.
+     */
+    LATEST {
+        @Override
+        public KeyChooser newChooser(final long recordCount) {
+            final ZipfianGenerator zipf = new ZipfianGenerator(recordCount);
+            return new KeyChooser() {
+                @Override
+                public long nextKeyIndex(final Random random) {
+                    return recordCount - 1L - zipf.next(random);
+                }
+            };
+        }
+    },
+    ;
+
+    /**
+     * Create a chooser of indices in [0, recordCount). Choosers are
+     * thread-safe; the {@link Random} passed to them need not be.
+     */
+    public abstract KeyChooser newChooser(long recordCount);
+
+    /**
+     * Spread the small indices favored by a Zipfian distribution across
+     * the key space: a 64-bit FNV-1a hash of the index.
+     */
+    private static long scramble(final long index) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < Long.SIZE; i += Byte.SIZE) {
+            hash ^= (index >>> i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+
+
+    public static interface KeyChooser {
+        long nextKeyIndex(Random random);
+    }
+
+
+    /**
+     * Generates integers in [0, itemCount) such that the popularity of item
+     * i is proportional to 1 / (i+1)^theta, using the algorithm from Gray et
+     * al., "Quickly Generating Billion-Record Synthetic Databases", as does
+     * YCSB.
+     */
+    private static final class ZipfianGenerator {
+        private static final double THETA = 0.99;
+
+        private final long itemCount;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        public ZipfianGenerator(final long itemCount) {
+            if (itemCount <= 0L) {
+                throw new IllegalArgumentException("itemCount " + itemCount + " <= 0");
+            }
+            this.itemCount = itemCount;
+            this.zetaN = zeta(itemCount);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1.0 - Math.pow(2.0 / itemCount, 1.0 - THETA)) / (1.0 - zeta(2L) / this.zetaN);
+        }
+
+        public long next(final Random random) {
+            final double u = random.nextDouble();
+            final double uz = u * this.zetaN;
+            if (uz < 1.0) {
+                return 0L;
+            }
+            if (uz < 1.0 + Math.pow(0.5, THETA)) {
+                return Math.min(1L, this.itemCount - 1L);
+            }
+            final long result = (long) (this.itemCount * Math.pow(this.eta * u - this.eta + 1.0, this.alpha));
+            return Math.min(result, this.itemCount - 1L);
+        }
+
+        private static double zeta(final long n) {
+            double sum = 0.0;
+            for (long i = 1L; i <= n; ++i) {
+                sum += 1.0 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+
+/**
+ * The parameters of a {@link WorkloadDriver} run. Every parameter has a
+ * default, and all are echoed in the driver's report, so that the results
+ * of different runs can be compared.
+ */
+public final class WorkloadConfig {
+
+    private final List<String> bootstrapUrls;
+    private final String storeName;
+    private final File clientConfigFile;
+    private final long recordCount;
+    private final long operationCount;
+    private final long warmupOperationCount;
+    private final int threadCount;
+    private final double readProportion;
+    private final double writeProportion;
+    private final double deleteProportion;
+    private final KeyDistribution keyDistribution;
+    private final int valueSize;
+    private final long seed;
+    private final boolean loadEnabled;
+
+
+    /**
+     * Parse arguments of the form {@code --name=value}, where each name is
+     * one of the properties accepted by {@link #fromProperties(Properties)}.
+     * The argument {@code --config=<file>} loads properties from the given
+     * file; arguments that follow it override them.
+     *
+     * @throws IllegalArgumentException if an argument is malformed.
+     */
+    public static WorkloadConfig fromArgs(final String... args) throws IOException {
+        final Properties props = new Properties();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            final String name = arg.substring(2, equals);
+            final String value = arg.substring(equals + 1);
+            if ("config".equals(name)) {
+                try (final InputStream in = new FileInputStream(value)) {
+                    props.load(in);
+                }
+            } else {
+                props.setProperty(name, value);
+            }
+        }
+        return fromProperties(props);
+    }
+
+    /**
+     * Recognized properties:
+     * <ul>
+     *  <li>{@code bootstrapUrls}: comma-separated; if absent, an embedded
+     *      single-node server is started</li>
+     *  <li>{@code store}: default {@code test}</li>
+     *  <li>{@code clientConfig}: a Voldemort client properties file</li>
+     *  <li>{@code recordCount}: default 10000</li>
+     *  <li>{@code operationCount}: default 100000</li>
+     *  <li>{@code warmupOperationCount}: default 10000</li>
+     *  <li>{@code threads}: default 8</li>
+     *  <li>{@code readProportion}: default 0.95</li>
+     *  <li>{@code writeProportion}: default 0.05</li>
+     *  <li>{@code deleteProportion}: default 0</li>
+     *  <li>{@code distribution}: {@code uniform}, {@code zipfian}
+     *      (the default), or {@code latest}</li>
+     *  <li>{@code valueSize}: in bytes; default 1024</li>
+     *  <li>{@code seed}: default 42</li>
+     *  <li>{@code load}: whether to write every record before the run;
+     *      default true</li>
+     * </ul>
+     */
+    public static WorkloadConfig fromProperties(final Properties props) {
+        return new WorkloadConfig(props);
+    }
+
+    /**
+     * @return  the bootstrap URLs of the cluster to test, or an empty list
+     *          to test an embedded server.
+     */
+    public List<String> getBootstrapUrls() {
+        return this.bootstrapUrls;
+    }
+
+    public boolean isEmbedded() {
+        return this.bootstrapUrls.isEmpty();
+    }
+
+    public String getStoreName() {
+        return this.storeName;
+    }
+
+    /**
+     * @return  the Voldemort client properties file from which to load the
+     *          client configuration under test, or {@code null} to use the
+     *          default configuration.
+     */
+    public File getClientConfigFile() {
+        return this.clientConfigFile;
+    }
+
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    public long getOperationCount() {
+        return this.operationCount;
+    }
+
+    public long getWarmupOperationCount() {
+        return this.warmupOperationCount;
+    }
+
+    public int getThreadCount() {
+        return this.threadCount;
+    }
+
+    public double getReadProportion() {
+        return this.readProportion;
+    }
+
+    public double getWriteProportion() {
+        return this.writeProportion;
+    }
+
+    public double getDeleteProportion() {
+        return this.deleteProportion;
+    }
+
+    public KeyDistribution getKeyDistribution() {
+        return this.keyDistribution;
+    }
+
+    public int getValueSize() {
+        return this.valueSize;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public boolean isLoadEnabled() {
+        return this.loadEnabled;
+    }
+
+    /**
+     * @return  all parameters, by name, in a stable order.
+     */
+    public Map<String, String> toMap() {
+        final Map<String, String> map = new TreeMap<>();
+        map.put("bootstrapUrls", isEmbedded() ? "(embedded)" : join(this.bootstrapUrls));
+        map.put("store", this.storeName);
+        map.put("clientConfig", (this.clientConfigFile == null) ? "(default)" : this.clientConfigFile.getPath());
+        map.put("recordCount", Long.toString(this.recordCount));
+        map.put("operationCount", Long.toString(this.operationCount));
+        map.put("warmupOperationCount", Long.toString(this.warmupOperationCount));
+        map.put("threads", Integer.toString(this.threadCount));
+        map.put("readProportion", Double.toString(this.readProportion));
+        map.put("writeProportion", Double.toString(this.writeProportion));
+        map.put("deleteProportion", Double.toString(this.deleteProportion));
+        map.put("distribution", this.keyDistribution.name().toLowerCase(Locale.ROOT));
+        map.put("valueSize", Integer.toString(this.valueSize));
+        map.put("seed", Long.toString(this.seed));
+        map.put("load", Boolean.toString(this.loadEnabled));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + toMap();
+    }
+
+    private WorkloadConfig(final Properties props) {
+        final String urls = props.getProperty("bootstrapUrls", "").trim();
+        final List<String> urlList = new ArrayList<>();
+        if (!urls.isEmpty()) {
+            for (final String url : urls.split(",")) {
+                urlList.add(url.trim());
+            }
+        }
+        this.bootstrapUrls = Collections.unmodifiableList(urlList);
+        this.storeName = props.getProperty("store", "test");
+        final String clientConfigPath = props.getProperty("clientConfig");
+        this.clientConfigFile = (clientConfigPath == null) ? null : new File(clientConfigPath);
+        this.recordCount = positiveLong(props, "recordCount", 10000L);
+        this.operationCount = positiveLong(props, "operationCount", 100000L);
+        this.warmupOperationCount = Long.parseLong(props.getProperty("warmupOperationCount", "10000"));
+        this.threadCount = (int) positiveLong(props, "threads", 8L);
+        this.readProportion = Double.parseDouble(props.getProperty("readProportion", "0.95"));
+        this.writeProportion = Double.parseDouble(props.getProperty("writeProportion", "0.05"));
+        this.deleteProportion = Double.parseDouble(props.getProperty("deleteProportion", "0"));
+        final double total = this.readProportion + this.writeProportion + this.deleteProportion;
+        if (this.readProportion < 0.0 || this.writeProportion < 0.0 || this.deleteProportion < 0.0
+                || Math.abs(total - 1.0) > 1e-9) {
+            throw new IllegalArgumentException("Operation proportions must be non-negative and sum to 1");
+        }
+        this.keyDistribution = KeyDistribution.valueOf(
+                props.getProperty("distribution", "zipfian").toUpperCase(Locale.ROOT));
+        this.valueSize = (int) positiveLong(props, "valueSize", 1024L);
+        this.seed = Long.parseLong(props.getProperty("seed", "42"));
+        this.loadEnabled = Boolean.parseBoolean(props.getProperty("load", "true"));
+    }
+
+    private static long positiveLong(final Properties props, final String name, final long defaultValue) {
+        final String value = props.getProperty(name);
+        final long result = (value == null) ? defaultValue : Long.parseLong(value);
+        if (result <= 0L) {
+            throw new IllegalArgumentException(name + " " + result + " <= 0");
+        }
+        return result;
+    }
+
+    private static String join(final List<String> strings) {
+        final StringBuilder buf = new StringBuilder();
+        for (final String string : strings) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(string);
+        }
+        return buf.toString();
+    }
+
+}
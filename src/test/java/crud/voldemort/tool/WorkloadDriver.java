@@ -0,0 +1,425 @@
+/* Copyright 2014 Rick Warren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package crud.voldemort.tool;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import crud.voldemort.VoldemortResource;
+import crud.voldemort.VoldemortResourceProvider;
+import crud.voldemort.config.ImmutableClientConfig;
+import crud.voldemort.config.SmartOpCode;
+import crud.voldemort.metrics.Histogram;
+import crud.voldemort.tool.KeyDistribution.KeyChooser;
+import rx.Observable;
+
+import voldemort.client.SocketStoreClientFactory;
+import voldemort.client.StoreClient;
+import voldemort.client.StoreClientFactory;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Versioned;
+
+
+/**
+ * A YCSB-style load generator for evaluating client configurations: it
+ * drives a {@link VoldemortResourceProvider} with a configurable mix of
+ * reads, writes, and deletes from a number of threads, and reports the
+ * throughput and the latency distribution of each {@link SmartOpCode}.
+ *
+ * The target store must have {@code string} keys and {@code identity}
+ * values. If no bootstrap URLs are given, such a store is created in an
+ * {@link EmbeddedVoldemortServer}.
+ *
+ * Runs are repeatable: each thread draws its operations, keys, and values
+ * from its own {@link Random}, seeded from the configured seed, so the
+ * sequence of requests issued by each thread is the same from run to run.
+ * (The interleaving of threads, of course, is not.)
+ *
+ * Because Voldemort writes are versioned, each write first reads the
+ * current version of its key, as would a real read-modify-write client.
+ * That read is timed and reported under {@link SmartOpCode#GET_OP_CODE},
+ * like any other, so that the overall throughput counts every request the
+ * run sent; only the write itself is reported under
+ * {@link SmartOpCode#PUT_OP_CODE}. If the read fails, the write is
+ * skipped. Writes that lose a race with another thread's write to the same
+ * key are counted as errors.
+ *
+ * The latencies of failed operations are reported separately from those
+ * of successful ones, so that fast failures can't flatter the latency
+ * distribution.
+ *
+ * @see WorkloadConfig#fromProperties(java.util.Properties)
+ */
+public final class WorkloadDriver {
+
+    private static final String KEY_PREFIX = "user";
+    private static final double[] PERCENTILES = { 50.0, 95.0, 99.0, 99.9 };
+
+    private final WorkloadConfig config;
+
+
+    /**
+     * Run a workload, and print the report to standard output.
+     *
+     * @see WorkloadConfig#fromArgs(String...)
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final WorkloadConfig config = WorkloadConfig.fromArgs(args);
+        new WorkloadDriver(config).run(System.out);
+    }
+
+    public WorkloadDriver(final WorkloadConfig config) {
+        this.config = Objects.requireNonNull(config);
+    }
+
+    /**
+     * Load the records, if so configured; warm up; then run the measured
+     * operations, and print a report of them to the given stream.
+     */
+    public void run(final PrintStream out) throws IOException, InterruptedException {
+        final EmbeddedVoldemortServer server = this.config.isEmbedded()
+                ? EmbeddedVoldemortServer.start(this.config.getStoreName())
+                : null;
+        try {
+            final List<String> bootstrapUrls = (server == null)
+                    ? this.config.getBootstrapUrls()
+                    : Collections.singletonList(server.getBootstrapUrl());
+            final ImmutableClientConfig.Builder clientConfig = (this.config.getClientConfigFile() == null)
+                    ? ImmutableClientConfig.newBuilder()
+                    : ImmutableClientConfig.loadBuilderFrom(this.config.getClientConfigFile());
+            clientConfig.setBootstrapUrls(bootstrapUrls);
+
+            final StoreClientFactory factory = new SocketStoreClientFactory(clientConfig.build());
+            try {
+                final StoreClient<String, byte[]> store = factory.getStoreClient(this.config.getStoreName());
+                final VoldemortResourceProvider<String, byte[]> provider = VoldemortResourceProvider.newBuilder(store)
+                        .setStoreName(this.config.getStoreName())
+                        .build();
+                run(provider, out);
+            } finally {
+                factory.close();
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private void run(
+            final VoldemortResourceProvider<String, byte[]> provider,
+            final PrintStream out)
+    throws InterruptedException {
+        final ExecutorService threads = Executors.newFixedThreadPool(this.config.getThreadCount());
+        try {
+            if (this.config.isLoadEnabled()) {
+                runPhase(threads, new LoadTaskFactory(provider));
+            }
+            if (this.config.getWarmupOperationCount() > 0L) {
+                // Different seeds, so that warm-up doesn't pre-touch the measured keys in order:
+                runPhase(threads, new OperationTaskFactory(
+                        provider,
+                        this.config.getWarmupOperationCount(),
+                        ~this.config.getSeed(),
+                        new Results()));
+            }
+            final Results results = new Results();
+            final long start = System.nanoTime();
+            runPhase(threads, new OperationTaskFactory(
+                    provider,
+                    this.config.getOperationCount(),
+                    this.config.getSeed(),
+                    results));
+            final long elapsedNanos = System.nanoTime() - start;
+            report(results, elapsedNanos, out);
+        } finally {
+            threads.shutdownNow();
+            threads.awaitTermination(1L, TimeUnit.MINUTES);
+        }
+    }
+
+    private void runPhase(final ExecutorService threads, final TaskFactory tasks)
+    throws InterruptedException {
+        final int threadCount = this.config.getThreadCount();
+        final List<Future<?>> futures = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; ++i) {
+            futures.add(threads.submit(tasks.newTask(i, threadCount)));
+        }
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final ExecutionException ex) {
+                throw new IllegalStateException("Workload thread failed", ex.getCause());
+            }
+        }
+    }
+
+    private void report(final Results results, final long elapsedNanos, final PrintStream out) {
+        for (final Map.Entry<String, String> param : this.config.toMap().entrySet()) {
+            out.println("[CONFIG], " + param.getKey() + ", " + param.getValue());
+        }
+        long totalOps = 0L;
+        for (final Histogram latencies : results.latenciesMicros.values()) {
+            totalOps += latencies.getCount();
+        }
+        for (final Histogram latencies : results.failureLatenciesMicros.values()) {
+            totalOps += latencies.getCount();
+        }
+        final double elapsedMs = elapsedNanos / 1.0e6;
+        out.println("[OVERALL], RunTime(ms), " + Math.round(elapsedMs));
+        out.println("[OVERALL], Throughput(ops/sec), " + (totalOps * 1000.0 / elapsedMs));
+        for (final Map.Entry<SmartOpCode, Histogram> op : results.latenciesMicros.entrySet()) {
+            final String label = "[" + op.getKey().name() + "], ";
+            final Histogram latencies = op.getValue();
+            final Histogram failureLatencies = results.failureLatenciesMicros.get(op.getKey());
+            out.println(label + "Operations, " + (latencies.getCount() + failureLatencies.getCount()));
+            out.println(label + "Errors, " + failureLatencies.getCount());
+            out.println(label + "AverageLatency(us), " + latencies.getMean());
+            for (final double percentile : PERCENTILES) {
+                out.println(label + percentile + "PercentileLatency(us), "
+                        + latencies.getValueAtPercentile(percentile));
+            }
+            out.println(label + "MaxLatency(us), " + latencies.getMax());
+            if (failureLatencies.getCount() > 0L) {
+                out.println(label + "AverageErrorLatency(us), " + failureLatencies.getMean());
+                for (final double percentile : PERCENTILES) {
+                    out.println(label + percentile + "PercentileErrorLatency(us), "
+                            + failureLatencies.getValueAtPercentile(percentile));
+                }
+                out.println(label + "MaxErrorLatency(us), " + failureLatencies.getMax());
+            }
+        }
+        out.flush();
+    }
+
+    private static String keyOf(final long index) {
+        return KEY_PREFIX + index;
+    }
+
+    /**
+     * @return  the number of the given total operations that should be
+     *          performed by the given thread.
+     */
+    private static long shareOf(final long total, final int threadIndex, final int threadCount) {
+        final long share = total / threadCount;
+        return (threadIndex < total % threadCount) ? share + 1L : share;
+    }
+
+    /**
+     * Subscribe to the given {@link Observable}, and wait for it to
+     * complete.
+     *
+     * @return  the last value emitted, or {@code null} if none.
+     */
+    private static <T> T await(final Observable<T> observable) {
+        return AwaitingSubscriber.subscribeAndAwait(observable);
+    }
+
+
+    /**
+     * The kinds of operations in the measured mix, each labeled with the
+     * {@link SmartOpCode} under which it's reported.
+     */
+    private static enum Operation {
+        READ(SmartOpCode.GET_OP_CODE),
+        WRITE(SmartOpCode.PUT_OP_CODE),
+        DELETE(SmartOpCode.DELETE_OP_CODE),
+        ;
+
+        public final SmartOpCode opCode;
+
+        private Operation(final SmartOpCode opCode) {
+            this.opCode = opCode;
+        }
+    }
+
+
+    private static final class Results {
+        /**
+         * The latencies of successful operations.
+         */
+        public final Map<SmartOpCode, Histogram> latenciesMicros = new EnumMap<>(SmartOpCode.class);
+        public final Map<SmartOpCode, Histogram> failureLatenciesMicros = new EnumMap<>(SmartOpCode.class);
+
+        public Results() {
+            // Populate up front, so that the maps are read-only thereafter:
+            for (final Operation op : Operation.values()) {
+                this.latenciesMicros.put(op.opCode, new Histogram());
+                this.failureLatenciesMicros.put(op.opCode, new Histogram());
+            }
+        }
+
+        public void record(final SmartOpCode opCode, final long startNanos, final boolean succeeded) {
+            final long elapsedMicros = (System.nanoTime() - startNanos) / 1000L;
+            final Map<SmartOpCode, Histogram> histograms = succeeded
+                    ? this.latenciesMicros
+                    : this.failureLatenciesMicros;
+            histograms.get(opCode).record(elapsedMicros);
+        }
+    }
+
+
+    private static interface TaskFactory {
+        Callable<Void> newTask(int threadIndex, int threadCount);
+    }
+
+
+    /**
+     * Writes every record once, each thread taking a contiguous range of
+     * keys. Records left over from a previous run are left alone.
+     */
+    private final class LoadTaskFactory implements TaskFactory {
+        private final VoldemortResourceProvider<String, byte[]> provider;
+
+        public LoadTaskFactory(final VoldemortResourceProvider<String, byte[]> provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public Callable<Void> newTask(final int threadIndex, final int threadCount) {
+            final long recordCount = WorkloadDriver.this.config.getRecordCount();
+            final long first = (recordCount * threadIndex) / threadCount;
+            final long end = (recordCount * (threadIndex + 1)) / threadCount;
+            final Random random = new Random(WorkloadDriver.this.config.getSeed() - threadIndex - 1L);
+            final byte[] value = new byte[WorkloadDriver.this.config.getValueSize()];
+            return new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (long i = first; i < end; ++i) {
+                        random.nextBytes(value);
+                        try {
+                            await(provider.get(keyOf(i)).write(new Versioned<>(value)));
+                        } catch (final ObsoleteVersionException ovx) {
+                            // Loaded by a previous run; that's fine.
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+    }
+
+
+    private final class OperationTaskFactory implements TaskFactory {
+        private final VoldemortResourceProvider<String, byte[]> provider;
+        private final long operationCount;
+        private final long seed;
+        private final Results results;
+        private final KeyChooser keys;
+
+        public OperationTaskFactory(
+                final VoldemortResourceProvider<String, byte[]> provider,
+                final long operationCount,
+                final long seed,
+                final Results results) {
+            this.provider = provider;
+            this.operationCount = operationCount;
+            this.seed = seed;
+            this.results = results;
+            this.keys = WorkloadDriver.this.config.getKeyDistribution().newChooser(
+                    WorkloadDriver.this.config.getRecordCount());
+        }
+
+        @Override
+        public Callable<Void> newTask(final int threadIndex, final int threadCount) {
+            final long count = shareOf(this.operationCount, threadIndex, threadCount);
+            final Random random = new Random(this.seed + threadIndex);
+            final byte[] value = new byte[WorkloadDriver.this.config.getValueSize()];
+            return new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (long i = 0L; i < count && !Thread.currentThread().isInterrupted(); ++i) {
+                        final Operation op = chooseOperation(random);
+                        final String key = keyOf(keys.nextKeyIndex(random));
+                        if (op == Operation.WRITE) {
+                            random.nextBytes(value);
+                        }
+                        perform(op, key, value);
+                    }
+                    return null;
+                }
+            };
+        }
+
+        private Operation chooseOperation(final Random random) {
+            final double choice = random.nextDouble();
+            final WorkloadConfig config = WorkloadDriver.this.config;
+            if (choice < config.getReadProportion()) {
+                return Operation.READ;
+            } else if (choice < config.getReadProportion() + config.getWriteProportion()) {
+                return Operation.WRITE;
+            } else {
+                return Operation.DELETE;
+            }
+        }
+
+        private void perform(final Operation op, final String key, final byte[] value) {
+            final VoldemortResource<byte[]> resource = this.provider.get(key);
+            final Versioned<byte[]> newValue;
+            if (op == Operation.WRITE) {
+                // Reported as a read: see class comment.
+                final long readStart = System.nanoTime();
+                final Versioned<byte[]> current;
+                try {
+                    current = await(resource.get());
+                } catch (final RuntimeException ex) {
+                    this.results.record(Operation.READ.opCode, readStart, false);
+                    return;
+                }
+                this.results.record(Operation.READ.opCode, readStart, true);
+                newValue = (current == null)
+                        ? new Versioned<>(value)
+                        : new Versioned<>(value, current.getVersion());
+            } else {
+                newValue = null;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                switch (op) {
+                    case READ:
+                        await(resource.get());
+                        break;
+                    case WRITE:
+                        await(resource.write(newValue));
+                        break;
+                    case DELETE:
+                        await(resource.delete());
+                        break;
+                    default:
+                        throw new AssertionError(op);
+                }
+            } catch (final RuntimeException ex) {
+                this.results.record(op.opCode, start, false);
+                return;
+            }
+            this.results.record(op.opCode, start, true);
+        }
+    }
+
+}